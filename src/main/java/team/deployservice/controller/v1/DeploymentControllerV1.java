@@ -6,22 +6,45 @@ import io.swagger.annotations.ApiParam;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.format.annotation.DateTimeFormat;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import team.deployservice.model.Deployment;
-import team.deployservice.model.DeploymentFrequency;
-import team.deployservice.model.LeadTime;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import team.deployservice.model.*;
+import team.deployservice.service.DeploymentIngestQueue;
 import team.deployservice.service.DeploymentService;
+import team.deployservice.service.ScorecardService;
 
 import javax.validation.Valid;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDate;
+import java.time.Period;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.Date;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.function.Supplier;
 
 @RestController
 @RequestMapping(value = "/api/v1", produces = "application/json")
@@ -30,13 +53,28 @@ public class DeploymentControllerV1
     {
 
     private static final Logger log = LoggerFactory.getLogger(DeploymentControllerV1.class);
+    private static final int MAX_WINDOW_DAYS = 3660;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int BULK_CHUNK_SIZE = 1000;
+    private static final String RESPOND_ASYNC = "respond-async";
     
     private final DeploymentService deploymentService;
+    private final ScorecardService scorecardService;
+    private final DeploymentIngestQueue ingestQueue;
+    private final ObjectMapper objectMapper;
+    private final Duration historicalMaxAge;
+    private final Period backfillHorizon;
 
     @Autowired
-    public DeploymentControllerV1(DeploymentService deploymentService)
+    public DeploymentControllerV1(DeploymentService deploymentService, ScorecardService scorecardService, DeploymentIngestQueue ingestQueue, ObjectMapper objectMapper, @Value("${deployservice.http.historical-max-age:P7D}") Duration historicalMaxAge, @Value("${deployservice.http.backfill-horizon:P30D}") Period backfillHorizon)
         {
         this.deploymentService = deploymentService;
+        this.scorecardService = scorecardService;
+        this.ingestQueue = ingestQueue;
+        this.objectMapper = objectMapper;
+        this.historicalMaxAge = historicalMaxAge;
+        this.backfillHorizon = backfillHorizon;
         }
 
         @PostMapping("/deployment")
@@ -47,12 +85,122 @@ public class DeploymentControllerV1
             return deploymentService.store(deployment);
         }
 
-        @GetMapping("/deployment")
+        @PostMapping(value = "/deployment", headers = "Prefer")
+        @ApiOperation(value = "Store a deployment", notes = "With Prefer: respond-async the deployment is validated and queued, answering 202 with a tracking id and a Location to poll, or 429 with Retry-After when the queue is full. Without it the deployment is stored before answering", response = IngestTicket.class)
+        public ResponseEntity<Object> storeAsync(@Valid @RequestBody Deployment deployment, @RequestHeader("Prefer") List<String> prefer){
+            if(prefer.stream().flatMap(value -> Arrays.stream(value.split(","))).noneMatch(value -> RESPOND_ASYNC.equalsIgnoreCase(value.trim()))){
+                return ResponseEntity.status(HttpStatus.CREATED).body(store(deployment));
+            }
+            Optional<String> trackingId = ingestQueue.offer(deployment);
+            if(trackingId.isEmpty()){
+                log.warn("Ingest queue full, refusing deployment with id {}", deployment.getDeploymentId());
+                return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, ingestQueue.getRetryAfter().toSeconds())))
+                    .build();
+            }
+            log.info("Queued deployment with id {} as {}", deployment.getDeploymentId(), trackingId.get());
+            return ResponseEntity.accepted()
+                .location(ServletUriComponentsBuilder.fromCurrentContextPath().path("/api/v1/deployments/ingest/{trackingId}").buildAndExpand(trackingId.get()).toUri())
+                .header("Preference-Applied", RESPOND_ASYNC)
+                .body(IngestTicket.pending(trackingId.get(), deployment.getDeploymentId()));
+        }
+
+        @GetMapping("/deployments/ingest/{trackingId}")
+        @ResponseStatus(HttpStatus.OK)
+        @ApiOperation(value = "Get the outcome of a queued deployment", notes = "Pending until a background writer has stored it. Outcomes are kept for a limited time", response = IngestTicket.class)
+        public IngestTicket ingestStatus(@PathVariable @ApiParam(value = "The tracking id returned when the deployment was queued", required = true) String trackingId){
+            return ingestQueue.status(trackingId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown tracking id " + trackingId));
+        }
+
+        @PostMapping(value = "/deployments/bulk", consumes = MediaType.APPLICATION_JSON_VALUE)
+        @ResponseStatus(HttpStatus.OK)
+        @ApiOperation(value = "Store many deployments", notes = "Stores a JSON array of deployments, reading and storing a chunk of them at a time, and reports created, duplicate, invalid or failed for each one", response = IngestResult.class, responseContainer = "List")
+        public List<IngestResult> storeArray(InputStream body) throws IOException {
+            ObjectReader deploymentReader = objectMapper.readerFor(Deployment.class);
+            List<IngestResult> results = new ArrayList<>();
+            List<Deployment> chunk = new ArrayList<>(BULK_CHUNK_SIZE);
+            List<Integer> chunkIndexes = new ArrayList<>(BULK_CHUNK_SIZE);
+            int index = 0;
+            try(JsonParser parser = objectMapper.getFactory().createParser(body)){
+                try {
+                    if(parser.nextToken() != JsonToken.START_ARRAY){
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Expected a JSON array of deployments");
+                    }
+                    for(JsonToken token = parser.nextToken(); token != null && token != JsonToken.END_ARRAY; token = parser.nextToken()){
+                        //each element is read as a tree first, so one that does not map to a deployment only fails itself
+                        JsonNode element = parser.readValueAsTree();
+                        try {
+                            chunk.add(deploymentReader.readValue(element));
+                            chunkIndexes.add(index);
+                        } catch (JsonProcessingException e) {
+                            results.add(IngestResult.invalid(index, element.path("deploymentId").textValue(), Collections.singletonList("Malformed deployment: " + e.getOriginalMessage())));
+                        }
+                        index++;
+                        if(chunk.size() == BULK_CHUNK_SIZE){
+                            storeChunk(chunk, chunkIndexes, results);
+                        }
+                    }
+                } catch (JsonProcessingException e) {
+                    //nothing after broken JSON can be read, so the deployments before it are stored and the break reported
+                    results.add(IngestResult.invalid(index, null, Collections.singletonList("Malformed JSON array: " + e.getOriginalMessage())));
+                }
+            }
+            storeChunk(chunk, chunkIndexes, results);
+            log.info("Stored {} deployments in bulk", index);
+            results.sort(Comparator.comparingInt(IngestResult::getIndex));
+            return results;
+        }
+
+        @PostMapping(value = "/deployments/bulk", consumes = MediaType.APPLICATION_NDJSON_VALUE)
         @ResponseStatus(HttpStatus.OK)
-        @ApiOperation(value = "List all deployments", notes = "List all deployments without filtering", response = Deployment.class, responseContainer = "List")
-        public List<Deployment> list(){
+        @ApiOperation(value = "Store many deployments", notes = "Stores one deployment per line, reading and storing a chunk of lines at a time, and reports created, duplicate, invalid or failed for each line", response = IngestResult.class, responseContainer = "List")
+        public List<IngestResult> storeLines(InputStream body) throws IOException {
+            ObjectReader deploymentReader = objectMapper.readerFor(Deployment.class);
+            BufferedReader lines = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+            List<IngestResult> results = new ArrayList<>();
+            List<Deployment> chunk = new ArrayList<>(BULK_CHUNK_SIZE);
+            List<Integer> chunkIndexes = new ArrayList<>(BULK_CHUNK_SIZE);
+            int index = 0;
+            for(String line = lines.readLine(); line != null; line = lines.readLine()){
+                if(line.isBlank()){
+                    continue;
+                }
+                try {
+                    chunk.add(deploymentReader.readValue(line));
+                    chunkIndexes.add(index);
+                } catch (JsonProcessingException e) {
+                    results.add(IngestResult.invalid(index, null, Collections.singletonList("Malformed deployment: " + e.getOriginalMessage())));
+                }
+                index++;
+                if(chunk.size() == BULK_CHUNK_SIZE){
+                    storeChunk(chunk, chunkIndexes, results);
+                }
+            }
+            storeChunk(chunk, chunkIndexes, results);
+            log.info("Stored {} deployments in bulk", index);
+            results.sort(Comparator.comparingInt(IngestResult::getIndex));
+            return results;
+        }
+
+        private void storeChunk(List<Deployment> chunk, List<Integer> chunkIndexes, List<IngestResult> results){
+            if(chunk.isEmpty()){
+                return;
+            }
+            //the service gets its own copy, as the chunk is cleared and refilled for the next one
+            //results come back indexed within the chunk, so they are moved to the line they were read from
+            for(IngestResult result : deploymentService.storeAll(new ArrayList<>(chunk))){
+                results.add(result.atIndex(chunkIndexes.get(result.getIndex())));
+            }
+            chunk.clear();
+            chunkIndexes.clear();
+        }
+
+        @GetMapping("/deployment")
+        @ApiOperation(value = "List all deployments", notes = "List a page of all deployments without filtering, newest first. A Link header with rel=\"next\" points at the next page", response = Deployment.class, responseContainer = "List")
+        public ResponseEntity<List<Deployment>> list(@RequestParam(required = false) @ApiParam(value = "Page size, defaults to " + DEFAULT_PAGE_SIZE) Integer limit, @RequestParam(required = false) @ApiParam(value = "Cursor from the previous page's next link") String after){
             log.info("List all deployments");
-            return deploymentService.list();
+            return page(deploymentService.list(checkCursor(after), checkLimit(limit)));
         }
 
         @GetMapping("/deployment/{id}")
@@ -72,68 +220,214 @@ public class DeploymentControllerV1
         }
 
         @GetMapping("/deployment/application/{id}")
-        @ResponseStatus(HttpStatus.OK)
-        @ApiOperation(value = "List all deployments for an application", notes = "List all deployments filtered by application id", response = Deployment.class, responseContainer = "List")
-        public List<Deployment> listForApp(@PathVariable @ApiParam(value = "The application id", required = true) String id){
+        @ApiOperation(value = "List all deployments for an application", notes = "List a page of deployments filtered by application id, newest first. A Link header with rel=\"next\" points at the next page", response = Deployment.class, responseContainer = "List")
+        public ResponseEntity<List<Deployment>> listForApp(@PathVariable @ApiParam(value = "The application id", required = true) String id, @RequestParam(required = false) @ApiParam(value = "Page size, defaults to " + DEFAULT_PAGE_SIZE) Integer limit, @RequestParam(required = false) @ApiParam(value = "Cursor from the previous page's next link") String after){
             log.info("List deployments for application with id {}", id);
-            return deploymentService.listAllForApplication(id);
+            return page(deploymentService.listForApplication(id, checkCursor(after), checkLimit(limit)));
         }
 
         @GetMapping("/deployment/hierarchy/{id}")
-        @ResponseStatus(HttpStatus.OK)
-        @ApiOperation(value = "List all deployments for a hierarchy", notes = "List all deployments in a hierarchy starting at node with application id", response = Deployment.class, responseContainer = "List")
-        public List<Deployment> listForHierarchy(@PathVariable @ApiParam(value = "The application id", required = true) String id){
+        @ApiOperation(value = "List all deployments for a hierarchy", notes = "List a page of deployments in a hierarchy starting at node with application id, newest first. A Link header with rel=\"next\" points at the next page", response = Deployment.class, responseContainer = "List")
+        public ResponseEntity<List<Deployment>> listForHierarchy(@PathVariable @ApiParam(value = "The application id", required = true) String id, @RequestParam(required = false) @ApiParam(value = "Page size, defaults to " + DEFAULT_PAGE_SIZE) Integer limit, @RequestParam(required = false) @ApiParam(value = "Cursor from the previous page's next link") String after){
             log.info("List all deployments for a team hierarchy starting at application with id {}", id);
-            return deploymentService.listAllForHierarchy(id);
+            return page(deploymentService.listForHierarchy(id, checkCursor(after), checkLimit(limit)));
+        }
+
+        @GetMapping(value = "/deployment", produces = MediaType.APPLICATION_NDJSON_VALUE)
+        @ApiOperation(value = "Export all deployments", notes = "Streams every deployment, one per line, in no particular order", response = Deployment.class, responseContainer = "List")
+        public ResponseEntity<StreamingResponseBody> exportAll(){
+            log.info("Export all deployments");
+            return ndjson(out -> deploymentService.exportAll(deployment -> writeLine(out, deployment)));
+        }
+
+        @GetMapping(value = "/deployment/application/{id}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+        @ApiOperation(value = "Export all deployments for an application", notes = "Streams every deployment of the application, one per line, in no particular order", response = Deployment.class, responseContainer = "List")
+        public ResponseEntity<StreamingResponseBody> exportForApp(@PathVariable @ApiParam(value = "The application id", required = true) String id){
+            log.info("Export deployments for application with id {}", id);
+            return ndjson(out -> deploymentService.exportForApplication(id, deployment -> writeLine(out, deployment)));
+        }
+
+        @GetMapping(value = "/deployment/hierarchy/{id}", produces = MediaType.APPLICATION_NDJSON_VALUE)
+        @ApiOperation(value = "Export all deployments for a hierarchy", notes = "Streams every deployment in a hierarchy starting at node with application id, one per line, in no particular order", response = Deployment.class, responseContainer = "List")
+        public ResponseEntity<StreamingResponseBody> exportForHierarchy(@PathVariable @ApiParam(value = "The application id", required = true) String id){
+            log.info("Export all deployments for a team hierarchy starting at application with id {}", id);
+            return ndjson(out -> deploymentService.exportForHierarchy(id, deployment -> writeLine(out, deployment)));
         }
 
         @GetMapping("/deployment/application/{id}/date/{date}")
-        @ResponseStatus(HttpStatus.OK)
         @ApiOperation(value = "List all deployments for an application and date combination", notes = "List all deployments filtered by application id and date", response = Deployment.class, responseContainer = "List")
-        public List<Deployment> listForAppAndDate(@PathVariable @ApiParam(value = "The application id", required = true) String id, @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The deployment date in ISO Date format YYYY-MM-dd", required = true) LocalDate date){
+        public ResponseEntity<List<Deployment>> listForAppAndDate(@PathVariable @ApiParam(value = "The application id", required = true) String id, @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The deployment date in ISO Date format YYYY-MM-dd", required = true) LocalDate date, WebRequest request){
             ZonedDateTime reportingDate = date.atStartOfDay(ZoneOffset.UTC);
             Date rDate = Date.from(reportingDate.toInstant());
             log.info("List all deployments with application id {} for date {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(reportingDate));
-            return deploymentService.listAllForApplication(id, rDate);
+            return conditional(request, date, deploymentService.getApplicationVersion(id), () -> deploymentService.listAllForApplication(id, rDate));
         }
 
         @GetMapping("/deployment/application/{id}/frequency")
         @ResponseStatus(HttpStatus.OK)
         @ApiOperation(value = "Calculate deployment frequency for an application for the last 90 days", response = DeploymentFrequency.class)
-        public DeploymentFrequency calculateDeployFreq(@PathVariable @ApiParam(value = "The application id", required = true) String id){
+        public DeploymentFrequency calculateDeployFreq(@PathVariable @ApiParam(value = "The application id", required = true) String id, @RequestParam(required = false) @ApiParam(value = "Optional rolling window in days ending on the reporting date, e.g. 14 or 28") Integer window){
             ZonedDateTime date = LocalDate.now().minusDays(1).atStartOfDay(ZoneOffset.UTC);        
             Date reportingDate = Date.from(date.toInstant());
             log.info("Calculate deployment frequency for application id {} from date {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(date));
+            if(window != null){
+                return deploymentService.calculateDeployFreq(id, reportingDate, checkWindow(window));
+            }
             return deploymentService.calculateDeployFreq(id, reportingDate);
         }
     
         @GetMapping("/deployment/application/{id}/frequency/{date}")
-        @ResponseStatus(HttpStatus.OK)
         @ApiOperation(value = "Calculate deployment frequency for an application for the date specified", response = DeploymentFrequency.class)
-        public DeploymentFrequency calculateDeployFreq(@PathVariable @ApiParam(value = "The application id", required = true) String id, @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The deployment date in ISO Date format YYYY-MM-dd", required = true) LocalDate date){
+        public ResponseEntity<DeploymentFrequency> calculateDeployFreq(@PathVariable @ApiParam(value = "The application id", required = true) String id, @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The deployment date in ISO Date format YYYY-MM-dd", required = true) LocalDate date, @RequestParam(required = false) @ApiParam(value = "Optional rolling window in days ending on the reporting date, e.g. 14 or 28") Integer window, WebRequest request){
             ZonedDateTime reportingDate = date.atStartOfDay(ZoneOffset.UTC);        
             Date rDate = Date.from(reportingDate.toInstant());
             log.info("Calculate deployment frequency for application id {} from date {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(reportingDate));
-            return deploymentService.calculateDeployFreq(id, rDate);
+            if(window != null){
+                int windowDays = checkWindow(window);
+                return conditional(request, date, deploymentService.getHierarchyVersion(id), () -> deploymentService.calculateDeployFreq(id, rDate, windowDays));
+            }
+            return conditional(request, date, deploymentService.getHierarchyVersion(id), () -> deploymentService.calculateDeployFreq(id, rDate));
         }
 
         @GetMapping("/deployment/application/{id}/lead_time")
         @ResponseStatus(HttpStatus.OK)
         @ApiOperation(value = "Calculate lead time for an application", response = LeadTime.class)
-        public LeadTime calculateLeadTime(@PathVariable @ApiParam(value = "The application id", required = true) String id){
+        public LeadTime calculateLeadTime(@PathVariable @ApiParam(value = "The application id", required = true) String id, @RequestParam(required = false) @ApiParam(value = "Optional rolling window in days ending on the reporting date, e.g. 14 or 28") Integer window){
             ZonedDateTime date = LocalDate.now().minusDays(1).atStartOfDay(ZoneOffset.UTC);
             Date reportingDate = Date.from(date.toInstant());
             log.info("Calculate lead time for application id {} from date {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(date));
+            if(window != null){
+                return deploymentService.calculateLeadTime(id, reportingDate, checkWindow(window));
+            }
             return deploymentService.calculateLeadTime(id, reportingDate);
         }
     
         @GetMapping("/deployment/application/{id}/lead_time/{date}")
-        @ResponseStatus(HttpStatus.OK)
         @ApiOperation(value = "Calculate lead time for an application for the date specified", response = LeadTime.class)
-        public LeadTime calculateLeadTime(@PathVariable @ApiParam(value = "The application id", required = true) String id, @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The deployment date in ISO Date format YYYY-MM-dd", required = true) LocalDate date){
+        public ResponseEntity<LeadTime> calculateLeadTime(@PathVariable @ApiParam(value = "The application id", required = true) String id, @PathVariable @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The deployment date in ISO Date format YYYY-MM-dd", required = true) LocalDate date, @RequestParam(required = false) @ApiParam(value = "Optional rolling window in days ending on the reporting date, e.g. 14 or 28") Integer window, WebRequest request){
             ZonedDateTime reportingDate = date.atStartOfDay(ZoneOffset.UTC);    
             Date rDate = Date.from(date.atStartOfDay(ZoneOffset.UTC).toInstant());
             log.info("Calculate lead time for application id {} from date {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(reportingDate));
-            return deploymentService.calculateLeadTime(id, rDate);
+            if(window != null){
+                int windowDays = checkWindow(window);
+                return conditional(request, date, deploymentService.getHierarchyVersion(id), () -> deploymentService.calculateLeadTime(id, rDate, windowDays));
+            }
+            return conditional(request, date, deploymentService.getHierarchyVersion(id), () -> deploymentService.calculateLeadTime(id, rDate));
+        }
+
+        @GetMapping("/deployment/application/{id}/frequency/series")
+        @ResponseStatus(HttpStatus.OK)
+        @ApiOperation(value = "Calculate deployment frequency for an application for every day in a date range", response = DeploymentFrequency.class, responseContainer = "List")
+        public List<DeploymentFrequency> calculateDeployFreqSeries(@PathVariable @ApiParam(value = "The application id", required = true) String id, @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The first reporting date in ISO Date format YYYY-MM-dd", required = true) LocalDate from, @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The last reporting date in ISO Date format YYYY-MM-dd", required = true) LocalDate to){
+            checkSeries(from, to);
+            log.info("Calculate deployment frequency series for application id {} from date {} to {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(from), DateTimeFormatter.ISO_LOCAL_DATE.format(to));
+            return deploymentService.calculateDeployFreqSeries(id, Date.from(from.atStartOfDay(ZoneOffset.UTC).toInstant()), Date.from(to.atStartOfDay(ZoneOffset.UTC).toInstant()));
+        }
+
+        @GetMapping("/deployment/application/{id}/lead_time/series")
+        @ResponseStatus(HttpStatus.OK)
+        @ApiOperation(value = "Calculate lead time for an application for every day in a date range", response = LeadTime.class, responseContainer = "List")
+        public List<LeadTime> calculateLeadTimeSeries(@PathVariable @ApiParam(value = "The application id", required = true) String id, @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The first reporting date in ISO Date format YYYY-MM-dd", required = true) LocalDate from, @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) @ApiParam(value = "The last reporting date in ISO Date format YYYY-MM-dd", required = true) LocalDate to){
+            checkSeries(from, to);
+            log.info("Calculate lead time series for application id {} from date {} to {}", id, DateTimeFormatter.ISO_LOCAL_DATE.format(from), DateTimeFormatter.ISO_LOCAL_DATE.format(to));
+            return deploymentService.calculateLeadTimeSeries(id, Date.from(from.atStartOfDay(ZoneOffset.UTC).toInstant()), Date.from(to.atStartOfDay(ZoneOffset.UTC).toInstant()));
+        }
+
+        @PostMapping(value = "/deployment/scorecards", produces = MediaType.APPLICATION_NDJSON_VALUE)
+        @ApiOperation(value = "Calculate deployment frequency and lead time for many applications", notes = "Streams one scorecard per line in completion order, defaults to yesterday when no reporting date is given", response = Scorecard.class, responseContainer = "List")
+        public ResponseEntity<StreamingResponseBody> calculateScorecards(@Valid @RequestBody ScorecardRequest request){
+            LocalDate date = request.getReportingDate() != null ? request.getReportingDate() : LocalDate.now().minusDays(1);
+            ZonedDateTime reportingDate = date.atStartOfDay(ZoneOffset.UTC);
+            Date rDate = Date.from(reportingDate.toInstant());
+            log.info("Calculate scorecards for {} applications from date {}", request.getApplicationIds().size(), DateTimeFormatter.ISO_LOCAL_DATE.format(reportingDate));
+            return ndjson(out -> scorecardService.calculateScorecards(request.getApplicationIds(), rDate, scorecard -> {
+                writeLine(out, scorecard);
+                //scorecards are slow to calculate, so each one is sent as soon as it is ready
+                flush(out);
+            }));
+        }
+
+        //answers 304 before the body is calculated when the client already has the current version
+        private <T> ResponseEntity<T> conditional(WebRequest request, LocalDate date, DataVersion version, Supplier<T> body){
+            long lastModified = version.getLastModified() == null ? -1 : version.getLastModified().getTime();
+            if(request.checkNotModified(version.getTag(), lastModified)){
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).header(HttpHeaders.CACHE_CONTROL, cacheControl(date)).build();
+            }
+            return ResponseEntity.ok().header(HttpHeaders.CACHE_CONTROL, cacheControl(date)).body(body.get());
+        }
+
+        private String cacheControl(LocalDate date){
+            //late deployments, queued ingestion, deletes and hierarchy changes still reach recent days, so only days past
+            //the backfill horizon may be kept without revalidating, and even those are not immutable
+            if(date.isBefore(LocalDate.now(ZoneOffset.UTC).minus(backfillHorizon))){
+                return CacheControl.maxAge(historicalMaxAge).getHeaderValue();
+            }
+            return CacheControl.noCache().getHeaderValue();
+        }
+
+        private static ResponseEntity<StreamingResponseBody> ndjson(StreamingResponseBody body){
+            return ResponseEntity.ok().contentType(MediaType.APPLICATION_NDJSON).body(body);
+        }
+
+        //a failed write, such as the client going away, propagates and stops the producer
+        private void writeLine(OutputStream out, Object value){
+            try {
+                out.write(objectMapper.writeValueAsBytes(value));
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void flush(OutputStream out){
+            try {
+                out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static ResponseEntity<List<Deployment>> page(DeploymentPage page){
+            if(page.getNext() == null){
+                return ResponseEntity.ok(page.getDeployments());
+            }
+            String next = ServletUriComponentsBuilder.fromCurrentRequest()
+                .replaceQueryParam("after", page.getNext().encode())
+                .toUriString();
+            return ResponseEntity.ok().header(HttpHeaders.LINK, "<" + next + ">; rel=\"next\"").body(page.getDeployments());
+        }
+
+        private static int checkLimit(Integer limit){
+            if(limit == null){
+                return DEFAULT_PAGE_SIZE;
+            }
+            if(limit < 1 || limit > MAX_PAGE_SIZE){
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + MAX_PAGE_SIZE);
+            }
+            return limit;
+        }
+
+        private static DeploymentCursor checkCursor(String after){
+            if(after == null){
+                return null;
+            }
+            try {
+                return DeploymentCursor.decode(after);
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "after is not a valid cursor");
+            }
+        }
+
+        private static void checkSeries(LocalDate from, LocalDate to){
+            if(from.isAfter(to) || from.plusDays(MAX_WINDOW_DAYS).isBefore(to)){
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "from must not be after to and the series must not exceed " + MAX_WINDOW_DAYS + " days");
+            }
+        }
+
+        private static int checkWindow(Integer window){
+            if(window < 1 || window > MAX_WINDOW_DAYS){
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "window must be between 1 and " + MAX_WINDOW_DAYS + " days");
+            }
+            return window;
         }
     }
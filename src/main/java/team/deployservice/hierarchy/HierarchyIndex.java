@@ -0,0 +1,155 @@
+package team.deployservice.hierarchy;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import team.deployservice.hierarchy.repo.HierarchyClient;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * In memory copy of the team-service hierarchy answering descendant lookups without a network call. The subtrees under
+ * the configured roots, and under nodes looked up that the copy did not have, are loaded periodically through the
+ * hierarchy cache and replace the copy in one step, so readers never wait for a load. Lookups of nodes outside the copy
+ * go to the hierarchy cache until the next load has them.
+ * <p>
+ * A looked up node is only learned when team-service returned ids for it, and the learned nodes are bounded in number
+ * and dropped once they go unused. Without configured roots the copy holds only learned nodes.
+ */
+@Component
+@Primary
+public class HierarchyIndex implements HierarchyClient
+    {
+    private static final Logger log = LoggerFactory.getLogger(HierarchyIndex.class);
+    private final HierarchyClient cachingHierarchyClient;
+    private final Set<String> configuredRoots;
+    //nodes outside the configured roots that were looked up, loaded with the configured roots while they stay in use
+    private final Cache<String, Boolean> learnedRoots;
+    private volatile HierarchySnapshot snapshot = HierarchySnapshot.EMPTY;
+
+    @Autowired
+    public HierarchyIndex(@Qualifier("cachingHierarchyClient") HierarchyClient cachingHierarchyClient,
+                          @Value("${deployservice.hierarchy.index.roots:}") Set<String> configuredRoots,
+                          @Value("${deployservice.hierarchy.index.learned-roots.maximum-size:1000}") long maximumLearnedRoots,
+                          @Value("${deployservice.hierarchy.index.learned-roots.expire-after-access:PT24H}") Duration learnedRootExpiry)
+        {
+        this(cachingHierarchyClient, configuredRoots, maximumLearnedRoots, learnedRootExpiry, Ticker.systemTicker());
+        }
+
+    HierarchyIndex(HierarchyClient cachingHierarchyClient, Set<String> configuredRoots, long maximumLearnedRoots,
+                   Duration learnedRootExpiry, Ticker ticker)
+        {
+        this.cachingHierarchyClient = cachingHierarchyClient;
+        this.configuredRoots = new LinkedHashSet<>(configuredRoots);
+        this.learnedRoots = Caffeine.newBuilder()
+            .maximumSize(maximumLearnedRoots)
+            .expireAfterAccess(learnedRootExpiry)
+            .ticker(ticker)
+            .executor(Runnable::run)
+            .build();
+        if(configuredRoots.isEmpty()){
+            log.warn("No deployservice.hierarchy.index.roots configured, the hierarchy index only holds the nodes that were looked up");
+        }
+        }
+
+    /**
+     * Loads every root's subtree, one lookup per node through the hierarchy cache, and swaps in the new copy. The cache
+     * answers the nodes it refreshed lately, so a change in team-service shows once its entries have been refreshed. A
+     * root that cannot be loaded, or that team-service has nothing for, is left out of the copy, and is not loaded again
+     * unless it is configured or looked up again.
+     */
+    @Scheduled(initialDelay = 0, fixedDelayString = "${deployservice.hierarchy.index.reload-interval:PT5M}")
+    public synchronized void reload()
+        {
+        long start = System.currentTimeMillis();
+        Set<String> roots = new LinkedHashSet<>(configuredRoots);
+        roots.addAll(learnedRoots.asMap().keySet());
+        Map<String, Collection<String>> descendants = new HashMap<>();
+        Set<String> applications = new HashSet<>();
+        for(String root : roots){
+            if(descendants.containsKey(root)){
+                continue;
+            }
+            try {
+                //kept apart until the whole subtree is loaded, a partly loaded one would give short descendant sets
+                Map<String, Collection<String>> subtree = new HashMap<>();
+                Collection<String> rootDescendants = cachingHierarchyClient.findChildIds(root);
+                if(rootDescendants.isEmpty()){
+                    log.warn("Team-service has no hierarchy under {}, it is left out of the index", root);
+                    learnedRoots.invalidate(root);
+                    continue;
+                }
+                subtree.put(root, rootDescendants);
+                //a root loaded earlier that is under this one is not looked up again
+                for(String node : rootDescendants){
+                    if(!subtree.containsKey(node) && !descendants.containsKey(node)){
+                        subtree.put(node, cachingHierarchyClient.findChildIds(node));
+                    }
+                }
+                applications.addAll(cachingHierarchyClient.findApplicationChildIds(root));
+                descendants.putAll(subtree);
+            } catch (RuntimeException e) {
+                log.warn("Unable to load the hierarchy under {}, lookups go to team-service until it loads", root, e);
+                learnedRoots.invalidate(root);
+            }
+        }
+        HierarchySnapshot fresh = HierarchySnapshot.of(descendants, applications);
+        //an unchanged hierarchy keeps its snapshot, so holders of it can tell nothing moved
+        if(!fresh.sameAs(snapshot)){
+            snapshot = fresh;
+        }
+        //a looked up node now under another root is loaded with that root
+        learnedRoots.asMap().keySet().removeIf(root -> roots.stream().anyMatch(other -> !other.equals(root) && fresh.isUnder(root, other)));
+        log.info("Loaded the hierarchy index of {} nodes under {} roots in {} ms", fresh.size(), roots.size(), System.currentTimeMillis() - start);
+        }
+
+    public HierarchySnapshot snapshot()
+        {
+        return snapshot;
+        }
+
+    @Override
+    public Collection<String> findApplicationChildIds(String slug)
+        {
+        HierarchySnapshot current = snapshot;
+        if(current.contains(slug)){
+            touch(current, slug);
+            return current.applicationDescendants(slug);
+        }
+        return learn(slug, cachingHierarchyClient.findApplicationChildIds(slug));
+        }
+
+    @Override
+    public Collection<String> findChildIds(String slug)
+        {
+        HierarchySnapshot current = snapshot;
+        if(current.contains(slug)){
+            touch(current, slug);
+            return current.descendants(slug);
+        }
+        return learn(slug, cachingHierarchyClient.findChildIds(slug));
+        }
+
+    //keeps a learned root from expiring while lookups are answered from its subtree
+    private void touch(HierarchySnapshot current, String slug)
+        {
+        learnedRoots.getIfPresent(current.root(slug));
+        }
+
+    private Collection<String> learn(String slug, Collection<String> ids)
+        {
+        if(!ids.isEmpty()){
+            learnedRoots.put(slug, Boolean.TRUE);
+        }
+        return ids;
+        }
+    }
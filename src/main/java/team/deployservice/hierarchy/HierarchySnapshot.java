@@ -0,0 +1,244 @@
+package team.deployservice.hierarchy;
+
+import java.util.*;
+
+/**
+ * An immutable copy of the hierarchy numbered by a pre-order walk. A node and its descendants are the run of the walk
+ * from the node's position up to the end of its subtree, so whether one node is under another is two comparisons and
+ * a descendant set is a slice of the walk rather than a tree traversal.
+ */
+public final class HierarchySnapshot
+    {
+    static final HierarchySnapshot EMPTY = new HierarchySnapshot(Collections.emptyMap(), new String[0], new int[0], new int[0], new int[0], new String[0]);
+
+    private final Map<String, Integer> positions;
+    //node at each position of the walk, and the position just past its subtree
+    private final String[] walk;
+    private final int[] subtreeEnd;
+    //position of each node's parent, -1 for a root
+    private final int[] parents;
+    //positions of the applications in walk order, with their ids alongside for slicing
+    private final int[] applicationPositions;
+    private final String[] applicationWalk;
+
+    private HierarchySnapshot(Map<String, Integer> positions, String[] walk, int[] subtreeEnd, int[] parents, int[] applicationPositions, String[] applicationWalk)
+        {
+        this.positions = positions;
+        this.walk = walk;
+        this.subtreeEnd = subtreeEnd;
+        this.parents = parents;
+        this.applicationPositions = applicationPositions;
+        this.applicationWalk = applicationWalk;
+        }
+
+    /**
+     * Builds the snapshot from every node's descendant set, the node itself included, as team-service reports them.
+     * The parent of a node is the smallest other node whose descendants contain it.
+     */
+    static HierarchySnapshot of(Map<String, ? extends Collection<String>> descendants, Set<String> applications)
+        {
+        Map<String, String> parents = new HashMap<>();
+        Map<String, Integer> parentSizes = new HashMap<>();
+        descendants.forEach((node, nodeDescendants) -> {
+            for(String descendant : nodeDescendants){
+                if(!descendant.equals(node) && descendants.containsKey(descendant)
+                    && nodeDescendants.size() < parentSizes.getOrDefault(descendant, Integer.MAX_VALUE)){
+                    parents.put(descendant, node);
+                    parentSizes.put(descendant, nodeDescendants.size());
+                }
+            }
+        });
+        Map<String, List<String>> children = new HashMap<>();
+        List<String> roots = new ArrayList<>();
+        //sorted so the walk, and the order of every descendant set, does not depend on hash order
+        for(String node : new TreeSet<>(descendants.keySet())){
+            String parent = parents.get(node);
+            if(parent == null){
+                roots.add(node);
+            } else {
+                children.computeIfAbsent(parent, key -> new ArrayList<>()).add(node);
+            }
+        }
+        return walk(roots, children, applications);
+        }
+
+    private static HierarchySnapshot walk(List<String> roots, Map<String, List<String>> children, Set<String> applications)
+        {
+        Map<String, Integer> positions = new HashMap<>();
+        List<String> walk = new ArrayList<>();
+        List<Integer> subtreeEnd = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        //iterative, a node is pushed again once its children are done to record where its subtree ends
+        Deque<Visit> stack = new ArrayDeque<>();
+        for(int i = roots.size() - 1; i >= 0; i--){
+            stack.push(new Visit(roots.get(i), -1, false));
+        }
+        while(!stack.isEmpty()){
+            Visit visit = stack.pop();
+            if(visit.done){
+                subtreeEnd.set(positions.get(visit.node), walk.size());
+                continue;
+            }
+            int position = walk.size();
+            positions.put(visit.node, position);
+            walk.add(visit.node);
+            subtreeEnd.add(position + 1);
+            parents.add(visit.parent);
+            stack.push(new Visit(visit.node, visit.parent, true));
+            List<String> nodeChildren = children.getOrDefault(visit.node, Collections.emptyList());
+            for(int i = nodeChildren.size() - 1; i >= 0; i--){
+                stack.push(new Visit(nodeChildren.get(i), position, false));
+            }
+        }
+        int[] ends = subtreeEnd.stream().mapToInt(Integer::intValue).toArray();
+        int[] applicationPositions = new int[walk.size()];
+        String[] applicationWalk = new String[walk.size()];
+        int count = 0;
+        for(int position = 0; position < walk.size(); position++){
+            if(applications.contains(walk.get(position))){
+                applicationPositions[count] = position;
+                applicationWalk[count++] = walk.get(position);
+            }
+        }
+        return new HierarchySnapshot(positions, walk.toArray(new String[0]), ends, parents.stream().mapToInt(Integer::intValue).toArray(),
+            Arrays.copyOf(applicationPositions, count), Arrays.copyOf(applicationWalk, count));
+        }
+
+    private static final class Visit
+        {
+        private final String node;
+        private final int parent;
+        private final boolean done;
+
+        private Visit(String node, int parent, boolean done)
+            {
+            this.node = node;
+            this.parent = parent;
+            this.done = done;
+            }
+        }
+
+    public boolean contains(String slug)
+        {
+        return positions.containsKey(slug);
+        }
+
+    public int size()
+        {
+        return walk.length;
+        }
+
+    /**
+     * Whether both have the same nodes in the same places, so the one can stand for the other.
+     */
+    public boolean sameAs(HierarchySnapshot other)
+        {
+        return Arrays.equals(walk, other.walk) && Arrays.equals(subtreeEnd, other.subtreeEnd)
+            && Arrays.equals(applicationWalk, other.applicationWalk);
+        }
+
+    /**
+     * Every node, each before its descendants.
+     */
+    public List<String> nodes()
+        {
+        return Collections.unmodifiableList(Arrays.asList(walk));
+        }
+
+    /**
+     * The node's direct children, or empty when the node is unknown.
+     */
+    public List<String> children(String slug)
+        {
+        Integer position = positions.get(slug);
+        if(position == null){
+            return Collections.emptyList();
+        }
+        List<String> children = new ArrayList<>();
+        for(int child = position + 1; child < subtreeEnd[position]; child = subtreeEnd[child]){
+            children.add(walk[child]);
+        }
+        return children;
+        }
+
+    public boolean isApplication(String slug)
+        {
+        Integer position = positions.get(slug);
+        return position != null && Arrays.binarySearch(applicationPositions, position) >= 0;
+        }
+
+    /**
+     * The path from the node's root down to the node itself, or empty when the node is unknown.
+     */
+    public List<String> ancestors(String slug)
+        {
+        Integer position = positions.get(slug);
+        if(position == null){
+            return Collections.emptyList();
+        }
+        LinkedList<String> path = new LinkedList<>();
+        for(int at = position; at >= 0; at = parents[at]){
+            path.addFirst(walk[at]);
+        }
+        return path;
+        }
+
+    /**
+     * The root the node was loaded under, or null when the node is unknown.
+     */
+    public String root(String slug)
+        {
+        Integer position = positions.get(slug);
+        if(position == null){
+            return null;
+        }
+        int at = position;
+        while(parents[at] >= 0){
+            at = parents[at];
+        }
+        return walk[at];
+        }
+
+    /**
+     * Whether the node is the ancestor or one of its descendants.
+     */
+    public boolean isUnder(String slug, String ancestor)
+        {
+        Integer position = positions.get(slug);
+        Integer ancestorPosition = positions.get(ancestor);
+        return position != null && ancestorPosition != null
+            && ancestorPosition <= position && position < subtreeEnd[ancestorPosition];
+        }
+
+    /**
+     * The node and all its descendants, or empty when the node is unknown.
+     */
+    public List<String> descendants(String slug)
+        {
+        Integer position = positions.get(slug);
+        if(position == null){
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(walk).subList(position, subtreeEnd[position]));
+        }
+
+    /**
+     * The applications among the node and its descendants.
+     */
+    public List<String> applicationDescendants(String slug)
+        {
+        Integer position = positions.get(slug);
+        if(position == null){
+            return Collections.emptyList();
+        }
+        int from = lowerBound(applicationPositions, position);
+        int to = lowerBound(applicationPositions, subtreeEnd[position]);
+        return Collections.unmodifiableList(Arrays.asList(applicationWalk).subList(from, to));
+        }
+
+    private static int lowerBound(int[] sorted, int key)
+        {
+        int index = Arrays.binarySearch(sorted, key);
+        return index >= 0 ? index : -index - 1;
+        }
+    }
@@ -0,0 +1,74 @@
+package team.deployservice.hierarchy.repo;
+
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+
+/**
+ * Caches hierarchy lookups from team-service. An entry older than the refresh interval is reloaded in the background
+ * on its next read while the cached ids keep being served, and a failed reload keeps the cached ids, so a slow or
+ * unavailable team-service only delays hierarchy changes until the entry expires.
+ */
+@Component
+public class CachingHierarchyClient implements HierarchyClient
+    {
+    private final LoadingCache<String, Collection<String>> applicationChildIds;
+    private final LoadingCache<String, Collection<String>> childIds;
+
+    @Autowired
+    public CachingHierarchyClient(@Qualifier("remoteHierarchyClient") HierarchyClient remoteHierarchyClient,
+                                  MeterRegistry meterRegistry,
+                                  @Value("${deployservice.hierarchy.cache.refresh-after-write:PT5M}") Duration refreshAfterWrite,
+                                  @Value("${deployservice.hierarchy.cache.expire-after-write:PT24H}") Duration expireAfterWrite,
+                                  @Value("${deployservice.hierarchy.cache.maximum-size:10000}") long maximumSize)
+        {
+        this(remoteHierarchyClient, meterRegistry, refreshAfterWrite, expireAfterWrite, maximumSize, Ticker.systemTicker(), ForkJoinPool.commonPool());
+        }
+
+    CachingHierarchyClient(HierarchyClient remoteHierarchyClient, MeterRegistry meterRegistry, Duration refreshAfterWrite,
+                           Duration expireAfterWrite, long maximumSize, Ticker ticker, Executor executor)
+        {
+        Caffeine<Object, Object> caffeine = Caffeine.newBuilder()
+            .refreshAfterWrite(refreshAfterWrite)
+            .expireAfterWrite(expireAfterWrite)
+            .maximumSize(maximumSize)
+            .ticker(ticker)
+            .executor(executor)
+            .recordStats();
+        this.applicationChildIds = CaffeineCacheMetrics.monitor(meterRegistry,
+            caffeine.build(load(remoteHierarchyClient::findApplicationChildIds)), "hierarchy.application.children");
+        this.childIds = CaffeineCacheMetrics.monitor(meterRegistry,
+            caffeine.build(load(remoteHierarchyClient::findChildIds)), "hierarchy.children");
+        }
+
+    private static CacheLoader<String, Collection<String>> load(Function<String, Collection<String>> lookup)
+        {
+        return slug -> List.copyOf(lookup.apply(slug));
+        }
+
+    @Override
+    public Collection<String> findApplicationChildIds(String slug)
+        {
+        return applicationChildIds.get(slug);
+        }
+
+    @Override
+    public Collection<String> findChildIds(String slug)
+        {
+        return childIds.get(slug);
+        }
+    }
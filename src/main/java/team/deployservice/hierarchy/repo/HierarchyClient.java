@@ -7,7 +7,8 @@ import org.springframework.web.bind.annotation.RequestMethod;
 
 import java.util.Collection;
 
-@FeignClient(value = "team-service")
+//not primary, lookups go through HierarchyIndex and then CachingHierarchyClient
+@FeignClient(value = "team-service", qualifiers = "remoteHierarchyClient", primary = false)
 public interface HierarchyClient
     {
         @RequestMapping(method = RequestMethod.GET, value = "/v2/hierarchy/children/application/ids/{slug}")
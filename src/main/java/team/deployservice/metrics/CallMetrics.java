@@ -0,0 +1,200 @@
+package team.deployservice.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.util.ClassUtils;
+import team.deployservice.hierarchy.repo.HierarchyClient;
+import team.deployservice.service.DeploymentService;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Times the calls of one bean's interface methods into a timer tagged with the method and outcome, and records the
+ * size of what they return into a distribution summary when it is a collection, map, optional or stream. A returned stream
+ * is timed until it is closed, so the time spent reading it is included.
+ */
+class CallMetrics implements MethodInterceptor
+    {
+    //custom windows are bucketed so they do not each get their own meters
+    private static final int[] WINDOW_BUCKETS = {7, 14, 30, 90, 365};
+    private final Supplier<MeterRegistry> meterRegistry;
+    private final Class<?> type;
+    private final String timerName;
+    private final String summaryName;
+    private final Tags tags;
+    private final boolean windowed;
+    //set for repositories, so the commands they send are tagged with the method
+    private final String repository;
+    private volatile MeterRegistry registry;
+
+    private CallMetrics(Supplier<MeterRegistry> meterRegistry, Class<?> type, String timerName, String summaryName, Tags tags, boolean windowed, String repository)
+        {
+        this.meterRegistry = meterRegistry;
+        this.type = type;
+        this.timerName = timerName;
+        this.summaryName = summaryName;
+        this.tags = tags;
+        this.windowed = windowed;
+        this.repository = repository;
+        }
+
+    static CallMetrics service(Supplier<MeterRegistry> meterRegistry)
+        {
+        return new CallMetrics(meterRegistry, DeploymentService.class, "deployservice.service", null, Tags.empty(), true, null);
+        }
+
+    static CallMetrics repository(Supplier<MeterRegistry> meterRegistry, Class<?> repository)
+        {
+        return new CallMetrics(meterRegistry, repository, "deployservice.repository", "deployservice.repository.documents",
+            Tags.of("repository", repository.getSimpleName()), false, repository.getSimpleName());
+        }
+
+    static CallMetrics hierarchyClient(Supplier<MeterRegistry> meterRegistry, String client)
+        {
+        return new CallMetrics(meterRegistry, HierarchyClient.class, "deployservice.hierarchy.client", "deployservice.hierarchy.ids",
+            Tags.of("client", client), false, null);
+        }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable
+        {
+        Method method = invocation.getMethod();
+        if(!ClassUtils.hasMethod(type, method.getName(), method.getParameterTypes())){
+            return invocation.proceed();
+        }
+        Tags callTags = tags.and("method", method.getName());
+        if(windowed){
+            callTags = callTags.and("window", window(method, invocation.getArguments()));
+        }
+        MeterRegistry registry = registry();
+        Timer.Sample sample = Timer.start(registry);
+        String previousMethod = repository == null ? null : RepositoryMethod.enter(repository + "." + method.getName());
+        Object result;
+        try {
+            result = invocation.proceed();
+        } catch (Throwable e) {
+            stop(sample, registry, callTags, "error");
+            throw e;
+        } finally {
+            if(repository != null){
+                RepositoryMethod.exit(previousMethod);
+            }
+        }
+        if(result instanceof Stream){
+            return reading((Stream<?>) result, sample, registry, callTags);
+        }
+        stop(sample, registry, callTags, "success");
+        if(summaryName != null){
+            recordSize(result, registry, callTags);
+        }
+        return result;
+        }
+
+    private void stop(Timer.Sample sample, MeterRegistry registry, Tags callTags, String outcome)
+        {
+        sample.stop(Timer.builder(timerName)
+            .tags(callTags.and("outcome", outcome))
+            .publishPercentileHistogram()
+            .register(registry));
+        }
+
+    private MeterRegistry registry()
+        {
+        MeterRegistry current = registry;
+        if(current == null){
+            current = meterRegistry.get();
+            registry = current;
+        }
+        return current;
+        }
+
+    //the metric methods name their window days, or use the default window of the metric
+    private static String window(Method method, Object[] arguments)
+        {
+        if(!method.getName().startsWith("calculate")){
+            return "none";
+        }
+        for(Object argument : arguments){
+            if(argument instanceof Integer){
+                int days = (Integer) argument;
+                for(int bucket : WINDOW_BUCKETS){
+                    if(days <= bucket){
+                        return String.valueOf(bucket);
+                    }
+                }
+                return "longer";
+            }
+        }
+        return "default";
+        }
+
+    private DistributionSummary summary(MeterRegistry registry, Tags callTags)
+        {
+        return DistributionSummary.builder(summaryName)
+            .tags(callTags)
+            .publishPercentileHistogram()
+            .register(registry);
+        }
+
+    private void recordSize(Object result, MeterRegistry registry, Tags callTags)
+        {
+        if(result instanceof Collection){
+            summary(registry, callTags).record(((Collection<?>) result).size());
+        } else if(result instanceof Map){
+            summary(registry, callTags).record(((Map<?, ?>) result).size());
+        } else if(result instanceof Optional){
+            summary(registry, callTags).record(((Optional<?>) result).isPresent() ? 1 : 0);
+        }
+        }
+
+    //a stream is read after the call returns, so the call is timed until the stream is closed, and its documents are
+    //counted as they are read and recorded then too; a failed read makes the call an error
+    private Stream<Object> reading(Stream<?> stream, Timer.Sample sample, MeterRegistry registry, Tags callTags)
+        {
+        Spliterator<?> source = stream.spliterator();
+        AtomicLong documents = new AtomicLong();
+        AtomicBoolean failed = new AtomicBoolean();
+        //not sized, so nothing can skip reading it
+        Spliterator<Object> counted = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, source.characteristics() & Spliterator.ORDERED)
+            {
+            @Override
+            public boolean tryAdvance(Consumer<? super Object> action)
+                {
+                try {
+                    return source.tryAdvance(document -> {
+                        documents.incrementAndGet();
+                        action.accept(document);
+                    });
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                }
+                }
+            };
+        return StreamSupport.stream(counted, false).onClose(() -> {
+            try {
+                stream.close();
+            } finally {
+                stop(sample, registry, callTags, failed.get() ? "error" : "success");
+                if(summaryName != null){
+                    summary(registry, callTags).record(documents.get());
+                }
+            }
+        });
+        }
+    }
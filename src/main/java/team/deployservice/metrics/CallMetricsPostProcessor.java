@@ -0,0 +1,74 @@
+package team.deployservice.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.data.repository.Repository;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import team.deployservice.hierarchy.repo.HierarchyClient;
+import team.deployservice.service.DeploymentService;
+
+import java.lang.reflect.Proxy;
+
+/**
+ * Times every call through the deployment service, the repositories and the hierarchy clients, so a slow request can
+ * be put down to the database, team-service or the service itself. Repository and hierarchy calls also record how
+ * many documents or ids they returned.
+ * <p>
+ * Timers are {@code deployservice.service}, {@code deployservice.repository} and {@code deployservice.hierarchy.client},
+ * tagged with the {@code method} and its {@code outcome}; the summaries are {@code deployservice.repository.documents}
+ * and {@code deployservice.hierarchy.ids}.
+ */
+@Component
+public class CallMetricsPostProcessor implements BeanPostProcessor
+    {
+    //looked up on first use, a post processor asking for the registry up front would build it before it is configured
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+
+    public CallMetricsPostProcessor(ObjectProvider<MeterRegistry> meterRegistry)
+        {
+        this.meterRegistry = meterRegistry;
+        }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName)
+        {
+        CallMetrics metrics = metricsFor(bean);
+        if(metrics == null){
+            return bean;
+        }
+        //repositories are already proxies, the advice goes first so it times the whole call
+        if(bean instanceof Advised && !((Advised) bean).isFrozen()){
+            ((Advised) bean).addAdvice(0, metrics);
+            return bean;
+        }
+        ProxyFactory proxyFactory = new ProxyFactory(bean);
+        //beans injected by their class need a subclass, a client that is itself an interface proxy can only get another
+        proxyFactory.setProxyTargetClass(!Proxy.isProxyClass(bean.getClass()));
+        proxyFactory.addAdvice(metrics);
+        return proxyFactory.getProxy(bean.getClass().getClassLoader());
+        }
+
+    private CallMetrics metricsFor(Object bean)
+        {
+        if(bean instanceof DeploymentService){
+            return CallMetrics.service(meterRegistry::getObject);
+        }
+        if(bean instanceof HierarchyClient){
+            //the Feign client is an interface proxy, every other client is ours
+            String client = Proxy.isProxyClass(bean.getClass()) ? "team-service" : ClassUtils.getUserClass(bean).getSimpleName();
+            return CallMetrics.hierarchyClient(meterRegistry::getObject, client);
+        }
+        if(bean instanceof Repository){
+            for(Class<?> type : ClassUtils.getAllInterfaces(bean)){
+                if(Repository.class.isAssignableFrom(type) && !type.getName().startsWith("org.springframework.")){
+                    return CallMetrics.repository(meterRegistry::getObject, type);
+                }
+            }
+        }
+        return null;
+        }
+    }
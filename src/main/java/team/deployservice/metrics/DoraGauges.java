@@ -0,0 +1,160 @@
+package team.deployservice.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import team.deployservice.model.ApplicationVersion;
+import team.deployservice.model.DeploymentFrequency;
+import team.deployservice.model.LeadTime;
+import team.deployservice.service.DataVersions;
+import team.deployservice.service.DeploymentService;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Publishes each application's deployment frequency and lead time as gauges tagged with the application, so
+ * Prometheus reads them from memory instead of calling the metric endpoints for every application. They are refreshed
+ * on a schedule, recalculating only the applications whose deployments changed since, or all of them once the UTC day
+ * moves on. When there are more applications than {@code max-applications}, only the most recently deployed ones are
+ * published.
+ * <p>
+ * Levels are published as numbers, {@code 0} for UNKNOWN up to {@code 4} for ELITE.
+ */
+@Component
+public class DoraGauges
+    {
+    private static final Logger log = LoggerFactory.getLogger(DoraGauges.class);
+    private final DeploymentService deploymentService;
+    private final DataVersions dataVersions;
+    private final MeterRegistry meterRegistry;
+    private final int maxApplications;
+    private final Clock clock;
+    //only changed by refresh, the gauges read the values each holds
+    private final Map<String, ApplicationGauges> gauges = new HashMap<>();
+
+    @Autowired
+    public DoraGauges(DeploymentService deploymentService,
+                      DataVersions dataVersions,
+                      MeterRegistry meterRegistry,
+                      @Value("${deployservice.metrics.dora-gauges.max-applications:1000}") int maxApplications)
+        {
+        this(deploymentService, dataVersions, meterRegistry, maxApplications, Clock.systemUTC());
+        }
+
+    DoraGauges(DeploymentService deploymentService, DataVersions dataVersions, MeterRegistry meterRegistry,
+               int maxApplications, Clock clock)
+        {
+        this.deploymentService = deploymentService;
+        this.dataVersions = dataVersions;
+        this.meterRegistry = meterRegistry;
+        this.maxApplications = maxApplications;
+        this.clock = clock;
+        }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${deployservice.metrics.dora-gauges.refresh-interval:PT1M}")
+    public synchronized void refresh()
+        {
+        long start = System.currentTimeMillis();
+        Date reportingDate = Date.from(clock.instant());
+        LocalDate today = clock.instant().atZone(ZoneOffset.UTC).toLocalDate();
+        List<ApplicationVersion> versions = dataVersions.all();
+        if(versions.size() > maxApplications){
+            log.info("Publishing DORA gauges for the {} most recently deployed of {} applications", maxApplications, versions.size());
+            versions = versions.stream()
+                .sorted(Comparator.comparing(ApplicationVersion::getLastModified, Comparator.nullsFirst(Comparator.naturalOrder())).reversed())
+                .limit(maxApplications)
+                .collect(Collectors.toList());
+        }
+        Set<String> published = versions.stream().map(ApplicationVersion::getApplicationId).collect(Collectors.toSet());
+        gauges.entrySet().removeIf(entry -> {
+            if(published.contains(entry.getKey())){
+                return false;
+            }
+            entry.getValue().remove(meterRegistry);
+            return true;
+        });
+        int refreshed = 0;
+        for(ApplicationVersion version : versions){
+            String applicationId = version.getApplicationId();
+            ApplicationGauges application = gauges.computeIfAbsent(applicationId, ApplicationGauges::new);
+            if(application.isCurrent(version.getVersion(), today)){
+                continue;
+            }
+            try {
+                //the version is read first, and the cached results it covers were dropped before it moved on, so a
+                //deployment stored meanwhile is picked up by the next refresh
+                application.update(meterRegistry, version.getVersion(), today,
+                    deploymentService.calculateDeployFreq(applicationId, reportingDate),
+                    deploymentService.calculateLeadTime(applicationId, reportingDate));
+                refreshed++;
+            } catch (RuntimeException e) {
+                log.warn("Unable to refresh the DORA gauges of {}", applicationId, e);
+            }
+        }
+        log.debug("Refreshed the DORA gauges of {} of {} applications in {} ms", refreshed, versions.size(), System.currentTimeMillis() - start);
+        }
+
+    private static final class ApplicationGauges
+        {
+        private final String applicationId;
+        private final List<Gauge> meters = new ArrayList<>();
+        private long version = -1;
+        private LocalDate day;
+        private volatile double deployments;
+        private volatile double deploymentFrequencyLevel;
+        private volatile double leadTimeSeconds;
+        private volatile double leadTimeLevel;
+
+        private ApplicationGauges(String applicationId)
+            {
+            this.applicationId = applicationId;
+            }
+
+        private boolean isCurrent(long version, LocalDate day)
+            {
+            return this.version == version && day.equals(this.day);
+            }
+
+        private void update(MeterRegistry meterRegistry, long version, LocalDate day, DeploymentFrequency frequency, LeadTime leadTime)
+            {
+            deployments = frequency.getDeploymentCount();
+            deploymentFrequencyLevel = frequency.getDeployFreqLevel().ordinal();
+            leadTimeSeconds = leadTime.getLeadTimeSeconds();
+            leadTimeLevel = leadTime.getLeadTimePerfLevel().ordinal();
+            this.version = version;
+            this.day = day;
+            //registered once there are values, so a scrape never sees an application without them
+            if(meters.isEmpty()){
+                meters.add(register(meterRegistry, "deployservice.dora.deployments", "Deployments in the period that sets the deployment frequency level", null, gauges -> gauges.deployments));
+                meters.add(register(meterRegistry, "deployservice.dora.deployment.frequency.level", "Deployment frequency level, 0 unknown to 4 elite", null, gauges -> gauges.deploymentFrequencyLevel));
+                meters.add(register(meterRegistry, "deployservice.dora.lead.time", "Average lead time over the lead time window", "seconds", gauges -> gauges.leadTimeSeconds));
+                meters.add(register(meterRegistry, "deployservice.dora.lead.time.level", "Lead time level, 0 unknown to 4 elite", null, gauges -> gauges.leadTimeLevel));
+            }
+            }
+
+        private Gauge register(MeterRegistry meterRegistry, String name, String description, String baseUnit, ToDoubleFunction<ApplicationGauges> value)
+            {
+            return Gauge.builder(name, this, value)
+                .description(description)
+                .baseUnit(baseUnit)
+                .tag("application", applicationId)
+                .strongReference(true)
+                .register(meterRegistry);
+            }
+
+        private void remove(MeterRegistry meterRegistry)
+            {
+            meters.forEach(meterRegistry::remove);
+            }
+        }
+    }
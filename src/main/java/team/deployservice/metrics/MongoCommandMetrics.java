@@ -0,0 +1,407 @@
+package team.deployservice.metrics;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import org.bson.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+/**
+ * Records the duration, documents returned and reply size of every command the Mongo driver sends, tagged with the
+ * command, collection and the repository method that sent it, as {@code deployservice.mongo.command},
+ * {@code deployservice.mongo.command.documents} and {@code deployservice.mongo.command.bytes}. Commands slower than
+ * the threshold are logged with the shape of their filter, values redacted, and queries also with a summary of the
+ * plan the server would pick for them, explained in the background.
+ */
+@Component
+public class MongoCommandMetrics implements CommandListener, MongoClientSettingsBuilderCustomizer
+    {
+    private static final Logger log = LoggerFactory.getLogger(MongoCommandMetrics.class);
+    private static final Set<String> EXPLAINABLE = Set.of("find", "aggregate", "count", "distinct");
+    //the commands with a filter worth logging when slow
+    private static final Set<String> SHAPED = Set.of("find", "aggregate", "count", "distinct", "findAndModify", "update", "delete");
+    //the fields a command carries for its session and routing, which explain does not take
+    private static final List<String> SESSION_FIELDS = List.of("$db", "lsid", "$clusterTime", "$readPreference", "txnNumber");
+    private final MeterRegistry meterRegistry;
+    private final long slowCommandNanos;
+    private final BiFunction<String, BsonDocument, Document> explain;
+    private final Executor explainExecutor;
+    private final Map<Integer, Started> started = new ConcurrentHashMap<>();
+    //the method that opened each cursor, for the getMores that read it later; abandoned cursors time out as on the server
+    private final Cache<Long, String> cursors = Caffeine.newBuilder()
+        .expireAfterAccess(Duration.ofMinutes(10))
+        .maximumSize(10_000)
+        .build();
+
+    @Autowired
+    public MongoCommandMetrics(MeterRegistry meterRegistry,
+                               ObjectProvider<MongoClient> mongoClient,
+                               @Value("${deployservice.mongo.slow-command-threshold:PT0.5S}") Duration slowCommandThreshold)
+        {
+        //one explain at a time, and slow commands beyond what it keeps up with are logged without
+        this(meterRegistry, slowCommandThreshold,
+            (database, command) -> mongoClient.getObject().getDatabase(database).runCommand(command),
+            new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(100), daemonThreads(), new ThreadPoolExecutor.DiscardPolicy()));
+        }
+
+    MongoCommandMetrics(MeterRegistry meterRegistry, Duration slowCommandThreshold, BiFunction<String, BsonDocument, Document> explain, Executor explainExecutor)
+        {
+        this.meterRegistry = meterRegistry;
+        this.slowCommandNanos = slowCommandThreshold.toNanos();
+        this.explain = explain;
+        this.explainExecutor = explainExecutor;
+        }
+
+    private static ThreadFactory daemonThreads()
+        {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("slow-command-explain-");
+        threadFactory.setDaemon(true);
+        return threadFactory;
+        }
+
+    @Override
+    public void customize(MongoClientSettings.Builder settings)
+        {
+        settings.addCommandListener(this);
+        }
+
+    //the command document is only valid during the callback, so what is needed later is taken from it here; the
+    //driver's command clones as one copy of its bytes, and is only read again if the command turns out slow
+    @Override
+    public void commandStarted(CommandStartedEvent event)
+        {
+        String commandName = event.getCommandName();
+        BsonDocument command = event.getCommand();
+        String method = RepositoryMethod.current();
+        if(method == null && commandName.equals("getMore")){
+            method = cursors.getIfPresent(command.getNumber("getMore").longValue());
+        }
+        if(commandName.equals("killCursors")){
+            command.getArray("cursors").forEach(cursorId -> cursors.invalidate(cursorId.asNumber().longValue()));
+        }
+        started.put(event.getRequestId(), new Started(event.getDatabaseName(), collection(commandName, command), method == null ? "none" : method,
+            SHAPED.contains(commandName) ? command.clone() : null));
+        }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event)
+        {
+        Started command = started.remove(event.getRequestId());
+        if(command == null){
+            return;
+        }
+        String commandName = event.getCommandName();
+        BsonDocument response = event.getResponse();
+        Tags tags = Tags.of("command", commandName, "collection", command.collection, "method", command.method);
+        record(tags, "success", event.getElapsedTime(TimeUnit.NANOSECONDS));
+        long documents = documents(response);
+        if(documents >= 0){
+            DistributionSummary.builder("deployservice.mongo.command.documents")
+                .description("Documents returned or written by a Mongo command")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(documents);
+        }
+        int bytes = sizeOf(response);
+        if(bytes >= 0){
+            DistributionSummary.builder("deployservice.mongo.command.bytes")
+                .description("Size of a Mongo command's reply")
+                .baseUnit("bytes")
+                .tags(tags)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(bytes);
+        }
+        trackCursor(commandName, command.method, response);
+        logIfSlow(commandName, command, event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event)
+        {
+        Started command = started.remove(event.getRequestId());
+        if(command == null){
+            return;
+        }
+        record(Tags.of("command", event.getCommandName(), "collection", command.collection, "method", command.method), "failed",
+            event.getElapsedTime(TimeUnit.NANOSECONDS));
+        logIfSlow(event.getCommandName(), command, event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+
+    private void record(Tags tags, String status, long nanos)
+        {
+        Timer.builder("deployservice.mongo.command")
+            .description("Time taken by a Mongo command")
+            .tags(tags.and("status", status))
+            .publishPercentileHistogram()
+            .register(meterRegistry)
+            .record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+    private void trackCursor(String commandName, String method, BsonDocument response)
+        {
+        BsonValue cursor = response.get("cursor");
+        if(cursor == null || !cursor.isDocument() || !cursor.asDocument().containsKey("id")){
+            return;
+        }
+        long cursorId = cursor.asDocument().getNumber("id").longValue();
+        if(cursorId == 0){
+            return;
+        }
+        if(!commandName.equals("getMore")){
+            cursors.put(cursorId, method);
+        }
+        }
+
+    private void logIfSlow(String commandName, Started command, long nanos)
+        {
+        if(nanos < slowCommandNanos || commandName.equals("explain")){
+            return;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        String shape = command.command == null ? null : shape(commandName, command.command);
+        if(!EXPLAINABLE.contains(commandName)){
+            log.warn("Slow {} on {} from {} took {} ms, filter {}", commandName, command.collection, command.method, millis, shape);
+            return;
+        }
+        explainExecutor.execute(() -> log.warn("Slow {} on {} from {} took {} ms, filter {}, plan {}", commandName, command.collection,
+            command.method, millis, shape, explainPlan(command)));
+        }
+
+    private String explainPlan(Started command)
+        {
+        //the copy is read only, so the query is rebuilt without the session fields
+        BsonDocument query = new BsonDocument();
+        command.command.forEach((field, value) -> {
+            if(!SESSION_FIELDS.contains(field)){
+                query.put(field, value);
+            }
+        });
+        try {
+            return planSummary(explain.apply(command.database, new BsonDocument("explain", query).append("verbosity", new BsonString("queryPlanner"))));
+        } catch (RuntimeException e) {
+            return "unavailable, " + e.getMessage();
+        }
+        }
+
+    private static String collection(String commandName, BsonDocument command)
+        {
+        BsonValue collection = command.get(commandName.equals("getMore") ? "collection" : commandName);
+        return collection != null && collection.isString() ? collection.asString().getValue() : "none";
+        }
+
+    /**
+     * The filter and sort of a query, update or delete, or the stages of an aggregation, with every value replaced by
+     * {@code ?} and arrays cut to their first element, or null for other commands.
+     */
+    static String shape(String commandName, BsonDocument command)
+        {
+        BsonDocument shape = new BsonDocument();
+        switch(commandName){
+            case "find":
+                copyShape(command, "filter", shape);
+                copySort(command, shape);
+                break;
+            case "aggregate":
+                //every stage is kept, only the arrays inside them are cut
+                BsonArray pipeline = new BsonArray();
+                command.getArray("pipeline", new BsonArray()).forEach(stage -> pipeline.add(redact(stage)));
+                shape.put("pipeline", pipeline);
+                break;
+            case "count":
+            case "distinct":
+                copyShape(command, "query", shape);
+                break;
+            case "findAndModify":
+                copyShape(command, "query", shape);
+                copySort(command, shape);
+                break;
+            case "update":
+                copyFirstStatementShape(command, "updates", shape);
+                break;
+            case "delete":
+                copyFirstStatementShape(command, "deletes", shape);
+                break;
+            default:
+                return null;
+        }
+        return shape.toJson();
+        }
+
+    private static void copyShape(BsonDocument command, String field, BsonDocument shape)
+        {
+        if(command.containsKey(field)){
+            shape.put(field, redact(command.get(field)));
+        }
+        }
+
+    //sort directions are not data, so they are kept
+    private static void copySort(BsonDocument command, BsonDocument shape)
+        {
+        if(command.containsKey("sort")){
+            shape.put("sort", command.get("sort").asDocument().clone());
+        }
+        }
+
+    private static void copyFirstStatementShape(BsonDocument command, String statements, BsonDocument shape)
+        {
+        BsonValue list = command.get(statements);
+        if(list != null && list.isArray() && !list.asArray().isEmpty() && list.asArray().get(0).isDocument()){
+            copyShape(list.asArray().get(0).asDocument(), "q", shape);
+        }
+        }
+
+    private static BsonValue redact(BsonValue value)
+        {
+        if(value.isDocument()){
+            BsonDocument redacted = new BsonDocument();
+            value.asDocument().forEach((key, field) -> redacted.put(key, redact(field)));
+            return redacted;
+        }
+        if(value.isArray()){
+            BsonArray redacted = new BsonArray();
+            if(!value.asArray().isEmpty()){
+                redacted.add(redact(value.asArray().get(0)));
+            }
+            return redacted;
+        }
+        //field paths in pipelines name fields rather than hold data
+        if(value.isString() && value.asString().getValue().startsWith("$")){
+            return value;
+        }
+        return new BsonString("?");
+        }
+
+    /**
+     * The number of documents a reply returned or a write touched, or -1 when the command returns none.
+     */
+    static long documents(BsonDocument response)
+        {
+        BsonValue cursor = response.get("cursor");
+        if(cursor != null && cursor.isDocument()){
+            for(String batch : List.of("firstBatch", "nextBatch")){
+                BsonValue documents = cursor.asDocument().get(batch);
+                if(documents != null && documents.isArray()){
+                    return documents.asArray().size();
+                }
+            }
+        }
+        BsonValue values = response.get("values");
+        if(values != null && values.isArray()){
+            return values.asArray().size();
+        }
+        if(response.containsKey("value")){
+            return response.get("value").isNull() ? 0 : 1;
+        }
+        BsonValue n = response.get("n");
+        if(n != null && n.isNumber()){
+            return n.asNumber().longValue();
+        }
+        return -1;
+        }
+
+    /**
+     * The size of a reply as the server sent it, or -1 when it was not handed over as raw bytes.
+     */
+    static int sizeOf(BsonDocument response)
+        {
+        //the driver hands replies over undecoded, so their size is read from the buffer rather than encoded again
+        return response instanceof RawBsonDocument ? ((RawBsonDocument) response).getByteBuffer().remaining() : -1;
+        }
+
+    /**
+     * The stages of the winning plan from the root down, e.g. {@code FETCH <- IXSCAN applicationId_created_id}.
+     */
+    static String planSummary(Document explained)
+        {
+        Document plan = findWinningPlan(explained);
+        if(plan == null){
+            return "none";
+        }
+        //the slot based engine nests the classic plan
+        if(plan.get("queryPlan") instanceof Document){
+            plan = (Document) plan.get("queryPlan");
+        }
+        List<String> stages = new ArrayList<>();
+        addStages(plan, stages);
+        return String.join(" <- ", stages);
+        }
+
+    private static Document findWinningPlan(Object node)
+        {
+        if(node instanceof Document){
+            for(Map.Entry<String, Object> entry : ((Document) node).entrySet()){
+                if(entry.getKey().equals("winningPlan") && entry.getValue() instanceof Document){
+                    return (Document) entry.getValue();
+                }
+                Document plan = entry.getKey().equals("rejectedPlans") ? null : findWinningPlan(entry.getValue());
+                if(plan != null){
+                    return plan;
+                }
+            }
+        } else if(node instanceof List){
+            for(Object element : (List<?>) node){
+                Document plan = findWinningPlan(element);
+                if(plan != null){
+                    return plan;
+                }
+            }
+        }
+        return null;
+        }
+
+    private static void addStages(Document stage, List<String> stages)
+        {
+        String indexName = stage.getString("indexName");
+        stages.add(indexName == null ? stage.getString("stage") : stage.getString("stage") + " " + indexName);
+        if(stage.get("inputStage") instanceof Document){
+            addStages((Document) stage.get("inputStage"), stages);
+        }
+        if(stage.get("inputStages") instanceof List){
+            for(Object input : (List<?>) stage.get("inputStages")){
+                if(input instanceof Document){
+                    addStages((Document) input, stages);
+                }
+            }
+        }
+        }
+
+    private static final class Started
+        {
+        private final String database;
+        private final String collection;
+        private final String method;
+        //a copy of a command with a filter, kept to log and explain it if it turns out slow
+        private final BsonDocument command;
+
+        private Started(String database, String collection, String method, BsonDocument command)
+            {
+            this.database = database;
+            this.collection = collection;
+            this.method = method;
+            this.command = command;
+            }
+        }
+    }
@@ -0,0 +1,37 @@
+package team.deployservice.metrics;
+
+/**
+ * The repository method the current thread is in, so database commands can be told apart by the query that sent them.
+ */
+final class RepositoryMethod
+    {
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private RepositoryMethod()
+        {
+        }
+
+    static String current()
+        {
+        return CURRENT.get();
+        }
+
+    /**
+     * Marks the thread as in the method and returns the method it was in before, to be restored by {@link #exit(String)}.
+     */
+    static String enter(String method)
+        {
+        String previous = CURRENT.get();
+        CURRENT.set(method);
+        return previous;
+        }
+
+    static void exit(String previous)
+        {
+        if(previous == null){
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+        }
+    }
@@ -0,0 +1,51 @@
+package team.deployservice.model;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+@Document("application_version")
+public class ApplicationVersion
+    {
+    @Id
+    private final String applicationId;
+    //incremented by every store or delete of a deployment of the application
+    private final long version;
+    //the database server's time, so instances whose clocks differ can read the versions changed since a time
+    @Indexed(name = "lastModified")
+    private final Date lastModified;
+
+    public ApplicationVersion(String applicationId, long version, Date lastModified)
+        {
+        this.applicationId = applicationId;
+        this.version = version;
+        this.lastModified = lastModified;
+        }
+
+    public String getApplicationId()
+        {
+        return applicationId;
+        }
+
+    public long getVersion()
+        {
+        return version;
+        }
+
+    public Date getLastModified()
+        {
+        return lastModified;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "ApplicationVersion{" +
+            "applicationId='" + applicationId + '\'' +
+            ", version=" + version +
+            ", lastModified=" + lastModified +
+            '}';
+        }
+    }
@@ -0,0 +1,35 @@
+package team.deployservice.model;
+
+import java.util.Date;
+
+public class DataVersion
+    {
+    private final String tag;
+    private final Date lastModified;
+
+    public DataVersion(String tag, Date lastModified)
+        {
+        this.tag = tag;
+        this.lastModified = lastModified;
+        }
+
+    public String getTag()
+        {
+        return tag;
+        }
+
+    //null when no deployment of the applications has been stored or deleted yet
+    public Date getLastModified()
+        {
+        return lastModified;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "DataVersion{" +
+            "tag='" + tag + '\'' +
+            ", lastModified=" + lastModified +
+            '}';
+        }
+    }
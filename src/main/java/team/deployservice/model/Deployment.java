@@ -1,19 +1,35 @@
 package team.deployservice.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 
+//applicationId_created_id serves the application and date range queries and the application pages, created_id the
+//unfiltered pages, ancestors_created_id the hierarchy lists, pages and exports; MongoIndexReconciler creates them at
+//startup
+@Document
+@CompoundIndexes({
+    @CompoundIndex(name = "applicationId_created_id", def = "{'applicationId': 1, 'created': 1, '_id': 1}"),
+    @CompoundIndex(name = "created_id", def = "{'created': 1, '_id': 1}"),
+    @CompoundIndex(name = "ancestors_created_id", def = "{'ancestors': 1, 'created': 1, '_id': 1}")
+})
 public class Deployment
     {
     @Id
     private String id;
     @NotBlank(message = "Deployment: deploymentId is mandatory")
+    @Indexed(name = "deploymentId", unique = true)
     private final String deploymentId;
     private final String deploymentDesc;
     @NotBlank(message = "Deployment: applicationId is mandatory")
@@ -29,6 +45,9 @@ public class Deployment
 
     private long leadTimeSeconds;
     private DORALevel leadTimePerfLevel;
+    //the hierarchy path from the root down to the application, kept in step with team-service by AncestorTagger
+    @JsonIgnore
+    private List<String> ancestors;
 
     public Deployment(String deploymentId, String deploymentDesc, String applicationId, String rfcId, Date created, String source, HashSet<Change> changes)
         {
@@ -46,6 +65,11 @@ public class Deployment
         return id;
         }
 
+    public void setId(String id)
+        {
+        this.id = id;
+        }
+
     public String getDeploymentId()
         {
         return deploymentId;
@@ -95,6 +119,16 @@ public class Deployment
         this.leadTimePerfLevel = leadTimePerfLevel;
         }
 
+    public List<String> getAncestors()
+        {
+        return ancestors;
+        }
+
+    public void setAncestors(List<String> ancestors)
+        {
+        this.ancestors = ancestors;
+        }
+
     @Override
     public boolean equals(Object o)
         {
@@ -0,0 +1,80 @@
+package team.deployservice.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * Position after a deployment in the (created, id) descending order that deployment lists are paged in, opaque to
+ * clients.
+ */
+public class DeploymentCursor
+    {
+    private final Date created;
+    private final String id;
+
+    public DeploymentCursor(Date created, String id)
+        {
+        this.created = created;
+        this.id = id;
+        }
+
+    public static DeploymentCursor after(Deployment deployment)
+        {
+        return new DeploymentCursor(deployment.getCreated(), deployment.getId());
+        }
+
+    /**
+     * @throws IllegalArgumentException if the value was not produced by {@link #encode()}
+     */
+    public static DeploymentCursor decode(String value)
+        {
+        String decoded = new String(Base64.getUrlDecoder().decode(value), StandardCharsets.UTF_8);
+        int separator = decoded.indexOf(':');
+        if(separator < 1 || separator == decoded.length() - 1){
+            throw new IllegalArgumentException("Malformed cursor " + value);
+        }
+        return new DeploymentCursor(new Date(Long.parseLong(decoded.substring(0, separator))), decoded.substring(separator + 1));
+        }
+
+    public String encode()
+        {
+        String value = created.getTime() + ":" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+    public Date getCreated()
+        {
+        return created;
+        }
+
+    public String getId()
+        {
+        return id;
+        }
+
+    @Override
+    public boolean equals(Object o)
+        {
+        if(this == o) return true;
+        if(o == null || getClass() != o.getClass()) return false;
+        DeploymentCursor that = (DeploymentCursor) o;
+        return Objects.equals(created, that.created) && Objects.equals(id, that.id);
+        }
+
+    @Override
+    public int hashCode()
+        {
+        return Objects.hash(created, id);
+        }
+
+    @Override
+    public String toString()
+        {
+        return "DeploymentCursor{" +
+            "created=" + created +
+            ", id='" + id + '\'' +
+            '}';
+        }
+    }
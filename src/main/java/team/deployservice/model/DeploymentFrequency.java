@@ -1,6 +1,7 @@
 package team.deployservice.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.Date;
 
@@ -10,16 +11,26 @@ public class DeploymentFrequency
     @JsonFormat(pattern="yyyy-MM-dd")
     private final Date reportingDate;
     private final Integer deploymentCount;
+    //a windowed count covers the whole window rather than a time period
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     private final TimePeriod timePeriod;
     private final DORALevel deployFreqLevel;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final Integer windowDays;
 
     public DeploymentFrequency(String applicationId, Date reportingDate, Integer deploymentCount, TimePeriod timePeriod, DORALevel deployFreqLevel)
+        {
+        this(applicationId, reportingDate, deploymentCount, timePeriod, deployFreqLevel, null);
+        }
+
+    public DeploymentFrequency(String applicationId, Date reportingDate, Integer deploymentCount, TimePeriod timePeriod, DORALevel deployFreqLevel, Integer windowDays)
         {
         this.applicationId = applicationId;
         this.reportingDate = reportingDate;
         this.deploymentCount = deploymentCount;
         this.timePeriod = timePeriod;
         this.deployFreqLevel = deployFreqLevel;
+        this.windowDays = windowDays;
         }
 
     public String getApplicationId()
@@ -47,6 +58,11 @@ public class DeploymentFrequency
         return deployFreqLevel;
         }
 
+    public Integer getWindowDays()
+        {
+        return windowDays;
+        }
+
     @Override
     public String toString()
         {
@@ -56,6 +72,7 @@ public class DeploymentFrequency
             ", deploymentCount=" + deploymentCount +
             ", timePeriod=" + timePeriod +
             ", deployFreqLevel=" + deployFreqLevel +
+            ", windowDays=" + windowDays +
             '}';
         }
     }
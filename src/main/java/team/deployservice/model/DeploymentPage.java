@@ -0,0 +1,35 @@
+package team.deployservice.model;
+
+import java.util.List;
+
+public class DeploymentPage
+    {
+    private final List<Deployment> deployments;
+    private final DeploymentCursor next;
+
+    public DeploymentPage(List<Deployment> deployments, DeploymentCursor next)
+        {
+        this.deployments = deployments;
+        this.next = next;
+        }
+
+    public List<Deployment> getDeployments()
+        {
+        return deployments;
+        }
+
+    //null on the last page
+    public DeploymentCursor getNext()
+        {
+        return next;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "DeploymentPage{" +
+            "deployments=" + deployments +
+            ", next=" + next +
+            '}';
+        }
+    }
@@ -0,0 +1,108 @@
+package team.deployservice.model;
+
+import org.bson.BsonTimestamp;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+@Document("deployment_rollup")
+@CompoundIndex(name = "applicationId_day", def = "{'applicationId': 1, 'day': 1}")
+public class DeploymentRollup
+    {
+    @Id
+    private final String id;
+    private final String applicationId;
+    private final Date day;
+    private final long deploymentCount;
+    private final long changeCount;
+    private final long leadTimeSeconds;
+    //change lead time histogram, bucket number to count, see LeadTimeHistogram
+    private final Map<String, Long> leadTimeBuckets;
+    //server timestamp of the last write, unique and increasing, so the newer of two copies of a rollup can be told apart
+    @Indexed(name = "modified")
+    private final BsonTimestamp modified;
+
+    public DeploymentRollup(String id, String applicationId, Date day, long deploymentCount, long changeCount, long leadTimeSeconds)
+        {
+        this(id, applicationId, day, deploymentCount, changeCount, leadTimeSeconds, Collections.emptyMap());
+        }
+
+    public DeploymentRollup(String id, String applicationId, Date day, long deploymentCount, long changeCount, long leadTimeSeconds, Map<String, Long> leadTimeBuckets)
+        {
+        this(id, applicationId, day, deploymentCount, changeCount, leadTimeSeconds, leadTimeBuckets, null);
+        }
+
+    @PersistenceConstructor
+    public DeploymentRollup(String id, String applicationId, Date day, long deploymentCount, long changeCount, long leadTimeSeconds, Map<String, Long> leadTimeBuckets, BsonTimestamp modified)
+        {
+        this.id = id;
+        this.applicationId = applicationId;
+        this.day = day;
+        this.deploymentCount = deploymentCount;
+        this.changeCount = changeCount;
+        this.leadTimeSeconds = leadTimeSeconds;
+        this.leadTimeBuckets = leadTimeBuckets;
+        this.modified = modified;
+        }
+
+    public String getId()
+        {
+        return id;
+        }
+
+    public String getApplicationId()
+        {
+        return applicationId;
+        }
+
+    public Date getDay()
+        {
+        return day;
+        }
+
+    public long getDeploymentCount()
+        {
+        return deploymentCount;
+        }
+
+    public long getChangeCount()
+        {
+        return changeCount;
+        }
+
+    public long getLeadTimeSeconds()
+        {
+        return leadTimeSeconds;
+        }
+
+    public Map<String, Long> getLeadTimeBuckets()
+        {
+        return leadTimeBuckets;
+        }
+
+    public BsonTimestamp getModified()
+        {
+        return modified;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "DeploymentRollup{" +
+            "id='" + id + '\'' +
+            ", applicationId='" + applicationId + '\'' +
+            ", day=" + day +
+            ", deploymentCount=" + deploymentCount +
+            ", changeCount=" + changeCount +
+            ", leadTimeSeconds=" + leadTimeSeconds +
+            ", leadTimeBuckets=" + leadTimeBuckets +
+            ", modified=" + modified +
+            '}';
+        }
+    }
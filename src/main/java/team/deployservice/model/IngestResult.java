@@ -0,0 +1,94 @@
+package team.deployservice.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Collections;
+import java.util.List;
+
+public class IngestResult
+    {
+    public enum Status
+        {
+        PENDING, CREATED, DUPLICATE, INVALID, FAILED
+        }
+
+    //position of the deployment in the request
+    private final int index;
+    private final String deploymentId;
+    private final Status status;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String id;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<String> errors;
+
+    private IngestResult(int index, String deploymentId, Status status, String id, List<String> errors)
+        {
+        this.index = index;
+        this.deploymentId = deploymentId;
+        this.status = status;
+        this.id = id;
+        this.errors = errors;
+        }
+
+    public static IngestResult created(int index, String deploymentId, String id)
+        {
+        return new IngestResult(index, deploymentId, Status.CREATED, id, null);
+        }
+
+    public static IngestResult duplicate(int index, String deploymentId)
+        {
+        return new IngestResult(index, deploymentId, Status.DUPLICATE, null, null);
+        }
+
+    public static IngestResult invalid(int index, String deploymentId, List<String> errors)
+        {
+        return new IngestResult(index, deploymentId, Status.INVALID, null, errors);
+        }
+
+    public static IngestResult failed(int index, String deploymentId, String error)
+        {
+        return new IngestResult(index, deploymentId, Status.FAILED, null, Collections.singletonList(error));
+        }
+
+    public IngestResult atIndex(int index)
+        {
+        return new IngestResult(index, deploymentId, status, id, errors);
+        }
+
+    public int getIndex()
+        {
+        return index;
+        }
+
+    public String getDeploymentId()
+        {
+        return deploymentId;
+        }
+
+    public Status getStatus()
+        {
+        return status;
+        }
+
+    public String getId()
+        {
+        return id;
+        }
+
+    public List<String> getErrors()
+        {
+        return errors;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "IngestResult{" +
+            "index=" + index +
+            ", deploymentId='" + deploymentId + '\'' +
+            ", status=" + status +
+            ", id='" + id + '\'' +
+            ", errors=" + errors +
+            '}';
+        }
+    }
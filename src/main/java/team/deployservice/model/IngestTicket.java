@@ -0,0 +1,75 @@
+package team.deployservice.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+
+/**
+ * Tracks a deployment accepted for asynchronous ingestion, pending until a background writer has stored it.
+ */
+public class IngestTicket
+    {
+    private final String trackingId;
+    private final String deploymentId;
+    private final IngestResult.Status status;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String id;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final List<String> errors;
+
+    private IngestTicket(String trackingId, String deploymentId, IngestResult.Status status, String id, List<String> errors)
+        {
+        this.trackingId = trackingId;
+        this.deploymentId = deploymentId;
+        this.status = status;
+        this.id = id;
+        this.errors = errors;
+        }
+
+    public static IngestTicket pending(String trackingId, String deploymentId)
+        {
+        return new IngestTicket(trackingId, deploymentId, IngestResult.Status.PENDING, null, null);
+        }
+
+    public static IngestTicket of(String trackingId, IngestResult result)
+        {
+        return new IngestTicket(trackingId, result.getDeploymentId(), result.getStatus(), result.getId(), result.getErrors());
+        }
+
+    public String getTrackingId()
+        {
+        return trackingId;
+        }
+
+    public String getDeploymentId()
+        {
+        return deploymentId;
+        }
+
+    public IngestResult.Status getStatus()
+        {
+        return status;
+        }
+
+    public String getId()
+        {
+        return id;
+        }
+
+    public List<String> getErrors()
+        {
+        return errors;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "IngestTicket{" +
+            "trackingId='" + trackingId + '\'' +
+            ", deploymentId='" + deploymentId + '\'' +
+            ", status=" + status +
+            ", id='" + id + '\'' +
+            ", errors=" + errors +
+            '}';
+        }
+    }
@@ -1,6 +1,7 @@
 package team.deployservice.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 import java.util.Date;
 
@@ -11,13 +12,29 @@ public class LeadTime
     private final Date reportingDate;
     private final long leadTimeSeconds;
     private final DORALevel leadTimePerfLevel;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final Integer windowDays;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final LeadTimePercentiles percentiles;
 
     public LeadTime(String applicationId, Date reportingDate, long leadTimeSeconds, DORALevel leadTimePerfLevel)
+        {
+        this(applicationId, reportingDate, leadTimeSeconds, leadTimePerfLevel, null);
+        }
+
+    public LeadTime(String applicationId, Date reportingDate, long leadTimeSeconds, DORALevel leadTimePerfLevel, Integer windowDays)
+        {
+        this(applicationId, reportingDate, leadTimeSeconds, leadTimePerfLevel, windowDays, null);
+        }
+
+    public LeadTime(String applicationId, Date reportingDate, long leadTimeSeconds, DORALevel leadTimePerfLevel, Integer windowDays, LeadTimePercentiles percentiles)
         {
         this.applicationId = applicationId;
         this.reportingDate = reportingDate;
         this.leadTimeSeconds = leadTimeSeconds;
         this.leadTimePerfLevel = leadTimePerfLevel;
+        this.windowDays = windowDays;
+        this.percentiles = percentiles;
         }
 
     public String getApplicationId()
@@ -40,6 +57,16 @@ public class LeadTime
         return leadTimePerfLevel;
         }
 
+    public Integer getWindowDays()
+        {
+        return windowDays;
+        }
+
+    public LeadTimePercentiles getPercentiles()
+        {
+        return percentiles;
+        }
+
     @Override
     public String toString()
         {
@@ -48,6 +75,8 @@ public class LeadTime
             ", reportingDate=" + reportingDate +
             ", leadTimeSeconds=" + leadTimeSeconds +
             ", leadTimePerfLevel=" + leadTimePerfLevel +
+            ", windowDays=" + windowDays +
+            ", percentiles=" + percentiles +
             '}';
         }
     }
@@ -0,0 +1,96 @@
+package team.deployservice.model;
+
+import java.util.Map;
+
+/**
+ * Mergeable log bucketed histogram of change lead times in seconds.
+ * <p>
+ * A lead time of v seconds (v >= 1) is counted in bucket ceil(log(v) / log(GAMMA)) + 1 and reported as that bucket's
+ * midpoint 2 * GAMMA^(b - 1) / (GAMMA + 1). Every value in a bucket is within {@link #RELATIVE_ACCURACY} of the
+ * midpoint, so a percentile read from the histogram is within 1% (plus half a second of rounding) of the exact
+ * nearest rank percentile. Lead times below one second, including negative ones, share bucket 0 and are reported as 0.
+ * <p>
+ * Histograms merge by adding bucket counts and can be backed out again by subtracting them. Lead times up to ten
+ * years need fewer than a thousand buckets and a typical day far fewer, so rollups store them sparsely.
+ */
+public class LeadTimeHistogram
+    {
+    public static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final int BUCKETS = bucketOf(Long.MAX_VALUE) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+
+    public static int bucketOf(long leadTimeSeconds)
+        {
+        if(leadTimeSeconds < 1){
+            return 0;
+        }
+        return (int) Math.ceil(Math.log(leadTimeSeconds) / LOG_GAMMA) + 1;
+        }
+
+    public static long valueOf(int bucket)
+        {
+        if(bucket == 0){
+            return 0;
+        }
+        return Math.round(2 * Math.pow(GAMMA, bucket - 1) / (GAMMA + 1));
+        }
+
+    public void add(long leadTimeSeconds)
+        {
+        add(bucketOf(leadTimeSeconds), 1);
+        }
+
+    /**
+     * Merges a histogram held as bucket number to count, as stored on a rollup.
+     */
+    public void add(Map<String, Long> buckets)
+        {
+        if(buckets != null){
+            buckets.forEach((bucket, count) -> add(Integer.parseInt(bucket), count));
+        }
+        }
+
+    /**
+     * Backs out a histogram previously merged with {@link #add(Map)}.
+     */
+    public void remove(Map<String, Long> buckets)
+        {
+        if(buckets != null){
+            buckets.forEach((bucket, count) -> add(Integer.parseInt(bucket), -count));
+        }
+        }
+
+    private void add(int bucket, long count)
+        {
+        counts[bucket] += count;
+        total += count;
+        }
+
+    public long count()
+        {
+        return total;
+        }
+
+    /**
+     * The nearest rank percentile, the smallest lead time with at least the quantile of all lead times at or below it.
+     */
+    public long percentile(double quantile)
+        {
+        if(total <= 0){
+            throw new IllegalStateException("No lead times have been recorded");
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for(int bucket = 0; bucket < BUCKETS; bucket++){
+            seen += counts[bucket];
+            if(seen >= rank){
+                return valueOf(bucket);
+            }
+        }
+        return valueOf(BUCKETS - 1);
+        }
+    }
@@ -0,0 +1,48 @@
+package team.deployservice.model;
+
+/**
+ * Lead time percentiles in seconds, see {@link LeadTimeHistogram} for their accuracy.
+ */
+public class LeadTimePercentiles
+    {
+    private final long p50;
+    private final long p90;
+    private final long p99;
+
+    public LeadTimePercentiles(long p50, long p90, long p99)
+        {
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        }
+
+    public static LeadTimePercentiles of(LeadTimeHistogram histogram)
+        {
+        return new LeadTimePercentiles(histogram.percentile(0.5), histogram.percentile(0.9), histogram.percentile(0.99));
+        }
+
+    public long getP50()
+        {
+        return p50;
+        }
+
+    public long getP90()
+        {
+        return p90;
+        }
+
+    public long getP99()
+        {
+        return p99;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "LeadTimePercentiles{" +
+            "p50=" + p50 +
+            ", p90=" + p90 +
+            ", p99=" + p99 +
+            '}';
+        }
+    }
@@ -0,0 +1,40 @@
+package team.deployservice.model;
+
+public class LeadTimeSummary
+    {
+    private final long deploymentCount;
+    private final long changeCount;
+    private final long leadTimeSeconds;
+
+    public LeadTimeSummary(long deploymentCount, long changeCount, long leadTimeSeconds)
+        {
+        this.deploymentCount = deploymentCount;
+        this.changeCount = changeCount;
+        this.leadTimeSeconds = leadTimeSeconds;
+        }
+
+    public long getDeploymentCount()
+        {
+        return deploymentCount;
+        }
+
+    public long getChangeCount()
+        {
+        return changeCount;
+        }
+
+    public long getLeadTimeSeconds()
+        {
+        return leadTimeSeconds;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "LeadTimeSummary{" +
+            "deploymentCount=" + deploymentCount +
+            ", changeCount=" + changeCount +
+            ", leadTimeSeconds=" + leadTimeSeconds +
+            '}';
+        }
+    }
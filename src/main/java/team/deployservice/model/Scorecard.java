@@ -0,0 +1,73 @@
+package team.deployservice.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Date;
+
+public class Scorecard
+    {
+    private final String applicationId;
+    @JsonFormat(pattern="yyyy-MM-dd")
+    private final Date reportingDate;
+    private final DeploymentFrequency deploymentFrequency;
+    private final LeadTime leadTime;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private final String error;
+
+    public Scorecard(String applicationId, Date reportingDate, DeploymentFrequency deploymentFrequency, LeadTime leadTime)
+        {
+        this(applicationId, reportingDate, deploymentFrequency, leadTime, null);
+        }
+
+    private Scorecard(String applicationId, Date reportingDate, DeploymentFrequency deploymentFrequency, LeadTime leadTime, String error)
+        {
+        this.applicationId = applicationId;
+        this.reportingDate = reportingDate;
+        this.deploymentFrequency = deploymentFrequency;
+        this.leadTime = leadTime;
+        this.error = error;
+        }
+
+    public static Scorecard failed(String applicationId, Date reportingDate, String error)
+        {
+        return new Scorecard(applicationId, reportingDate, null, null, error);
+        }
+
+    public String getApplicationId()
+        {
+        return applicationId;
+        }
+
+    public Date getReportingDate()
+        {
+        return reportingDate;
+        }
+
+    public DeploymentFrequency getDeploymentFrequency()
+        {
+        return deploymentFrequency;
+        }
+
+    public LeadTime getLeadTime()
+        {
+        return leadTime;
+        }
+
+    public String getError()
+        {
+        return error;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "Scorecard{" +
+            "applicationId='" + applicationId + '\'' +
+            ", reportingDate=" + reportingDate +
+            ", deploymentFrequency=" + deploymentFrequency +
+            ", leadTime=" + leadTime +
+            ", error='" + error + '\'' +
+            '}';
+        }
+    }
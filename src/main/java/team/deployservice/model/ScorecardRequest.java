@@ -0,0 +1,39 @@
+package team.deployservice.model;
+
+import javax.validation.constraints.NotEmpty;
+import javax.validation.constraints.Size;
+import java.time.LocalDate;
+import java.util.List;
+
+public class ScorecardRequest
+    {
+    @NotEmpty(message = "ScorecardRequest: applicationIds are mandatory")
+    @Size(max = 1000, message = "ScorecardRequest: at most 1000 applicationIds per request")
+    private final List<String> applicationIds;
+    private final LocalDate reportingDate;
+
+    public ScorecardRequest(List<String> applicationIds, LocalDate reportingDate)
+        {
+        this.applicationIds = applicationIds;
+        this.reportingDate = reportingDate;
+        }
+
+    public List<String> getApplicationIds()
+        {
+        return applicationIds;
+        }
+
+    public LocalDate getReportingDate()
+        {
+        return reportingDate;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "ScorecardRequest{" +
+            "applicationIds=" + applicationIds +
+            ", reportingDate=" + reportingDate +
+            '}';
+        }
+    }
@@ -0,0 +1,14 @@
+package team.deployservice.repo;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+import team.deployservice.model.ApplicationVersion;
+
+import java.util.Date;
+import java.util.List;
+
+@Repository
+public interface ApplicationVersionRepo extends MongoRepository<ApplicationVersion, String>, ApplicationVersionRepoCustom
+    {
+        List<ApplicationVersion> findByLastModifiedGreaterThan(Date lastModified);
+    }
@@ -0,0 +1,17 @@
+package team.deployservice.repo;
+
+import java.util.Collection;
+
+public interface ApplicationVersionRepoCustom
+    {
+        /**
+         * Atomically increments the data version of the application and stamps it with the current time, creating it
+         * if needed.
+         */
+        void increment(String applicationId);
+
+        /**
+         * Increments each application as {@link #increment} would, in one unordered bulk write.
+         */
+        void incrementAll(Collection<String> applicationIds);
+    }
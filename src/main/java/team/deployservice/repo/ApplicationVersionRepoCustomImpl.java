@@ -0,0 +1,47 @@
+package team.deployservice.repo;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import team.deployservice.model.ApplicationVersion;
+
+import java.util.Collection;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+public class ApplicationVersionRepoCustomImpl implements ApplicationVersionRepoCustom
+    {
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public ApplicationVersionRepoCustomImpl(MongoTemplate mongoTemplate)
+        {
+        this.mongoTemplate = mongoTemplate;
+        }
+
+    private static Update incrementUpdate()
+        {
+        return new Update()
+            .inc("version", 1L)
+            .currentDate("lastModified");
+        }
+
+    @Override
+    public void increment(String applicationId)
+        {
+        mongoTemplate.upsert(Query.query(where("_id").is(applicationId)), incrementUpdate(), ApplicationVersion.class);
+        }
+
+    @Override
+    public void incrementAll(Collection<String> applicationIds)
+        {
+        if(applicationIds.isEmpty()){
+            return;
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ApplicationVersion.class);
+        applicationIds.forEach(applicationId -> bulk.upsert(Query.query(where("_id").is(applicationId)), incrementUpdate()));
+        bulk.execute();
+        }
+    }
@@ -8,17 +8,23 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 @Repository
-public interface DeploymentRepo extends MongoRepository<Deployment, String>
+public interface DeploymentRepo extends MongoRepository<Deployment, String>, DeploymentRepoCustom
     {
         Optional<Deployment> findByDeploymentId(String deploymentId);
-        
-        List<Deployment> findByApplicationId(String applicationId);
-
-        List<Deployment> findByApplicationIdInOrderByCreatedDesc(Collection<String> applicationIds);
 
         List<Deployment> findByApplicationIdAndCreatedBetweenOrderByCreated(String applicationId, Date start, Date end);
 
         List<Deployment> findByApplicationIdInAndCreatedBetweenOrderByCreated(Collection<String> applicationIds, Date start, Date end);
+
+        //exports, read through a cursor in no particular order; close the stream to release the cursor
+        Stream<Deployment> streamAllBy();
+
+        Stream<Deployment> streamByApplicationId(String applicationId);
+
+        Stream<Deployment> streamByApplicationIdIn(Collection<String> applicationIds);
+
+        Stream<Deployment> streamByAncestors(String ancestor);
     }
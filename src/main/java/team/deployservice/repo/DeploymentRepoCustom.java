@@ -0,0 +1,62 @@
+package team.deployservice.repo;
+
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentCursor;
+import team.deployservice.model.IngestResult;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+public interface DeploymentRepoCustom
+    {
+        /**
+         * Reads up to {@code limit} deployments, newest first and then by descending id, starting after the cursor
+         * or from the newest when it is null. Each page is a range query on (created, id) rather than a skip.
+         */
+        List<Deployment> findPage(DeploymentCursor after, int limit);
+
+        /**
+         * Like {@link #findPage(DeploymentCursor, int)}, for the deployments of the given applications only.
+         */
+        List<Deployment> findPageByApplicationIdIn(Collection<String> applicationIds, DeploymentCursor after, int limit);
+
+        /**
+         * Like {@link #findPage(DeploymentCursor, int)}, for the deployments whose ancestor path has the given node.
+         */
+        List<Deployment> findPageByAncestor(String ancestor, DeploymentCursor after, int limit);
+
+        /**
+         * Sets the ancestor path of each application's deployments with one unordered bulk write, writing only those
+         * whose path differs. When {@code nodes} is not empty, the same write takes those nodes out of the paths of
+         * the deployments of every application that is not one of them, so an application that left the hierarchy
+         * no longer matches its old ancestors.
+         *
+         * @return the number of deployments changed
+         */
+        long setAncestors(Map<String, List<String>> ancestorsByApplicationId, Collection<String> nodes);
+    
+        /**
+         * The deployment ids among the given ones that are already stored, read in one query.
+         */
+        Set<String> findExistingDeploymentIds(Collection<String> deploymentIds);
+
+        /**
+         * Inserts the deployments with one unordered bulk write, so one rejected document does not stop the others.
+         *
+         * @return the result of each deployment in the same order, indexed by its position in the list: created with
+         * its generated id, duplicate where the deployment id index rejected it, or failed with the write error
+         */
+        List<IngestResult> insertAll(List<Deployment> deployments);
+
+        /**
+         * Inserts the deployment unless one with the same deployment id is already stored, as a single upsert
+         * against the unique deployment id index. When inserted, the generated id is set on the given deployment.
+         *
+         * @return the deployment already stored under its deployment id, or empty when this one was inserted
+         */
+        Optional<Deployment> insertIfAbsent(Deployment deployment);
+    }
@@ -0,0 +1,178 @@
+package team.deployservice.repo;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentCursor;
+import team.deployservice.model.IngestResult;
+
+import java.util.*;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+public class DeploymentRepoCustomImpl implements DeploymentRepoCustom
+    {
+    private static final Logger log = LoggerFactory.getLogger(DeploymentRepoCustomImpl.class);
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public DeploymentRepoCustomImpl(MongoTemplate mongoTemplate)
+        {
+        this.mongoTemplate = mongoTemplate;
+        }
+
+    @Override
+    public List<Deployment> findPage(DeploymentCursor after, int limit)
+        {
+        return findPage(new Criteria(), after, limit);
+        }
+
+    @Override
+    public List<Deployment> findPageByApplicationIdIn(Collection<String> applicationIds, DeploymentCursor after, int limit)
+        {
+        return findPage(where("applicationId").in(applicationIds), after, limit);
+        }
+
+    @Override
+    public List<Deployment> findPageByAncestor(String ancestor, DeploymentCursor after, int limit)
+        {
+        return findPage(where("ancestors").is(ancestor), after, limit);
+        }
+
+    @Override
+    public long setAncestors(Map<String, List<String>> ancestorsByApplicationId, Collection<String> nodes)
+        {
+        List<WriteModel<Document>> updates = new ArrayList<>(ancestorsByApplicationId.size() + 1);
+        //paths are compared whole, so a deployment already on its path is not written again
+        ancestorsByApplicationId.forEach((applicationId, ancestors) -> updates.add(new UpdateManyModel<>(
+            Filters.and(Filters.eq("applicationId", applicationId), Filters.ne("ancestors", ancestors)),
+            Updates.set("ancestors", ancestors))));
+        if(!nodes.isEmpty()){
+            //the application itself is not one of the nodes, so it stays on its own path
+            updates.add(new UpdateManyModel<>(
+                Filters.and(Filters.in("ancestors", nodes), Filters.nin("applicationId", nodes)),
+                Updates.pullAll("ancestors", new ArrayList<>(nodes))));
+        }
+        if(updates.isEmpty()){
+            return 0;
+        }
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Deployment.class))
+            .bulkWrite(updates, new BulkWriteOptions().ordered(false))
+            .getModifiedCount();
+        }
+
+    private List<Deployment> findPage(Criteria criteria, DeploymentCursor after, int limit)
+        {
+        if(after != null){
+            //generated ids are stored as ObjectIds, which the mapper does not convert inside a range
+            Object id = ObjectId.isValid(after.getId()) ? new ObjectId(after.getId()) : after.getId();
+            criteria = criteria.orOperator(
+                where("created").lt(after.getCreated()),
+                where("created").is(after.getCreated()).and("_id").lt(id));
+        }
+        Query query = Query.query(criteria)
+            .with(Sort.by(Sort.Direction.DESC, "created", "_id"))
+            .limit(limit);
+        return mongoTemplate.find(query, Deployment.class);
+        }
+    
+    @Override
+    public Set<String> findExistingDeploymentIds(Collection<String> deploymentIds)
+        {
+        Set<String> existing = new HashSet<>();
+        if(deploymentIds.isEmpty()){
+            return existing;
+        }
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(Deployment.class))
+            .distinct("deploymentId", Filters.in("deploymentId", deploymentIds), String.class)
+            .into(existing);
+        }
+
+    @Override
+    public List<IngestResult> insertAll(List<Deployment> deployments)
+        {
+        List<IngestResult> results = new ArrayList<>(deployments.size());
+        if(deployments.isEmpty()){
+            return results;
+        }
+        //the ids are generated here rather than by the driver so they can be reported back per deployment
+        List<Document> documents = new ArrayList<>(deployments.size());
+        for(int i = 0; i < deployments.size(); i++){
+            Deployment deployment = deployments.get(i);
+            Document document = new Document();
+            mongoTemplate.getConverter().write(deployment, document);
+            ObjectId id = new ObjectId();
+            document.put("_id", id);
+            documents.add(document);
+            results.add(IngestResult.created(i, deployment.getDeploymentId(), id.toHexString()));
+        }
+        try {
+            mongoTemplate.getCollection(mongoTemplate.getCollectionName(Deployment.class))
+                .insertMany(documents, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            //an unordered write carries on past each rejected document, so every other one has been inserted
+            for(BulkWriteError error : e.getWriteErrors()){
+                String deploymentId = deployments.get(error.getIndex()).getDeploymentId();
+                results.set(error.getIndex(), ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY
+                    ? IngestResult.duplicate(error.getIndex(), deploymentId)
+                    : IngestResult.failed(error.getIndex(), deploymentId, error.getMessage()));
+            }
+            if(e.getWriteConcernError() != null){
+                log.warn("Bulk insert of {} deployments was not acknowledged as requested: {}", documents.size(), e.getWriteConcernError().getMessage());
+            }
+        }
+        return results;
+        }
+
+    @Override
+    public Optional<Deployment> insertIfAbsent(Deployment deployment)
+        {
+        Document document = new Document();
+        mongoTemplate.getConverter().write(deployment, document);
+        ObjectId id = new ObjectId();
+        document.put("_id", id);
+        Bson byDeploymentId = Filters.eq("deploymentId", deployment.getDeploymentId());
+        MongoCollection<Document> collection = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Deployment.class));
+        Document original;
+        try {
+            //the document as it was before the upsert, so null means this deployment was inserted
+            original = collection.findOneAndUpdate(byDeploymentId, new Document("$setOnInsert", document),
+                new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.BEFORE));
+        } catch (MongoException e) {
+            //a concurrent upsert of the same deployment id won the race for the unique index
+            if(ErrorCategory.fromErrorCode(e.getCode()) != ErrorCategory.DUPLICATE_KEY){
+                throw e;
+            }
+            original = collection.find(byDeploymentId).first();
+            if(original == null){
+                throw e;
+            }
+        }
+        if(original == null){
+            deployment.setId(id.toHexString());
+            return Optional.empty();
+        }
+        return Optional.of(mongoTemplate.getConverter().read(Deployment.class, original));
+        }
+    }
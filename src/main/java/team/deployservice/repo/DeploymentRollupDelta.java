@@ -0,0 +1,86 @@
+package team.deployservice.repo;
+
+import team.deployservice.model.Change;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.LeadTimeHistogram;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates the changes that several deployments of one application on one UTC day make to its rollup, so they can
+ * be applied with a single increment.
+ */
+public class DeploymentRollupDelta
+    {
+    private final String applicationId;
+    private final Date day;
+    private long deploymentCount;
+    private long changeCount;
+    private long leadTimeSeconds;
+    private final Map<Integer, Long> leadTimeBuckets = new HashMap<>();
+
+    public DeploymentRollupDelta(String applicationId, Date day)
+        {
+        this.applicationId = applicationId;
+        this.day = day;
+        }
+
+    /**
+     * Adds the deployment, or backs it out again when the sign is -1.
+     */
+    public DeploymentRollupDelta add(Deployment deployment, long sign)
+        {
+        deploymentCount += sign;
+        for(Change change : deployment.getChanges()){
+            changeCount += sign;
+            leadTimeSeconds += sign * change.getLeadTimeSeconds();
+            leadTimeBuckets.merge(LeadTimeHistogram.bucketOf(change.getLeadTimeSeconds()), sign, Long::sum);
+        }
+        return this;
+        }
+
+    public String getApplicationId()
+        {
+        return applicationId;
+        }
+
+    public Date getDay()
+        {
+        return day;
+        }
+
+    public long getDeploymentCount()
+        {
+        return deploymentCount;
+        }
+
+    public long getChangeCount()
+        {
+        return changeCount;
+        }
+
+    public long getLeadTimeSeconds()
+        {
+        return leadTimeSeconds;
+        }
+
+    public Map<Integer, Long> getLeadTimeBuckets()
+        {
+        return leadTimeBuckets;
+        }
+
+    @Override
+    public String toString()
+        {
+        return "DeploymentRollupDelta{" +
+            "applicationId='" + applicationId + '\'' +
+            ", day=" + day +
+            ", deploymentCount=" + deploymentCount +
+            ", changeCount=" + changeCount +
+            ", leadTimeSeconds=" + leadTimeSeconds +
+            ", leadTimeBuckets=" + leadTimeBuckets +
+            '}';
+        }
+    }
@@ -0,0 +1,24 @@
+package team.deployservice.repo;
+
+import org.bson.BsonTimestamp;
+import org.springframework.data.domain.Range;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+import team.deployservice.model.DeploymentRollup;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+@Repository
+public interface DeploymentRollupRepo extends MongoRepository<DeploymentRollup, String>, DeploymentRollupRepoCustom
+    {
+        List<DeploymentRollup> findByApplicationIdInAndDayBetween(Collection<String> applicationIds, Range<Date> days);
+
+        Stream<DeploymentRollup> streamAllBy();
+
+        Stream<DeploymentRollup> streamByModifiedGreaterThan(BsonTimestamp modified);
+
+        DeploymentRollup findFirstByOrderByModifiedDesc();
+    }
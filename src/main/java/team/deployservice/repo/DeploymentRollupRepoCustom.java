@@ -0,0 +1,32 @@
+package team.deployservice.repo;
+
+import team.deployservice.model.DeploymentRollup;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface DeploymentRollupRepoCustom
+    {
+        /**
+         * Atomically adds the deltas to the rollup of the application for the UTC day, creating it if needed.
+         * Negative deltas are used to back a deployment out again. Lead time buckets map a LeadTimeHistogram bucket
+         * to the change count delta for it. Returns the rollup as written.
+         */
+        DeploymentRollup increment(String applicationId, Date day, long deploymentCount, long changeCount, long leadTimeSeconds, Map<Integer, Long> leadTimeBuckets);
+
+        /**
+         * Applies each delta as {@link #increment} would, in one unordered bulk write, and returns the rollups read back
+         * after it, which may already hold later writes.
+         */
+        List<DeploymentRollup> incrementAll(Collection<DeploymentRollupDelta> deltas);
+
+        /**
+         * Regenerates every rollup from the deployment collection server side and atomically replaces the rollup
+         * collection with the result, then scans the change lead times an application at a time to fill in the lead time
+         * histograms. Every rollup is marked modified at the end, so instances following the changes reload them.
+         * Increments made while the rebuild runs are lost, so pause ingestion first.
+         */
+        void rebuild();
+    }
@@ -0,0 +1,168 @@
+package team.deployservice.repo;
+
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentRollup;
+import team.deployservice.model.LeadTimeHistogram;
+
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+public class DeploymentRollupRepoCustomImpl implements DeploymentRollupRepoCustom
+    {
+    private static final int BUCKET_BATCH_SIZE = 1000;
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public DeploymentRollupRepoCustomImpl(MongoTemplate mongoTemplate)
+        {
+        this.mongoTemplate = mongoTemplate;
+        }
+
+    private static String rollupId(String applicationId, Date day)
+        {
+        return applicationId + ":" + DateTimeFormatter.ISO_LOCAL_DATE.format(day.toInstant().atZone(ZoneOffset.UTC));
+        }
+
+    private static Update incrementUpdate(String applicationId, Date day, long deploymentCount, long changeCount, long leadTimeSeconds, Map<Integer, Long> leadTimeBuckets)
+        {
+        Update update = new Update()
+            .setOnInsert("applicationId", applicationId)
+            .setOnInsert("day", day)
+            .inc("deploymentCount", deploymentCount)
+            .inc("changeCount", changeCount)
+            .inc("leadTimeSeconds", leadTimeSeconds)
+            .currentTimestamp("modified");
+        leadTimeBuckets.forEach((bucket, count) -> update.inc("leadTimeBuckets." + bucket, count));
+        return update;
+        }
+
+    @Override
+    public DeploymentRollup increment(String applicationId, Date day, long deploymentCount, long changeCount, long leadTimeSeconds, Map<Integer, Long> leadTimeBuckets)
+        {
+        Update update = incrementUpdate(applicationId, day, deploymentCount, changeCount, leadTimeSeconds, leadTimeBuckets);
+        return mongoTemplate.findAndModify(Query.query(where("_id").is(rollupId(applicationId, day))), update,
+            FindAndModifyOptions.options().upsert(true).returnNew(true), DeploymentRollup.class);
+        }
+
+    @Override
+    public List<DeploymentRollup> incrementAll(Collection<DeploymentRollupDelta> deltas)
+        {
+        if(deltas.isEmpty()){
+            return Collections.emptyList();
+        }
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DeploymentRollup.class);
+        Set<String> ids = new LinkedHashSet<>();
+        for(DeploymentRollupDelta delta : deltas){
+            String id = rollupId(delta.getApplicationId(), delta.getDay());
+            bulk.upsert(Query.query(where("_id").is(id)),
+                incrementUpdate(delta.getApplicationId(), delta.getDay(), delta.getDeploymentCount(), delta.getChangeCount(), delta.getLeadTimeSeconds(), delta.getLeadTimeBuckets()));
+            ids.add(id);
+        }
+        bulk.execute();
+        //a bulk write does not return the documents it changed
+        return mongoTemplate.find(Query.query(where("_id").in(ids)), DeploymentRollup.class);
+        }
+
+    @Override
+    public void rebuild()
+        {
+        Document day = new Document("$dateFromParts", new Document()
+            .append("year", new Document("$year", "$created"))
+            .append("month", new Document("$month", "$created"))
+            .append("day", new Document("$dayOfMonth", "$created")));
+        List<Document> pipeline = Arrays.asList(
+            new Document("$project", new Document()
+                .append("applicationId", 1)
+                .append("day", day)
+                .append("changeCount", new Document("$size", new Document("$ifNull", Arrays.asList("$changes", Collections.emptyList()))))
+                .append("leadTimeSeconds", new Document("$sum", "$changes.leadTimeSeconds"))),
+            new Document("$group", new Document()
+                .append("_id", new Document("applicationId", "$applicationId").append("day", "$day"))
+                .append("deploymentCount", new Document("$sum", 1L))
+                .append("changeCount", new Document("$sum", "$changeCount"))
+                .append("leadTimeSeconds", new Document("$sum", "$leadTimeSeconds"))),
+            new Document("$project", new Document()
+                .append("_id", new Document("$concat", Arrays.asList(
+                    "$_id.applicationId",
+                    ":",
+                    new Document("$dateToString", new Document("format", "%Y-%m-%d").append("date", "$_id.day")))))
+                .append("applicationId", "$_id.applicationId")
+                .append("day", "$_id.day")
+                .append("deploymentCount", 1)
+                .append("changeCount", 1)
+                .append("leadTimeSeconds", 1)),
+            new Document("$out", mongoTemplate.getCollectionName(DeploymentRollup.class)));
+        mongoTemplate.getCollection(mongoTemplate.getCollectionName(Deployment.class))
+            .aggregate(pipeline)
+            .allowDiskUse(true)
+            .toCollection();
+        rebuildLeadTimeBuckets();
+        mongoTemplate.updateMulti(new Query(), new Update().currentTimestamp("modified"), DeploymentRollup.class);
+        }
+
+    private void rebuildLeadTimeBuckets()
+        {
+        //the buckets need the same floating point maths as the increments, so they are computed here not in Mongo
+        List<Document> pipeline = Arrays.asList(
+            new Document("$sort", new Document("applicationId", 1).append("created", 1)),
+            new Document("$project", new Document()
+                .append("applicationId", 1)
+                .append("created", 1)
+                .append("changes.leadTimeSeconds", 1)),
+            new Document("$unwind", "$changes"),
+            new Document("$project", new Document()
+                .append("applicationId", 1)
+                .append("created", 1)
+                .append("leadTimeSeconds", "$changes.leadTimeSeconds")));
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DeploymentRollup.class);
+        int pending = 0;
+        String rollupId = null;
+        Map<String, Long> buckets = new HashMap<>();
+        try(MongoCursor<Document> changes = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Deployment.class))
+            .aggregate(pipeline)
+            .allowDiskUse(true)
+            .iterator()){
+            while(changes.hasNext()){
+                Document change = changes.next();
+                String id = rollupId(change.getString("applicationId"), change.getDate("created"));
+                //changes arrive sorted by deployment, so each rollup is complete once the next one starts
+                if(!id.equals(rollupId)){
+                    pending += setLeadTimeBuckets(bulk, rollupId, buckets);
+                    if(pending >= BUCKET_BATCH_SIZE){
+                        bulk.execute();
+                        bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DeploymentRollup.class);
+                        pending = 0;
+                    }
+                    rollupId = id;
+                    buckets = new HashMap<>();
+                }
+                Number leadTimeSeconds = change.get("leadTimeSeconds", Number.class);
+                buckets.merge(String.valueOf(LeadTimeHistogram.bucketOf(leadTimeSeconds == null ? 0 : leadTimeSeconds.longValue())), 1L, Long::sum);
+            }
+        }
+        pending += setLeadTimeBuckets(bulk, rollupId, buckets);
+        if(pending > 0){
+            bulk.execute();
+        }
+        }
+
+    private static int setLeadTimeBuckets(BulkOperations bulk, String rollupId, Map<String, Long> buckets)
+        {
+        if(rollupId == null || buckets.isEmpty()){
+            return 0;
+        }
+        bulk.updateOne(Query.query(where("_id").is(rollupId)), new Update().set("leadTimeBuckets", buckets));
+        return 1;
+        }
+    }
@@ -0,0 +1,105 @@
+package team.deployservice.repo;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+import team.deployservice.model.Deployment;
+
+import javax.annotation.PostConstruct;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Removes the deployments stored more than once under the same deployment id before the unique deployment id index is
+ * built, so a collection written before the index existed can be upgraded. Runs at startup ahead of
+ * {@link MongoIndexReconciler}, only while the unique index is missing and only when
+ * {@code deployservice.mongo.indexes.remove-duplicate-deployments} is set, for a single instance run as a migration.
+ * The earliest stored copy of each deployment id is kept, and every removed copy is logged whole, backed out of its
+ * application's rollup and bumps the application's version.
+ */
+@Component
+public class DuplicateDeploymentRemover
+    {
+    private static final Logger log = LoggerFactory.getLogger(DuplicateDeploymentRemover.class);
+    private final MongoTemplate mongoTemplate;
+    private final DeploymentRollupRepo deploymentRollupRepo;
+    private final ApplicationVersionRepo applicationVersionRepo;
+    private final boolean enabled;
+
+    @Autowired
+    public DuplicateDeploymentRemover(MongoTemplate mongoTemplate, DeploymentRollupRepo deploymentRollupRepo, ApplicationVersionRepo applicationVersionRepo,
+                                      @Value("${deployservice.mongo.indexes.remove-duplicate-deployments:false}") boolean enabled)
+        {
+        this.mongoTemplate = mongoTemplate;
+        this.deploymentRollupRepo = deploymentRollupRepo;
+        this.applicationVersionRepo = applicationVersionRepo;
+        this.enabled = enabled;
+        }
+
+    @PostConstruct
+    public void removeDuplicates()
+        {
+        if(mongoTemplate.indexOps(Deployment.class).getIndexInfo().stream().anyMatch(DuplicateDeploymentRemover::isUniqueDeploymentId)){
+            return;
+        }
+        if(!enabled){
+            log.warn("The unique deploymentId index is missing; if deployment ids were stored more than once it cannot be built, "
+                + "set deployservice.mongo.indexes.remove-duplicate-deployments to remove the later copies");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        String collection = mongoTemplate.getCollectionName(Deployment.class);
+        //ids are generated in insertion order, so the first of each group is the copy stored first
+        Aggregation duplicates = newAggregation(
+            sort(Sort.Direction.ASC, "_id"),
+            group("deploymentId").count().as("count").push("_id").as("ids"),
+            match(where("count").gt(1)))
+            .withOptions(AggregationOptions.builder().allowDiskUse(true).build());
+        Map<String, DeploymentRollupDelta> deltas = new HashMap<>();
+        int removed = 0;
+        for(Document group : mongoTemplate.aggregate(duplicates, Deployment.class, Document.class)){
+            List<?> ids = group.get("ids", List.class);
+            for(Object id : ids.subList(1, ids.size())){
+                //another instance starting at the same time may have removed it already, only one of them backs it out
+                Document removedCopy = mongoTemplate.findAndRemove(Query.query(where("_id").is(id)), Document.class, collection);
+                if(removedCopy == null){
+                    continue;
+                }
+                //logged whole so it can be restored
+                log.warn("Removed duplicate deployment id {}, keeping {}: {}", group.get("_id"), ids.get(0), removedCopy.toJson());
+                Deployment deployment = mongoTemplate.getConverter().read(Deployment.class, removedCopy);
+                Date day = Date.from(deployment.getCreated().toInstant().atZone(ZoneOffset.UTC).toLocalDate().atStartOfDay(ZoneOffset.UTC).toInstant());
+                deltas.computeIfAbsent(deployment.getApplicationId() + ":" + day.getTime(), key -> new DeploymentRollupDelta(deployment.getApplicationId(), day))
+                    .add(deployment, -1);
+                removed++;
+            }
+        }
+        if(removed == 0){
+            return;
+        }
+        //rollups before versions, as a delete writes them
+        deploymentRollupRepo.incrementAll(deltas.values());
+        Set<String> applicationIds = new HashSet<>();
+        deltas.values().forEach(delta -> applicationIds.add(delta.getApplicationId()));
+        applicationVersionRepo.incrementAll(applicationIds);
+        log.warn("Removed {} duplicate deployments of {} applications in {} ms, keeping the first stored copy of each deployment id",
+            removed, applicationIds.size(), System.currentTimeMillis() - start);
+        }
+
+    private static boolean isUniqueDeploymentId(IndexInfo index)
+        {
+        return index.isUnique() && index.getIndexFields().size() == 1 && index.getIndexFields().get(0).getKey().equals("deploymentId");
+        }
+    }
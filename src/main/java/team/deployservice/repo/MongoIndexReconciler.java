@@ -0,0 +1,115 @@
+package team.deployservice.repo;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexDefinition;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Checks the indexes of every document against the {@code @Indexed} and {@code @CompoundIndex} declarations at
+ * startup. Missing indexes are created. An index whose keys or uniqueness no longer match its declaration is only
+ * reported, because dropping it on a live collection leaves its queries scanning until the rebuild finishes and every
+ * starting instance would race to do it; it is dropped and rebuilt only when
+ * {@code deployservice.mongo.indexes.rebuild-mismatched} is set, for a single instance run as a migration. Indexes that
+ * are not declared are left alone. A declared index that cannot be built, for instance a unique one over duplicates,
+ * stops the service from starting rather than leaving its queries to scan the collection; duplicate deployment ids are
+ * removed by {@link DuplicateDeploymentRemover} first when it is enabled.
+ */
+@Component
+@DependsOn("duplicateDeploymentRemover")
+public class MongoIndexReconciler
+    {
+    private static final Logger log = LoggerFactory.getLogger(MongoIndexReconciler.class);
+    private final MongoTemplate mongoTemplate;
+    private final MongoMappingContext mappingContext;
+    private final boolean rebuildMismatched;
+
+    @Autowired
+    public MongoIndexReconciler(MongoTemplate mongoTemplate, MongoMappingContext mappingContext,
+                                @Value("${deployservice.mongo.indexes.rebuild-mismatched:false}") boolean rebuildMismatched)
+        {
+        this.mongoTemplate = mongoTemplate;
+        this.mappingContext = mappingContext;
+        this.rebuildMismatched = rebuildMismatched;
+        }
+
+    @PostConstruct
+    public void reconcile()
+        {
+        IndexResolver resolver = IndexResolver.create(mappingContext);
+        for(MongoPersistentEntity<?> entity : mappingContext.getPersistentEntities()){
+            if(entity.isAnnotationPresent(org.springframework.data.mongodb.core.mapping.Document.class)){
+                reconcile(entity.getType(), resolver.resolveIndexFor(entity.getType()));
+            }
+        }
+        }
+
+    void reconcile(Class<?> type, Iterable<? extends IndexDefinition> declared)
+        {
+        IndexOperations indexOps = mongoTemplate.indexOps(type);
+        Map<String, IndexInfo> existing = indexOps.getIndexInfo().stream()
+            .collect(Collectors.toMap(IndexInfo::getName, Function.identity()));
+        String collection = mongoTemplate.getCollectionName(type);
+        for(IndexDefinition index : declared){
+            String name = index.getIndexOptions().getString("name");
+            IndexInfo current = existing.get(name);
+            if(current != null && matches(current, index)){
+                continue;
+            }
+            if(current != null){
+                if(!rebuildMismatched){
+                    log.warn("Index {} on {} is declared as {} but found {}; set deployservice.mongo.indexes.rebuild-mismatched to rebuild it",
+                        name, collection, describe(index), current);
+                    continue;
+                }
+                log.warn("Rebuilding index {} on {}, declared as {} but found {}", name, collection, describe(index), current);
+                indexOps.dropIndex(name);
+            }
+            try {
+                indexOps.ensureIndex(index);
+            } catch (RuntimeException e) {
+                throw new IllegalStateException("Unable to create index " + name + " " + describe(index) + " on " + collection, e);
+            }
+            log.info("Created index {} {} on {}", name, describe(index), collection);
+        }
+        }
+
+    private static boolean matches(IndexInfo current, IndexDefinition index)
+        {
+        Map<String, Integer> keys = new LinkedHashMap<>();
+        for(IndexField field : current.getIndexFields()){
+            keys.put(field.getKey(), field.getDirection() == Sort.Direction.DESC ? -1 : 1);
+        }
+        Map<String, Integer> declaredKeys = new LinkedHashMap<>();
+        index.getIndexKeys().forEach((key, direction) -> declaredKeys.put(key, ((Number) direction).intValue()));
+        boolean unique = Boolean.TRUE.equals(index.getIndexOptions().get("unique"));
+        //key order matters to a compound index, so the entries are compared in order
+        return new ArrayList<>(keys.entrySet()).equals(new ArrayList<>(declaredKeys.entrySet())) && current.isUnique() == unique;
+        }
+
+    private static String describe(IndexDefinition index)
+        {
+        Document options = new Document(index.getIndexOptions());
+        options.remove("name");
+        return index.getIndexKeys().toJson() + (options.isEmpty() ? "" : " " + options.toJson());
+        }
+    }
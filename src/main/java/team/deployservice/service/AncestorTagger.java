@@ -0,0 +1,135 @@
+package team.deployservice.service;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import team.deployservice.hierarchy.HierarchyIndex;
+import team.deployservice.hierarchy.HierarchySnapshot;
+import team.deployservice.repo.DeploymentRepo;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the ancestor paths stored on deployments in step with the hierarchy index, so a hierarchy query is one indexed
+ * match on the node rather than an {@code $in} over every application under it. Deployments take their path from the
+ * index as they are stored. When the index loads a different hierarchy, each pass writes the paths of the nodes that
+ * changed in one bulk write, and an unchanged hierarchy writes nothing. Paths stored meanwhile by another instance that
+ * had not loaded the same hierarchy yet, or by a store that took its path just before a pass, are repaired because
+ * the passes repeat those writes until the hierarchy settles. Queries therefore only rely on the paths once a pass has
+ * started at least the settle time after the hierarchy was first seen, which defaults to the index reload interval so
+ * every instance has loaded it by then.
+ * <p>
+ * Until the first hierarchy settles every path is written, and the nodes are taken out of the paths of applications
+ * that left the hierarchy while no instance was running.
+ */
+@Component
+public class AncestorTagger
+    {
+    private static final Logger log = LoggerFactory.getLogger(AncestorTagger.class);
+    private final HierarchyIndex hierarchyIndex;
+    private final DeploymentRepo deploymentRepo;
+    private final long settleNanos;
+    private final Ticker ticker;
+    private volatile HierarchySnapshot tagged;
+    //the hierarchy the passes are tagging for and when it was first seen
+    private HierarchySnapshot seen;
+    private long seenAt;
+    //nodes whose path changed since the last hierarchy settled, written again each pass until this one does
+    private final Set<String> pending = new HashSet<>();
+    private boolean swept;
+
+    @Autowired
+    public AncestorTagger(HierarchyIndex hierarchyIndex, DeploymentRepo deploymentRepo,
+                          @Value("${deployservice.hierarchy.tagging.settle:${deployservice.hierarchy.index.reload-interval:PT5M}}") Duration settle)
+        {
+        this(hierarchyIndex, deploymentRepo, settle, Ticker.systemTicker());
+        }
+
+    AncestorTagger(HierarchyIndex hierarchyIndex, DeploymentRepo deploymentRepo, Duration settle, Ticker ticker)
+        {
+        this.hierarchyIndex = hierarchyIndex;
+        this.deploymentRepo = deploymentRepo;
+        this.settleNanos = settle.toNanos();
+        this.ticker = ticker;
+        }
+
+    /**
+     * The path to store on a new deployment of the application. One the index does not have yet is tagged with
+     * itself only, and with its ancestors once the index loads it.
+     */
+    public List<String> ancestorsOf(String applicationId)
+        {
+        List<String> ancestors = hierarchyIndex.snapshot().ancestors(applicationId);
+        return ancestors.isEmpty() ? Collections.singletonList(applicationId) : ancestors;
+        }
+
+    /**
+     * Whether every deployment under the node is tagged for the current hierarchy, so it can be queried by ancestor.
+     */
+    public boolean covers(String applicationId)
+        {
+        HierarchySnapshot current = hierarchyIndex.snapshot();
+        return current == tagged && current.contains(applicationId);
+        }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${deployservice.hierarchy.tagging.interval:PT1M}")
+    public synchronized void retag()
+        {
+        HierarchySnapshot current = hierarchyIndex.snapshot();
+        long start = ticker.read();
+        if(current != seen){
+            changedNodes(seen, current, pending);
+            seen = current;
+            seenAt = start;
+        }
+        if(tagged == current){
+            return;
+        }
+        Map<String, List<String>> paths = new HashMap<>();
+        for(String node : pending){
+            //a node that left the hierarchy keeps only itself, so it no longer matches its old ancestors
+            paths.put(node, current.contains(node) ? current.ancestors(node) : Collections.singletonList(node));
+        }
+        long changed = deploymentRepo.setAncestors(paths, swept ? Collections.emptyList() : current.nodes());
+        if(start - seenAt >= settleNanos){
+            tagged = current;
+            pending.clear();
+            swept = swept || current.size() > 0;
+        }
+        log.info("Tagged {} deployments with the ancestors of {} changed nodes in a hierarchy of {} nodes in {} ms{}", changed, paths.size(),
+            current.size(), TimeUnit.NANOSECONDS.toMillis(ticker.read() - start), tagged == current ? "" : ", queries keep to the application ids until it settles");
+        }
+
+    /**
+     * Adds the nodes whose path differs between the two hierarchies, including those only one of them has. Every
+     * node has changed when there is no hierarchy before.
+     */
+    private static void changedNodes(HierarchySnapshot before, HierarchySnapshot after, Set<String> changed)
+        {
+        if(before == null){
+            changed.addAll(after.nodes());
+            return;
+        }
+        for(String node : after.nodes()){
+            if(!after.ancestors(node).equals(before.ancestors(node))){
+                changed.add(node);
+            }
+        }
+        for(String node : before.nodes()){
+            if(!after.contains(node)){
+                changed.add(node);
+            }
+        }
+        }
+    }
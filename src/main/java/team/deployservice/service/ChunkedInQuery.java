@@ -0,0 +1,211 @@
+package team.deployservice.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs a query over a large set of application ids as several {@code $in} queries of at most the chunk size each,
+ * concurrently on a bounded pool, so the root of a big hierarchy costs a few index friendly queries rather than one
+ * that plans badly and sorts everything in memory. Sets no larger than a chunk are queried directly on the calling
+ * thread.
+ */
+@Component
+public class ChunkedInQuery
+    {
+    private final int chunkSize;
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public ChunkedInQuery(@Value("${deployservice.query.chunk-size:500}") int chunkSize,
+                          @Value("${deployservice.query.threads:8}") int threads,
+                          @Value("${deployservice.query.queue-capacity:1000}") int queueCapacity)
+        {
+        this.chunkSize = chunkSize;
+        //a full queue makes the caller run the chunk itself, which throttles it
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("chunked-query-"), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+    @PreDestroy
+    public void shutdown()
+        {
+        executor.shutdownNow();
+        }
+
+    /**
+     * The results of every chunk in one list, in no particular order, for results that are combined as partial
+     * aggregates.
+     */
+    public <T> List<T> concat(Collection<String> applicationIds, Function<Collection<String>, List<T>> query)
+        {
+        List<List<T>> results = run(applicationIds, query);
+        if(results.size() == 1){
+            return results.get(0);
+        }
+        List<T> all = new ArrayList<>(results.stream().mapToInt(List::size).sum());
+        results.forEach(all::addAll);
+        return all;
+        }
+
+    /**
+     * Up to {@code limit} results of the chunks, each already sorted in the given order, merged into that order.
+     */
+    public <T> List<T> merge(Collection<String> applicationIds, Function<Collection<String>, List<T>> query, Comparator<? super T> order, int limit)
+        {
+        List<List<T>> results = run(applicationIds, query);
+        if(results.size() == 1){
+            List<T> result = results.get(0);
+            return result.size() > limit ? result.subList(0, limit) : result;
+        }
+        return merge(results, order, limit);
+        }
+
+    /**
+     * The results of one chunk after another, so only one cursor is open at a time. Closing the stream closes the
+     * chunk being read.
+     */
+    public <T> Stream<T> stream(Collection<String> applicationIds, Function<Collection<String>, Stream<T>> query)
+        {
+        if(applicationIds.size() <= chunkSize){
+            return query.apply(applicationIds);
+        }
+        ChunkSpliterator<T> chunks = new ChunkSpliterator<>(chunks(applicationIds).iterator(), query);
+        return StreamSupport.stream(chunks, false).onClose(chunks::close);
+        }
+
+    private <T> List<T> run(Collection<String> applicationIds, Function<Collection<String>, T> query)
+        {
+        if(applicationIds.size() <= chunkSize){
+            return Collections.singletonList(query.apply(applicationIds));
+        }
+        List<List<String>> chunks = chunks(applicationIds);
+        List<Future<T>> futures = new ArrayList<>(chunks.size() - 1);
+        try {
+            for(List<String> chunk : chunks.subList(1, chunks.size())){
+                futures.add(executor.submit(() -> query.apply(chunk)));
+            }
+            //the calling thread takes a chunk too rather than only waiting
+            List<T> results = new ArrayList<>(chunks.size());
+            results.add(query.apply(chunks.get(0)));
+            for(Future<T> future : futures){
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while querying " + applicationIds.size() + " applications", e);
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to query " + applicationIds.size() + " applications", e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        }
+
+    private List<List<String>> chunks(Collection<String> applicationIds)
+        {
+        List<String> ids = new ArrayList<>(applicationIds);
+        List<List<String>> chunks = new ArrayList<>((ids.size() + chunkSize - 1) / chunkSize);
+        for(int from = 0; from < ids.size(); from += chunkSize){
+            chunks.add(ids.subList(from, Math.min(from + chunkSize, ids.size())));
+        }
+        return chunks;
+        }
+
+    /**
+     * K-way merge of sorted lists, taking the head of whichever list comes first from a heap of the list heads.
+     */
+    static <T> List<T> merge(List<List<T>> sorted, Comparator<? super T> order, int limit)
+        {
+        PriorityQueue<ListCursor<T>> heads = new PriorityQueue<>(sorted.size(), (a, b) -> order.compare(a.head(), b.head()));
+        int total = 0;
+        for(List<T> list : sorted){
+            if(!list.isEmpty()){
+                heads.add(new ListCursor<>(list));
+                total += list.size();
+            }
+        }
+        List<T> merged = new ArrayList<>(Math.min(total, limit));
+        while(merged.size() < limit && !heads.isEmpty()){
+            ListCursor<T> first = heads.poll();
+            merged.add(first.head());
+            if(first.advance()){
+                heads.add(first);
+            }
+        }
+        return merged;
+        }
+
+    private static final class ListCursor<T>
+        {
+        private final List<T> list;
+        private int index;
+
+        private ListCursor(List<T> list)
+            {
+            this.list = list;
+            }
+
+        private T head()
+            {
+            return list.get(index);
+            }
+
+        private boolean advance()
+            {
+            return ++index < list.size();
+            }
+        }
+
+    //opens the next chunk's stream once the last one is used up, unlike flatMap, which buffers a whole chunk when read
+    //through an iterator
+    private static final class ChunkSpliterator<T> extends Spliterators.AbstractSpliterator<T>
+        {
+        private final Iterator<List<String>> chunks;
+        private final Function<Collection<String>, Stream<T>> query;
+        private Stream<T> current;
+        private Spliterator<T> currentSpliterator;
+
+        private ChunkSpliterator(Iterator<List<String>> chunks, Function<Collection<String>, Stream<T>> query)
+            {
+            super(Long.MAX_VALUE, Spliterator.ORDERED);
+            this.chunks = chunks;
+            this.query = query;
+            }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action)
+            {
+            while(currentSpliterator == null || !currentSpliterator.tryAdvance(action)){
+                close();
+                if(!chunks.hasNext()){
+                    return false;
+                }
+                current = query.apply(chunks.next());
+                currentSpliterator = current.spliterator();
+            }
+            return true;
+            }
+
+        private void close()
+            {
+            if(current != null){
+                current.close();
+                current = null;
+                currentSpliterator = null;
+            }
+            }
+        }
+    }
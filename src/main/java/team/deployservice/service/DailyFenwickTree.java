@@ -0,0 +1,103 @@
+package team.deployservice.service;
+
+/**
+ * Fenwick (binary indexed) tree of per day totals keyed by epoch day, holding a fixed number of columns. Point updates
+ * and inclusive range sums are O(log n) on primitive longs. The covered day range starts small and doubles on demand
+ * in whichever direction a day falls outside it. Not thread safe.
+ */
+class DailyFenwickTree
+    {
+    private static final int INITIAL_CAPACITY = 64;
+    private final long[][] tree;
+    private long origin;
+    private int capacity;
+
+    DailyFenwickTree(int columns)
+        {
+        this.tree = new long[columns][];
+        }
+
+    void add(long epochDay, int column, long delta)
+        {
+        ensureCovers(epochDay);
+        long[] values = tree[column];
+        for(int i = (int) (epochDay - origin) + 1; i <= capacity; i += i & -i){
+            values[i] += delta;
+        }
+        }
+
+    long sum(int column, long fromEpochDay, long toEpochDay)
+        {
+        if(capacity == 0 || toEpochDay < fromEpochDay){
+            return 0;
+        }
+        return prefixSum(column, toEpochDay) - prefixSum(column, fromEpochDay - 1);
+        }
+
+    private long prefixSum(int column, long epochDay)
+        {
+        if(epochDay < origin){
+            return 0;
+        }
+        long[] values = tree[column];
+        long total = 0;
+        for(int i = (int) Math.min(epochDay - origin + 1, capacity); i > 0; i -= i & -i){
+            total += values[i];
+        }
+        return total;
+        }
+
+    private void ensureCovers(long epochDay)
+        {
+        if(capacity == 0){
+            capacity = INITIAL_CAPACITY;
+            origin = epochDay - INITIAL_CAPACITY / 2;
+            for(int c = 0; c < tree.length; c++){
+                tree[c] = new long[capacity + 1];
+            }
+            return;
+        }
+        if(epochDay >= origin && epochDay < origin + capacity){
+            return;
+        }
+        long first = Math.min(origin, epochDay);
+        long last = Math.max(origin + capacity - 1, epochDay);
+        int newCapacity = capacity;
+        while(newCapacity < last - first + 1){
+            newCapacity *= 2;
+        }
+        //leave the spare room on the side that grew, as that is where the next out of range day is likely to be
+        long newOrigin = epochDay < origin ? last - newCapacity + 1 : first;
+        int offset = (int) (origin - newOrigin);
+        for(int c = 0; c < tree.length; c++){
+            long[] points = toPoints(tree[c], capacity);
+            long[] values = new long[newCapacity + 1];
+            System.arraycopy(points, 1, values, offset + 1, capacity);
+            tree[c] = toTree(values, newCapacity);
+        }
+        origin = newOrigin;
+        capacity = newCapacity;
+        }
+
+    private static long[] toPoints(long[] values, int size)
+        {
+        for(int i = size; i > 0; i--){
+            int parent = i + (i & -i);
+            if(parent <= size){
+                values[parent] -= values[i];
+            }
+        }
+        return values;
+        }
+
+    private static long[] toTree(long[] values, int size)
+        {
+        for(int i = 1; i <= size; i++){
+            int parent = i + (i & -i);
+            if(parent <= size){
+                values[parent] += values[i];
+            }
+        }
+        return values;
+        }
+    }
@@ -0,0 +1,82 @@
+package team.deployservice.service;
+
+import team.deployservice.model.DeploymentRollup;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+
+/**
+ * Deployment, change and lead time totals for a run of days ending on (and including) a reporting day.
+ * Totals are held cumulatively, so the sum of any window is two lookups and {@link #endingDaysBefore(int)} can
+ * slide every window back along the run without touching the data again.
+ */
+class DailyTotals
+    {
+    //element n holds the total of the n days ending on the reporting day
+    private final long[] deployments;
+    private final long[] changes;
+    private final long[] leadTimeSeconds;
+    private final int daysBefore;
+
+    private DailyTotals(long[] deployments, long[] changes, long[] leadTimeSeconds, int daysBefore)
+        {
+        this.deployments = deployments;
+        this.changes = changes;
+        this.leadTimeSeconds = leadTimeSeconds;
+        this.daysBefore = daysBefore;
+        }
+
+    static DailyTotals of(Collection<DeploymentRollup> rollups, LocalDate reportingDay, int days)
+        {
+        long[] deployments = new long[days + 1];
+        long[] changes = new long[days + 1];
+        long[] leadTimeSeconds = new long[days + 1];
+        long reportingEpochDay = reportingDay.toEpochDay();
+        for(DeploymentRollup rollup : rollups){
+            long daysBefore = reportingEpochDay - rollup.getDay().toInstant().atZone(ZoneOffset.UTC).toLocalDate().toEpochDay();
+            if(daysBefore < 0 || daysBefore >= days){
+                continue;
+            }
+            deployments[(int) daysBefore + 1] += rollup.getDeploymentCount();
+            changes[(int) daysBefore + 1] += rollup.getChangeCount();
+            leadTimeSeconds[(int) daysBefore + 1] += rollup.getLeadTimeSeconds();
+        }
+        for(int i = 1; i <= days; i++){
+            deployments[i] += deployments[i - 1];
+            changes[i] += changes[i - 1];
+            leadTimeSeconds[i] += leadTimeSeconds[i - 1];
+        }
+        return new DailyTotals(deployments, changes, leadTimeSeconds, 0);
+        }
+
+    /**
+     * The same totals with windows ending the given number of days before the reporting day. Windows reaching past
+     * the start of the run are cut short.
+     */
+    DailyTotals endingDaysBefore(int days)
+        {
+        return new DailyTotals(deployments, changes, leadTimeSeconds, daysBefore + days);
+        }
+
+    long deployments(int days)
+        {
+        return sum(deployments, days);
+        }
+
+    long changes(int days)
+        {
+        return sum(changes, days);
+        }
+
+    long leadTimeSeconds(int days)
+        {
+        return sum(leadTimeSeconds, days);
+        }
+
+    private long sum(long[] cumulative, int days)
+        {
+        int last = cumulative.length - 1;
+        return cumulative[Math.min(daysBefore + days, last)] - cumulative[Math.min(daysBefore, last)];
+        }
+    }
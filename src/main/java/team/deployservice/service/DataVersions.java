@@ -0,0 +1,216 @@
+package team.deployservice.service;
+
+import org.bson.BsonTimestamp;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import team.deployservice.model.ApplicationVersion;
+import team.deployservice.model.DataVersion;
+import team.deployservice.model.DeploymentRollup;
+import team.deployservice.repo.ApplicationVersionRepo;
+import team.deployservice.repo.DeploymentRollupRepo;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * This instance's view of the stored data version of each application, behind the ETags and the DORA gauges. Every
+ * {@code refresh-interval} it reads the rollups and versions changed since the last refresh, whichever instance wrote
+ * them, hands each changed rollup to the window index and drops the cached results and merged rollups whose window
+ * contains its day, and only then moves the versions on, along with those of the merged rollups of each application's
+ * ancestors. A result is therefore never older than the version it is
+ * served with, and a write only drops the windows that contain its day.
+ * <p>
+ * Writes made by this instance move its versions on as soon as they are stored, rather than with the next refresh, so
+ * its own clients are not told their copy is current. Those writes are counted in the tag until a refresh reads a newer
+ * stored version, and the tag then matches the other instances' again.
+ */
+@Component
+public class DataVersions
+    {
+    //a write can become visible after a later one, so each refresh reads back a little
+    private static final int OVERLAP_SECONDS = 10;
+    private final DeploymentRollupRepo deploymentRollupRepo;
+    private final ApplicationVersionRepo applicationVersionRepo;
+    private final DeploymentWindowIndex deploymentWindowIndex;
+    private final MetricResultCache metricResultCache;
+    private final HierarchyRollupCache hierarchyRollupCache;
+    private final Map<String, HeldVersion> versions = new ConcurrentHashMap<>();
+    //the rollups read by the last refresh, so reading them back again does not drop their windows a second time
+    private Map<String, BsonTimestamp> handled = Collections.emptyMap();
+    private BsonTimestamp rollupsTo = new BsonTimestamp(0, 0);
+    private Date versionsTo = new Date(0);
+
+    @Autowired
+    public DataVersions(DeploymentRollupRepo deploymentRollupRepo, ApplicationVersionRepo applicationVersionRepo, DeploymentWindowIndex deploymentWindowIndex,
+                        MetricResultCache metricResultCache, HierarchyRollupCache hierarchyRollupCache)
+        {
+        this.deploymentRollupRepo = deploymentRollupRepo;
+        this.applicationVersionRepo = applicationVersionRepo;
+        this.deploymentWindowIndex = deploymentWindowIndex;
+        this.metricResultCache = metricResultCache;
+        this.hierarchyRollupCache = hierarchyRollupCache;
+        }
+
+    @PostConstruct
+    public synchronized void load()
+        {
+        //read before the window index loads the rollups, so every write the index misses is newer and refresh reads it
+        DeploymentRollup newest = deploymentRollupRepo.findFirstByOrderByModifiedDesc();
+        if(newest != null && newest.getModified() != null){
+            rollupsTo = newest.getModified();
+        }
+        update(applicationVersionRepo.findAll());
+        }
+
+    @Scheduled(initialDelayString = "${deployservice.data.refresh-interval:PT10S}", fixedDelayString = "${deployservice.data.refresh-interval:PT10S}")
+    public synchronized void refresh()
+        {
+        //a version is bumped after the rollups of its write, so the rollups of every version read here are read below
+        List<ApplicationVersion> changed = applicationVersionRepo.findByLastModifiedGreaterThan(new Date(versionsTo.getTime() - OVERLAP_SECONDS * 1000L));
+        BsonTimestamp since = new BsonTimestamp(Math.max(rollupsTo.getTime() - OVERLAP_SECONDS, 0), 0);
+        Map<String, BsonTimestamp> read = new HashMap<>();
+        try(Stream<DeploymentRollup> rollups = deploymentRollupRepo.streamByModifiedGreaterThan(since)){
+            rollups.forEach(rollup -> {
+                read.put(rollup.getId(), rollup.getModified());
+                if(rollup.getModified().equals(handled.get(rollup.getId()))){
+                    return;
+                }
+                apply(rollup);
+                if(rollup.getModified().compareTo(rollupsTo) > 0){
+                    rollupsTo = rollup.getModified();
+                }
+            });
+        }
+        handled = read;
+        update(changed);
+        }
+
+    /**
+     * Takes in the rollups of a store or delete made by this instance, as written, the way a refresh takes in any
+     * instance's: the window index records them and the cached results and merged rollups whose window contains their
+     * day are dropped. Only then are the applications' stored versions bumped and this instance's copy moved on, so
+     * the cached metrics and the versions they are served with change together rather than a refresh apart.
+     */
+    public void recordWrites(Collection<DeploymentRollup> written)
+        {
+        if(written.isEmpty()){
+            return;
+        }
+        Set<String> applicationIds = new LinkedHashSet<>();
+        for(DeploymentRollup rollup : written){
+            apply(rollup);
+            applicationIds.add(rollup.getApplicationId());
+        }
+        if(applicationIds.size() == 1){
+            applicationVersionRepo.increment(applicationIds.iterator().next());
+        } else {
+            applicationVersionRepo.incrementAll(applicationIds);
+        }
+        Date now = new Date();
+        for(String applicationId : applicationIds){
+            versions.merge(applicationId, new HeldVersion(new ApplicationVersion(applicationId, 0, null), 1, now), HeldVersion::write);
+            hierarchyRollupCache.moved(applicationId);
+        }
+        }
+
+    private void apply(DeploymentRollup rollup)
+        {
+        deploymentWindowIndex.record(rollup);
+        LocalDate day = rollup.getDay().toInstant().atZone(ZoneOffset.UTC).toLocalDate();
+        metricResultCache.invalidate(rollup.getApplicationId(), day);
+        hierarchyRollupCache.invalidate(rollup.getApplicationId(), day);
+        }
+
+    private void update(Collection<ApplicationVersion> changed)
+        {
+        for(ApplicationVersion version : changed){
+            HeldVersion held = versions.get(version.getApplicationId());
+            if(versions.merge(version.getApplicationId(), new HeldVersion(version, 0, null), HeldVersion::read) != held){
+                hierarchyRollupCache.moved(version.getApplicationId());
+            }
+            if(version.getLastModified() != null && version.getLastModified().after(versionsTo)){
+                versionsTo = version.getLastModified();
+            }
+        }
+        }
+
+    /**
+     * The combined version of the applications, which changes when any of them is written or the set of applications
+     * changes. Read from memory.
+     */
+    public DataVersion version(Collection<String> applicationIds)
+        {
+        //every id takes part, so the tag also changes when the hierarchy does
+        StringBuilder versionList = new StringBuilder();
+        Date lastModified = null;
+        for(String applicationId : new TreeSet<>(applicationIds)){
+            HeldVersion version = versions.get(applicationId);
+            versionList.append(applicationId).append(':').append(version == null ? 0 : version.stored.getVersion());
+            if(version != null && version.localWrites > 0){
+                versionList.append('+').append(version.localWrites);
+            }
+            versionList.append('\n');
+            Date modified = version == null ? null : version.lastModified();
+            if(modified != null && (lastModified == null || modified.after(lastModified))){
+                lastModified = modified;
+            }
+        }
+        return new DataVersion(DigestUtils.md5DigestAsHex(versionList.toString().getBytes(StandardCharsets.UTF_8)), lastModified);
+        }
+
+    /**
+     * The stored version of every application with a stored or deleted deployment.
+     */
+    public List<ApplicationVersion> all()
+        {
+        List<ApplicationVersion> all = new ArrayList<>(versions.size());
+        versions.values().forEach(version -> all.add(version.stored));
+        return all;
+        }
+
+    private static final class HeldVersion
+        {
+        private final ApplicationVersion stored;
+        //writes by this instance since the stored version was read, and when it last wrote
+        private final long localWrites;
+        private final Date localWriteTime;
+
+        private HeldVersion(ApplicationVersion stored, long localWrites, Date localWriteTime)
+            {
+            this.stored = stored;
+            this.localWrites = localWrites;
+            this.localWriteTime = localWriteTime;
+            }
+
+        //an older copy of a version never replaces a newer one, and a newer one takes in the local writes before it
+        private HeldVersion read(HeldVersion read)
+            {
+            if(read.stored.getVersion() <= stored.getVersion()){
+                return this;
+            }
+            return new HeldVersion(read.stored, 0, localWriteTime);
+            }
+
+        private HeldVersion write(HeldVersion write)
+            {
+            return new HeldVersion(stored, localWrites + 1, write.localWriteTime);
+            }
+
+        //the later of the two, so it never goes back when a stored time from a slower clock is read
+        private Date lastModified()
+            {
+            Date storedTime = stored.getLastModified();
+            if(localWriteTime == null || storedTime != null && storedTime.after(localWriteTime)){
+                return storedTime;
+            }
+            return localWriteTime;
+            }
+        }
+    }
@@ -0,0 +1,117 @@
+package team.deployservice.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of the deployment ids stored recently by this instance. A miss means the id has certainly not been
+ * stored here lately, so the write can go ahead without first reading for a duplicate; a hit may be a false positive.
+ * <p>
+ * Ids are kept in two generations. Once the current one holds the expected number of ids it becomes the previous one
+ * and the oldest generation is dropped, which keeps the false positive rate bounded however many ids go through.
+ */
+@Component
+public class DeploymentIdFilter
+    {
+    private final int expectedIds;
+    private final int bits;
+    private final int hashes;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    @Autowired
+    public DeploymentIdFilter(@Value("${deployservice.ingest.duplicate-filter.expected-ids:1000000}") int expectedIds,
+                              @Value("${deployservice.ingest.duplicate-filter.false-positive-rate:0.01}") double falsePositiveRate)
+        {
+        this.expectedIds = expectedIds;
+        //the standard optimal sizing for n ids at false positive rate p
+        this.bits = (int) Math.ceil(-expectedIds * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedIds * Math.log(2)));
+        this.current = new Generation(bits);
+        this.previous = new Generation(bits);
+        }
+
+    public boolean mightContain(String deploymentId)
+        {
+        long hash = hash(deploymentId);
+        return current.mightContain(hash) || previous.mightContain(hash);
+        }
+
+    public void put(String deploymentId)
+        {
+        Generation generation = current;
+        generation.put(hash(deploymentId));
+        if(generation.size.incrementAndGet() == expectedIds){
+            rotate(generation);
+        }
+        }
+
+    private synchronized void rotate(Generation full)
+        {
+        if(current == full){
+            previous = full;
+            current = new Generation(bits);
+        }
+        }
+
+    //64 bit FNV-1a with a murmur finaliser, split into the two halves used for double hashing
+    private static long hash(String deploymentId)
+        {
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < deploymentId.length(); i++){
+            hash ^= deploymentId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+        }
+
+    private final class Generation
+        {
+        private final AtomicLongArray words;
+        private final AtomicInteger size = new AtomicInteger();
+
+        private Generation(int bits)
+            {
+            this.words = new AtomicLongArray((bits + 63) / 64);
+            }
+
+        private boolean mightContain(long hash)
+            {
+            for(int i = 1; i <= hashes; i++){
+                int bit = bit(hash, i);
+                if((words.get(bit >>> 6) & (1L << bit)) == 0){
+                    return false;
+                }
+            }
+            return true;
+            }
+
+        private void put(long hash)
+            {
+            for(int i = 1; i <= hashes; i++){
+                int bit = bit(hash, i);
+                long mask = 1L << bit;
+                int word = bit >>> 6;
+                long value;
+                do {
+                    value = words.get(word);
+                } while((value & mask) == 0 && !words.compareAndSet(word, value, value | mask));
+            }
+            }
+
+        private int bit(long hash, int i)
+            {
+            int combined = (int) hash + i * (int) (hash >>> 32);
+            return (combined & Integer.MAX_VALUE) % bits;
+            }
+        }
+    }
@@ -0,0 +1,189 @@
+package team.deployservice.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.IngestResult;
+import team.deployservice.model.IngestTicket;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Accepts deployments for asynchronous ingestion. Deployments wait in a bounded queue and background writers store
+ * everything that queued up during the previous commit as one batch, so a burst costs a few bulk writes rather than
+ * a request thread per write acknowledgement. A full queue refuses new deployments instead of growing.
+ */
+@Component
+public class DeploymentIngestQueue
+    {
+    private static final Logger log = LoggerFactory.getLogger(DeploymentIngestQueue.class);
+    private static final long POLL_MILLIS = 100;
+
+    private final DeploymentService deploymentService;
+    private final BlockingQueue<Pending> queue;
+    private final int writers;
+    private final int maxBatchSize;
+    private final Duration retryAfter;
+    private final ExecutorService executor;
+    //the outcome of each accepted deployment, kept for a while so callers can poll for it
+    private final Cache<String, IngestTicket> tickets;
+    private final DistributionSummary batchSizes;
+    private final Timer commits;
+    //cleared on shutdown, after which the writers exit once the queue is empty
+    private volatile boolean running = true;
+
+    @Autowired
+    public DeploymentIngestQueue(DeploymentService deploymentService,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${deployservice.ingest.async.queue-capacity:10000}") int queueCapacity,
+                                 @Value("${deployservice.ingest.async.writers:2}") int writers,
+                                 @Value("${deployservice.ingest.batch-size:500}") int maxBatchSize,
+                                 @Value("${deployservice.ingest.async.retry-after:PT1S}") Duration retryAfter,
+                                 @Value("${deployservice.ingest.async.ticket-retention:PT1H}") Duration ticketRetention)
+        {
+        this.deploymentService = deploymentService;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.writers = writers;
+        this.maxBatchSize = maxBatchSize;
+        this.retryAfter = retryAfter;
+        this.executor = Executors.newFixedThreadPool(writers, new CustomizableThreadFactory("ingest-writer-"));
+        this.tickets = Caffeine.newBuilder()
+            .expireAfterWrite(ticketRetention)
+            .maximumSize(Math.max(queueCapacity, 100_000))
+            .build();
+        Gauge.builder("deployservice.ingest.queue.depth", queue, Collection::size)
+            .description("Deployments accepted and waiting to be stored")
+            .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("deployservice.ingest.batch.size")
+            .description("Deployments stored per group commit")
+            .register(meterRegistry);
+        this.commits = Timer.builder("deployservice.ingest.commit")
+            .description("Time taken to store a group commit")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        }
+
+    @PostConstruct
+    public void start()
+        {
+        for(int i = 0; i < writers; i++){
+            executor.execute(this::drain);
+        }
+        }
+
+    /**
+     * Stops accepting deployments and lets the writers store what is already queued before they exit.
+     */
+    @PreDestroy
+    public void shutdown()
+        {
+        running = false;
+        executor.shutdown();
+        try {
+            if(!executor.awaitTermination(30, TimeUnit.SECONDS)){
+                log.warn("Stopped with {} deployments still queued", queue.size());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        }
+
+    /**
+     * Queues the deployment and returns its tracking id, or empty when the queue is full.
+     */
+    public Optional<String> offer(Deployment deployment)
+        {
+        if(!running){
+            return Optional.empty();
+        }
+        String trackingId = UUID.randomUUID().toString();
+        tickets.put(trackingId, IngestTicket.pending(trackingId, deployment.getDeploymentId()));
+        if(!queue.offer(new Pending(trackingId, deployment))){
+            tickets.invalidate(trackingId);
+            return Optional.empty();
+        }
+        return Optional.of(trackingId);
+        }
+
+    public Optional<IngestTicket> status(String trackingId)
+        {
+        return Optional.ofNullable(tickets.getIfPresent(trackingId));
+        }
+
+    public Duration getRetryAfter()
+        {
+        return retryAfter;
+        }
+
+    private void drain()
+        {
+        List<Pending> batch = new ArrayList<>(maxBatchSize);
+        try {
+            while(running || !queue.isEmpty()){
+                Pending first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if(first == null){
+                    continue;
+                }
+                //whatever queued up while the last batch was being stored goes into this one
+                batch.add(first);
+                queue.drainTo(batch, maxBatchSize - 1);
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        }
+
+    private void commit(List<Pending> batch)
+        {
+        List<Deployment> deployments = new ArrayList<>(batch.size());
+        batch.forEach(pending -> deployments.add(pending.deployment));
+        batchSizes.record(batch.size());
+        long start = System.nanoTime();
+        try {
+            List<IngestResult> results = deploymentService.storeAll(deployments);
+            for(IngestResult result : results){
+                String trackingId = batch.get(result.getIndex()).trackingId;
+                tickets.put(trackingId, IngestTicket.of(trackingId, result));
+            }
+        } catch (RuntimeException e) {
+            log.error("Unable to store {} queued deployments", batch.size(), e);
+            for(int i = 0; i < batch.size(); i++){
+                Pending pending = batch.get(i);
+                IngestResult failed = IngestResult.failed(i, pending.deployment.getDeploymentId(), e.getMessage());
+                tickets.put(pending.trackingId, IngestTicket.of(pending.trackingId, failed));
+            }
+        } finally {
+            commits.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        }
+
+    private static final class Pending
+        {
+        private final String trackingId;
+        private final Deployment deployment;
+
+        private Pending(String trackingId, Deployment deployment)
+            {
+            this.trackingId = trackingId;
+            this.deployment = deployment;
+            }
+        }
+    }
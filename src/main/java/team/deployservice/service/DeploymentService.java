@@ -1,30 +1,93 @@
 package team.deployservice.service;
 
+import team.deployservice.model.DataVersion;
 import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentCursor;
 import team.deployservice.model.DeploymentFrequency;
+import team.deployservice.model.DeploymentPage;
+import team.deployservice.model.IngestResult;
 import team.deployservice.model.LeadTime;
+import team.deployservice.model.Scorecard;
 
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public interface DeploymentService
     {
         Deployment store(Deployment deployment);
 
+        /**
+         * Validates and stores the deployments in unordered batches, skipping those whose deployment id is already
+         * stored or earlier in the list. One bad deployment does not stop the others.
+         *
+         * @return one result per deployment, in the same order
+         */
+        List<IngestResult> storeAll(List<Deployment> deployments);
+
         Optional<Deployment> get(String id);
 
-        List<Deployment> list();
-        
         String delete(String id);
-        
-        List<Deployment> listAllForApplication(String applicationId);
-        
-        List<Deployment> listAllForHierarchy(String applicationId);
 
         List<Deployment> listAllForApplication(String applicationId, Date reportingDate);
+
+        /**
+         * Up to {@code limit} deployments, newest first, starting after the cursor or from the newest when it is null.
+         */
+        DeploymentPage list(DeploymentCursor after, int limit);
+
+        DeploymentPage listForApplication(String applicationId, DeploymentCursor after, int limit);
+
+        DeploymentPage listForHierarchy(String applicationId, DeploymentCursor after, int limit);
+
+        /**
+         * Hands every deployment to the consumer as it is read from the database cursor, in no particular order, so
+         * memory use does not grow with the number of deployments. An exception thrown by the consumer stops the
+         * export and releases the cursor.
+         */
+        void exportAll(Consumer<Deployment> consumer);
+
+        void exportForApplication(String applicationId, Consumer<Deployment> consumer);
+
+        void exportForHierarchy(String applicationId, Consumer<Deployment> consumer);
         
         DeploymentFrequency calculateDeployFreq(String applicationId, Date reportingDate);
         
         LeadTime calculateLeadTime(String applicationId, Date reportingDate);
+
+        /**
+         * Deployment frequency over a rolling window of {@code windowDays} days ending on the reporting date, graded on
+         * the average rate: more than one a day is elite, at least one a week high, at least one a month medium.
+         */
+        DeploymentFrequency calculateDeployFreq(String applicationId, Date reportingDate, int windowDays);
+
+        LeadTime calculateLeadTime(String applicationId, Date reportingDate, int windowDays);
+
+        /**
+         * Deployment frequency and lead time for the reporting date, sharing one hierarchy lookup and one rollup query.
+         */
+        Scorecard calculateScorecard(String applicationId, Date reportingDate);
+
+        /**
+         * Deployment frequency for every day from the first to the last reporting date inclusive.
+         */
+        List<DeploymentFrequency> calculateDeployFreqSeries(String applicationId, Date firstReportingDate, Date lastReportingDate);
+
+        /**
+         * Lead time for every day from the first to the last reporting date inclusive.
+         */
+        List<LeadTime> calculateLeadTimeSeries(String applicationId, Date firstReportingDate, Date lastReportingDate);
+
+        /**
+         * Version of the deployments of the application, which changes whenever one of them is stored or deleted, once
+         * this instance's data refresh has read the write. Cached results are never older than it.
+         */
+        DataVersion getApplicationVersion(String applicationId);
+
+        /**
+         * Version of the deployments of the application and its descendants, which changes whenever one of them is
+         * stored or deleted or the hierarchy changes.
+         */
+        DataVersion getHierarchyVersion(String applicationId);
     }
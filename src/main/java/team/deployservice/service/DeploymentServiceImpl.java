@@ -3,31 +3,68 @@ package team.deployservice.service;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
 import org.springframework.stereotype.Service;
 import team.deployservice.hierarchy.repo.HierarchyClient;
 import team.deployservice.model.*;
 import team.deployservice.repo.DeploymentRepo;
+import team.deployservice.repo.DeploymentRollupDelta;
+import team.deployservice.repo.DeploymentRollupRepo;
 
+import javax.validation.ConstraintViolation;
+import javax.validation.Validator;
+import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 public class DeploymentServiceImpl implements DeploymentService
     {
     private static final Logger log = LoggerFactory.getLogger(DeploymentServiceImpl.class);
+    private static final int FREQUENCY_DAYS = 365;
+    private static final int LEAD_TIME_DAYS = 90;
+    //newest first by created time then id, the order each chunk of a hierarchy page is read in
+    private static final Comparator<Deployment> NEWEST_FIRST = Comparator.comparing(Deployment::getCreated)
+        .thenComparing(Deployment::getId, Comparator.nullsFirst(Comparator.naturalOrder()))
+        .reversed();
     private final DeploymentRepo deploymentRepo;
+    private final DeploymentRollupRepo deploymentRollupRepo;
     private final HierarchyClient hierarchyClient;
+    private final DeploymentWindowIndex deploymentWindowIndex;
+    private final MetricResultCache metricResultCache;
+    private final DeploymentIdFilter recentDeploymentIds;
+    private final ChunkedInQuery chunkedInQuery;
+    private final AncestorTagger ancestorTagger;
+    private final HierarchyRollupCache hierarchyRollupCache;
+    private final DataVersions dataVersions;
+    private final Validator validator;
+    private final int ingestBatchSize;
 
     @Autowired
-    public DeploymentServiceImpl(DeploymentRepo deploymentRepo, HierarchyClient hierarchyClient)
+    public DeploymentServiceImpl(DeploymentRepo deploymentRepo, DeploymentRollupRepo deploymentRollupRepo, HierarchyClient hierarchyClient, DeploymentWindowIndex deploymentWindowIndex, MetricResultCache metricResultCache, DeploymentIdFilter recentDeploymentIds, ChunkedInQuery chunkedInQuery, AncestorTagger ancestorTagger, HierarchyRollupCache hierarchyRollupCache, DataVersions dataVersions, Validator validator, @Value("${deployservice.ingest.batch-size:500}") int ingestBatchSize)
         {
         this.deploymentRepo = deploymentRepo;
+        this.deploymentRollupRepo = deploymentRollupRepo;
         this.hierarchyClient = hierarchyClient;
+        this.deploymentWindowIndex = deploymentWindowIndex;
+        this.metricResultCache = metricResultCache;
+        this.recentDeploymentIds = recentDeploymentIds;
+        this.chunkedInQuery = chunkedInQuery;
+        this.ancestorTagger = ancestorTagger;
+        this.hierarchyRollupCache = hierarchyRollupCache;
+        this.dataVersions = dataVersions;
+        this.validator = validator;
+        this.ingestBatchSize = ingestBatchSize;
         }
 
-    private static long findAverageUsingStream(Long[] array) {
-        return Math.round(Arrays.stream(array).mapToLong(Long::longValue).average().orElse(Double.NaN));
+    private static long findAverage(long sum, long count) {
+        return count == 0 ? 0 : Math.round((double) sum / count);
     }
     
     private DORALevel findDORAPerfLevel(long leadTimeSecs){
@@ -47,61 +84,211 @@ public class DeploymentServiceImpl implements DeploymentService
     
     @Override
     public Deployment store(Deployment deployment)
+        {
+        calculateLeadTimes(deployment);
+        deployment.setAncestors(ancestorTagger.ancestorsOf(deployment.getApplicationId()));
+        //the upsert returns the original of a retry, so no read is needed first
+        Optional<Deployment> original = deploymentRepo.insertIfAbsent(deployment);
+        recentDeploymentIds.put(deployment.getDeploymentId());
+        if(original.isPresent()){
+            return original.get();
+        }
+        recordDeployment(deployment, 1);
+        return deployment;
+        }
+
+    private void calculateLeadTimes(Deployment deployment)
         {
         long deployTime = deployment.getCreated().toInstant().getEpochSecond();
-        ArrayList<Long> cLeadTimes = new ArrayList<>();
-        deployment.getChanges().forEach(
-            c -> { 
+        long leadTimeSum = 0;
+        for(Change c : deployment.getChanges()){
             long leadTimeSeconds = deployTime - c.getCreated().toInstant().getEpochSecond();
             c.setLeadTimeSeconds(leadTimeSeconds);
-            cLeadTimes.add(leadTimeSeconds);
-            }
-        );
-        long leadTimeSecs = findAverageUsingStream(cLeadTimes.toArray(new Long[0]));
+            leadTimeSum += leadTimeSeconds;
+        }
+        long leadTimeSecs = findAverage(leadTimeSum, deployment.getChanges().size());
         deployment.setLeadTimeSeconds(leadTimeSecs);
         DORALevel leadTimePerfLevel = findDORAPerfLevel(leadTimeSecs);
         deployment.setLeadTimePerfLevel(leadTimePerfLevel);
-        return deploymentRepo.save(deployment);
         }
 
     @Override
-    public Optional<Deployment> get(String id)
+    public List<IngestResult> storeAll(List<Deployment> deployments)
         {
-        return deploymentRepo.findById(id);
+        List<IngestResult> results = new ArrayList<>(deployments.size());
+        for(int start = 0; start < deployments.size(); start += ingestBatchSize){
+            results.addAll(storeBatch(deployments.subList(start, Math.min(start + ingestBatchSize, deployments.size())), start));
+        }
+        return results;
+        }
+
+    private List<IngestResult> storeBatch(List<Deployment> batch, int offset)
+        {
+        IngestResult[] results = new IngestResult[batch.size()];
+        Set<String> deploymentIds = new HashSet<>();
+        List<Integer> candidates = new ArrayList<>();
+        for(int i = 0; i < batch.size(); i++){
+            Deployment deployment = batch.get(i);
+            List<String> errors = validate(deployment);
+            if(!errors.isEmpty()){
+                results[i] = IngestResult.invalid(offset + i, deployment == null ? null : deployment.getDeploymentId(), errors);
+            } else if(!deploymentIds.add(deployment.getDeploymentId())){
+                results[i] = IngestResult.duplicate(offset + i, deployment.getDeploymentId());
+            } else {
+                candidates.add(i);
+            }
+        }
+        //one read for the whole batch rather than one per deployment, and none at all when no id has been seen
+        //lately; a duplicate stored elsewhere is still rejected by the unique deployment id index
+        Set<String> seen = deploymentIds.stream().filter(recentDeploymentIds::mightContain).collect(Collectors.toSet());
+        Set<String> existing = seen.isEmpty() ? Collections.emptySet() : deploymentRepo.findExistingDeploymentIds(seen);
+        List<Deployment> inserts = new ArrayList<>(candidates.size());
+        List<Integer> insertIndexes = new ArrayList<>(candidates.size());
+        for(int i : candidates){
+            Deployment deployment = batch.get(i);
+            if(existing.contains(deployment.getDeploymentId())){
+                results[i] = IngestResult.duplicate(offset + i, deployment.getDeploymentId());
+            } else {
+                calculateLeadTimes(deployment);
+                deployment.setAncestors(ancestorTagger.ancestorsOf(deployment.getApplicationId()));
+                inserts.add(deployment);
+                insertIndexes.add(i);
+            }
+        }
+        List<IngestResult> written = deploymentRepo.insertAll(inserts);
+        //the rollups take in every deployment that was inserted, even when others in the batch failed
+        List<Deployment> inserted = new ArrayList<>(inserts.size());
+        for(int j = 0; j < inserts.size(); j++){
+            int i = insertIndexes.get(j);
+            results[i] = written.get(j).atIndex(offset + i);
+            if(results[i].getStatus() == IngestResult.Status.CREATED){
+                inserted.add(inserts.get(j));
+            }
+        }
+        inserted.forEach(deployment -> recentDeploymentIds.put(deployment.getDeploymentId()));
+        recordDeployments(inserted);
+        return Arrays.asList(results);
+        }
+
+    private List<String> validate(Deployment deployment)
+        {
+        if(deployment == null){
+            return Collections.singletonList("Deployment: must not be null");
+        }
+        return validator.validate(deployment).stream()
+            .map(ConstraintViolation::getMessage)
+            .sorted()
+            .collect(Collectors.toList());
+        }
+
+    private void recordDeployment(Deployment deployment, long sign)
+        {
+        DeploymentRollupDelta delta = new DeploymentRollupDelta(deployment.getApplicationId(), getDay(deployment.getCreated())).add(deployment, sign);
+        dataVersions.recordWrites(Collections.singletonList(deploymentRollupRepo.increment(delta.getApplicationId(), delta.getDay(),
+            delta.getDeploymentCount(), delta.getChangeCount(), delta.getLeadTimeSeconds(), delta.getLeadTimeBuckets())));
+        }
+
+    //as recordDeployment, with the rollup changes of a batch merged per application and day and written in bulk
+    private void recordDeployments(List<Deployment> deployments)
+        {
+        if(deployments.isEmpty()){
+            return;
+        }
+        Map<String, DeploymentRollupDelta> deltas = new LinkedHashMap<>();
+        for(Deployment deployment : deployments){
+            Date day = getDay(deployment.getCreated());
+            deltas.computeIfAbsent(deployment.getApplicationId() + ":" + day.getTime(), key -> new DeploymentRollupDelta(deployment.getApplicationId(), day))
+                .add(deployment, 1);
+        }
+        dataVersions.recordWrites(deploymentRollupRepo.incrementAll(deltas.values()));
         }
 
     @Override
-    public List<Deployment> list()
+    public Optional<Deployment> get(String id)
         {
-        return deploymentRepo.findAll();
+        return deploymentRepo.findById(id);
         }
 
     @Override
     public String delete(String id)
         {
         Optional<Deployment> deployment = get(id);
-        deployment.ifPresent(deploymentRepo::delete);
+        deployment.ifPresent(d -> {
+            deploymentRepo.delete(d);
+            recordDeployment(d, -1);
+        });
         return id;
         }
 
     @Override
-    public List<Deployment> listAllForApplication(String applicationId)
+    public List<Deployment> listAllForApplication(String applicationId, Date reportingDate)
+        {
+        return deploymentRepo.findByApplicationIdAndCreatedBetweenOrderByCreated(applicationId, getStartDate(reportingDate, 0), getEndDate(reportingDate));
+        }
+
+    @Override
+    public DeploymentPage list(DeploymentCursor after, int limit)
         {
-        return deploymentRepo.findByApplicationId(applicationId);
+        return page(deploymentRepo.findPage(after, limit + 1), limit);
         }
 
     @Override
-    public List<Deployment> listAllForHierarchy(String applicationId)
+    public DeploymentPage listForApplication(String applicationId, DeploymentCursor after, int limit)
         {
-        log.info("Loading all deployments in the hierarchy starting at applicationId {}", applicationId);
+        return page(deploymentRepo.findPageByApplicationIdIn(Collections.singleton(applicationId), after, limit + 1), limit);
+        }
+
+    @Override
+    public DeploymentPage listForHierarchy(String applicationId, DeploymentCursor after, int limit)
+        {
+        log.info("Loading a page of deployments in the hierarchy starting at applicationId {}", applicationId);
+        if(ancestorTagger.covers(applicationId)){
+            return page(deploymentRepo.findPageByAncestor(applicationId, after, limit + 1), limit);
+        }
         Collection<String> appIds = hierarchyClient.findChildIds(applicationId);
-        return deploymentRepo.findByApplicationIdInOrderByCreatedDesc(appIds);
+        //each chunk reads a whole page, so the newest of them all are among the results
+        return page(chunkedInQuery.merge(appIds, chunk -> deploymentRepo.findPageByApplicationIdIn(chunk, after, limit + 1), NEWEST_FIRST, limit + 1), limit);
+        }
+
+    //pages are read one deployment long, so a full last page does not point at an empty one
+    private static DeploymentPage page(List<Deployment> deployments, int limit)
+        {
+        if(deployments.size() <= limit){
+            return new DeploymentPage(deployments, null);
+        }
+        List<Deployment> page = deployments.subList(0, limit);
+        return new DeploymentPage(page, DeploymentCursor.after(page.get(limit - 1)));
         }
 
     @Override
-    public List<Deployment> listAllForApplication(String applicationId, Date reportingDate)
+    public void exportAll(Consumer<Deployment> consumer)
         {
-        return deploymentRepo.findByApplicationIdAndCreatedBetweenOrderByCreated(applicationId, getStartDate(reportingDate, 0), getEndDate(reportingDate));
+        export(deploymentRepo.streamAllBy(), consumer);
+        }
+
+    @Override
+    public void exportForApplication(String applicationId, Consumer<Deployment> consumer)
+        {
+        export(deploymentRepo.streamByApplicationId(applicationId), consumer);
+        }
+
+    @Override
+    public void exportForHierarchy(String applicationId, Consumer<Deployment> consumer)
+        {
+        log.info("Exporting all deployments in the hierarchy starting at applicationId {}", applicationId);
+        if(ancestorTagger.covers(applicationId)){
+            export(deploymentRepo.streamByAncestors(applicationId), consumer);
+            return;
+        }
+        Collection<String> appIds = hierarchyClient.findChildIds(applicationId);
+        export(chunkedInQuery.stream(appIds, deploymentRepo::streamByApplicationIdIn), consumer);
+        }
+
+    private static void export(Stream<Deployment> deployments, Consumer<Deployment> consumer)
+        {
+        try(deployments){
+            deployments.forEach(consumer);
+        }
         }
 
     private Date getStartDate(Date reportingDate, Integer minusDays){
@@ -112,35 +299,71 @@ public class DeploymentServiceImpl implements DeploymentService
     private Date getEndDate(Date reportingDate){
         return Date.from(ZonedDateTime.ofInstant(reportingDate.toInstant(), ZoneOffset.UTC).plusDays(1).toInstant());
     }
+
+    private static LocalDate getReportingDay(Date reportingDate){
+        return reportingDate.toInstant().atZone(ZoneOffset.UTC).toLocalDate();
+    }
+
+    private static Date getDay(Date date){
+        return Date.from(getReportingDay(date).atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+
+    private List<DeploymentRollup> loadRollups(Collection<String> appIds, LocalDate reportingDay, int days){
+        Range<Date> dayRange = Range.closed(toDate(reportingDay.minusDays(days - 1)), toDate(reportingDay));
+        //rollups are summed whatever chunk they come from
+        return chunkedInQuery.concat(appIds, chunk -> deploymentRollupRepo.findByApplicationIdInAndDayBetween(chunk, dayRange));
+    }
+
+    //a node of the hierarchy index is merged from its children's cached rollups, which cover the frequency window
+    private List<DeploymentRollup> loadNodeRollups(String applicationId, Collection<String> appIds, LocalDate reportingDay, int days){
+        return hierarchyRollupCache.get(applicationId, reportingDay, uncached -> loadRollups(uncached, reportingDay, HierarchyRollupCache.DAYS))
+            .orElseGet(() -> loadRollups(appIds, reportingDay, days));
+    }
+
+    private DailyTotals loadDailyTotals(Collection<String> appIds, LocalDate reportingDay, int days){
+        return DailyTotals.of(loadRollups(appIds, reportingDay, days), reportingDay, days);
+    }
+
+    private static LeadTimePercentiles leadTimePercentiles(Collection<DeploymentRollup> rollups, LocalDate reportingDay){
+        //merges at most one histogram per application per day of the lead time window
+        Date firstDay = toDate(reportingDay.minusDays(LEAD_TIME_DAYS - 1));
+        LeadTimeHistogram histogram = new LeadTimeHistogram();
+        rollups.stream()
+            .filter(rollup -> !rollup.getDay().before(firstDay))
+            .forEach(rollup -> histogram.add(rollup.getLeadTimeBuckets()));
+        return histogram.count() > 0 ? LeadTimePercentiles.of(histogram) : null;
+    }
     
     @Override
     public DeploymentFrequency calculateDeployFreq(String applicationId, Date reportingDate)
         {
         Collection<String> appIds = hierarchyClient.findApplicationChildIds(applicationId);
-        Date endDate = getEndDate(reportingDate);
+        LocalDate reportingDay = getReportingDay(reportingDate);
+        return metricResultCache.get(MetricResultCache.Metric.DEPLOYMENT_FREQUENCY, applicationId, reportingDay, FREQUENCY_DAYS, appIds,
+            () -> deployFreq(applicationId, reportingDate, DailyTotals.of(loadNodeRollups(applicationId, appIds, reportingDay, FREQUENCY_DAYS), reportingDay, FREQUENCY_DAYS)));
+        }
+
+    private DeploymentFrequency deployFreq(String applicationId, Date reportingDate, DailyTotals totals)
+        {
         //check for elite performance
-        List<Deployment> eliteDeploys = deploymentRepo
-            .findByApplicationIdInAndCreatedBetweenOrderByCreated(appIds, getStartDate(reportingDate, 0), endDate);
-        if(eliteDeploys.size() > 1){
-            return new DeploymentFrequency(applicationId, reportingDate, eliteDeploys.size(), TimePeriod.DAY, DORALevel.ELITE);
+        long dayCount = totals.deployments(1);
+        if(dayCount > 1){
+            return new DeploymentFrequency(applicationId, reportingDate, Math.toIntExact(dayCount), TimePeriod.DAY, DORALevel.ELITE);
         }
         //check for high performance
-        List<Deployment> highDeploys = deploymentRepo
-            .findByApplicationIdInAndCreatedBetweenOrderByCreated(appIds, getStartDate(reportingDate, 6), endDate);
-        if(highDeploys.size() >= 1){
-            return new DeploymentFrequency(applicationId, reportingDate, highDeploys.size(), TimePeriod.WEEK, DORALevel.HIGH);
+        long weekCount = totals.deployments(7);
+        if(weekCount >= 1){
+            return new DeploymentFrequency(applicationId, reportingDate, Math.toIntExact(weekCount), TimePeriod.WEEK, DORALevel.HIGH);
         }
         //check for medium performance
-        List<Deployment> medDeploys = deploymentRepo
-            .findByApplicationIdInAndCreatedBetweenOrderByCreated(appIds, getStartDate(reportingDate, 29), endDate);
-        if(medDeploys.size() >= 1){
-            return new DeploymentFrequency(applicationId, reportingDate, medDeploys.size(), TimePeriod.MONTH, DORALevel.MEDIUM);
+        long monthCount = totals.deployments(30);
+        if(monthCount >= 1){
+            return new DeploymentFrequency(applicationId, reportingDate, Math.toIntExact(monthCount), TimePeriod.MONTH, DORALevel.MEDIUM);
         }
         //check for low performance
-        List<Deployment> lowDeploys = deploymentRepo
-            .findByApplicationIdInAndCreatedBetweenOrderByCreated(appIds, getStartDate(reportingDate, 364), endDate);
-        if(lowDeploys.size() >= 1) {
-            return new DeploymentFrequency(applicationId, reportingDate, lowDeploys.size(), TimePeriod.YEAR, DORALevel.LOW);
+        long yearCount = totals.deployments(FREQUENCY_DAYS);
+        if(yearCount >= 1) {
+            return new DeploymentFrequency(applicationId, reportingDate, Math.toIntExact(yearCount), TimePeriod.YEAR, DORALevel.LOW);
         }
         //No data, return unknown performance level    
         return new DeploymentFrequency(applicationId, reportingDate, 0, TimePeriod.YEAR, DORALevel.UNKNOWN);
@@ -150,22 +373,146 @@ public class DeploymentServiceImpl implements DeploymentService
     public LeadTime calculateLeadTime(String applicationId, Date reportingDate)
         {
         Collection<String> appIds = hierarchyClient.findApplicationChildIds(applicationId);
-        Date startDate = getStartDate(reportingDate, 89);
-        Date endDate = getEndDate(reportingDate);
-        List<Deployment> deploys = deploymentRepo
-            .findByApplicationIdInAndCreatedBetweenOrderByCreated(appIds, startDate, endDate);
+        LocalDate reportingDay = getReportingDay(reportingDate);
+        return metricResultCache.get(MetricResultCache.Metric.LEAD_TIME, applicationId, reportingDay, LEAD_TIME_DAYS, appIds, () -> {
+            List<DeploymentRollup> rollups = loadNodeRollups(applicationId, appIds, reportingDay, LEAD_TIME_DAYS);
+            DailyTotals totals = DailyTotals.of(rollups, reportingDay, LEAD_TIME_DAYS);
+            return leadTime(applicationId, reportingDate, totals, leadTimePercentiles(rollups, reportingDay));
+        });
+        }
+
+    @Override
+    public Scorecard calculateScorecard(String applicationId, Date reportingDate)
+        {
+        Collection<String> appIds = hierarchyClient.findApplicationChildIds(applicationId);
+        //the frequency window covers the lead time window, so one query serves both
+        LocalDate reportingDay = getReportingDay(reportingDate);
+        List<DeploymentRollup> rollups = loadNodeRollups(applicationId, appIds, reportingDay, FREQUENCY_DAYS);
+        DailyTotals totals = DailyTotals.of(rollups, reportingDay, FREQUENCY_DAYS);
+        return new Scorecard(applicationId, reportingDate, deployFreq(applicationId, reportingDate, totals), leadTime(applicationId, reportingDate, totals, leadTimePercentiles(rollups, reportingDay)));
+        }
+
+    @Override
+    public List<DeploymentFrequency> calculateDeployFreqSeries(String applicationId, Date firstReportingDate, Date lastReportingDate)
+        {
+        LocalDate lastDay = getReportingDay(lastReportingDate);
+        int points = seriesLength(firstReportingDate, lastDay);
+        Collection<String> appIds = hierarchyClient.findApplicationChildIds(applicationId);
+        //one query covers the windows of every point, which then slide back a day at a time
+        DailyTotals totals = loadDailyTotals(appIds, lastDay, points + FREQUENCY_DAYS - 1);
+        List<DeploymentFrequency> series = new ArrayList<>(points);
+        for(int daysBefore = points - 1; daysBefore >= 0; daysBefore--){
+            series.add(deployFreq(applicationId, toDate(lastDay.minusDays(daysBefore)), totals.endingDaysBefore(daysBefore)));
+        }
+        return series;
+        }
+
+    @Override
+    public List<LeadTime> calculateLeadTimeSeries(String applicationId, Date firstReportingDate, Date lastReportingDate)
+        {
+        LocalDate lastDay = getReportingDay(lastReportingDate);
+        int points = seriesLength(firstReportingDate, lastDay);
+        Collection<String> appIds = hierarchyClient.findApplicationChildIds(applicationId);
+        int days = points + LEAD_TIME_DAYS - 1;
+        List<DeploymentRollup> rollups = loadRollups(appIds, lastDay, days);
+        DailyTotals totals = DailyTotals.of(rollups, lastDay, days);
+        //the histogram slides with the window, taking in the day that enters and backing out the day that leaves
+        Map<LocalDate, List<DeploymentRollup>> rollupsByDay = rollups.stream()
+            .collect(Collectors.groupingBy(rollup -> getReportingDay(rollup.getDay())));
+        LeadTimeHistogram histogram = new LeadTimeHistogram();
+        List<LeadTime> series = new ArrayList<>(points);
+        for(int daysBefore = days - 1; daysBefore >= 0; daysBefore--){
+            LocalDate day = lastDay.minusDays(daysBefore);
+            rollupsByDay.getOrDefault(day, Collections.emptyList()).forEach(rollup -> histogram.add(rollup.getLeadTimeBuckets()));
+            rollupsByDay.getOrDefault(day.minusDays(LEAD_TIME_DAYS), Collections.emptyList()).forEach(rollup -> histogram.remove(rollup.getLeadTimeBuckets()));
+            if(daysBefore < points){
+                LeadTimePercentiles percentiles = histogram.count() > 0 ? LeadTimePercentiles.of(histogram) : null;
+                series.add(leadTime(applicationId, toDate(day), totals.endingDaysBefore(daysBefore), percentiles));
+            }
+        }
+        return series;
+        }
+
+    private static int seriesLength(Date firstReportingDate, LocalDate lastDay){
+        long points = ChronoUnit.DAYS.between(getReportingDay(firstReportingDate), lastDay) + 1;
+        if(points < 1){
+            throw new IllegalArgumentException("The first reporting date must not be after the last");
+        }
+        return Math.toIntExact(points);
+    }
+
+    private static Date toDate(LocalDate day){
+        return Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+
+    private LeadTime leadTime(String applicationId, Date reportingDate, DailyTotals totals, LeadTimePercentiles percentiles)
+        {
+        return leadTime(applicationId, reportingDate, totals.deployments(LEAD_TIME_DAYS), totals.changes(LEAD_TIME_DAYS), totals.leadTimeSeconds(LEAD_TIME_DAYS), null, percentiles);
+        }
+
+    private LeadTime leadTime(String applicationId, Date reportingDate, long deploymentCount, long changeCount, long leadTimeSeconds, Integer windowDays, LeadTimePercentiles percentiles)
+        {
         //No data, return unknown performance level
-        if(deploys.size() == 0){
-            return new LeadTime(applicationId, reportingDate, 0, DORALevel.UNKNOWN);
-        }
-        ArrayList<Long> cLeadTimes = new ArrayList<>();
-        deploys.forEach(
-            deployment -> deployment.getChanges().forEach(
-                c -> cLeadTimes.add(c.getLeadTimeSeconds())
-            )
-        );
-        long leadTimeSecs = findAverageUsingStream(cLeadTimes.toArray(new Long[0]));
+        if(deploymentCount == 0){
+            return new LeadTime(applicationId, reportingDate, 0, DORALevel.UNKNOWN, windowDays);
+        }
+        long leadTimeSecs = findAverage(leadTimeSeconds, changeCount);
         DORALevel leadTimePerfLevel = findDORAPerfLevel(leadTimeSecs);
-        return new LeadTime(applicationId, reportingDate, leadTimeSecs, leadTimePerfLevel);
+        return new LeadTime(applicationId, reportingDate, leadTimeSecs, leadTimePerfLevel, windowDays, percentiles);
+        }
+
+    @Override
+    public DeploymentFrequency calculateDeployFreq(String applicationId, Date reportingDate, int windowDays)
+        {
+        LeadTimeSummary totals = sumWindow(applicationId, reportingDate, windowDays);
+        long count = totals.getDeploymentCount();
+        //the count is for the whole window, so there is no time period, the level comes from the average rate over it
+        return new DeploymentFrequency(applicationId, reportingDate, Math.toIntExact(count), null, windowedDeployFreqLevel(count, windowDays), windowDays);
+        }
+
+    private static DORALevel windowedDeployFreqLevel(long count, int windowDays)
+        {
+        //more than one deployment a day on average
+        if(count > windowDays){
+            return DORALevel.ELITE;
+        }
+        //at least one deployment a week on average
+        if(count * 7 >= windowDays){
+            return DORALevel.HIGH;
+        }
+        //at least one deployment a month on average
+        if(count * 30 >= windowDays){
+            return DORALevel.MEDIUM;
+        }
+        if(count >= 1){
+            return DORALevel.LOW;
+        }
+        return DORALevel.UNKNOWN;
+        }
+
+    @Override
+    public LeadTime calculateLeadTime(String applicationId, Date reportingDate, int windowDays)
+        {
+        LeadTimeSummary totals = sumWindow(applicationId, reportingDate, windowDays);
+        return leadTime(applicationId, reportingDate, totals.getDeploymentCount(), totals.getChangeCount(), totals.getLeadTimeSeconds(), windowDays, null);
+        }
+
+    private LeadTimeSummary sumWindow(String applicationId, Date reportingDate, int windowDays)
+        {
+        Collection<String> appIds = hierarchyClient.findApplicationChildIds(applicationId);
+        LocalDate reportingDay = getReportingDay(reportingDate);
+        return deploymentWindowIndex.sum(appIds, reportingDay.minusDays(windowDays - 1), reportingDay);
+        }
+    
+    @Override
+    public DataVersion getApplicationVersion(String applicationId)
+        {
+        return dataVersions.version(Collections.singleton(applicationId));
+        }
+
+    @Override
+    public DataVersion getHierarchyVersion(String applicationId)
+        {
+        return dataVersions.version(hierarchyClient.findApplicationChildIds(applicationId));
         }
     }
@@ -0,0 +1,142 @@
+package team.deployservice.service;
+
+import org.bson.BsonTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import team.deployservice.model.DeploymentRollup;
+import team.deployservice.model.LeadTimeSummary;
+import team.deployservice.repo.DeploymentRollupRepo;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+
+/**
+ * In memory, per application index of daily deployment totals answering arbitrary day window sums without going to
+ * Mongo. It is loaded from the rollups at startup and holds each day as its rollup was last written, with the rollup's
+ * modified timestamp, so the rollups written by store and delete, the ones changed through other instances that
+ * {@link DataVersions} reads, and a periodic full reload can arrive in any order and the newest copy of a day wins.
+ */
+@Component
+public class DeploymentWindowIndex
+    {
+    private static final Logger log = LoggerFactory.getLogger(DeploymentWindowIndex.class);
+    private static final int DEPLOYMENTS = 0;
+    private static final int CHANGES = 1;
+    private static final int LEAD_TIME_SECONDS = 2;
+    //rollups written before they were timestamped sort before every timestamped copy
+    private static final BsonTimestamp UNSTAMPED = new BsonTimestamp(0, 0);
+    private final DeploymentRollupRepo deploymentRollupRepo;
+    private final ReadWriteLock swap = new ReentrantReadWriteLock();
+    private volatile Map<String, ApplicationDays> applications = new ConcurrentHashMap<>();
+    private volatile Queue<DeploymentRollup> recordedDuringReload;
+    private volatile boolean loaded;
+
+    @Autowired
+    public DeploymentWindowIndex(DeploymentRollupRepo deploymentRollupRepo)
+        {
+        this.deploymentRollupRepo = deploymentRollupRepo;
+        }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${deployservice.index.reload-interval:PT15M}")
+    public synchronized void reload()
+        {
+        long start = System.currentTimeMillis();
+        recordedDuringReload = new ConcurrentLinkedQueue<>();
+        Map<String, ApplicationDays> fresh = new ConcurrentHashMap<>();
+        try(Stream<DeploymentRollup> rollups = deploymentRollupRepo.streamAllBy()){
+            rollups.forEach(rollup -> put(fresh, rollup));
+        }
+        swap.writeLock().lock();
+        try{
+            //the cursor may have read these rollups before or after they were written, put keeps whichever is newer
+            recordedDuringReload.forEach(rollup -> put(fresh, rollup));
+            recordedDuringReload = null;
+            applications = fresh;
+        } finally {
+            swap.writeLock().unlock();
+        }
+        loaded = true;
+        log.info("Loaded the deployment window index for {} applications in {} ms", fresh.size(), System.currentTimeMillis() - start);
+        }
+
+    /**
+     * Records a rollup as it was written, which replaces the day unless the index already holds a newer copy of it.
+     */
+    public void record(DeploymentRollup rollup)
+        {
+        swap.readLock().lock();
+        try{
+            put(applications, rollup);
+            Queue<DeploymentRollup> reloading = recordedDuringReload;
+            if(reloading != null){
+                reloading.add(rollup);
+            }
+        } finally {
+            swap.readLock().unlock();
+        }
+        }
+
+    public LeadTimeSummary sum(Collection<String> applicationIds, LocalDate firstDay, LocalDate lastDay)
+        {
+        if(!loaded){
+            reload();
+        }
+        Map<String, ApplicationDays> current = applications;
+        long deployments = 0;
+        long changes = 0;
+        long leadTimeSeconds = 0;
+        for(String applicationId : applicationIds){
+            ApplicationDays days = current.get(applicationId);
+            if(days == null){
+                continue;
+            }
+            synchronized(days){
+                deployments += days.totals.sum(DEPLOYMENTS, firstDay.toEpochDay(), lastDay.toEpochDay());
+                changes += days.totals.sum(CHANGES, firstDay.toEpochDay(), lastDay.toEpochDay());
+                leadTimeSeconds += days.totals.sum(LEAD_TIME_SECONDS, firstDay.toEpochDay(), lastDay.toEpochDay());
+            }
+        }
+        return new LeadTimeSummary(deployments, changes, leadTimeSeconds);
+        }
+
+    private static void put(Map<String, ApplicationDays> applications, DeploymentRollup rollup)
+        {
+        long epochDay = rollup.getDay().toInstant().atZone(ZoneOffset.UTC).toLocalDate().toEpochDay();
+        BsonTimestamp modified = rollup.getModified() == null ? UNSTAMPED : rollup.getModified();
+        ApplicationDays days = applications.computeIfAbsent(rollup.getApplicationId(), id -> new ApplicationDays());
+        synchronized(days){
+            BsonTimestamp held = days.modified.get(epochDay);
+            if(held != null && held.compareTo(modified) > 0){
+                return;
+            }
+            days.modified.put(epochDay, modified);
+            set(days.totals, epochDay, DEPLOYMENTS, rollup.getDeploymentCount());
+            set(days.totals, epochDay, CHANGES, rollup.getChangeCount());
+            set(days.totals, epochDay, LEAD_TIME_SECONDS, rollup.getLeadTimeSeconds());
+        }
+        }
+
+    private static void set(DailyFenwickTree tree, long epochDay, int column, long value)
+        {
+        tree.add(epochDay, column, value - tree.sum(column, epochDay, epochDay));
+        }
+
+    //the summed totals of an application's days, and beside them when each day's copy was written
+    private static final class ApplicationDays
+        {
+        private final DailyFenwickTree totals = new DailyFenwickTree(3);
+        private final Map<Long, BsonTimestamp> modified = new HashMap<>();
+        }
+    }
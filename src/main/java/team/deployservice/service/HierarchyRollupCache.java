@@ -0,0 +1,314 @@
+package team.deployservice.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CacheWriter;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+import team.deployservice.hierarchy.HierarchyIndex;
+import team.deployservice.hierarchy.HierarchySnapshot;
+import team.deployservice.model.DeploymentRollup;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Caches the daily rollups of the nodes of the hierarchy index merged over each node's subtree, for the {@link #DAYS}
+ * ending on a reporting day. A node that is not cached is merged from its children's entries, and rollups are only
+ * read for the applications under children that are not cached either, so the metrics of a large node cost about as
+ * much as it has children rather than as it has applications. A stored or deleted deployment drops the entries of its
+ * application and each of its ancestors whose window contains its day; their siblings stay cached, so the next read
+ * merges again from those.
+ * <p>
+ * Each node has a version that {@link DataVersions} moves on, along with those of all its ancestors, whenever it moves
+ * the data version of an application under it. An entry is kept under its node's version as read before its rollups
+ * and is only served while that is still the version, so a hit compares one number. Writes made by other instances and
+ * rollup rebuilds drop the entries of their windows once the data refresh reads them, before it moves the versions on,
+ * so an entry is never older than the version it is served under. Entries are weighed by their approximate retained
+ * size and bounded by a heap budget.
+ */
+@Component
+public class HierarchyRollupCache
+    {
+    //the frequency window, the longest window of the metrics
+    static final int DAYS = 365;
+
+    private final HierarchyIndex hierarchyIndex;
+    private final Cache<Key, NodeRollups> rollups;
+    //node to the keys of its cached entries
+    private final Map<String, Set<Key>> keysByNode = new ConcurrentHashMap<>();
+    //moved on with the data version of any application in the node's subtree
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    @Autowired
+    public HierarchyRollupCache(HierarchyIndex hierarchyIndex,
+                                @Value("${deployservice.metrics.rollup-cache.heap-budget:64MB}") DataSize heapBudget,
+                                MeterRegistry meterRegistry)
+        {
+        this(hierarchyIndex, heapBudget, meterRegistry, ForkJoinPool.commonPool());
+        }
+
+    HierarchyRollupCache(HierarchyIndex hierarchyIndex, DataSize heapBudget, MeterRegistry meterRegistry, Executor executor)
+        {
+        this.hierarchyIndex = hierarchyIndex;
+        this.rollups = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+            .maximumWeight(heapBudget.toBytes())
+            .weigher((Key key, NodeRollups node) -> node.weight())
+            .writer(new KeyIndexWriter())
+            .executor(executor)
+            .recordStats()
+            .build(), "hierarchy.rollups");
+        }
+
+    /**
+     * The node's rollups, one per day with deployments in the {@link #DAYS} ending on the reporting day, or empty when
+     * the hierarchy index does not have the node. {@code load} reads the rollups of the given applications for those
+     * days.
+     */
+    Optional<List<DeploymentRollup>> get(String node, LocalDate reportingDay, Function<Collection<String>, List<DeploymentRollup>> load)
+        {
+        HierarchySnapshot snapshot = hierarchyIndex.snapshot();
+        if(!snapshot.contains(node)){
+            return Optional.empty();
+        }
+        NodeRollups cached = cached(snapshot, node, reportingDay, version(node));
+        if(cached != null){
+            return Optional.of(cached.toRollups(node));
+        }
+        //cached subtrees are taken whole, every other node is merged once its children are
+        List<String> descendants = snapshot.descendants(node);
+        Map<String, NodeRollups> merged = new HashMap<>();
+        List<Integer> uncached = new ArrayList<>();
+        //read before the rollups, so an entry is never older than the version it is kept under
+        Map<Integer, Long> versionsBefore = new HashMap<>();
+        for(int i = 0; i < descendants.size(); ){
+            String descendant = descendants.get(i);
+            long version = version(descendant);
+            NodeRollups entry = cached(snapshot, descendant, reportingDay, version);
+            if(entry != null){
+                merged.put(descendant, entry);
+                i += snapshot.descendants(descendant).size();
+            } else {
+                uncached.add(i);
+                versionsBefore.put(i, version);
+                i++;
+            }
+        }
+        List<String> applications = uncached.stream().map(descendants::get).filter(snapshot::isApplication).collect(Collectors.toList());
+        Map<String, List<DeploymentRollup>> own = (applications.isEmpty() ? Collections.<DeploymentRollup>emptyList() : load.apply(applications))
+            .stream().collect(Collectors.groupingBy(DeploymentRollup::getApplicationId));
+        //the walk puts every node before its descendants, so backwards the children are always merged first
+        for(int i = uncached.size() - 1; i >= 0; i--){
+            int position = uncached.get(i);
+            String descendant = descendants.get(position);
+            NodeRollups entry = new NodeRollups(snapshot, reportingDay, versionsBefore.get(position));
+            own.getOrDefault(descendant, Collections.emptyList()).forEach(entry::add);
+            snapshot.children(descendant).forEach(child -> entry.add(merged.get(child)));
+            merged.put(descendant, entry);
+        }
+        uncached.forEach(position -> rollups.put(new Key(descendants.get(position), reportingDay), merged.get(descendants.get(position))));
+        return Optional.of(merged.get(node).toRollups(node));
+        }
+
+    private long version(String node)
+        {
+        AtomicLong version = versions.get(node);
+        return version == null ? 0 : version.get();
+        }
+
+    //an entry merged for an earlier hierarchy or under older versions is no use
+    private NodeRollups cached(HierarchySnapshot snapshot, String node, LocalDate reportingDay, long version)
+        {
+        NodeRollups cached = rollups.getIfPresent(new Key(node, reportingDay));
+        return cached != null && cached.snapshot == snapshot && cached.version == version ? cached : null;
+        }
+
+    /**
+     * Drops every entry of the application and its ancestors whose window contains the day. Called once the
+     * application's rollup has been written.
+     */
+    void invalidate(String applicationId, LocalDate day)
+        {
+        for(String node : hierarchyIndex.snapshot().ancestors(applicationId)){
+            Set<Key> keys = keysByNode.get(node);
+            if(keys == null){
+                continue;
+            }
+            for(Key key : keys){
+                if(key.covers(day)){
+                    rollups.invalidate(key);
+                }
+            }
+        }
+        }
+
+    /**
+     * Moves on the version of the application and each of its ancestors, so entries merged before are no longer
+     * served. Called once the application's data version has moved, so a merge that read its rollups before the write
+     * was kept under an older version.
+     */
+    void moved(String applicationId)
+        {
+        HierarchySnapshot snapshot = hierarchyIndex.snapshot();
+        while(true){
+            for(String node : snapshot.ancestors(applicationId)){
+                versions.computeIfAbsent(node, id -> new AtomicLong()).incrementAndGet();
+            }
+            //a merge under a hierarchy loaded meanwhile may have read the versions of other ancestors
+            HierarchySnapshot current = hierarchyIndex.snapshot();
+            if(current == snapshot){
+                return;
+            }
+            snapshot = current;
+        }
+        }
+
+    //called atomically with each cache write and removal, so the index never misses a cached entry
+    private class KeyIndexWriter implements CacheWriter<Key, NodeRollups>
+        {
+        @Override
+        public void write(Key key, NodeRollups node)
+            {
+            keysByNode.computeIfAbsent(key.node, id -> ConcurrentHashMap.newKeySet()).add(key);
+            }
+
+        @Override
+        public void delete(Key key, NodeRollups node, RemovalCause cause)
+            {
+            keysByNode.computeIfPresent(key.node, (id, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+            }
+        }
+
+    private static final class Key
+        {
+        private final String node;
+        private final LocalDate reportingDay;
+
+        private Key(String node, LocalDate reportingDay)
+            {
+            this.node = node;
+            this.reportingDay = reportingDay;
+            }
+
+        private boolean covers(LocalDate day)
+            {
+            return !day.isAfter(reportingDay) && day.isAfter(reportingDay.minusDays(DAYS));
+            }
+
+        @Override
+        public boolean equals(Object o)
+            {
+            if(this == o) return true;
+            if(o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return node.equals(key.node) && reportingDay.equals(key.reportingDay);
+            }
+
+        @Override
+        public int hashCode()
+            {
+            return Objects.hash(node, reportingDay);
+            }
+        }
+
+    //one node's merged days, keyed by days before the reporting day; only days with deployments are held
+    private static final class NodeRollups
+        {
+        private final HierarchySnapshot snapshot;
+        private final LocalDate reportingDay;
+        //the node's version, read before its rollups
+        private final long version;
+        private final Map<Integer, Day> days = new HashMap<>();
+
+        private NodeRollups(HierarchySnapshot snapshot, LocalDate reportingDay, long version)
+            {
+            this.snapshot = snapshot;
+            this.reportingDay = reportingDay;
+            this.version = version;
+            }
+
+        private Day day(LocalDate day)
+            {
+            long daysBefore = reportingDay.toEpochDay() - day.toEpochDay();
+            if(daysBefore < 0 || daysBefore >= DAYS){
+                return null;
+            }
+            return days.computeIfAbsent((int) daysBefore, key -> new Day());
+            }
+
+        private synchronized void add(DeploymentRollup rollup)
+            {
+            Day day = day(rollup.getDay().toInstant().atZone(ZoneOffset.UTC).toLocalDate());
+            if(day != null){
+                day.add(rollup.getDeploymentCount(), rollup.getChangeCount(), rollup.getLeadTimeSeconds(), rollup.getLeadTimeBuckets());
+            }
+            }
+
+        private void add(NodeRollups child)
+            {
+            //the child is read under its own lock, a concurrent write to it is either in or out
+            Map<Integer, Day> childDays;
+            synchronized(child){
+                childDays = new HashMap<>(child.days.size());
+                child.days.forEach((daysBefore, day) -> childDays.put(daysBefore, day.copy()));
+            }
+            synchronized(this){
+                childDays.forEach((daysBefore, day) -> days.computeIfAbsent(daysBefore, key -> new Day())
+                    .add(day.deploymentCount, day.changeCount, day.leadTimeSeconds, day.leadTimeBuckets));
+            }
+            }
+
+        private synchronized List<DeploymentRollup> toRollups(String node)
+            {
+            List<DeploymentRollup> rollups = new ArrayList<>(days.size());
+            days.forEach((daysBefore, day) -> rollups.add(new DeploymentRollup(null, node,
+                Date.from(reportingDay.minusDays(daysBefore).atStartOfDay(ZoneOffset.UTC).toInstant()),
+                day.deploymentCount, day.changeCount, day.leadTimeSeconds, new HashMap<>(day.leadTimeBuckets))));
+            return rollups;
+            }
+
+        //rough retained size of the key, the entry and its days, taken when cached
+        private synchronized int weight()
+            {
+            return 256 + days.values().stream().mapToInt(day -> 128 + 64 * day.leadTimeBuckets.size()).sum();
+            }
+        }
+
+    private static final class Day
+        {
+        private long deploymentCount;
+        private long changeCount;
+        private long leadTimeSeconds;
+        private final Map<String, Long> leadTimeBuckets = new HashMap<>();
+
+        private void add(long deploymentCount, long changeCount, long leadTimeSeconds, Map<String, Long> leadTimeBuckets)
+            {
+            this.deploymentCount += deploymentCount;
+            this.changeCount += changeCount;
+            this.leadTimeSeconds += leadTimeSeconds;
+            leadTimeBuckets.forEach((bucket, count) -> this.leadTimeBuckets.merge(bucket, count, Long::sum));
+            }
+
+        private Day copy()
+            {
+            Day copy = new Day();
+            copy.add(deploymentCount, changeCount, leadTimeSeconds, leadTimeBuckets);
+            return copy;
+            }
+        }
+    }
@@ -0,0 +1,182 @@
+package team.deployservice.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.CacheWriter;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Caches calculated metrics by metric, application and reporting day. A store or delete of a deployment only
+ * invalidates the results whose window contains its day and whose hierarchy, as captured when the result was
+ * calculated, contains its application, which covers the application itself and all of its ancestors. Writes made
+ * by other instances are invalidated the same way once {@link DataVersions} reads their rollups.
+ * <p>
+ * Entries are weighed by their approximate retained size and bounded by a heap budget.
+ */
+@Component
+public class MetricResultCache
+    {
+    enum Metric
+        {
+        DEPLOYMENT_FREQUENCY, LEAD_TIME
+        }
+
+    private final Cache<Key, Result> results;
+    //application id to the keys of every cached result whose hierarchy contains it
+    private final Map<String, Set<Key>> keysByApplication = new ConcurrentHashMap<>();
+    //bumped on every write to an application, so a result calculated across a write is not cached
+    private final Map<String, AtomicLong> writes = new ConcurrentHashMap<>();
+
+    @Autowired
+    public MetricResultCache(@Value("${deployservice.metrics.cache.heap-budget:32MB}") DataSize heapBudget, MeterRegistry meterRegistry)
+        {
+        this(heapBudget, meterRegistry, ForkJoinPool.commonPool());
+        }
+
+    MetricResultCache(DataSize heapBudget, MeterRegistry meterRegistry, Executor executor)
+        {
+        this.results = CaffeineCacheMetrics.monitor(meterRegistry, Caffeine.newBuilder()
+            .maximumWeight(heapBudget.toBytes())
+            .weigher((Key key, Result result) -> result.weight)
+            .writer(new KeyIndexWriter())
+            .executor(executor)
+            .recordStats()
+            .build(), "metric.results");
+        }
+
+    @SuppressWarnings("unchecked")
+    <T> T get(Metric metric, String applicationId, LocalDate reportingDay, int windowDays, Collection<String> appIds, Supplier<T> calculation)
+        {
+        Key key = new Key(metric, applicationId, reportingDay, windowDays);
+        Set<String> hierarchy = new HashSet<>(appIds);
+        Result cached = results.getIfPresent(key);
+        //a hierarchy change since the result was calculated makes it stale too
+        if(cached != null && cached.appIds.equals(hierarchy)){
+            return (T) cached.value;
+        }
+        long stamp = writeStamp(hierarchy);
+        T value = calculation.get();
+        results.put(key, new Result(value, hierarchy));
+        if(writeStamp(hierarchy) != stamp){
+            results.invalidate(key);
+        }
+        return value;
+        }
+
+    /**
+     * Drops every result that a deployment of the application on the day could have changed.
+     */
+    void invalidate(String applicationId, LocalDate day)
+        {
+        writes.computeIfAbsent(applicationId, id -> new AtomicLong()).incrementAndGet();
+        Set<Key> keys = keysByApplication.get(applicationId);
+        if(keys == null){
+            return;
+        }
+        for(Key key : keys){
+            if(key.covers(day)){
+                results.invalidate(key);
+            }
+        }
+        }
+
+    private long writeStamp(Set<String> appIds)
+        {
+        long stamp = 0;
+        for(String appId : appIds){
+            AtomicLong count = writes.get(appId);
+            stamp += count == null ? 0 : count.get();
+        }
+        return stamp;
+        }
+
+    //called atomically with each cache write and removal, so the index never misses a cached result
+    private class KeyIndexWriter implements CacheWriter<Key, Result>
+        {
+        @Override
+        public void write(Key key, Result result)
+            {
+            result.appIds.forEach(appId -> keysByApplication.computeIfAbsent(appId, id -> ConcurrentHashMap.newKeySet()).add(key));
+            }
+
+        @Override
+        public void delete(Key key, Result result, RemovalCause cause)
+            {
+            if(result == null){
+                return;
+            }
+            result.appIds.forEach(appId -> keysByApplication.computeIfPresent(appId, (id, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            }));
+            }
+        }
+
+    private static final class Key
+        {
+        private final Metric metric;
+        private final String applicationId;
+        private final LocalDate reportingDay;
+        private final int windowDays;
+
+        private Key(Metric metric, String applicationId, LocalDate reportingDay, int windowDays)
+            {
+            this.metric = metric;
+            this.applicationId = applicationId;
+            this.reportingDay = reportingDay;
+            this.windowDays = windowDays;
+            }
+
+        private boolean covers(LocalDate day)
+            {
+            return !day.isAfter(reportingDay) && day.isAfter(reportingDay.minusDays(windowDays));
+            }
+
+        @Override
+        public boolean equals(Object o)
+            {
+            if(this == o) return true;
+            if(o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return windowDays == key.windowDays &&
+                metric == key.metric &&
+                applicationId.equals(key.applicationId) &&
+                reportingDay.equals(key.reportingDay);
+            }
+
+        @Override
+        public int hashCode()
+            {
+            return Objects.hash(metric, applicationId, reportingDay, windowDays);
+            }
+        }
+
+    private static final class Result
+        {
+        private final Object value;
+        private final Set<String> appIds;
+        private final int weight;
+
+        private Result(Object value, Set<String> appIds)
+            {
+            this.value = value;
+            this.appIds = appIds;
+            //rough retained size of the key, the result and the captured hierarchy
+            this.weight = 512 + appIds.stream().mapToInt(appId -> 96 + 2 * appId.length()).sum();
+            }
+        }
+    }
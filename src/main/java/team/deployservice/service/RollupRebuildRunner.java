@@ -0,0 +1,39 @@
+package team.deployservice.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+import team.deployservice.repo.DeploymentRollupRepo;
+
+/**
+ * Regenerates the daily rollups from the deployment collection when the application is started with
+ * {@code --rebuild-rollups}, e.g. after upgrading an existing installation or repairing drifted rollups.
+ */
+@Component
+public class RollupRebuildRunner implements ApplicationRunner
+    {
+    static final String REBUILD_ROLLUPS = "rebuild-rollups";
+    private static final Logger log = LoggerFactory.getLogger(RollupRebuildRunner.class);
+    private final DeploymentRollupRepo deploymentRollupRepo;
+
+    @Autowired
+    public RollupRebuildRunner(DeploymentRollupRepo deploymentRollupRepo)
+        {
+        this.deploymentRollupRepo = deploymentRollupRepo;
+        }
+
+    @Override
+    public void run(ApplicationArguments args)
+        {
+        if(!args.containsOption(REBUILD_ROLLUPS)){
+            return;
+        }
+        log.info("Rebuilding deployment rollups from the deployment collection");
+        long start = System.currentTimeMillis();
+        deploymentRollupRepo.rebuild();
+        log.info("Rebuilt {} deployment rollups in {} ms", deploymentRollupRepo.count(), System.currentTimeMillis() - start);
+        }
+    }
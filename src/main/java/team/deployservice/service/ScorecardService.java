@@ -0,0 +1,16 @@
+package team.deployservice.service;
+
+import team.deployservice.model.Scorecard;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.function.Consumer;
+
+public interface ScorecardService
+    {
+        /**
+         * Calculates a scorecard for every application concurrently and hands each one to the consumer, on the calling
+         * thread, as soon as it completes. A failure for one application is reported in its scorecard.
+         */
+        void calculateScorecards(Collection<String> applicationIds, Date reportingDate, Consumer<Scorecard> consumer);
+    }
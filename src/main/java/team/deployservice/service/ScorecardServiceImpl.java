@@ -0,0 +1,76 @@
+package team.deployservice.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+import team.deployservice.model.Scorecard;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+@Service
+public class ScorecardServiceImpl implements ScorecardService
+    {
+    private static final Logger log = LoggerFactory.getLogger(ScorecardServiceImpl.class);
+    private final DeploymentService deploymentService;
+    private final ThreadPoolExecutor executor;
+
+    @Autowired
+    public ScorecardServiceImpl(DeploymentService deploymentService,
+                                @Value("${deployservice.scorecard.threads:8}") int threads,
+                                @Value("${deployservice.scorecard.queue-capacity:1000}") int queueCapacity)
+        {
+        this.deploymentService = deploymentService;
+        //a full queue makes the submitting request calculate the scorecard itself, which throttles it
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("scorecard-"), new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+
+    @PreDestroy
+    public void shutdown()
+        {
+        executor.shutdownNow();
+        }
+
+    @Override
+    public void calculateScorecards(Collection<String> applicationIds, Date reportingDate, Consumer<Scorecard> consumer)
+        {
+        CompletionService<Scorecard> completionService = new ExecutorCompletionService<>(executor);
+        List<Future<Scorecard>> futures = new ArrayList<>();
+        try {
+            for(String applicationId : new LinkedHashSet<>(applicationIds)){
+                futures.add(completionService.submit(() -> calculateScorecard(applicationId, reportingDate)));
+            }
+            for(int i = 0; i < futures.size(); i++){
+                consumer.accept(completionService.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while calculating scorecards", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to calculate scorecards", e.getCause());
+        } finally {
+            //stop calculating scorecards nobody will read, e.g. when the client has gone away
+            futures.forEach(future -> future.cancel(true));
+        }
+        }
+
+    private Scorecard calculateScorecard(String applicationId, Date reportingDate)
+        {
+        try {
+            return deploymentService.calculateScorecard(applicationId, reportingDate);
+        } catch (RuntimeException e) {
+            log.warn("Unable to calculate the scorecard for application id {}", applicationId, e);
+            return Scorecard.failed(applicationId, reportingDate, e.getMessage());
+        }
+        }
+    }
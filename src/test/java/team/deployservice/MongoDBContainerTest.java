@@ -7,14 +7,18 @@ import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.ApplicationContextInitializer;
 import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Import;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.testcontainers.containers.MongoDBContainer;
 import org.testcontainers.utility.DockerImageName;
+import team.deployservice.repo.DuplicateDeploymentRemover;
+import team.deployservice.repo.MongoIndexReconciler;
 
 @RunWith(SpringRunner.class)
 @DataMongoTest
 @ContextConfiguration(initializers = {MongoDBContainerTest.Initializer.class})
+@Import({MongoIndexReconciler.class, DuplicateDeploymentRemover.class})
 public class MongoDBContainerTest
     {
 
@@ -1,28 +1,39 @@
 package team.deployservice.controller.v1;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import team.deployservice.model.*;
+import team.deployservice.service.DeploymentIngestQueue;
 import team.deployservice.service.DeploymentService;
+import team.deployservice.service.ScorecardService;
 
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.function.Consumer;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.startsWith;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @ExtendWith(SpringExtension.class)
@@ -33,6 +44,17 @@ class DeploymentControllerV1Test
     @Autowired private MockMvc mockMvc;
     
     @MockBean private DeploymentService mockDeploymentService;
+
+    @MockBean private ScorecardService mockScorecardService;
+
+    @MockBean private DeploymentIngestQueue mockIngestQueue;
+
+    @BeforeEach
+    void setupVersions()
+        {
+        when(mockDeploymentService.getApplicationVersion(any())).thenReturn(new DataVersion("app-version", null));
+        when(mockDeploymentService.getHierarchyVersion(any())).thenReturn(new DataVersion("hierarchy-version", null));
+        }
     
     @Test
     void store() throws Exception
@@ -257,14 +279,247 @@ class DeploymentControllerV1Test
         verify(mockDeploymentService, never()).store(any(Deployment.class));
         }
     
+    @Test
+    void storeAllFromArray() throws Exception
+        {
+        when(mockDeploymentService.storeAll(any())).thenReturn(Arrays.asList(
+            IngestResult.created(0, "d1", "id1"),
+            IngestResult.invalid(1, "d2", Collections.singletonList("Deployment: applicationId is mandatory"))));
+
+        MvcResult result = mockMvc.perform(post("/api/v1/deployments/bulk")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("[{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}," +
+                "{\"deploymentId\":\"d2\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}]"))
+            .andExpect(status().isOk()).andReturn();
+
+        assertThat(result.getResponse().getContentAsString(), is(equalTo(
+            "[{\"index\":0,\"deploymentId\":\"d1\",\"status\":\"CREATED\",\"id\":\"id1\"},{\"index\":1,\"deploymentId\":\"d2\",\"status\":\"INVALID\",\"errors\":[\"Deployment: applicationId is mandatory\"]}]")));
+        verify(mockDeploymentService, times(1)).storeAll(argThat(deployments -> deployments.size() == 2));
+        }
+
+    @Test
+    void storeAllFromArrayReportsMalformedDeploymentsInPlace() throws Exception
+        {
+        when(mockDeploymentService.storeAll(any())).thenAnswer(invocation -> {
+            List<Deployment> deployments = invocation.getArgument(0);
+            List<IngestResult> results = new ArrayList<>();
+            for(int i = 0; i < deployments.size(); i++){
+                results.add(IngestResult.created(i, deployments.get(i).getDeploymentId(), "id" + i));
+            }
+            return results;
+        });
+
+        MvcResult result = mockMvc.perform(post("/api/v1/deployments/bulk")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("[{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}," +
+                "{\"deploymentId\":\"d2\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"yesterday\",\"changes\":[]}," +
+                "{\"deploymentId\":\"d3\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}]"))
+            .andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, startsWith("[{\"index\":0,\"deploymentId\":\"d1\",\"status\":\"CREATED\",\"id\":\"id0\"},{\"index\":1,\"deploymentId\":\"d2\",\"status\":\"INVALID\",\"errors\":[\"Malformed deployment: "));
+        assertThat(content, endsWith("{\"index\":2,\"deploymentId\":\"d3\",\"status\":\"CREATED\",\"id\":\"id1\"}]"));
+        verify(mockDeploymentService, times(1)).storeAll(argThat(deployments -> deployments.size() == 2));
+        }
+
+    @Test
+    void storeAllFromTruncatedArrayStoresWhatWasRead() throws Exception
+        {
+        when(mockDeploymentService.storeAll(any())).thenReturn(Collections.singletonList(IngestResult.created(0, "d1", "id0")));
+
+        MvcResult result = mockMvc.perform(post("/api/v1/deployments/bulk")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("[{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}," +
+                "{\"deploymentId\":"))
+            .andExpect(status().isOk()).andReturn();
+
+        assertThat(result.getResponse().getContentAsString(), startsWith("[{\"index\":0,\"deploymentId\":\"d1\",\"status\":\"CREATED\",\"id\":\"id0\"},{\"index\":1,\"deploymentId\":null,\"status\":\"INVALID\",\"errors\":[\"Malformed JSON array: "));
+        }
+
+    @Test
+    void storeAllFromNdjson() throws Exception
+        {
+        when(mockDeploymentService.storeAll(any())).thenAnswer(invocation -> {
+            List<Deployment> deployments = invocation.getArgument(0);
+            List<IngestResult> results = new ArrayList<>();
+            for(int i = 0; i < deployments.size(); i++){
+                results.add(IngestResult.created(i, deployments.get(i).getDeploymentId(), "id" + i));
+            }
+            return results;
+        });
+
+        MvcResult result = mockMvc.perform(post("/api/v1/deployments/bulk")
+            .contentType(MediaType.APPLICATION_NDJSON)
+            .content("{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}\n" +
+                "{\"deploymentId\":\n" +
+                "\n" +
+                "{\"deploymentId\":\"d3\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}\n"))
+            .andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, startsWith("[{\"index\":0,\"deploymentId\":\"d1\",\"status\":\"CREATED\",\"id\":\"id0\"},{\"index\":1,\"deploymentId\":null,\"status\":\"INVALID\",\"errors\":[\"Malformed deployment: "));
+        assertThat(content, endsWith("{\"index\":2,\"deploymentId\":\"d3\",\"status\":\"CREATED\",\"id\":\"id1\"}]"));
+        verify(mockDeploymentService, times(1)).storeAll(any());
+        }
+
+    @Test
+    void storeAsyncQueuesDeployment() throws Exception
+        {
+        when(mockIngestQueue.offer(any(Deployment.class))).thenReturn(Optional.of("t1"));
+
+        MvcResult result = mockMvc.perform(post("/api/v1/deployment")
+            .contentType(MediaType.APPLICATION_JSON)
+            .header("Prefer", "respond-async, wait=5")
+            .content("{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}"))
+            .andExpect(status().isAccepted())
+            .andExpect(header().string(HttpHeaders.LOCATION, "http://localhost/api/v1/deployments/ingest/t1"))
+            .andExpect(header().string("Preference-Applied", "respond-async"))
+            .andReturn();
+
+        assertThat(result.getResponse().getContentAsString(), is(equalTo("{\"trackingId\":\"t1\",\"deploymentId\":\"d1\",\"status\":\"PENDING\"}")));
+        verify(mockDeploymentService, never()).store(any(Deployment.class));
+        }
+
+    @Test
+    void storeAsyncRefusesWhenQueueFull() throws Exception
+        {
+        when(mockIngestQueue.offer(any(Deployment.class))).thenReturn(Optional.empty());
+        when(mockIngestQueue.getRetryAfter()).thenReturn(Duration.ofSeconds(3));
+
+        mockMvc.perform(post("/api/v1/deployment")
+            .contentType(MediaType.APPLICATION_JSON)
+            .header("Prefer", "respond-async")
+            .content("{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}"))
+            .andExpect(status().isTooManyRequests())
+            .andExpect(header().string(HttpHeaders.RETRY_AFTER, "3"));
+        }
+
+    @Test
+    void storeAsyncValidatesBeforeQueueing() throws Exception
+        {
+        mockMvc.perform(post("/api/v1/deployment")
+            .contentType(MediaType.APPLICATION_JSON)
+            .header("Prefer", "respond-async")
+            .content("{\"deploymentId\":\"d1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}"))
+            .andExpect(status().isBadRequest());
+        verify(mockIngestQueue, never()).offer(any());
+        }
+
+    @Test
+    void storeWithOtherPreferenceStoresSynchronously() throws Exception
+        {
+        mockMvc.perform(post("/api/v1/deployment")
+            .contentType(MediaType.APPLICATION_JSON)
+            .header("Prefer", "return=minimal")
+            .content("{\"deploymentId\":\"d1\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T10:00:00.000+00:00\",\"changes\":[]}"))
+            .andExpect(status().isCreated());
+        verify(mockDeploymentService, times(1)).store(any(Deployment.class));
+        verify(mockIngestQueue, never()).offer(any());
+        }
+
+    @Test
+    void ingestStatus() throws Exception
+        {
+        when(mockIngestQueue.status("t1")).thenReturn(Optional.of(IngestTicket.of("t1", IngestResult.created(0, "d1", "id1"))));
+
+        MvcResult result = mockMvc.perform(get("/api/v1/deployments/ingest/t1"))
+            .andExpect(status().isOk()).andReturn();
+
+        assertThat(result.getResponse().getContentAsString(), is(equalTo("{\"trackingId\":\"t1\",\"deploymentId\":\"d1\",\"status\":\"CREATED\",\"id\":\"id1\"}")));
+        }
+
+    @Test
+    void ingestStatusUnknownTrackingId() throws Exception
+        {
+        when(mockIngestQueue.status("t1")).thenReturn(Optional.empty());
+
+        mockMvc.perform(get("/api/v1/deployments/ingest/t1"))
+            .andExpect(status().isNotFound());
+        }
+
     @Test
     void list() throws Exception
         {
         //TODO expand this test to check the json output
+        when(mockDeploymentService.list(null, 100)).thenReturn(new DeploymentPage(Collections.emptyList(), null));
         mockMvc.perform(get("/api/v1/deployment")
             .contentType(MediaType.APPLICATION_JSON))
-            .andExpect(status().isOk());
-        verify(mockDeploymentService, times(1)).list();
+            .andExpect(status().isOk())
+            .andExpect(header().doesNotExist(HttpHeaders.LINK));
+        verify(mockDeploymentService, times(1)).list(null, 100);
+        }
+
+    @Test
+    void listLinksToNextPage() throws Exception
+        {
+        Date created = Date.from(LocalDate.of(2020, 10, 10).atStartOfDay().toInstant(ZoneOffset.UTC));
+        DeploymentCursor after = new DeploymentCursor(created, "5f81e4b1a3b2c1d0e9f8a7b6");
+        DeploymentCursor next = new DeploymentCursor(created, "5f81e4b1a3b2c1d0e9f8a7b5");
+        Deployment d1 = new Deployment("d1", "", "a1", "rfc1", created, "", new HashSet<>());
+        when(mockDeploymentService.listForApplication("a1", after, 1)).thenReturn(new DeploymentPage(Collections.singletonList(d1), next));
+
+        mockMvc.perform(get("/api/v1/deployment/application/a1?limit=1&after=" + after.encode())
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.LINK, "<http://localhost/api/v1/deployment/application/a1?limit=1&after=" + next.encode() + ">; rel=\"next\""));
+        verify(mockDeploymentService, times(1)).listForApplication("a1", after, 1);
+        }
+
+    @Test
+    void rejectsInvalidPage() throws Exception
+        {
+        mockMvc.perform(get("/api/v1/deployment?limit=0")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/v1/deployment/hierarchy/a1?limit=1001")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/v1/deployment/application/a1?after=not-a-cursor")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        verify(mockDeploymentService, never()).list(any(), anyInt());
+        verify(mockDeploymentService, never()).listForApplication(any(), any(), anyInt());
+        verify(mockDeploymentService, never()).listForHierarchy(any(), any(), anyInt());
+        }
+
+    @Test
+    void exportForHierarchy() throws Exception
+        {
+        Date created = Date.from(LocalDate.of(2020, 10, 10).atStartOfDay().toInstant(ZoneOffset.UTC));
+        doAnswer(invocation -> {
+            Consumer<Deployment> consumer = invocation.getArgument(1);
+            consumer.accept(new Deployment("d1", "", "a1", "rfc1", created, "", new HashSet<>()));
+            consumer.accept(new Deployment("d2", "", "a2", "rfc2", created, "", new HashSet<>()));
+            return null;
+        }).when(mockDeploymentService).exportForHierarchy(eq("id123"), any(Consumer.class));
+
+        MvcResult started = mockMvc.perform(get("/api/v1/deployment/hierarchy/id123")
+            .accept(MediaType.APPLICATION_NDJSON))
+            .andExpect(request().asyncStarted()).andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started)).andExpect(status().isOk()).andReturn();
+
+        assertThat(result.getResponse().getContentAsString(), is(equalTo(
+            "{\"id\":null,\"deploymentId\":\"d1\",\"deploymentDesc\":\"\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T00:00:00.000+00:00\",\"source\":\"\",\"changes\":[],\"leadTimeSeconds\":0,\"leadTimePerfLevel\":null}\n" +
+            "{\"id\":null,\"deploymentId\":\"d2\",\"deploymentDesc\":\"\",\"applicationId\":\"a2\",\"rfcId\":\"rfc2\",\"created\":\"2020-10-10T00:00:00.000+00:00\",\"source\":\"\",\"changes\":[],\"leadTimeSeconds\":0,\"leadTimePerfLevel\":null}\n")));
+        assertThat(result.getResponse().getContentType(), is(equalTo("application/x-ndjson")));
+        verify(mockDeploymentService, never()).listForHierarchy(any(), any(), anyInt());
+        }
+
+    @Test
+    void exportAllAndForApplication() throws Exception
+        {
+        MvcResult all = mockMvc.perform(get("/api/v1/deployment")
+            .accept(MediaType.APPLICATION_NDJSON))
+            .andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(all)).andExpect(status().isOk());
+        MvcResult app = mockMvc.perform(get("/api/v1/deployment/application/a1")
+            .accept(MediaType.APPLICATION_NDJSON))
+            .andExpect(request().asyncStarted()).andReturn();
+        mockMvc.perform(asyncDispatch(app)).andExpect(status().isOk());
+
+        verify(mockDeploymentService, times(1)).exportAll(any());
+        verify(mockDeploymentService, times(1)).exportForApplication(eq("a1"), any());
+        verify(mockDeploymentService, never()).list(any(), anyInt());
         }
 
     @Test
@@ -304,10 +559,11 @@ class DeploymentControllerV1Test
         {
         //TODO expand this test to check the json output
         String appId = "id123";
+        when(mockDeploymentService.listForApplication(appId, null, 100)).thenReturn(new DeploymentPage(Collections.emptyList(), null));
         mockMvc.perform(get("/api/v1/deployment/application/" + appId)
             .contentType(MediaType.APPLICATION_JSON))
             .andExpect(status().isOk());
-        verify(mockDeploymentService, times(1)).listAllForApplication(appId);
+        verify(mockDeploymentService, times(1)).listForApplication(appId, null, 100);
         }
 
     @Test
@@ -321,13 +577,13 @@ class DeploymentControllerV1Test
         deploys.add(d1);
         deploys.add(d2);
 
-        when(mockDeploymentService.listAllForHierarchy(appId)).thenReturn(deploys);
+        when(mockDeploymentService.listForHierarchy(appId, null, 100)).thenReturn(new DeploymentPage(deploys, null));
         
         MvcResult result = mockMvc.perform(get("/api/v1/deployment/hierarchy/" + appId)
             .contentType(MediaType.APPLICATION_JSON))
             .andExpect(status().isOk()).andReturn();
         String content = result.getResponse().getContentAsString();
-        verify(mockDeploymentService, times(1)).listAllForHierarchy(appId);
+        verify(mockDeploymentService, times(1)).listForHierarchy(appId, null, 100);
         assertThat(content, is(equalTo("[{\"id\":null,\"deploymentId\":\"d1\",\"deploymentDesc\":\"\",\"applicationId\":\"a1\",\"rfcId\":\"rfc1\",\"created\":\"2020-10-10T00:00:00.000+00:00\",\"source\":\"\",\"changes\":[],\"leadTimeSeconds\":0,\"leadTimePerfLevel\":null},{\"id\":null,\"deploymentId\":\"d2\",\"deploymentDesc\":\"\",\"applicationId\":\"a2\",\"rfcId\":\"rfc2\",\"created\":\"2020-10-10T00:00:00.000+00:00\",\"source\":\"\",\"changes\":[],\"leadTimeSeconds\":0,\"leadTimePerfLevel\":null}]")));
         }
     
@@ -434,4 +690,237 @@ class DeploymentControllerV1Test
         assertThat(content, is(equalTo("{\"applicationId\":\"" + appId + "\",\"reportingDate\":\"" + dateOut + "\",\"leadTimeSeconds\":120,\"leadTimePerfLevel\":\"ELITE\"}")));
         verify(mockDeploymentService, times(1)).calculateLeadTime(appId, startDate);
         }
-    }
\ No newline at end of file
+
+    @Test
+    void historicalMetricsCarryVersionAndLongCacheLifetime() throws Exception
+        {
+        Date lastModified = Date.from(LocalDate.of(2020, Month.OCTOBER, 5).atStartOfDay().toInstant(ZoneOffset.UTC));
+        when(mockDeploymentService.getHierarchyVersion("a1")).thenReturn(new DataVersion("v1", lastModified));
+        Date startDate = Date.from(LocalDate.of(2020, Month.OCTOBER, 3).atStartOfDay().toInstant(ZoneOffset.UTC));
+        when(mockDeploymentService.calculateDeployFreq("a1", startDate)).thenReturn(new DeploymentFrequency("a1", startDate, 10, TimePeriod.MONTH, DORALevel.MEDIUM));
+
+        mockMvc.perform(get("/api/v1/deployment/application/a1/frequency/2020-10-03")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.ETAG, "\"v1\""))
+            .andExpect(header().string(HttpHeaders.LAST_MODIFIED, "Mon, 05 Oct 2020 00:00:00 GMT"))
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=604800"));
+        }
+
+    @Test
+    void currentMetricsMustBeRevalidated() throws Exception
+        {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        Date startDate = Date.from(today.atStartOfDay().toInstant(ZoneOffset.UTC));
+        when(mockDeploymentService.calculateLeadTime("a1", startDate)).thenReturn(new LeadTime("a1", startDate, 120, DORALevel.ELITE));
+
+        mockMvc.perform(get("/api/v1/deployment/application/a1/lead_time/" + today)
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.ETAG, "\"hierarchy-version\""))
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"));
+        }
+
+    @Test
+    void metricsWithinBackfillHorizonMustBeRevalidated() throws Exception
+        {
+        LocalDate yesterday = LocalDate.now(ZoneOffset.UTC).minusDays(1);
+        Date startDate = Date.from(yesterday.atStartOfDay().toInstant(ZoneOffset.UTC));
+        when(mockDeploymentService.calculateDeployFreq("a1", startDate)).thenReturn(new DeploymentFrequency("a1", startDate, 10, TimePeriod.MONTH, DORALevel.MEDIUM));
+
+        mockMvc.perform(get("/api/v1/deployment/application/a1/frequency/" + yesterday)
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.ETAG, "\"hierarchy-version\""))
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"));
+        }
+
+    @Test
+    void matchingVersionIsNotModified() throws Exception
+        {
+        mockMvc.perform(get("/api/v1/deployment/application/a1/frequency/2020-10-03?window=14")
+            .header(HttpHeaders.IF_NONE_MATCH, "\"hierarchy-version\"")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isNotModified())
+            .andExpect(header().string(HttpHeaders.ETAG, "\"hierarchy-version\""))
+            .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "max-age=604800"));
+        mockMvc.perform(get("/api/v1/deployment/application/a1/lead_time/2020-10-03")
+            .header(HttpHeaders.IF_NONE_MATCH, "\"hierarchy-version\"")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isNotModified());
+        mockMvc.perform(get("/api/v1/deployment/application/a1/date/2020-10-03")
+            .header(HttpHeaders.IF_NONE_MATCH, "\"app-version\"")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isNotModified());
+        verify(mockDeploymentService, never()).calculateDeployFreq(any(), any(), anyInt());
+        verify(mockDeploymentService, never()).calculateLeadTime(any(), any());
+        verify(mockDeploymentService, never()).listAllForApplication(any(), any());
+        }
+
+    @Test
+    void staleVersionIsRecalculated() throws Exception
+        {
+        mockMvc.perform(get("/api/v1/deployment/application/a1/date/2020-10-03")
+            .header(HttpHeaders.IF_NONE_MATCH, "\"old-version\"")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk())
+            .andExpect(header().string(HttpHeaders.ETAG, "\"app-version\""));
+        verify(mockDeploymentService, times(1)).listAllForApplication(eq("a1"), any());
+        }
+
+    @Test
+    void calcDeployFreqWithWindow() throws Exception
+        {
+        LocalDateTime date = LocalDate.of(2020, Month.OCTOBER, 3).atStartOfDay();
+        Date startDate = Date.from(date.toInstant(ZoneOffset.UTC));
+        String appId = "a1";
+        DeploymentFrequency fr = new DeploymentFrequency(appId, startDate, 3, null, DORALevel.HIGH, 14);
+        when(mockDeploymentService.calculateDeployFreq(appId, startDate, 14)).thenReturn(fr);
+
+        MvcResult result = mockMvc.perform(get("/api/v1/deployment/application/" + appId + "/frequency/2020-10-03?window=14")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, is(equalTo("{\"applicationId\":\"" + appId + "\",\"reportingDate\":\"2020-10-03\",\"deploymentCount\":3,\"deployFreqLevel\":\"HIGH\",\"windowDays\":14}")));
+        verify(mockDeploymentService, times(1)).calculateDeployFreq(appId, startDate, 14);
+        verify(mockDeploymentService, never()).calculateDeployFreq(appId, startDate);
+        }
+
+    @Test
+    void calcLeadTimeWithWindow() throws Exception
+        {
+        LocalDateTime date = LocalDate.now().minusDays(1).atStartOfDay();
+        Date endDate = Date.from(date.toInstant(ZoneOffset.UTC));
+        String appId = "a1";
+        LeadTime lt = new LeadTime(appId, endDate, 120, DORALevel.ELITE, 28);
+        when(mockDeploymentService.calculateLeadTime(appId, endDate, 28)).thenReturn(lt);
+
+        MvcResult result = mockMvc.perform(get("/api/v1/deployment/application/" + appId + "/lead_time?window=28")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+
+        String dateOut = DateTimeFormatter.ISO_LOCAL_DATE.format(date);
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, is(equalTo("{\"applicationId\":\"" + appId + "\",\"reportingDate\":\"" + dateOut + "\",\"leadTimeSeconds\":120,\"leadTimePerfLevel\":\"ELITE\",\"windowDays\":28}")));
+        verify(mockDeploymentService, times(1)).calculateLeadTime(appId, endDate, 28);
+        }
+
+    @Test
+    void rejectsInvalidWindow() throws Exception
+        {
+        mockMvc.perform(get("/api/v1/deployment/application/a1/lead_time/2020-10-03?window=0")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/v1/deployment/application/a1/frequency?window=100000")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        verify(mockDeploymentService, never()).calculateLeadTime(any(), any(), anyInt());
+        verify(mockDeploymentService, never()).calculateDeployFreq(any(), any(), anyInt());
+        }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    void calcScorecards() throws Exception
+        {
+        Date reportingDate = Date.from(LocalDate.of(2020, Month.OCTOBER, 3).atStartOfDay(ZoneOffset.UTC).toInstant());
+        doAnswer(invocation -> {
+            Consumer<Scorecard> consumer = invocation.getArgument(2);
+            consumer.accept(new Scorecard("a2", reportingDate, new DeploymentFrequency("a2", reportingDate, 2, TimePeriod.DAY, DORALevel.ELITE), new LeadTime("a2", reportingDate, 60, DORALevel.ELITE)));
+            consumer.accept(Scorecard.failed("a1", reportingDate, "not found"));
+            return null;
+        }).when(mockScorecardService).calculateScorecards(eq(Arrays.asList("a1", "a2")), eq(reportingDate), any(Consumer.class));
+
+        MvcResult started = mockMvc.perform(post("/api/v1/deployment/scorecards")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("{\"applicationIds\":[\"a1\",\"a2\"],\"reportingDate\":\"2020-10-03\"}"))
+            .andExpect(request().asyncStarted()).andReturn();
+        MvcResult result = mockMvc.perform(asyncDispatch(started)).andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, is(equalTo(
+            "{\"applicationId\":\"a2\",\"reportingDate\":\"2020-10-03\",\"deploymentFrequency\":{\"applicationId\":\"a2\",\"reportingDate\":\"2020-10-03\",\"deploymentCount\":2,\"timePeriod\":\"DAY\",\"deployFreqLevel\":\"ELITE\"},\"leadTime\":{\"applicationId\":\"a2\",\"reportingDate\":\"2020-10-03\",\"leadTimeSeconds\":60,\"leadTimePerfLevel\":\"ELITE\"}}\n" +
+            "{\"applicationId\":\"a1\",\"reportingDate\":\"2020-10-03\",\"deploymentFrequency\":null,\"leadTime\":null,\"error\":\"not found\"}\n")));
+        assertThat(result.getResponse().getContentType(), is(equalTo("application/x-ndjson")));
+        }
+
+    @Test
+    void rejectsEmptyScorecardRequest() throws Exception
+        {
+        mockMvc.perform(post("/api/v1/deployment/scorecards")
+            .contentType(MediaType.APPLICATION_JSON)
+            .content("{\"applicationIds\":[]}"))
+            .andExpect(status().isBadRequest());
+        verifyNoInteractions(mockScorecardService);
+        }
+    
+    @Test
+    void calcDeployFreqSeries() throws Exception
+        {
+        Date first = Date.from(LocalDate.of(2020, Month.OCTOBER, 2).atStartOfDay(ZoneOffset.UTC).toInstant());
+        Date last = Date.from(LocalDate.of(2020, Month.OCTOBER, 3).atStartOfDay(ZoneOffset.UTC).toInstant());
+        String appId = "a1";
+        when(mockDeploymentService.calculateDeployFreqSeries(appId, first, last)).thenReturn(Arrays.asList(
+            new DeploymentFrequency(appId, first, 1, TimePeriod.WEEK, DORALevel.HIGH),
+            new DeploymentFrequency(appId, last, 2, TimePeriod.DAY, DORALevel.ELITE)));
+
+        MvcResult result = mockMvc.perform(get("/api/v1/deployment/application/" + appId + "/frequency/series?from=2020-10-02&to=2020-10-03")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, is(equalTo("[{\"applicationId\":\"a1\",\"reportingDate\":\"2020-10-02\",\"deploymentCount\":1,\"timePeriod\":\"WEEK\",\"deployFreqLevel\":\"HIGH\"}," +
+            "{\"applicationId\":\"a1\",\"reportingDate\":\"2020-10-03\",\"deploymentCount\":2,\"timePeriod\":\"DAY\",\"deployFreqLevel\":\"ELITE\"}]")));
+        verify(mockDeploymentService, times(1)).calculateDeployFreqSeries(appId, first, last);
+        }
+
+    @Test
+    void calcLeadTimeSeries() throws Exception
+        {
+        Date day = Date.from(LocalDate.of(2020, Month.OCTOBER, 3).atStartOfDay(ZoneOffset.UTC).toInstant());
+        String appId = "a1";
+        when(mockDeploymentService.calculateLeadTimeSeries(appId, day, day)).thenReturn(Collections.singletonList(
+            new LeadTime(appId, day, 120, DORALevel.ELITE)));
+
+        MvcResult result = mockMvc.perform(get("/api/v1/deployment/application/" + appId + "/lead_time/series?from=2020-10-03&to=2020-10-03")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, is(equalTo("[{\"applicationId\":\"a1\",\"reportingDate\":\"2020-10-03\",\"leadTimeSeconds\":120,\"leadTimePerfLevel\":\"ELITE\"}]")));
+        verify(mockDeploymentService, times(1)).calculateLeadTimeSeries(appId, day, day);
+        }
+
+    @Test
+    void rejectsInvalidSeries() throws Exception
+        {
+        mockMvc.perform(get("/api/v1/deployment/application/a1/frequency/series?from=2020-10-04&to=2020-10-03")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/v1/deployment/application/a1/lead_time/series?from=2000-01-01&to=2020-10-03")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        mockMvc.perform(get("/api/v1/deployment/application/a1/lead_time/series?from=2020-10-01")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isBadRequest());
+        verify(mockDeploymentService, never()).calculateLeadTime(any(), any(), anyInt());
+        verify(mockDeploymentService, never()).calculateDeployFreq(any(), any(), anyInt());
+        }
+    
+    @Test
+    void calcLeadTimeWithPercentiles() throws Exception
+        {
+        LocalDateTime date = LocalDate.of(2020, Month.JULY, 6).atStartOfDay();
+        Date startDate = Date.from(date.toInstant(ZoneOffset.UTC));
+        String appId = "a1";
+        LeadTime lt = new LeadTime(appId, startDate, 120, DORALevel.ELITE, null, new LeadTimePercentiles(60, 300, 3600));
+        when(mockDeploymentService.calculateLeadTime(appId, startDate)).thenReturn(lt);
+
+        MvcResult result = mockMvc.perform(get("/api/v1/deployment/application/" + appId + "/lead_time/2020-07-06")
+            .contentType(MediaType.APPLICATION_JSON))
+            .andExpect(status().isOk()).andReturn();
+
+        String content = result.getResponse().getContentAsString();
+        assertThat(content, is(equalTo("{\"applicationId\":\"a1\",\"reportingDate\":\"2020-07-06\",\"leadTimeSeconds\":120,\"leadTimePerfLevel\":\"ELITE\",\"percentiles\":{\"p50\":60,\"p90\":300,\"p99\":3600}}")));
+        }
+    }
@@ -0,0 +1,170 @@
+package team.deployservice.hierarchy;
+
+import org.junit.jupiter.api.Test;
+import team.deployservice.hierarchy.repo.HierarchyClient;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.Mockito.*;
+
+class HierarchyIndexTest
+    {
+    private final StubHierarchyClient teamService = new StubHierarchyClient()
+        .node("t1", null)
+        .node("t2", "t1")
+        .application("a1", "t1")
+        .application("a2", "t2")
+        .node("t3", null)
+        .application("a3", "t3");
+    //stands in for the hierarchy cache, answering from team-service
+    private final HierarchyClient cache = mock(HierarchyClient.class, delegatesTo(teamService));
+    private final AtomicLong nanos = new AtomicLong();
+
+    private HierarchyIndex index(Set<String> roots)
+        {
+        return new HierarchyIndex(cache, roots, 2, Duration.ofHours(1), nanos::get);
+        }
+
+    @Test
+    void answersConfiguredRootsWithoutLookups()
+        {
+        HierarchyIndex index = index(Set.of("t1"));
+        index.reload();
+        int lookups = teamService.lookups.get();
+
+        assertThat(index.findChildIds("t1"), containsInAnyOrder("t1", "t2", "a1", "a2"));
+        assertThat(index.findApplicationChildIds("t1"), containsInAnyOrder("a1", "a2"));
+        assertThat(index.findApplicationChildIds("t2"), contains("a2"));
+        assertThat(index.snapshot().isUnder("a2", "t1"), is(true));
+        assertThat(teamService.lookups.get(), is(equalTo(lookups)));
+        }
+
+    @Test
+    void reloadsEveryNodeThroughTheCache()
+        {
+        HierarchyIndex index = index(Set.of("t1"));
+        index.reload();
+
+        for(String node : new String[]{"t1", "t2", "a1", "a2"}){
+            verify(cache, times(1)).findChildIds(node);
+        }
+        verify(cache, times(1)).findApplicationChildIds("t1");
+        verifyNoMoreInteractions(cache);
+        }
+
+    @Test
+    void loadsLookedUpNodeWithNextReload()
+        {
+        HierarchyIndex index = index(Set.of("t1"));
+        index.reload();
+
+        assertThat(index.findChildIds("t3"), contains("t3", "a3"));
+        verify(cache, times(1)).findChildIds("t3");
+
+        index.reload();
+        int lookups = teamService.lookups.get();
+        assertThat(index.findChildIds("t3"), containsInAnyOrder("t3", "a3"));
+        assertThat(index.findApplicationChildIds("t3"), contains("a3"));
+        assertThat(teamService.lookups.get(), is(equalTo(lookups)));
+        }
+
+    @Test
+    void reloadPicksUpHierarchyChanges()
+        {
+        HierarchyIndex index = index(Set.of("t1"));
+        index.reload();
+        HierarchySnapshot before = index.snapshot();
+
+        teamService.remove("a2").application("a4", "t2");
+        index.reload();
+
+        assertThat(index.findChildIds("t2"), containsInAnyOrder("t2", "a4"));
+        //readers holding the previous copy keep a consistent view
+        assertThat(before.descendants("t2"), containsInAnyOrder("t2", "a2"));
+        }
+
+    @Test
+    void unknownRootIsLeftOutAndDropped()
+        {
+        HierarchyIndex index = index(Set.of("t1", "missing"));
+        index.reload();
+        assertThat(index.snapshot().size(), is(equalTo(4)));
+
+        int lookups = teamService.lookups.get();
+        index.reload();
+        //t1 and its descendants are looked up again, and the configured root that failed is tried again
+        assertThat(teamService.lookups.get() - lookups, is(equalTo(6)));
+        }
+
+    @Test
+    void doesNotLearnNodesTeamServiceHasNothingFor()
+        {
+        doReturn(Collections.emptyList()).when(cache).findChildIds("missing");
+        HierarchyIndex index = index(Set.of("t1"));
+
+        assertThat(index.findChildIds("missing"), is(empty()));
+        index.reload();
+
+        assertThat(index.snapshot().contains("missing"), is(false));
+        assertThat(index.findChildIds("missing"), is(empty()));
+        verify(cache, times(2)).findChildIds("missing");
+        }
+
+    @Test
+    void learnsLookedUpNodesWithoutConfiguredRoots()
+        {
+        HierarchyIndex index = index(Collections.emptySet());
+        index.reload();
+        assertThat(index.snapshot().size(), is(equalTo(0)));
+
+        index.findChildIds("t2");
+        index.reload();
+
+        assertThat(index.snapshot().descendants("t2"), containsInAnyOrder("t2", "a2"));
+        assertThat(index.snapshot().contains("t1"), is(false));
+        }
+
+    @Test
+    void loadsARootUnderAnotherOnce()
+        {
+        HierarchyIndex index = index(Set.of("t2", "t1"));
+        index.reload();
+
+        assertThat(index.snapshot().ancestors("a2"), contains("t1", "t2", "a2"));
+        assertThat(index.snapshot().size(), is(equalTo(4)));
+        verify(cache, times(1)).findChildIds("t2");
+        }
+
+    @Test
+    void learnedRootsAreBoundedAndExpireUnused()
+        {
+        teamService.node("t4", null).node("t5", null);
+        HierarchyIndex index = index(Set.of("t1"));
+
+        //at most two learned roots are kept
+        index.findChildIds("t3");
+        index.findChildIds("t4");
+        index.findChildIds("t5");
+        index.reload();
+        List<String> learned = Stream.of("t3", "t4", "t5").filter(index.snapshot()::contains).collect(Collectors.toList());
+        assertThat(learned, hasSize(2));
+
+        //a learned root still in use is kept, one left unused past the expiry is not
+        nanos.addAndGet(Duration.ofMinutes(40).toNanos());
+        index.findChildIds(learned.get(0));
+        nanos.addAndGet(Duration.ofMinutes(40).toNanos());
+        index.reload();
+        assertThat(index.snapshot().contains(learned.get(0)), is(true));
+        assertThat(index.snapshot().contains(learned.get(1)), is(false));
+        }
+    }
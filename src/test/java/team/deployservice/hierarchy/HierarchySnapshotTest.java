@@ -0,0 +1,110 @@
+package team.deployservice.hierarchy;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class HierarchySnapshotTest
+    {
+    //t1 has the team t2 and the application a1, t2 has the applications a2 and a3, t3 is a separate tree
+    private final StubHierarchyClient teamService = new StubHierarchyClient()
+        .node("t1", null)
+        .node("t2", "t1")
+        .application("a1", "t1")
+        .application("a2", "t2")
+        .application("a3", "t2")
+        .node("t3", null)
+        .application("a4", "t3");
+
+    private HierarchySnapshot snapshot(String... nodes)
+        {
+        Map<String, Collection<String>> descendants = new HashMap<>();
+        Set<String> applications = new HashSet<>();
+        for(String node : nodes){
+            descendants.put(node, teamService.findChildIds(node));
+            applications.addAll(teamService.findApplicationChildIds(node));
+        }
+        return HierarchySnapshot.of(descendants, applications);
+        }
+
+    @Test
+    void descendantsMatchTeamService()
+        {
+        HierarchySnapshot snapshot = snapshot("t1", "t2", "a1", "a2", "a3", "t3", "a4");
+
+        assertThat(snapshot.size(), is(equalTo(7)));
+        for(String node : new String[]{"t1", "t2", "a1", "a2", "a3", "t3", "a4"}){
+            assertThat(node, snapshot.descendants(node), containsInAnyOrder(teamService.findChildIds(node).toArray()));
+            assertThat(node, snapshot.applicationDescendants(node), containsInAnyOrder(teamService.findApplicationChildIds(node).toArray()));
+        }
+        }
+
+    @Test
+    void answersWhetherNodeIsUnderAnother()
+        {
+        HierarchySnapshot snapshot = snapshot("t1", "t2", "a1", "a2", "a3", "t3", "a4");
+
+        assertThat(snapshot.isUnder("a2", "t1"), is(true));
+        assertThat(snapshot.isUnder("a2", "t2"), is(true));
+        assertThat(snapshot.isUnder("t2", "t2"), is(true));
+        assertThat(snapshot.isUnder("a1", "t2"), is(false));
+        assertThat(snapshot.isUnder("t1", "a2"), is(false));
+        assertThat(snapshot.isUnder("a4", "t1"), is(false));
+        assertThat(snapshot.isUnder("a2", "unknown"), is(false));
+        assertThat(snapshot.isUnder("unknown", "t1"), is(false));
+        }
+
+    @Test
+    void ancestorsRunFromRoot()
+        {
+        HierarchySnapshot snapshot = snapshot("t1", "t2", "a1", "a2", "a3", "t3", "a4");
+
+        assertThat(snapshot.ancestors("a2"), contains("t1", "t2", "a2"));
+        assertThat(snapshot.ancestors("t3"), contains("t3"));
+        assertThat(snapshot.ancestors("unknown"), is(empty()));
+        assertThat(snapshot.nodes().indexOf("t1"), is(lessThan(snapshot.nodes().indexOf("a2"))));
+        }
+
+    @Test
+    void sameHierarchyIsSame()
+        {
+        HierarchySnapshot snapshot = snapshot("t1", "t2", "a1", "a2", "a3");
+
+        assertThat(snapshot.sameAs(snapshot("a3", "a2", "a1", "t2", "t1")), is(true));
+        assertThat(snapshot.sameAs(snapshot("t1", "t2", "a1", "a2")), is(false));
+        }
+
+    @Test
+    void unknownNodeHasNoDescendants()
+        {
+        HierarchySnapshot snapshot = snapshot("t1", "t2", "a1", "a2", "a3");
+
+        assertThat(snapshot.contains("t3"), is(false));
+        assertThat(snapshot.descendants("t3"), is(empty()));
+        assertThat(snapshot.applicationDescendants("t3"), is(empty()));
+        }
+
+    @Test
+    void buildsDeepHierarchyWithoutRecursion()
+        {
+        //a chain n0 > n1 > ... whose descendant sets share one list
+        int depth = 5000;
+        List<String> chain = new ArrayList<>();
+        for(int i = 0; i < depth; i++){
+            chain.add("n" + i);
+        }
+        Map<String, Collection<String>> descendants = new HashMap<>();
+        for(int i = 0; i < depth; i++){
+            descendants.put(chain.get(i), chain.subList(i, depth));
+        }
+        HierarchySnapshot snapshot = HierarchySnapshot.of(descendants, Set.of("n4999"));
+
+        assertThat(snapshot.descendants("n4998"), contains("n4998", "n4999"));
+        assertThat(snapshot.descendants("n0"), hasSize(depth));
+        assertThat(snapshot.applicationDescendants("n0"), contains("n4999"));
+        assertThat(snapshot.isUnder("n4999", "n0"), is(true));
+        }
+    }
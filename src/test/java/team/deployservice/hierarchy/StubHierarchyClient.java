@@ -0,0 +1,63 @@
+package team.deployservice.hierarchy;
+
+import team.deployservice.hierarchy.repo.HierarchyClient;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for team-service with a tree held in memory, counting the lookups it answers. An unknown node fails as
+ * team-service would.
+ */
+public class StubHierarchyClient implements HierarchyClient
+    {
+    private final Map<String, String> parents = new LinkedHashMap<>();
+    private final Set<String> applications = new HashSet<>();
+    public final AtomicInteger lookups = new AtomicInteger();
+
+    public StubHierarchyClient node(String slug, String parent)
+        {
+        parents.put(slug, parent);
+        return this;
+        }
+
+    public StubHierarchyClient application(String slug, String parent)
+        {
+        applications.add(slug);
+        return node(slug, parent);
+        }
+
+    public StubHierarchyClient remove(String slug)
+        {
+        parents.remove(slug);
+        applications.remove(slug);
+        return this;
+        }
+
+    @Override
+    public Collection<String> findApplicationChildIds(String slug)
+        {
+        List<String> ids = new ArrayList<>(findChildIds(slug));
+        ids.retainAll(applications);
+        return ids;
+        }
+
+    @Override
+    public Collection<String> findChildIds(String slug)
+        {
+        lookups.incrementAndGet();
+        if(!parents.containsKey(slug)){
+            throw new IllegalArgumentException("No hierarchy node " + slug);
+        }
+        List<String> ids = new ArrayList<>();
+        for(String node : parents.keySet()){
+            for(String ancestor = node; ancestor != null; ancestor = parents.get(ancestor)){
+                if(ancestor.equals(slug)){
+                    ids.add(node);
+                    break;
+                }
+            }
+        }
+        return ids;
+        }
+    }
@@ -0,0 +1,89 @@
+package team.deployservice.hierarchy.repo;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.*;
+
+class CachingHierarchyClientTest
+    {
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = nanos::get;
+    private final HierarchyClient mockRemote = mock(HierarchyClient.class);
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    //refreshes run on the calling thread so the tests can see their outcome
+    private final CachingHierarchyClient client = new CachingHierarchyClient(mockRemote, meterRegistry,
+        Duration.ofMinutes(5), Duration.ofHours(24), 100, ticker, Runnable::run);
+
+    private void advance(Duration duration)
+        {
+        nanos.addAndGet(duration.toNanos());
+        }
+
+    @Test
+    void cachesLookups()
+        {
+        when(mockRemote.findApplicationChildIds("a1")).thenReturn(Arrays.asList("a1", "a2"));
+        when(mockRemote.findChildIds("a1")).thenReturn(Collections.singletonList("a1"));
+
+        assertThat(client.findApplicationChildIds("a1"), contains("a1", "a2"));
+        assertThat(client.findApplicationChildIds("a1"), contains("a1", "a2"));
+        assertThat(client.findChildIds("a1"), contains("a1"));
+
+        verify(mockRemote, times(1)).findApplicationChildIds("a1");
+        verify(mockRemote, times(1)).findChildIds("a1");
+        }
+
+    @Test
+    void refreshesAfterWrite()
+        {
+        when(mockRemote.findApplicationChildIds("a1")).thenReturn(Collections.singletonList("a1"), Arrays.asList("a1", "a3"));
+        client.findApplicationChildIds("a1");
+        advance(Duration.ofMinutes(6));
+
+        //the read that triggers the refresh is still served the cached ids
+        assertThat(client.findApplicationChildIds("a1"), contains("a1"));
+        assertThat(client.findApplicationChildIds("a1"), contains("a1", "a3"));
+        verify(mockRemote, times(2)).findApplicationChildIds("a1");
+        }
+
+    @Test
+    void servesStaleIdsWhileTeamServiceIsDown()
+        {
+        when(mockRemote.findApplicationChildIds("a1"))
+            .thenReturn(Collections.singletonList("a1"))
+            .thenThrow(new IllegalStateException("team-service unavailable"));
+        client.findApplicationChildIds("a1");
+        advance(Duration.ofHours(1));
+
+        assertThat(client.findApplicationChildIds("a1"), contains("a1"));
+        assertThat(client.findApplicationChildIds("a1"), contains("a1"));
+
+        //once expired there is nothing left to serve
+        advance(Duration.ofHours(24));
+        assertThrows(IllegalStateException.class, () -> client.findApplicationChildIds("a1"));
+        }
+
+    @Test
+    void exportsCacheMetrics()
+        {
+        when(mockRemote.findApplicationChildIds("a1")).thenReturn(Collections.singletonList("a1"));
+        client.findApplicationChildIds("a1");
+        client.findApplicationChildIds("a1");
+
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "hierarchy.application.children").tag("result", "hit").functionCounter().count(), is(equalTo(1.0)));
+        assertThat(meterRegistry.get("cache.gets").tag("cache", "hierarchy.application.children").tag("result", "miss").functionCounter().count(), is(equalTo(1.0)));
+        assertThat(meterRegistry.get("cache.load.duration").tag("cache", "hierarchy.application.children").timeGauge().value(), is(greaterThanOrEqualTo(0.0)));
+        }
+    }
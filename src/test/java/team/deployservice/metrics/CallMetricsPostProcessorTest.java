@@ -0,0 +1,145 @@
+package team.deployservice.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MockClock;
+import io.micrometer.core.instrument.simple.SimpleConfig;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import team.deployservice.hierarchy.StubHierarchyClient;
+import team.deployservice.hierarchy.repo.HierarchyClient;
+import team.deployservice.model.Deployment;
+import team.deployservice.repo.DeploymentRepo;
+import team.deployservice.service.DeploymentService;
+
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CallMetricsPostProcessorTest
+    {
+    private final MockClock clock = new MockClock();
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry(SimpleConfig.DEFAULT, clock);
+    private final CallMetricsPostProcessor postProcessor = new CallMetricsPostProcessor(registryProvider());
+
+    @SuppressWarnings("unchecked")
+    private ObjectProvider<MeterRegistry> registryProvider()
+        {
+        ObjectProvider<MeterRegistry> provider = mock(ObjectProvider.class);
+        when(provider.getObject()).thenAnswer(invocation -> meterRegistry);
+        return provider;
+        }
+
+    //an interface proxy answering every call with the given result
+    @SuppressWarnings("unchecked")
+    private static <T> T answering(Class<T> type, Object result)
+        {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> result);
+        }
+
+    @Test
+    void timesHierarchyLookupsAndCountsIds()
+        {
+        StubHierarchyClient teamService = new StubHierarchyClient().node("t1", null).application("a1", "t1");
+        StubHierarchyClient client = (StubHierarchyClient) postProcessor.postProcessAfterInitialization(teamService, "stub");
+
+        assertThat(client.findChildIds("t1"), containsInAnyOrder("t1", "a1"));
+        assertThrows(IllegalArgumentException.class, () -> client.findChildIds("t2"));
+
+        assertThat(meterRegistry.get("deployservice.hierarchy.client")
+            .tags("client", "StubHierarchyClient", "method", "findChildIds", "outcome", "success").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.hierarchy.client").tags("outcome", "error").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.hierarchy.ids").summary().totalAmount(), is(2.0));
+        }
+
+    @Test
+    void remoteClientIsTaggedAsTeamService()
+        {
+        HierarchyClient remote = (HierarchyClient) postProcessor.postProcessAfterInitialization(answering(HierarchyClient.class, null), "remote");
+
+        remote.findApplicationChildIds("t1");
+
+        assertThat(meterRegistry.get("deployservice.hierarchy.client").tags("client", "team-service").timer().count(), is(1L));
+        }
+
+    @Test
+    void tagsServiceMetricsWithTheirWindow()
+        {
+        DeploymentService service = (DeploymentService) postProcessor.postProcessAfterInitialization(answering(DeploymentService.class, null), "service");
+
+        service.calculateDeployFreq("a1", new Date());
+        service.calculateDeployFreq("a1", new Date(), 28);
+        service.calculateLeadTime("a1", new Date(), 400);
+        service.get("d1");
+
+        assertThat(meterRegistry.get("deployservice.service").tags("method", "calculateDeployFreq", "window", "default").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.service").tags("method", "calculateDeployFreq", "window", "30").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.service").tags("method", "calculateLeadTime", "window", "longer").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.service").tags("method", "get", "window", "none").timer().count(), is(1L));
+        }
+
+    @Test
+    void countsStreamedDocumentsWhenClosed()
+        {
+        Deployment deployment = mock(Deployment.class);
+        DeploymentRepo repo = (DeploymentRepo) postProcessor.postProcessAfterInitialization(
+            answering(DeploymentRepo.class, Stream.of(deployment, deployment)), "deploymentRepo");
+
+        try(Stream<Deployment> deployments = repo.streamByApplicationId("a1")){
+            assertThat(deployments.count(), is(2L));
+        }
+
+        assertThat(meterRegistry.get("deployservice.repository")
+            .tags("repository", "DeploymentRepo", "method", "streamByApplicationId").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.repository.documents").summary().totalAmount(), is(2.0));
+        }
+
+    @Test
+    void timesStreamsUntilTheyAreClosed()
+        {
+        Deployment deployment = mock(Deployment.class);
+        //each document takes 50ms to read
+        DeploymentRepo repo = (DeploymentRepo) postProcessor.postProcessAfterInitialization(
+            answering(DeploymentRepo.class, Stream.of(deployment, deployment).peek(read -> clock.add(Duration.ofMillis(50)))), "deploymentRepo");
+
+        try(Stream<Deployment> deployments = repo.streamAllBy()){
+            deployments.forEach(read -> {});
+            assertThat(meterRegistry.find("deployservice.repository").timer(), is(nullValue()));
+        }
+
+        assertThat(meterRegistry.get("deployservice.repository")
+            .tags("method", "streamAllBy", "outcome", "success").timer().totalTime(TimeUnit.MILLISECONDS), is(100.0));
+        }
+
+    @Test
+    void failedStreamReadIsAnError()
+        {
+        DeploymentRepo repo = (DeploymentRepo) postProcessor.postProcessAfterInitialization(
+            answering(DeploymentRepo.class, Stream.generate(() -> {
+                throw new IllegalStateException("cursor killed");
+            })), "deploymentRepo");
+
+        try(Stream<Deployment> deployments = repo.streamAllBy()){
+            assertThrows(IllegalStateException.class, () -> deployments.forEach(read -> {}));
+        }
+
+        assertThat(meterRegistry.get("deployservice.repository")
+            .tags("method", "streamAllBy", "outcome", "error").timer().count(), is(1L));
+        }
+
+    @Test
+    void leavesOtherBeansAlone()
+        {
+        Object bean = new Object();
+
+        assertThat(postProcessor.postProcessAfterInitialization(bean, "other"), is(sameInstance(bean)));
+        }
+    }
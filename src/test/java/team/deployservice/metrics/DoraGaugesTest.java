@@ -0,0 +1,141 @@
+package team.deployservice.metrics;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import team.deployservice.model.*;
+import team.deployservice.service.DataVersions;
+import team.deployservice.service.DeploymentService;
+
+import java.time.*;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class DoraGaugesTest
+    {
+    private static final Instant NOW = Instant.parse("2020-03-10T12:00:00Z");
+    private final DeploymentService mockDeploymentService = mock(DeploymentService.class);
+    private final DataVersions mockDataVersions = mock(DataVersions.class);
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MovableClock clock = new MovableClock();
+    private final DoraGauges gauges = new DoraGauges(mockDeploymentService, mockDataVersions, meterRegistry, 2, clock);
+
+    //a clock the test moves on
+    private static final class MovableClock extends Clock
+        {
+        private Instant now = NOW;
+
+        @Override
+        public ZoneId getZone()
+            {
+            return ZoneOffset.UTC;
+            }
+
+        @Override
+        public Clock withZone(ZoneId zone)
+            {
+            return this;
+            }
+
+        @Override
+        public Instant instant()
+            {
+            return now;
+            }
+        }
+
+    @BeforeEach
+    void calculateMetrics()
+        {
+        when(mockDeploymentService.calculateDeployFreq(any(), any())).thenAnswer(invocation ->
+            new DeploymentFrequency(invocation.getArgument(0), invocation.getArgument(1), 3, TimePeriod.WEEK, DORALevel.HIGH));
+        when(mockDeploymentService.calculateLeadTime(any(), any())).thenAnswer(invocation ->
+            new LeadTime(invocation.getArgument(0), invocation.getArgument(1), 3600, DORALevel.ELITE));
+        }
+
+    private static ApplicationVersion version(String applicationId, long version, int lastModifiedDay)
+        {
+        return new ApplicationVersion(applicationId, version, Date.from(NOW.minus(Duration.ofDays(lastModifiedDay))));
+        }
+
+    private double gauge(String name, String applicationId)
+        {
+        return meterRegistry.get(name).tag("application", applicationId).gauge().value();
+        }
+
+    @Test
+    void publishesEachApplicationsMetrics()
+        {
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 1, 0), version("a2", 1, 0)));
+
+        gauges.refresh();
+
+        assertThat(gauge("deployservice.dora.deployments", "a1"), is(3.0));
+        assertThat(gauge("deployservice.dora.deployment.frequency.level", "a1"), is((double) DORALevel.HIGH.ordinal()));
+        assertThat(gauge("deployservice.dora.lead.time", "a2"), is(3600.0));
+        assertThat(gauge("deployservice.dora.lead.time.level", "a2"), is((double) DORALevel.ELITE.ordinal()));
+        verify(mockDeploymentService).calculateDeployFreq("a1", Date.from(NOW));
+        }
+
+    @Test
+    void recalculatesOnlyChangedApplications()
+        {
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 1, 0), version("a2", 1, 0)));
+        gauges.refresh();
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 2, 0), version("a2", 1, 0)));
+
+        gauges.refresh();
+        gauges.refresh();
+
+        verify(mockDeploymentService, times(2)).calculateDeployFreq(eq("a1"), any());
+        verify(mockDeploymentService, times(1)).calculateDeployFreq(eq("a2"), any());
+        }
+
+    @Test
+    void recalculatesEveryApplicationOnANewDay()
+        {
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 1, 0), version("a2", 1, 0)));
+        gauges.refresh();
+        clock.now = NOW.plus(Duration.ofHours(1));
+        gauges.refresh();
+        clock.now = NOW.plus(Duration.ofDays(1));
+
+        gauges.refresh();
+
+        verify(mockDeploymentService, times(2)).calculateLeadTime(eq("a1"), any());
+        verify(mockDeploymentService, times(2)).calculateLeadTime(eq("a2"), any());
+        }
+
+    @Test
+    void publishesOnlyTheMostRecentlyDeployedApplications()
+        {
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 1, 0), version("a2", 1, 2)));
+        gauges.refresh();
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 1, 0), version("a2", 1, 2), version("a3", 1, 1)));
+
+        gauges.refresh();
+
+        assertThat(meterRegistry.find("deployservice.dora.deployments").gauges(), hasSize(2));
+        assertThat(meterRegistry.find("deployservice.dora.deployments").tag("application", "a2").gauge(), is(nullValue()));
+        assertThat(gauge("deployservice.dora.deployments", "a3"), is(3.0));
+        }
+
+    @Test
+    void keepsPublishingWhenOneApplicationFails()
+        {
+        when(mockDataVersions.all()).thenReturn(Arrays.asList(version("a1", 1, 0), version("a2", 1, 0)));
+        when(mockDeploymentService.calculateDeployFreq(eq("a1"), any())).thenThrow(new IllegalStateException("team-service unavailable"));
+
+        gauges.refresh();
+
+        assertThat(meterRegistry.find("deployservice.dora.deployments").tag("application", "a1").gauge(), is(nullValue()));
+        assertThat(gauge("deployservice.dora.deployments", "a2"), is(3.0));
+        }
+    }
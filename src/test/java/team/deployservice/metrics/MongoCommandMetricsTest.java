@@ -0,0 +1,137 @@
+package team.deployservice.metrics;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class MongoCommandMetricsTest
+    {
+    private static final ConnectionDescription CONNECTION = new ConnectionDescription(new ServerId(new ClusterId(), new ServerAddress()));
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final List<BsonDocument> explained = new ArrayList<>();
+    private final MongoCommandMetrics metrics = new MongoCommandMetrics(meterRegistry, Duration.ofMillis(500), (database, command) -> {
+        explained.add(command);
+        return Document.parse("{queryPlanner: {winningPlan: {stage: 'FETCH', inputStage: {stage: 'IXSCAN', indexName: 'applicationId_created_id'}}}}");
+    }, Runnable::run);
+    private int requestId;
+
+    //the driver hands commands and replies over as raw bytes
+    private void run(String commandName, String command, String response, long millis)
+        {
+        requestId++;
+        metrics.commandStarted(new CommandStartedEvent(requestId, CONNECTION, "deployservice", commandName, raw(command)));
+        metrics.commandSucceeded(new CommandSucceededEvent(requestId, CONNECTION, commandName, raw(response), TimeUnit.MILLISECONDS.toNanos(millis)));
+        }
+
+    private static RawBsonDocument raw(String json)
+        {
+        return new RawBsonDocument(BsonDocument.parse(json), new BsonDocumentCodec());
+        }
+
+    @Test
+    void tagsCommandsWithCollectionAndRepositoryMethod()
+        {
+        String previous = RepositoryMethod.enter("DeploymentRepo.findByApplicationId");
+        try {
+            run("find", "{find: 'deployment', filter: {applicationId: 'a1'}}", "{cursor: {id: 0, firstBatch: [{_id: 1}, {_id: 2}]}, ok: 1}", 5);
+        } finally {
+            RepositoryMethod.exit(previous);
+        }
+        run("insert", "{insert: 'deployment', documents: [{_id: 3}]}", "{n: 1, ok: 1}", 5);
+
+        assertThat(meterRegistry.get("deployservice.mongo.command")
+            .tags("command", "find", "collection", "deployment", "method", "DeploymentRepo.findByApplicationId", "status", "success").timer().count(), is(1L));
+        assertThat(meterRegistry.get("deployservice.mongo.command.documents").tags("command", "find").summary().totalAmount(), is(2.0));
+        assertThat(meterRegistry.get("deployservice.mongo.command.documents").tags("command", "insert", "method", "none").summary().totalAmount(), is(1.0));
+        assertThat(meterRegistry.get("deployservice.mongo.command.bytes").tags("command", "insert").summary().totalAmount(), is(greaterThan(0.0)));
+        }
+
+    @Test
+    void attributesLaterBatchesToTheMethodThatOpenedTheCursor()
+        {
+        String previous = RepositoryMethod.enter("DeploymentRepo.streamAllBy");
+        try {
+            run("find", "{find: 'deployment', filter: {}}", "{cursor: {id: NumberLong(42), firstBatch: [{_id: 1}]}, ok: 1}", 5);
+        } finally {
+            RepositoryMethod.exit(previous);
+        }
+        run("getMore", "{getMore: NumberLong(42), collection: 'deployment'}", "{cursor: {id: NumberLong(0), nextBatch: [{_id: 2}, {_id: 3}]}, ok: 1}", 5);
+
+        assertThat(meterRegistry.get("deployservice.mongo.command.documents")
+            .tags("command", "getMore", "collection", "deployment", "method", "DeploymentRepo.streamAllBy").summary().totalAmount(), is(2.0));
+        }
+
+    @Test
+    void recordsFailedCommands()
+        {
+        metrics.commandStarted(new CommandStartedEvent(1, CONNECTION, "deployservice", "insert", BsonDocument.parse("{insert: 'deployment', documents: []}")));
+        metrics.commandFailed(new CommandFailedEvent(1, CONNECTION, "insert", 1000, new IllegalStateException("duplicate key")));
+
+        assertThat(meterRegistry.get("deployservice.mongo.command").tags("status", "failed").timer().count(), is(1L));
+        }
+
+    @Test
+    void explainsOnlySlowQueries()
+        {
+        run("find", "{find: 'deployment', filter: {applicationId: 'a1'}, lsid: {id: 1}, $db: 'deployservice'}", "{cursor: {id: 0, firstBatch: []}, ok: 1}", 5);
+        run("update", "{update: 'deployment', updates: [{q: {applicationId: 'a1'}, u: {$set: {ancestors: ['t1']}}}]}", "{n: 1, ok: 1}", 800);
+        run("find", "{find: 'deployment', filter: {applicationId: 'a1'}, lsid: {id: 1}, $db: 'deployservice'}", "{cursor: {id: 0, firstBatch: []}, ok: 1}", 800);
+
+        assertThat(explained, hasSize(1));
+        assertThat(explained.get(0), equalTo(BsonDocument.parse("{explain: {find: 'deployment', filter: {applicationId: 'a1'}}, verbosity: 'queryPlanner'}")));
+        }
+
+    @Test
+    void redactsFilterValues()
+        {
+        String shape = MongoCommandMetrics.shape("find", BsonDocument.parse(
+            "{find: 'deployment', filter: {applicationId: {$in: ['a1', 'a2']}, created: {$gte: {$date: 0}}}, sort: {created: -1}}"));
+
+        assertThat(BsonDocument.parse(shape), equalTo(BsonDocument.parse(
+            "{filter: {applicationId: {$in: ['?']}, created: {$gte: '?'}}, sort: {created: -1}}")));
+        assertThat(MongoCommandMetrics.shape("aggregate", BsonDocument.parse("{aggregate: 'deployment', pipeline: [{$match: {applicationId: 'a1'}}, {$group: {_id: '$applicationId'}}]}")),
+            equalTo("{\"pipeline\": [{\"$match\": {\"applicationId\": \"?\"}}, {\"$group\": {\"_id\": \"$applicationId\"}}]}"));
+        assertThat(MongoCommandMetrics.shape("insert", BsonDocument.parse("{insert: 'deployment'}")), is(nullValue()));
+        }
+
+    @Test
+    void summarisesTheWinningPlan()
+        {
+        Document explainedAggregate = Document.parse("{stages: [{$cursor: {queryPlanner: {winningPlan: {stage: 'PROJECTION_COVERED', inputStage: "
+            + "{stage: 'IXSCAN', indexName: 'applicationId_day'}}, rejectedPlans: [{stage: 'COLLSCAN'}]}}}]}");
+
+        assertThat(MongoCommandMetrics.planSummary(explainedAggregate), equalTo("PROJECTION_COVERED <- IXSCAN applicationId_day"));
+        assertThat(MongoCommandMetrics.planSummary(new Document()), equalTo("none"));
+        }
+
+    @Test
+    void measuresReplySizeFromItsBytes()
+        {
+        RawBsonDocument response = raw("{cursor: {id: 0, firstBatch: [{_id: 1, applicationId: 'a1'}]}, ok: 1}");
+
+        assertThat(MongoCommandMetrics.sizeOf(response), is(response.getByteBuffer().remaining()));
+        assertThat(MongoCommandMetrics.sizeOf(BsonDocument.parse("{ok: 1}")), is(-1));
+        assertThat(MongoCommandMetrics.documents(BsonDocument.parse("{value: null, ok: 1}")), is(0L));
+        assertThat(MongoCommandMetrics.documents(BsonDocument.parse("{values: ['a1', 'a2'], ok: 1}")), is(2L));
+        assertThat(MongoCommandMetrics.documents(BsonDocument.parse("{ok: 1}")), is(-1L));
+        }
+    }
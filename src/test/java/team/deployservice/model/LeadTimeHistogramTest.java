@@ -0,0 +1,89 @@
+package team.deployservice.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class LeadTimeHistogramTest
+    {
+    private static final double[] QUANTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1.0};
+
+    private static long exactPercentile(long[] sorted, double quantile)
+        {
+        long rank = Math.max(1, (long) Math.ceil(quantile * sorted.length));
+        return sorted[(int) rank - 1];
+        }
+
+    private static void assertWithinBound(LeadTimeHistogram histogram, long[] leadTimes)
+        {
+        long[] sorted = leadTimes.clone();
+        Arrays.sort(sorted);
+        for(double quantile : QUANTILES){
+            long exact = Math.max(0, exactPercentile(sorted, quantile));
+            assertThat("quantile " + quantile, (double) histogram.percentile(quantile),
+                closeTo(exact, exact * LeadTimeHistogram.RELATIVE_ACCURACY + 0.5));
+        }
+        }
+
+    @Test
+    void percentilesAreWithinTheRelativeAccuracyOfExactPercentiles()
+        {
+        Random random = new Random(42);
+        //lead times are heavily skewed, from seconds to a couple of years
+        long[] leadTimes = new long[100000];
+        LeadTimeHistogram histogram = new LeadTimeHistogram();
+        for(int i = 0; i < leadTimes.length; i++){
+            leadTimes[i] = (long) Math.exp(random.nextDouble() * Math.log(60_000_000L));
+            histogram.add(leadTimes[i]);
+        }
+        assertThat(histogram.count(), is(equalTo(100000L)));
+        assertWithinBound(histogram, leadTimes);
+        }
+
+    @Test
+    void mergedDailyHistogramsMatchExactPercentilesOfAllDays()
+        {
+        Random random = new Random(7);
+        List<Long> all = new ArrayList<>();
+        LeadTimeHistogram merged = new LeadTimeHistogram();
+        for(int day = 0; day < 90; day++){
+            Map<String, Long> buckets = new HashMap<>();
+            int changes = random.nextInt(50);
+            for(int i = 0; i < changes; i++){
+                long leadTime = (long) (random.nextGaussian() * 3600 * 24 + 3600 * 48);
+                all.add(leadTime);
+                buckets.merge(String.valueOf(LeadTimeHistogram.bucketOf(leadTime)), 1L, Long::sum);
+            }
+            merged.add(buckets);
+        }
+        assertWithinBound(merged, all.stream().mapToLong(Long::longValue).toArray());
+        }
+
+    @Test
+    void removeBacksOutAMergedHistogram()
+        {
+        Map<String, Long> day1 = Collections.singletonMap(String.valueOf(LeadTimeHistogram.bucketOf(100)), 3L);
+        Map<String, Long> day2 = Collections.singletonMap(String.valueOf(LeadTimeHistogram.bucketOf(5000)), 1L);
+        LeadTimeHistogram histogram = new LeadTimeHistogram();
+        histogram.add(day1);
+        histogram.add(day2);
+        assertThat(histogram.percentile(1.0), is(equalTo(LeadTimeHistogram.valueOf(LeadTimeHistogram.bucketOf(5000)))));
+        histogram.remove(day2);
+        assertThat(histogram.count(), is(equalTo(3L)));
+        assertThat(histogram.percentile(1.0), is(equalTo(LeadTimeHistogram.valueOf(LeadTimeHistogram.bucketOf(100)))));
+        }
+
+    @Test
+    void leadTimesBelowOneSecondAreReportedAsZero()
+        {
+        LeadTimeHistogram histogram = new LeadTimeHistogram();
+        histogram.add(-3600);
+        histogram.add(0);
+        histogram.add(1);
+        assertThat(histogram.percentile(0.5), is(equalTo(0L)));
+        assertThat(histogram.percentile(1.0), is(equalTo(1L)));
+        }
+    }
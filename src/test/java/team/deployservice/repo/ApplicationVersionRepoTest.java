@@ -0,0 +1,64 @@
+package team.deployservice.repo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import team.deployservice.MongoDBContainerTest;
+import team.deployservice.model.ApplicationVersion;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class ApplicationVersionRepoTest extends MongoDBContainerTest
+    {
+
+    @Autowired
+    ApplicationVersionRepo versionRepo;
+
+    @AfterEach
+    void tearDown()
+        {
+        versionRepo.deleteAll();
+        }
+
+    @Test
+    public void incrementCreatesAndUpdatesVersion()
+        {
+        versionRepo.increment("a1");
+        ApplicationVersion first = versionRepo.findById("a1").orElseThrow();
+        versionRepo.increment("a1");
+        ApplicationVersion second = versionRepo.findById("a1").orElseThrow();
+
+        assertThat(first.getVersion(), is(equalTo(1L)));
+        assertThat(second.getVersion(), is(equalTo(2L)));
+        assertThat(second.getLastModified(), is(not(lessThan(first.getLastModified()))));
+        assertThat(versionRepo.findById("a2").isPresent(), is(false));
+        }
+    
+    @Test
+    public void incrementAllIncrementsEachApplication()
+        {
+        versionRepo.increment("a1");
+        versionRepo.incrementAll(Arrays.asList("a1", "a2"));
+
+        assertThat(versionRepo.findById("a1").orElseThrow().getVersion(), is(equalTo(2L)));
+        assertThat(versionRepo.findById("a2").orElseThrow().getVersion(), is(equalTo(1L)));
+        }
+
+    @Test
+    public void findsTheVersionsModifiedSinceATime()
+        {
+        versionRepo.increment("a1");
+        Date a1 = versionRepo.findById("a1").orElseThrow().getLastModified();
+        versionRepo.incrementAll(Arrays.asList("a2", "a3"));
+
+        assertThat(versionRepo.findByLastModifiedGreaterThan(new Date(a1.getTime() - 1)).stream()
+            .map(ApplicationVersion::getApplicationId).collect(Collectors.toSet()), is(equalTo(Set.of("a1", "a2", "a3"))));
+        assertThat(versionRepo.findByLastModifiedGreaterThan(new Date(System.currentTimeMillis() + 60_000)), is(empty()));
+        }
+    }
@@ -0,0 +1,191 @@
+package team.deployservice.repo;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.MongoClientSettingsBuilderCustomizer;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.Range;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import team.deployservice.MongoDBContainerTest;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentCursor;
+import team.deployservice.model.DeploymentRollup;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+/**
+ * Explains every query the repositories send and fails on a collection scan, so a query that no declared index
+ * serves is caught here rather than in production. Exports and rebuilds read whole collections by design and are
+ * not covered.
+ */
+@Import(DeploymentQueryPlanTest.QueryRecorderConfiguration.class)
+class DeploymentQueryPlanTest extends MongoDBContainerTest
+    {
+    private static final Set<String> QUERIES = new HashSet<>(Arrays.asList("find", "aggregate", "count", "distinct", "findAndModify"));
+
+    @TestConfiguration
+    static class QueryRecorderConfiguration
+        {
+        @Bean
+        QueryRecorder queryRecorder()
+            {
+            return new QueryRecorder();
+            }
+
+        @Bean
+        MongoClientSettingsBuilderCustomizer recordQueries(QueryRecorder queryRecorder)
+            {
+            return settings -> settings.addCommandListener(queryRecorder);
+            }
+        }
+
+    static class QueryRecorder implements CommandListener
+        {
+        private final List<BsonDocument> queries = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void commandStarted(CommandStartedEvent event)
+            {
+            if(QUERIES.contains(event.getCommandName())){
+                //the event's document is only valid during the callback
+                queries.add(event.getCommand().clone());
+            }
+            }
+        }
+
+    @Autowired
+    DeploymentRepo deploymentRepo;
+
+    @Autowired
+    DeploymentRollupRepo rollupRepo;
+
+    @Autowired
+    ApplicationVersionRepo versionRepo;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    QueryRecorder queryRecorder;
+
+    private final Date end = Date.from(Instant.now().plus(1, ChronoUnit.DAYS));
+    private final Date start = Date.from(Instant.now().minus(30, ChronoUnit.DAYS));
+    private final List<String> applicationIds = Arrays.asList("a1", "a2");
+
+    @BeforeEach
+    void setUp()
+        {
+        for(int i = 0; i < 20; i++){
+            deploymentRepo.save(new Deployment("d" + i, "deployment " + i, "a" + (i % 4), "rfc1",
+                Date.from(Instant.now().minus(i, ChronoUnit.DAYS)), "test", new HashSet<>()));
+        }
+        rollupRepo.increment("a1", start, 1, 0, 0, Collections.emptyMap());
+        queryRecorder.queries.clear();
+        }
+
+    @AfterEach
+    void tearDown()
+        {
+        deploymentRepo.deleteAll();
+        rollupRepo.deleteAll();
+        versionRepo.deleteAll();
+        }
+
+    @Test
+    public void deploymentQueriesUseIndexes()
+        {
+        deploymentRepo.findByDeploymentId("d1");
+        deploymentRepo.findByApplicationIdAndCreatedBetweenOrderByCreated("a1", start, end);
+        deploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated(applicationIds, start, end);
+        List<Deployment> page = deploymentRepo.findPage(null, 5);
+        deploymentRepo.findPage(DeploymentCursor.after(page.get(page.size() - 1)), 5);
+        List<Deployment> applicationPage = deploymentRepo.findPageByApplicationIdIn(applicationIds, null, 3);
+        deploymentRepo.findPageByApplicationIdIn(applicationIds, DeploymentCursor.after(applicationPage.get(applicationPage.size() - 1)), 3);
+        deploymentRepo.setAncestors(Collections.singletonMap("a1", Arrays.asList("t1", "a1")), Collections.emptyList());
+        List<Deployment> ancestorPage = deploymentRepo.findPageByAncestor("t1", null, 2);
+        deploymentRepo.findPageByAncestor("t1", DeploymentCursor.after(ancestorPage.get(ancestorPage.size() - 1)), 2);
+        deploymentRepo.findExistingDeploymentIds(Arrays.asList("d1", "d2", "missing"));
+        deploymentRepo.insertIfAbsent(new Deployment("d1", "deployment 1 again", "a1", "rfc1", new Date(), "test", new HashSet<>()));
+        try(Stream<Deployment> application = deploymentRepo.streamByApplicationId("a1");
+            Stream<Deployment> applications = deploymentRepo.streamByApplicationIdIn(applicationIds);
+            Stream<Deployment> hierarchy = deploymentRepo.streamByAncestors("t1")){
+            application.forEach(deployment -> {});
+            applications.forEach(deployment -> {});
+            hierarchy.forEach(deployment -> {});
+        }
+
+        assertNoCollectionScans();
+        }
+
+    @Test
+    public void rollupQueriesUseIndexes()
+        {
+        rollupRepo.findByApplicationIdInAndDayBetween(applicationIds, Range.closed(start, end));
+        DeploymentRollup written = rollupRepo.increment("a1", start, 1, 0, 0, Collections.emptyMap());
+        rollupRepo.incrementAll(Collections.singletonList(new DeploymentRollupDelta("a2", start)));
+        rollupRepo.findFirstByOrderByModifiedDesc();
+        try(Stream<DeploymentRollup> changed = rollupRepo.streamByModifiedGreaterThan(written.getModified())){
+            changed.forEach(rollup -> {});
+        }
+
+        assertNoCollectionScans();
+        }
+
+    @Test
+    public void versionQueriesUseIndexes()
+        {
+        versionRepo.incrementAll(applicationIds);
+        versionRepo.findByLastModifiedGreaterThan(start);
+
+        assertNoCollectionScans();
+        }
+
+    private void assertNoCollectionScans()
+        {
+        List<BsonDocument> queries = new ArrayList<>(queryRecorder.queries);
+        assertThat(queries, is(not(empty())));
+        for(BsonDocument query : queries){
+            for(String field : Arrays.asList("$db", "lsid", "$clusterTime", "$readPreference", "txnNumber")){
+                query.remove(field);
+            }
+            Document explained = mongoTemplate.getDb().runCommand(new Document("explain", query).append("verbosity", "queryPlanner"));
+            assertThat("Collection scan for " + query.toJson() + " in " + explained.toJson(), collectionScan(explained, false), is(false));
+        }
+        }
+
+    private static boolean collectionScan(Object node, boolean winningPlan)
+        {
+        if(node instanceof Document){
+            for(Map.Entry<String, Object> entry : ((Document) node).entrySet()){
+                if(winningPlan && entry.getKey().equals("stage") && "COLLSCAN".equals(entry.getValue())){
+                    return true;
+                }
+                if(!entry.getKey().equals("rejectedPlans") && collectionScan(entry.getValue(), winningPlan || entry.getKey().equals("winningPlan"))){
+                    return true;
+                }
+            }
+        } else if(node instanceof List){
+            for(Object element : (List<?>) node){
+                if(collectionScan(element, winningPlan)){
+                    return true;
+                }
+            }
+        }
+        return false;
+        }
+    }
@@ -4,19 +4,26 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import team.deployservice.MongoDBContainerTest;
 import team.deployservice.model.Change;
 import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentCursor;
+import team.deployservice.model.IngestResult;
 
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class DeploymentRepoTest extends MongoDBContainerTest
     {
@@ -54,13 +61,6 @@ class DeploymentRepoTest extends MongoDBContainerTest
             assertThat(d123.get().getDeploymentId(), is(equalTo("d1")));
         }
 
-    @Test
-    public void getAllWithApplicationId()
-        {
-        List<Deployment> deploys = repo.findByApplicationId("a1");
-        assertThat(deploys.size(), is(equalTo(2)));
-        }
-
     @Test
     public void getAllForDateRange()
         {
@@ -84,9 +84,122 @@ class DeploymentRepoTest extends MongoDBContainerTest
         }
 
     @Test
-    public void getAllAppsUsingIn()
+    public void pagesWalkEveryDeploymentNewestFirst()
         {
-        List<Deployment> deploys = repo.findByApplicationIdInOrderByCreatedDesc(Arrays.asList("a1", "a2"));
-        assertThat(deploys.size(), is(equalTo(3)));
+        //two more deployments sharing one created time, so the id breaks the tie across a page boundary
+        Date tied = Date.from(Instant.now().minusSeconds(60));
+        repo.save(new Deployment("d5", "deployment v5", "a1", "rfc123", tied, "test", new HashSet<>()));
+        repo.save(new Deployment("d6", "deployment v6", "a2", "rfc123", tied, "test", new HashSet<>()));
+        List<Deployment> expected = repo.findAll();
+        expected.sort(Comparator.comparing(Deployment::getCreated).thenComparing(Deployment::getId).reversed());
+
+        List<Deployment> walked = new ArrayList<>();
+        DeploymentCursor after = null;
+        do{
+            List<Deployment> page = repo.findPage(after, 2);
+            walked.addAll(page);
+            after = page.size() < 2 ? null : DeploymentCursor.after(page.get(page.size() - 1));
+        } while(after != null);
+
+        assertThat(walked, is(equalTo(expected)));
+        }
+
+    @Test
+    public void pagesForApplications()
+        {
+        List<Deployment> first = repo.findPageByApplicationIdIn(Arrays.asList("a1", "a2"), null, 2);
+        List<Deployment> second = repo.findPageByApplicationIdIn(Arrays.asList("a1", "a2"), DeploymentCursor.after(first.get(1)), 2);
+
+        assertThat(first.size(), is(equalTo(2)));
+        assertThat(second.size(), is(equalTo(1)));
+        assertThat(first.get(1).getCreated().before(second.get(0).getCreated()), is(false));
+        }
+    
+    @Test
+    public void queriesByAncestor()
+        {
+        Map<String, List<String>> paths = new HashMap<>();
+        paths.put("a1", Arrays.asList("t1", "a1"));
+        paths.put("a2", Arrays.asList("t1", "t2", "a2"));
+        assertThat(repo.setAncestors(paths, Collections.emptyList()), is(equalTo(3L)));
+        //a deployment already on the path is not written again
+        assertThat(repo.setAncestors(paths, Collections.emptyList()), is(equalTo(0L)));
+
+        List<Deployment> first = repo.findPageByAncestor("t1", null, 2);
+        List<Deployment> second = repo.findPageByAncestor("t1", DeploymentCursor.after(first.get(1)), 2);
+        assertThat(first.size(), is(equalTo(2)));
+        assertThat(second.size(), is(equalTo(1)));
+        try(Stream<Deployment> tagged = repo.streamByAncestors("t2")){
+            assertThat(tagged.count(), is(equalTo(1L)));
+        }
+        }
+
+    @Test
+    public void untagsApplicationsOutsideTheNodes()
+        {
+        Map<String, List<String>> paths = new HashMap<>();
+        paths.put("a1", Arrays.asList("t1", "a1"));
+        paths.put("a2", Arrays.asList("t1", "t2", "a2"));
+        repo.setAncestors(paths, Collections.emptyList());
+
+        //a2 left the hierarchy, so its deployment keeps only itself
+        paths.remove("a2");
+        assertThat(repo.setAncestors(paths, Arrays.asList("t1", "t2", "a1")), is(equalTo(1L)));
+
+        assertThat(repo.findByDeploymentId("d3").get().getAncestors(), is(equalTo(Collections.singletonList("a2"))));
+        assertThat(repo.findByDeploymentId("d1").get().getAncestors(), is(equalTo(Arrays.asList("t1", "a1"))));
+        }
+
+    @Test
+    public void streamsForExport()
+        {
+        try(Stream<Deployment> all = repo.streamAllBy();
+            Stream<Deployment> app = repo.streamByApplicationId("a1");
+            Stream<Deployment> apps = repo.streamByApplicationIdIn(Arrays.asList("a1", "a2"))){
+            assertThat(all.count(), is(equalTo(4L)));
+            assertThat(app.count(), is(equalTo(2L)));
+            assertThat(apps.count(), is(equalTo(3L)));
+        }
+        }
+    
+    @Test
+    public void insertAllReportsIdsAndDuplicateKeys()
+        {
+        Date created = Date.from(Instant.now());
+        List<IngestResult> results = repo.insertAll(Arrays.asList(
+            new Deployment("d7", "deployment v7", "a1", "rfc123", created, "test", new HashSet<>()),
+            new Deployment("d1", "deployment v1 again", "a1", "rfc123", created, "test", new HashSet<>()),
+            new Deployment("d8", "deployment v8", "a1", "rfc123", created, "test", new HashSet<>())));
+
+        assertThat(results.get(1).getStatus(), is(equalTo(IngestResult.Status.DUPLICATE)));
+        assertThat(results.get(1).getId(), is(nullValue()));
+        assertThat(repo.findById(results.get(0).getId()).map(Deployment::getDeploymentId), is(equalTo(Optional.of("d7"))));
+        assertThat(repo.findById(results.get(2).getId()).map(Deployment::getDeploymentId), is(equalTo(Optional.of("d8"))));
+        assertThat(repo.findExistingDeploymentIds(Arrays.asList("d1", "d7", "d9")), is(equalTo(new HashSet<>(Arrays.asList("d1", "d7")))));
+        }
+
+    @Test
+    public void insertIfAbsentInsertsOnce()
+        {
+        Date created = Date.from(Instant.now());
+        Deployment first = new Deployment("d7", "deployment v7", "a1", "rfc123", created, "test", new HashSet<>());
+        Deployment retry = new Deployment("d7", "deployment v7 retried", "a1", "rfc123", created, "test", new HashSet<>());
+
+        assertThat(repo.insertIfAbsent(first), is(equalTo(Optional.empty())));
+        Optional<Deployment> original = repo.insertIfAbsent(retry);
+
+        assertThat(first.getId(), is(notNullValue()));
+        assertThat(original.map(Deployment::getId), is(equalTo(Optional.of(first.getId()))));
+        assertThat(original.map(Deployment::getDeploymentDesc), is(equalTo(Optional.of("deployment v7"))));
+        assertThat(retry.getId(), is(nullValue()));
+        assertThat(repo.findByDeploymentId("d7").map(Deployment::getId), is(equalTo(Optional.of(first.getId()))));
+        }
+
+    @Test
+    public void deploymentIdIsUnique()
+        {
+        Deployment duplicate = new Deployment("d1", "deployment v1 again", "a1", "rfc123", Date.from(Instant.now()), "test", new HashSet<>());
+
+        assertThrows(DuplicateKeyException.class, () -> repo.save(duplicate));
         }
-    }
\ No newline at end of file
+    }
@@ -0,0 +1,199 @@
+package team.deployservice.repo;
+
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Range;
+import team.deployservice.MongoDBContainerTest;
+import team.deployservice.model.Change;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentRollup;
+import team.deployservice.model.LeadTimeHistogram;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+class DeploymentRollupRepoTest extends MongoDBContainerTest
+    {
+    
+    @Autowired
+    DeploymentRollupRepo rollupRepo;
+    
+    @Autowired
+    DeploymentRepo deploymentRepo;
+
+    @AfterEach
+    void tearDown()
+        {
+        rollupRepo.deleteAll();
+        deploymentRepo.deleteAll();
+        }
+
+    private static Date day(int year, int month, int dayOfMonth)
+        {
+        return Date.from(LocalDate.of(year, month, dayOfMonth).atStartOfDay().toInstant(ZoneOffset.UTC));
+        }
+
+    private static Date dateTime(int year, int month, int dayOfMonth, int hour)
+        {
+        return Date.from(LocalDate.of(year, month, dayOfMonth).atTime(hour, 0).toInstant(ZoneOffset.UTC));
+        }
+    
+    private static Map<Integer, Long> buckets(long... leadTimes)
+        {
+        Map<Integer, Long> buckets = new HashMap<>();
+        Arrays.stream(leadTimes).forEach(leadTime -> buckets.merge(LeadTimeHistogram.bucketOf(leadTime), 1L, Long::sum));
+        return buckets;
+        }
+
+    @Test
+    public void incrementCreatesAndUpdatesRollup()
+        {
+        rollupRepo.increment("a1", day(2020, 3, 10), 1, 2, 300, buckets(100, 200));
+        rollupRepo.increment("a1", day(2020, 3, 10), 1, 1, 100, buckets(100));
+        rollupRepo.increment("a1", day(2020, 3, 10), -1, -1, -100, Collections.singletonMap(LeadTimeHistogram.bucketOf(100), -1L));
+        rollupRepo.increment("a1", day(2020, 3, 11), 1, 1, 50, Collections.emptyMap());
+        
+        List<DeploymentRollup> rollups = rollupRepo.findByApplicationIdInAndDayBetween(Collections.singletonList("a1"), Range.closed(day(2020, 3, 10), day(2020, 3, 10)));
+        
+        assertThat(rollups.size(), is(equalTo(1)));
+        assertThat(rollups.get(0).getApplicationId(), is(equalTo("a1")));
+        assertThat(rollups.get(0).getDay(), is(equalTo(day(2020, 3, 10))));
+        assertThat(rollups.get(0).getDeploymentCount(), is(equalTo(1L)));
+        assertThat(rollups.get(0).getChangeCount(), is(equalTo(2L)));
+        assertThat(rollups.get(0).getLeadTimeSeconds(), is(equalTo(300L)));
+        assertThat(rollups.get(0).getLeadTimeBuckets().get(String.valueOf(LeadTimeHistogram.bucketOf(100))), is(equalTo(1L)));
+        assertThat(rollups.get(0).getLeadTimeBuckets().get(String.valueOf(LeadTimeHistogram.bucketOf(200))), is(equalTo(1L)));
+        }
+
+    @Test
+    public void findIsInclusiveOfBothDays()
+        {
+        rollupRepo.increment("a1", day(2020, 3, 1), 1, 1, 1, Collections.emptyMap());
+        rollupRepo.increment("a2", day(2020, 3, 10), 1, 1, 1, Collections.emptyMap());
+        rollupRepo.increment("a3", day(2020, 3, 5), 1, 1, 1, Collections.emptyMap());
+        rollupRepo.increment("a1", day(2020, 3, 11), 1, 1, 1, Collections.emptyMap());
+        
+        List<DeploymentRollup> rollups = rollupRepo.findByApplicationIdInAndDayBetween(Arrays.asList("a1", "a2"), Range.closed(day(2020, 3, 1), day(2020, 3, 10)));
+        
+        assertThat(rollups.size(), is(equalTo(2)));
+        }
+
+    @Test
+    public void rebuildRegeneratesRollupsFromDeployments()
+        {
+        Change c1 = new Change("c1", dateTime(2020, 3, 9, 10), "test", "test");
+        c1.setLeadTimeSeconds(100);
+        Change c2 = new Change("c2", dateTime(2020, 3, 9, 10), "test", "test");
+        c2.setLeadTimeSeconds(200);
+        deploymentRepo.save(new Deployment("d1", "d1", "a1", "rfc", dateTime(2020, 3, 10, 1), "test", new HashSet<>(Arrays.asList(c1, c2))));
+        deploymentRepo.save(new Deployment("d2", "d2", "a1", "rfc", dateTime(2020, 3, 10, 23), "test", new HashSet<>(Collections.singletonList(c1))));
+        deploymentRepo.save(new Deployment("d3", "d3", "a1", "rfc", dateTime(2020, 3, 11, 0), "test", new HashSet<>()));
+        deploymentRepo.save(new Deployment("d4", "d4", "a2", "rfc", dateTime(2020, 3, 10, 12), "test", new HashSet<>()));
+        rollupRepo.increment("a1", day(2020, 3, 10), 42, 42, 42, Collections.emptyMap());
+        
+        rollupRepo.rebuild();
+        
+        assertThat(rollupRepo.count(), is(equalTo(3L)));
+        List<DeploymentRollup> rollups = rollupRepo.findByApplicationIdInAndDayBetween(Collections.singletonList("a1"), Range.closed(day(2020, 3, 10), day(2020, 3, 10)));
+        assertThat(rollups.size(), is(equalTo(1)));
+        assertThat(rollups.get(0).getDeploymentCount(), is(equalTo(2L)));
+        assertThat(rollups.get(0).getChangeCount(), is(equalTo(3L)));
+        assertThat(rollups.get(0).getLeadTimeSeconds(), is(equalTo(400L)));
+        LeadTimeHistogram histogram = new LeadTimeHistogram();
+        histogram.add(rollups.get(0).getLeadTimeBuckets());
+        assertThat(histogram.count(), is(equalTo(3L)));
+        assertThat(rollups.get(0).getLeadTimeBuckets().get(String.valueOf(LeadTimeHistogram.bucketOf(100))), is(equalTo(2L)));
+        
+        //the rebuilt rollups are all newer than any change read before it
+        assertThat(rollups.get(0).getModified(), is(notNullValue()));
+
+        //increments after a rebuild must land on the rebuilt document
+        rollupRepo.increment("a1", day(2020, 3, 10), 1, 0, 0, Collections.emptyMap());
+        assertThat(rollupRepo.count(), is(equalTo(3L)));
+        }
+    
+    @Test
+    public void rebuiltRollupsMatchTheDeployments()
+        {
+        Change change = new Change("c1", dateTime(2020, 1, 1, 10), "test", "test");
+        change.setLeadTimeSeconds(3600);
+        //none at midnight, where the exclusive query bounds and the rollup days part ways
+        LocalDate reportingDay = LocalDate.of(2020, 3, 10);
+        int[] daysBefore = {0, 0, 1, 6, 7, 29, 30, 89, 90, 200, 364, 365};
+        for(int i = 0; i < daysBefore.length; i++){
+            Date created = Date.from(reportingDay.minusDays(daysBefore[i]).atTime(1 + i, 0).toInstant(ZoneOffset.UTC));
+            Set<Change> changes = i % 3 == 0 ? Collections.singleton(change) : Collections.emptySet();
+            deploymentRepo.save(new Deployment("d" + i, "d" + i, i % 2 == 0 ? "a1" : "a2", "rfc", created, "test", new HashSet<>(changes)));
+        }
+        rollupRepo.rebuild();
+
+        List<String> appIds = Arrays.asList("a1", "a2");
+        Date end = day(2020, 3, 11);
+        int[] windows = {1, 7, 30, 90, 365};
+        List<Date> starts = Arrays.stream(windows).mapToObj(days -> Date.from(reportingDay.minusDays(days - 1).atStartOfDay().toInstant(ZoneOffset.UTC)))
+            .collect(Collectors.toList());
+        for(int w = 0; w < windows.length; w++){
+            List<DeploymentRollup> rollups = rollupRepo.findByApplicationIdInAndDayBetween(appIds, Range.closed(starts.get(w), day(2020, 3, 10)));
+            List<Deployment> deployments = deploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated(appIds, starts.get(w), end);
+            List<Change> changes = deployments.stream().flatMap(d -> d.getChanges().stream()).collect(Collectors.toList());
+            assertThat(rollups.stream().mapToLong(DeploymentRollup::getDeploymentCount).sum(), is(equalTo((long) deployments.size())));
+            assertThat(rollups.stream().mapToLong(DeploymentRollup::getChangeCount).sum(), is(equalTo((long) changes.size())));
+            assertThat(rollups.stream().mapToLong(DeploymentRollup::getLeadTimeSeconds).sum(), is(equalTo(changes.stream().mapToLong(Change::getLeadTimeSeconds).sum())));
+        }
+        }
+    
+    @Test
+    public void incrementAllAppliesEachDelta()
+        {
+        Change change = new Change("c1", dateTime(2020, 3, 9, 10), "test", "test");
+        change.setLeadTimeSeconds(86400);
+        Deployment deployment = new Deployment("d1", "", "a1", "rfc1", dateTime(2020, 3, 10, 10), "test", new HashSet<>(Collections.singleton(change)));
+        rollupRepo.increment("a1", day(2020, 3, 10), 1, 1, 86400, buckets(86400));
+
+        rollupRepo.incrementAll(Arrays.asList(
+            new DeploymentRollupDelta("a1", day(2020, 3, 10)).add(deployment, 1).add(deployment, 1),
+            new DeploymentRollupDelta("a2", day(2020, 3, 10)).add(deployment, 1)));
+
+        DeploymentRollup a1 = rollupRepo.findById("a1:2020-03-10").orElseThrow();
+        DeploymentRollup a2 = rollupRepo.findById("a2:2020-03-10").orElseThrow();
+        assertThat(a1.getDeploymentCount(), is(equalTo(3L)));
+        assertThat(a1.getLeadTimeSeconds(), is(equalTo(3 * 86400L)));
+        assertThat(a1.getLeadTimeBuckets(), is(equalTo(Collections.singletonMap(String.valueOf(LeadTimeHistogram.bucketOf(86400)), 3L))));
+        assertThat(a2.getDeploymentCount(), is(equalTo(1L)));
+        assertThat(a2.getApplicationId(), is(equalTo("a2")));
+        }
+
+    @Test
+    public void incrementsReturnTheRollupsAsWritten()
+        {
+        DeploymentRollup first = rollupRepo.increment("a1", day(2020, 3, 10), 1, 1, 60, Collections.emptyMap());
+        DeploymentRollup second = rollupRepo.increment("a1", day(2020, 3, 10), 1, 2, 60, Collections.emptyMap());
+        List<DeploymentRollup> written = rollupRepo.incrementAll(Arrays.asList(
+            new DeploymentRollupDelta("a1", day(2020, 3, 10)),
+            new DeploymentRollupDelta("a2", day(2020, 3, 11))));
+
+        assertThat(second.getDeploymentCount(), is(equalTo(2L)));
+        assertThat(second.getChangeCount(), is(equalTo(3L)));
+        assertThat(second.getModified().compareTo(first.getModified()), is(greaterThan(0)));
+        assertThat(written.size(), is(equalTo(2)));
+        written.forEach(rollup -> assertThat(rollup.getModified().compareTo(second.getModified()), is(greaterThan(0))));
+        
+        //the changes after a timestamp are the rollups written since
+        try(Stream<DeploymentRollup> changed = rollupRepo.streamByModifiedGreaterThan(second.getModified())){
+            assertThat(changed.map(DeploymentRollup::getApplicationId).sorted().collect(Collectors.toList()), is(equalTo(Arrays.asList("a1", "a2"))));
+        }
+        assertThat(rollupRepo.findFirstByOrderByModifiedDesc().getModified(), is(equalTo(written.stream()
+            .map(DeploymentRollup::getModified).max(BsonTimestamp::compareTo).orElseThrow())));
+        }
+    }
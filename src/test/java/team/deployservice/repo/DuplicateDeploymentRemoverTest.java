@@ -0,0 +1,121 @@
+package team.deployservice.repo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import team.deployservice.MongoDBContainerTest;
+import team.deployservice.model.Change;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentRollup;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+class DuplicateDeploymentRemoverTest extends MongoDBContainerTest
+    {
+    @Autowired
+    DuplicateDeploymentRemover remover;
+
+    @Autowired
+    MongoIndexReconciler reconciler;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    DeploymentRepo deploymentRepo;
+
+    @Autowired
+    DeploymentRollupRepo rollupRepo;
+
+    @Autowired
+    ApplicationVersionRepo versionRepo;
+
+    @AfterEach
+    void tearDown()
+        {
+        deploymentRepo.deleteAll();
+        rollupRepo.deleteAll();
+        versionRepo.deleteAll();
+        reconciler.reconcile();
+        }
+
+    private static Deployment deployment(String deploymentId, String applicationId, int dayOfMonth, long leadTimeSeconds)
+        {
+        Date created = Date.from(LocalDate.of(2020, 3, dayOfMonth).atTime(12, 0).toInstant(ZoneOffset.UTC));
+        Change change = new Change("c" + leadTimeSeconds, created, "test", "test");
+        change.setLeadTimeSeconds(leadTimeSeconds);
+        return new Deployment(deploymentId, "", applicationId, "rfc", created, "test", new HashSet<>(Collections.singleton(change)));
+        }
+
+    private DuplicateDeploymentRemover enabledRemover()
+        {
+        return new DuplicateDeploymentRemover(mongoTemplate, rollupRepo, versionRepo, true);
+        }
+
+    @Test
+    public void keepsTheFirstCopyAndBacksTheOthersOutOfTheRollups()
+        {
+        //stored before the unique index existed
+        mongoTemplate.indexOps(Deployment.class).dropIndex("deploymentId");
+        Deployment first = mongoTemplate.insert(deployment("d1", "a1", 10, 60));
+        mongoTemplate.insert(deployment("d1", "a1", 10, 120));
+        mongoTemplate.insert(deployment("d1", "a1", 11, 180));
+        mongoTemplate.insert(deployment("d2", "a2", 10, 60));
+        rollupRepo.rebuild();
+        versionRepo.increment("a1");
+
+        enabledRemover().removeDuplicates();
+
+        assertThat(deploymentRepo.count(), is(equalTo(2L)));
+        assertThat(deploymentRepo.findByDeploymentId("d1").orElseThrow().getId(), is(equalTo(first.getId())));
+        DeploymentRollup kept = rollupRepo.findById("a1:2020-03-10").orElseThrow();
+        assertThat(kept.getDeploymentCount(), is(equalTo(1L)));
+        assertThat(kept.getChangeCount(), is(equalTo(1L)));
+        assertThat(kept.getLeadTimeSeconds(), is(equalTo(60L)));
+        assertThat(rollupRepo.findById("a1:2020-03-11").orElseThrow().getDeploymentCount(), is(equalTo(0L)));
+        assertThat(rollupRepo.findById("a2:2020-03-10").orElseThrow().getDeploymentCount(), is(equalTo(1L)));
+        assertThat(versionRepo.findById("a1").orElseThrow().getVersion(), is(equalTo(2L)));
+        assertThat(versionRepo.findById("a2").isPresent(), is(false));
+
+        //the unique index can now be built
+        reconciler.reconcile();
+        assertThat(mongoTemplate.indexOps(Deployment.class).getIndexInfo().stream()
+            .filter(index -> index.getName().equals("deploymentId")).anyMatch(IndexInfo::isUnique), is(true));
+        }
+
+    @Test
+    public void removesNothingUnlessEnabled()
+        {
+        mongoTemplate.indexOps(Deployment.class).dropIndex("deploymentId");
+        mongoTemplate.insert(deployment("d1", "a1", 10, 60));
+        mongoTemplate.insert(deployment("d1", "a1", 10, 120));
+
+        remover.removeDuplicates();
+
+        assertThat(deploymentRepo.count(), is(equalTo(2L)));
+        assertThat(versionRepo.count(), is(equalTo(0L)));
+        }
+
+    @Test
+    public void leavesTheCollectionAloneOnceTheIndexExists()
+        {
+        deploymentRepo.save(deployment("d1", "a1", 10, 60));
+        rollupRepo.rebuild();
+
+        enabledRemover().removeDuplicates();
+
+        assertThat(deploymentRepo.count(), is(equalTo(1L)));
+        assertThat(rollupRepo.findById("a1:2020-03-10").orElseThrow().getDeploymentCount(), is(equalTo(1L)));
+        assertThat(versionRepo.count(), is(equalTo(0L)));
+        }
+    }
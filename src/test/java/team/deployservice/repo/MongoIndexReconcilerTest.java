@@ -0,0 +1,126 @@
+package team.deployservice.repo;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexField;
+import org.springframework.data.mongodb.core.index.IndexInfo;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import team.deployservice.MongoDBContainerTest;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.DeploymentRollup;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MongoIndexReconcilerTest extends MongoDBContainerTest
+    {
+    @Autowired
+    MongoIndexReconciler reconciler;
+
+    @Autowired
+    MongoTemplate mongoTemplate;
+
+    @Autowired
+    MongoMappingContext mappingContext;
+
+    @Autowired
+    DeploymentRepo deploymentRepo;
+
+    @AfterEach
+    void tearDown()
+        {
+        deploymentRepo.deleteAll();
+        reconciler.reconcile();
+        }
+
+    private List<String> indexNames(Class<?> type)
+        {
+        return mongoTemplate.indexOps(type).getIndexInfo().stream().map(IndexInfo::getName).collect(Collectors.toList());
+        }
+
+    private IndexInfo index(Class<?> type, String name)
+        {
+        return mongoTemplate.indexOps(type).getIndexInfo().stream().filter(info -> info.getName().equals(name)).findFirst().orElseThrow();
+        }
+
+    @Test
+    public void createsDeclaredIndexesAtStartup()
+        {
+        assertThat(indexNames(Deployment.class), containsInAnyOrder("_id_", "deploymentId", "applicationId_created_id", "created_id", "ancestors_created_id"));
+        assertThat(indexNames(DeploymentRollup.class), containsInAnyOrder("_id_", "applicationId_day", "modified"));
+        assertThat(index(Deployment.class, "deploymentId").isUnique(), is(true));
+        assertThat(index(Deployment.class, "applicationId_created_id").getIndexFields(), contains(
+            IndexField.create("applicationId", Sort.Direction.ASC),
+            IndexField.create("created", Sort.Direction.ASC),
+            IndexField.create("_id", Sort.Direction.ASC)));
+        }
+
+    @Test
+    public void leavesAnIndexThatNoLongerMatchesItsDeclaration()
+        {
+        IndexOperations indexes = mongoTemplate.indexOps(Deployment.class);
+        indexes.dropIndex("created_id");
+        indexes.ensureIndex(new Index("created", Sort.Direction.DESC).named("created_id"));
+        try {
+            reconciler.reconcile();
+
+            assertThat(index(Deployment.class, "created_id").getIndexFields(), contains(
+                IndexField.create("created", Sort.Direction.DESC)));
+        } finally {
+            indexes.dropIndex("created_id");
+        }
+        }
+
+    @Test
+    public void rebuildsAnIndexThatNoLongerMatchesItsDeclarationWhenAsked()
+        {
+        IndexOperations indexes = mongoTemplate.indexOps(Deployment.class);
+        indexes.dropIndex("created_id");
+        indexes.ensureIndex(new Index("created", Sort.Direction.DESC).named("created_id"));
+
+        new MongoIndexReconciler(mongoTemplate, mappingContext, true).reconcile();
+
+        assertThat(index(Deployment.class, "created_id").getIndexFields(), contains(
+            IndexField.create("created", Sort.Direction.ASC),
+            IndexField.create("_id", Sort.Direction.ASC)));
+        }
+
+    @Test
+    public void createsMissingIndexesAndLeavesUndeclaredOnesAlone()
+        {
+        IndexOperations indexes = mongoTemplate.indexOps(Deployment.class);
+        indexes.dropIndex("applicationId_created_id");
+        indexes.ensureIndex(new Index("source", Sort.Direction.ASC).named("source"));
+        try {
+            reconciler.reconcile();
+
+            assertThat(indexNames(Deployment.class), hasItems("applicationId_created_id", "source"));
+        } finally {
+            indexes.dropIndex("source");
+        }
+        }
+
+    @Test
+    public void failsWhenADeclaredIndexCannotBeBuilt()
+        {
+        mongoTemplate.indexOps(Deployment.class).dropIndex("deploymentId");
+        String collection = mongoTemplate.getCollectionName(Deployment.class);
+        mongoTemplate.getCollection(collection).insertOne(new Document("deploymentId", "d1").append("applicationId", "a1"));
+        mongoTemplate.getCollection(collection).insertOne(new Document("deploymentId", "d1").append("applicationId", "a1"));
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, reconciler::reconcile);
+
+        assertThat(e.getMessage(), startsWith("Unable to create index deploymentId"));
+        }
+    }
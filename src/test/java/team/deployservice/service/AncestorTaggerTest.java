@@ -0,0 +1,148 @@
+package team.deployservice.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import team.deployservice.hierarchy.HierarchyIndex;
+import team.deployservice.hierarchy.StubHierarchyClient;
+import team.deployservice.repo.DeploymentRepo;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.Mockito.*;
+
+class AncestorTaggerTest
+    {
+    private static final Duration SETTLE = Duration.ofMinutes(5);
+    private final StubHierarchyClient teamService = new StubHierarchyClient()
+        .node("t1", null)
+        .node("t2", "t1")
+        .application("a1", "t1")
+        .application("a2", "t2");
+    private final DeploymentRepo mockDeploymentRepo = mock(DeploymentRepo.class);
+    private final HierarchyIndex hierarchyIndex = new HierarchyIndex(teamService, Set.of("t1"), 1000, Duration.ofHours(24));
+    private final AtomicLong nanos = new AtomicLong();
+    private final AncestorTagger tagger = new AncestorTagger(hierarchyIndex, mockDeploymentRepo, SETTLE, nanos::get);
+
+    private void settle()
+        {
+        nanos.addAndGet(SETTLE.toNanos());
+        tagger.retag();
+        }
+
+    @BeforeEach
+    void loadHierarchy()
+        {
+        hierarchyIndex.reload();
+        }
+
+    private static Map<String, List<String>> paths(Object... nodesAndPaths)
+        {
+        Map<String, List<String>> paths = new HashMap<>();
+        for(int i = 0; i < nodesAndPaths.length; i += 2){
+            paths.put((String) nodesAndPaths[i], Arrays.asList(((String) nodesAndPaths[i + 1]).split(",")));
+        }
+        return paths;
+        }
+
+    @Test
+    void tagsEveryNodeUntilFirstHierarchySettles()
+        {
+        Map<String, List<String>> every = paths("t1", "t1", "t2", "t1,t2", "a1", "t1,a1", "a2", "t1,t2,a2");
+        assertThat(tagger.covers("t1"), is(false));
+
+        tagger.retag();
+
+        verify(mockDeploymentRepo, times(1)).setAncestors(every, hierarchyIndex.snapshot().nodes());
+        //other instances may still be storing paths from an older hierarchy
+        assertThat(tagger.covers("t1"), is(false));
+
+        settle();
+        verify(mockDeploymentRepo, times(2)).setAncestors(every, hierarchyIndex.snapshot().nodes());
+        assertThat(tagger.covers("t1"), is(true));
+        assertThat(tagger.covers("t2"), is(true));
+        assertThat(tagger.covers("t3"), is(false));
+        }
+
+    @Test
+    void changedHierarchyWritesOnlyChangedPathsUntilItSettles()
+        {
+        tagger.retag();
+        settle();
+        clearInvocations(mockDeploymentRepo);
+
+        teamService.remove("a2").application("a2", "t1");
+        hierarchyIndex.reload();
+        assertThat(tagger.covers("t1"), is(false));
+        tagger.retag();
+
+        verify(mockDeploymentRepo, times(1)).setAncestors(paths("a2", "t1,a2"), Collections.emptyList());
+        assertThat(tagger.covers("t1"), is(false));
+        settle();
+        verify(mockDeploymentRepo, times(2)).setAncestors(paths("a2", "t1,a2"), Collections.emptyList());
+        assertThat(tagger.covers("t1"), is(true));
+        }
+
+    @Test
+    void unchangedHierarchyWritesNothing()
+        {
+        tagger.retag();
+        settle();
+        clearInvocations(mockDeploymentRepo);
+
+        hierarchyIndex.reload();
+        tagger.retag();
+        settle();
+
+        assertThat(tagger.covers("t1"), is(true));
+        verifyNoInteractions(mockDeploymentRepo);
+        }
+
+    @Test
+    void untagsApplicationsThatLeftHierarchy()
+        {
+        tagger.retag();
+        settle();
+        teamService.remove("a1");
+        hierarchyIndex.reload();
+
+        tagger.retag();
+
+        verify(mockDeploymentRepo, times(1)).setAncestors(paths("a1", "a1"), Collections.emptyList());
+        }
+
+    @Test
+    void keepsEveryChangeUntilTheLatestHierarchySettles()
+        {
+        tagger.retag();
+        settle();
+        clearInvocations(mockDeploymentRepo);
+
+        //a2 moves back before its move settles, so the deployments written with the move are put back too
+        teamService.remove("a2").application("a2", "t1");
+        hierarchyIndex.reload();
+        tagger.retag();
+        teamService.remove("a2").application("a2", "t2");
+        hierarchyIndex.reload();
+        tagger.retag();
+
+        verify(mockDeploymentRepo, times(1)).setAncestors(paths("a2", "t1,a2"), Collections.emptyList());
+        verify(mockDeploymentRepo, times(1)).setAncestors(paths("a2", "t1,t2,a2"), Collections.emptyList());
+        }
+
+    @Test
+    void newDeploymentTakesPathFromIndex()
+        {
+        assertThat(tagger.ancestorsOf("a2"), contains("t1", "t2", "a2"));
+        assertThat(tagger.ancestorsOf("unknown"), contains("unknown"));
+        }
+    }
@@ -0,0 +1,151 @@
+package team.deployservice.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ChunkedInQueryTest
+    {
+    private final ChunkedInQuery chunkedInQuery = new ChunkedInQuery(2, 4, 10);
+
+    @AfterEach
+    void shutdown()
+        {
+        chunkedInQuery.shutdown();
+        }
+
+    private static List<String> ids(int count)
+        {
+        return IntStream.range(0, count).mapToObj(i -> "a" + i).collect(Collectors.toList());
+        }
+
+    @Test
+    void smallSetIsQueriedOnceOnCallingThread()
+        {
+        List<String> ids = ids(2);
+        List<Collection<String>> queried = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+
+        chunkedInQuery.concat(ids, chunk -> {
+            queried.add(chunk);
+            threads.add(Thread.currentThread());
+            return Collections.emptyList();
+        });
+
+        assertThat(queried, contains(sameInstance(ids)));
+        assertThat(threads, contains(Thread.currentThread()));
+        }
+
+    @Test
+    void chunksAreQueriedConcurrently() throws Exception
+        {
+        //every chunk waits for the others, so this only completes when all five run at once
+        CountDownLatch allStarted = new CountDownLatch(5);
+        Set<Collection<String>> queried = ConcurrentHashMap.newKeySet();
+
+        List<String> results = chunkedInQuery.concat(ids(9), chunk -> {
+            queried.add(new ArrayList<>(chunk));
+            allStarted.countDown();
+            try {
+                assertThat(allStarted.await(5, TimeUnit.SECONDS), is(true));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return new ArrayList<>(chunk);
+        });
+
+        assertThat(results, containsInAnyOrder(ids(9).toArray()));
+        assertThat(queried, hasSize(5));
+        assertThat(queried, everyItem(hasSize(lessThanOrEqualTo(2))));
+        }
+
+    @Test
+    void mergesSortedChunksUpToLimit()
+        {
+        Map<String, List<Integer>> values = new HashMap<>();
+        values.put("a", Arrays.asList(9, 4, 1));
+        values.put("b", Arrays.asList(8, 7, 2));
+        values.put("c", Arrays.asList(6, 5, 3));
+        values.put("d", Collections.emptyList());
+
+        List<Integer> merged = chunkedInQuery.merge(Arrays.asList("a", "b", "c", "d"),
+            chunk -> chunk.stream().flatMap(id -> values.get(id).stream()).sorted(Comparator.reverseOrder()).collect(Collectors.toList()),
+            Comparator.reverseOrder(), 7);
+
+        assertThat(merged, contains(9, 8, 7, 6, 5, 4, 3));
+        }
+
+    @Test
+    void kWayMergeKeepsOrderAcrossManyLists()
+        {
+        Random random = new Random(42);
+        List<List<Integer>> lists = new ArrayList<>();
+        List<Integer> all = new ArrayList<>();
+        for(int i = 0; i < 20; i++){
+            List<Integer> list = random.ints(random.nextInt(50), 0, 1000).sorted().boxed().collect(Collectors.toList());
+            lists.add(list);
+            all.addAll(list);
+        }
+        Collections.sort(all);
+
+        assertThat(ChunkedInQuery.merge(lists, Comparator.naturalOrder(), Integer.MAX_VALUE), is(equalTo(all)));
+        }
+
+    @Test
+    void streamsOneChunkAtATime()
+        {
+        AtomicInteger open = new AtomicInteger();
+        AtomicInteger maxOpen = new AtomicInteger();
+        AtomicInteger closed = new AtomicInteger();
+
+        Iterator<String> streamed = chunkedInQuery.stream(ids(5), chunk -> {
+            maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            return new ArrayList<>(chunk).stream().onClose(() -> {
+                open.decrementAndGet();
+                closed.incrementAndGet();
+            });
+        }).iterator();
+        List<String> results = new ArrayList<>();
+        streamed.forEachRemaining(results::add);
+
+        assertThat(results, is(equalTo(ids(5))));
+        assertThat(maxOpen.get(), is(1));
+        assertThat(closed.get(), is(3));
+        }
+
+    @Test
+    void closingStreamClosesChunkBeingRead()
+        {
+        AtomicInteger closed = new AtomicInteger();
+
+        try(Stream<String> streamed = chunkedInQuery.stream(ids(5), chunk -> new ArrayList<>(chunk).stream().onClose(closed::incrementAndGet))){
+            assertThat(streamed.findFirst().orElse(null), is("a0"));
+        }
+
+        assertThat(closed.get(), is(1));
+        }
+
+    @Test
+    void failedChunkFailsQuery()
+        {
+        assertThrows(IllegalArgumentException.class, () -> chunkedInQuery.concat(ids(6), chunk -> {
+            if(chunk.contains("a4")){
+                throw new IllegalArgumentException("bad chunk");
+            }
+            return new ArrayList<>(chunk);
+        }));
+        }
+    }
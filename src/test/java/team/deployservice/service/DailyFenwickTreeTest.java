@@ -0,0 +1,64 @@
+package team.deployservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+class DailyFenwickTreeTest
+    {
+    @Test
+    void emptyTreeSumsToZero()
+        {
+        DailyFenwickTree tree = new DailyFenwickTree(1);
+        assertThat(tree.sum(0, 0, 100), equalTo(0L));
+        }
+
+    @Test
+    void sumsAreInclusive()
+        {
+        DailyFenwickTree tree = new DailyFenwickTree(2);
+        tree.add(18330, 0, 1);
+        tree.add(18331, 0, 2);
+        tree.add(18337, 0, 4);
+        tree.add(18331, 1, 10);
+        assertThat(tree.sum(0, 18330, 18330), equalTo(1L));
+        assertThat(tree.sum(0, 18330, 18331), equalTo(3L));
+        assertThat(tree.sum(0, 18331, 18337), equalTo(6L));
+        assertThat(tree.sum(0, 18338, 18400), equalTo(0L));
+        assertThat(tree.sum(0, 18000, 18329), equalTo(0L));
+        assertThat(tree.sum(1, 18000, 18400), equalTo(10L));
+        assertThat(tree.sum(0, 18337, 18330), equalTo(0L));
+        }
+
+    @Test
+    void matchesBruteForceWhileGrowingInBothDirections()
+        {
+        Random random = new Random(42);
+        int span = 5000;
+        long base = 18000;
+        long[] expected = new long[span];
+        DailyFenwickTree tree = new DailyFenwickTree(1);
+        //start in the middle so the tree has to grow down as well as up
+        int[] order = new int[2000];
+        for(int i = 0; i < order.length; i++){
+            order[i] = i < 10 ? span / 2 + i : random.nextInt(span);
+        }
+        for(int day : order){
+            long delta = random.nextInt(7) - 2;
+            expected[day] += delta;
+            tree.add(base + day, 0, delta);
+        }
+        for(int q = 0; q < 500; q++){
+            int from = random.nextInt(span);
+            int to = from + random.nextInt(span - from);
+            long total = 0;
+            for(int d = from; d <= to; d++){
+                total += expected[d];
+            }
+            assertThat(tree.sum(0, base + from, base + to), equalTo(total));
+        }
+        }
+    }
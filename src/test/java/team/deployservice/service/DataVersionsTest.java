@@ -0,0 +1,168 @@
+package team.deployservice.service;
+
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import team.deployservice.model.ApplicationVersion;
+import team.deployservice.model.DataVersion;
+import team.deployservice.model.DeploymentRollup;
+import team.deployservice.repo.ApplicationVersionRepo;
+import team.deployservice.repo.DeploymentRollupRepo;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DataVersionsTest
+    {
+    private static final LocalDate DAY = LocalDate.of(2020, 3, 10);
+    private final DeploymentRollupRepo rollupRepo = mock(DeploymentRollupRepo.class);
+    private final ApplicationVersionRepo versionRepo = mock(ApplicationVersionRepo.class);
+    private final DeploymentWindowIndex windowIndex = mock(DeploymentWindowIndex.class);
+    private final MetricResultCache metricResultCache = mock(MetricResultCache.class);
+    private final HierarchyRollupCache hierarchyRollupCache = mock(HierarchyRollupCache.class);
+    private final DataVersions versions = new DataVersions(rollupRepo, versionRepo, windowIndex, metricResultCache, hierarchyRollupCache);
+
+    private static DeploymentRollup rollup(String appId, LocalDate day, int modified)
+        {
+        return new DeploymentRollup(appId + ":" + day, appId, Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant()), 1, 1, 60,
+            Collections.emptyMap(), new BsonTimestamp(modified, 1));
+        }
+
+    private static ApplicationVersion version(String appId, long version, long lastModified)
+        {
+        return new ApplicationVersion(appId, version, new Date(lastModified * 1000));
+        }
+
+    @BeforeEach
+    void load()
+        {
+        when(rollupRepo.findFirstByOrderByModifiedDesc()).thenReturn(rollup("a1", DAY, 100));
+        when(versionRepo.findAll()).thenReturn(Arrays.asList(version("a1", 3, 100), version("a2", 1, 50)));
+        versions.load();
+        clearInvocations(hierarchyRollupCache);
+        }
+
+    @Test
+    void tagChangesWithTheVersionsAndTheApplications()
+        {
+        DataVersion hierarchy = versions.version(Arrays.asList("a1", "a2"));
+
+        assertThat(hierarchy.getLastModified(), is(equalTo(new Date(100_000))));
+        assertThat(versions.version(Arrays.asList("a2", "a1")).getTag(), is(equalTo(hierarchy.getTag())));
+        //a new child changes the version even before it has deployments
+        assertThat(versions.version(Arrays.asList("a1", "a2", "a3")).getTag(), is(not(equalTo(hierarchy.getTag()))));
+        assertThat(versions.version(Collections.singleton("a3")).getLastModified(), is(nullValue()));
+
+        when(versionRepo.findByLastModifiedGreaterThan(any())).thenReturn(Collections.singletonList(version("a2", 2, 120)));
+        versions.refresh();
+
+        assertThat(versions.version(Arrays.asList("a1", "a2")).getTag(), is(not(equalTo(hierarchy.getTag()))));
+        assertThat(versions.version(Arrays.asList("a1", "a2")).getLastModified(), is(equalTo(new Date(120_000))));
+        }
+
+    @Test
+    void refreshDropsTheChangedWindowsBeforeTheVersionMovesOn()
+        {
+        DeploymentRollup changed = rollup("a2", DAY.minusDays(3), 130);
+        String before = versions.version(Collections.singleton("a2")).getTag();
+        when(versionRepo.findByLastModifiedGreaterThan(any())).thenReturn(Collections.singletonList(version("a2", 2, 130)));
+        when(rollupRepo.streamByModifiedGreaterThan(any())).thenAnswer(invocation -> {
+            //nothing has moved on while the rollups are read
+            assertThat(versions.version(Collections.singleton("a2")).getTag(), is(equalTo(before)));
+            return Stream.of(changed);
+        });
+
+        versions.refresh();
+
+        InOrder inOrder = inOrder(versionRepo, rollupRepo);
+        inOrder.verify(versionRepo).findByLastModifiedGreaterThan(new Date(90_000));
+        inOrder.verify(rollupRepo).streamByModifiedGreaterThan(new BsonTimestamp(90, 0));
+        verify(windowIndex).record(changed);
+        verify(metricResultCache).invalidate("a2", DAY.minusDays(3));
+        InOrder cacheOrder = inOrder(hierarchyRollupCache);
+        cacheOrder.verify(hierarchyRollupCache).invalidate("a2", DAY.minusDays(3));
+        cacheOrder.verify(hierarchyRollupCache).moved("a2");
+        assertThat(versions.version(Collections.singleton("a2")).getTag(), is(not(equalTo(before))));
+        }
+
+    @Test
+    void refreshReadsOnFromTheNewestChange()
+        {
+        DeploymentRollup changed = rollup("a2", DAY, 130);
+        when(rollupRepo.streamByModifiedGreaterThan(any())).thenReturn(Stream.of(changed), Stream.of(changed, rollup("a1", DAY, 135)));
+        when(versionRepo.findByLastModifiedGreaterThan(any())).thenReturn(Collections.singletonList(version("a2", 2, 130)), Collections.emptyList());
+
+        versions.refresh();
+        versions.refresh();
+
+        verify(rollupRepo).streamByModifiedGreaterThan(new BsonTimestamp(120, 0));
+        verify(versionRepo).findByLastModifiedGreaterThan(new Date(120_000));
+        //read back by the overlap, but its windows were already dropped
+        verify(metricResultCache, times(1)).invalidate("a2", DAY);
+        verify(metricResultCache, times(1)).invalidate("a1", DAY);
+        //an older copy of a version never replaces a newer one
+        when(versionRepo.findByLastModifiedGreaterThan(any())).thenReturn(Collections.singletonList(version("a1", 2, 90)));
+        when(rollupRepo.streamByModifiedGreaterThan(any())).thenReturn(Stream.empty());
+        String a1 = versions.version(Collections.singleton("a1")).getTag();
+        versions.refresh();
+        assertThat(versions.version(Collections.singleton("a1")).getTag(), is(equalTo(a1)));
+        verify(hierarchyRollupCache, never()).moved("a1");
+        }
+    
+    @Test
+    void localWritesDropTheirWindowsAndThenMoveTheTagBeforeTheRefresh()
+        {
+        DataVersion before = versions.version(Collections.singleton("a1"));
+        DeploymentRollup rollup = rollup("a1", DAY.minusDays(2), 105);
+        doAnswer(invocation -> {
+            //the stored version is bumped after the windows are dropped, and the tag moves on after that
+            verify(metricResultCache).invalidate("a1", DAY.minusDays(2));
+            assertThat(versions.version(Collections.singleton("a1")).getTag(), is(equalTo(before.getTag())));
+            verify(hierarchyRollupCache, never()).moved("a1");
+            return null;
+        }).when(versionRepo).increment("a1");
+
+        versions.recordWrites(Collections.singletonList(rollup));
+
+        verify(windowIndex).record(rollup);
+        verify(hierarchyRollupCache).invalidate("a1", DAY.minusDays(2));
+        verify(versionRepo).increment("a1");
+
+        DataVersion written = versions.version(Collections.singleton("a1"));
+        assertThat(written.getTag(), is(not(equalTo(before.getTag()))));
+        assertThat(written.getLastModified().after(before.getLastModified()), is(true));
+        verify(hierarchyRollupCache).moved("a1");
+
+        //once the stored version of the write is read, the tag is the one every instance gives
+        when(versionRepo.findByLastModifiedGreaterThan(any())).thenReturn(Collections.singletonList(version("a1", 4, 110)));
+        when(rollupRepo.streamByModifiedGreaterThan(any())).thenReturn(Stream.empty());
+        versions.refresh();
+        DataVersions other = new DataVersions(rollupRepo, versionRepo, windowIndex, metricResultCache, hierarchyRollupCache);
+        when(versionRepo.findAll()).thenReturn(Collections.singletonList(version("a1", 4, 110)));
+        other.load();
+        assertThat(versions.version(Collections.singleton("a1")).getTag(), is(equalTo(other.version(Collections.singleton("a1")).getTag())));
+        assertThat(versions.version(Collections.singleton("a1")).getTag(), is(not(equalTo(written.getTag()))));
+        //and its time does not go back before the local write
+        assertThat(versions.version(Collections.singleton("a1")).getLastModified(), is(equalTo(written.getLastModified())));
+        }
+
+    @Test
+    void localWriteOfANewApplication()
+        {
+        String before = versions.version(Collections.singleton("a3")).getTag();
+
+        versions.recordWrites(Collections.singletonList(rollup("a3", DAY, 105)));
+
+        assertThat(versions.version(Collections.singleton("a3")).getTag(), is(not(equalTo(before))));
+        assertThat(versions.version(Collections.singleton("a3")).getLastModified(), is(notNullValue()));
+        verify(hierarchyRollupCache).moved("a3");
+        }
+    }
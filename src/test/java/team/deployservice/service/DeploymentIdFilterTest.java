@@ -0,0 +1,54 @@
+package team.deployservice.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+class DeploymentIdFilterTest
+    {
+    @Test
+    void containsEveryPutId()
+        {
+        DeploymentIdFilter filter = new DeploymentIdFilter(1000, 0.01);
+        for(int i = 0; i < 1000; i++){
+            filter.put("deployment-" + i);
+        }
+        for(int i = 0; i < 1000; i++){
+            assertThat(filter.mightContain("deployment-" + i), is(true));
+        }
+        }
+
+    @Test
+    void falsePositiveRateIsNearTheTarget()
+        {
+        DeploymentIdFilter filter = new DeploymentIdFilter(10_000, 0.01);
+        for(int i = 0; i < 9_999; i++){
+            filter.put("deployment-" + i);
+        }
+        int falsePositives = 0;
+        for(int i = 0; i < 100_000; i++){
+            if(filter.mightContain("other-" + i)){
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives, is(lessThan(2_000)));
+        }
+
+    @Test
+    void forgetsIdsTwoGenerationsOld()
+        {
+        DeploymentIdFilter filter = new DeploymentIdFilter(100, 0.001);
+        filter.put("oldest");
+        for(int i = 0; i < 99; i++){
+            filter.put("first-" + i);
+        }
+        //the first generation is full, so it is still consulted as the previous one
+        assertThat(filter.mightContain("oldest"), is(true));
+        for(int i = 0; i < 100; i++){
+            filter.put("second-" + i);
+        }
+        assertThat(filter.mightContain("oldest"), is(false));
+        assertThat(filter.mightContain("second-0"), is(true));
+        }
+    }
@@ -0,0 +1,117 @@
+package team.deployservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import team.deployservice.model.Deployment;
+import team.deployservice.model.IngestResult;
+import team.deployservice.model.IngestTicket;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DeploymentIngestQueueTest
+    {
+    private final DeploymentService deploymentService = mock(DeploymentService.class);
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private DeploymentIngestQueue queue(int capacity)
+        {
+        return new DeploymentIngestQueue(deploymentService, meterRegistry, capacity, 1, 3, Duration.ofSeconds(1), Duration.ofHours(1));
+        }
+
+    private static Deployment deployment(String deploymentId)
+        {
+        return new Deployment(deploymentId, "test deployment", "a1", "rfc1", new Date(), "test", new HashSet<>());
+        }
+
+    @Test
+    void storesQueuedDeploymentsInGroupCommits()
+        {
+        when(deploymentService.storeAll(any())).thenAnswer(invocation -> {
+            List<Deployment> deployments = invocation.getArgument(0);
+            List<IngestResult> results = new ArrayList<>();
+            for(int i = 0; i < deployments.size(); i++){
+                results.add(IngestResult.created(i, deployments.get(i).getDeploymentId(), "id-" + deployments.get(i).getDeploymentId()));
+            }
+            return results;
+        });
+        DeploymentIngestQueue queue = queue(10);
+        List<String> trackingIds = new ArrayList<>();
+        for(int i = 0; i < 5; i++){
+            trackingIds.add(queue.offer(deployment("d" + i)).orElseThrow());
+        }
+        assertThat(queue.status(trackingIds.get(0)).map(IngestTicket::getStatus), is(Optional.of(IngestResult.Status.PENDING)));
+        assertThat(meterRegistry.get("deployservice.ingest.queue.depth").gauge().value(), is(5.0));
+
+        queue.start();
+        //shutting down waits for the writers to store everything already queued
+        queue.shutdown();
+
+        verify(deploymentService, times(2)).storeAll(any());
+        for(int i = 0; i < 5; i++){
+            IngestTicket ticket = queue.status(trackingIds.get(i)).orElseThrow();
+            assertThat(ticket.getStatus(), is(IngestResult.Status.CREATED));
+            assertThat(ticket.getDeploymentId(), is("d" + i));
+            assertThat(ticket.getId(), is("id-d" + i));
+        }
+        assertThat(meterRegistry.get("deployservice.ingest.batch.size").summary().count(), is(2L));
+        assertThat(meterRegistry.get("deployservice.ingest.batch.size").summary().max(), is(3.0));
+        assertThat(meterRegistry.get("deployservice.ingest.commit").timer().count(), is(2L));
+        assertThat(meterRegistry.get("deployservice.ingest.queue.depth").gauge().value(), is(0.0));
+        }
+
+    @Test
+    void refusesDeploymentsWhenFull()
+        {
+        DeploymentIngestQueue queue = queue(2);
+
+        assertThat(queue.offer(deployment("d1")).isPresent(), is(true));
+        assertThat(queue.offer(deployment("d2")).isPresent(), is(true));
+        assertThat(queue.offer(deployment("d3")).isPresent(), is(false));
+        queue.shutdown();
+        }
+
+    @Test
+    void refusesDeploymentsAfterShutdown()
+        {
+        DeploymentIngestQueue queue = queue(2);
+        queue.start();
+        queue.shutdown();
+
+        assertThat(queue.offer(deployment("d1")).isPresent(), is(false));
+        }
+
+    @Test
+    void marksEveryDeploymentFailedWhenTheCommitFails()
+        {
+        when(deploymentService.storeAll(any())).thenThrow(new IllegalStateException("Mongo unavailable"));
+        DeploymentIngestQueue queue = queue(10);
+        String first = queue.offer(deployment("d1")).orElseThrow();
+        String second = queue.offer(deployment("d2")).orElseThrow();
+
+        queue.start();
+        queue.shutdown();
+
+        IngestTicket ticket = queue.status(second).orElseThrow();
+        assertThat(queue.status(first).map(IngestTicket::getStatus), is(Optional.of(IngestResult.Status.FAILED)));
+        assertThat(ticket.getStatus(), is(IngestResult.Status.FAILED));
+        assertThat(ticket.getDeploymentId(), is("d2"));
+        assertThat(ticket.getErrors(), contains("Mongo unavailable"));
+        }
+
+    @Test
+    void unknownTrackingId()
+        {
+        assertThat(queue(2).status("missing").isPresent(), is(false));
+        }
+    }
@@ -1,22 +1,38 @@
 package team.deployservice.service;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.TestConfiguration;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.data.domain.Range;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 import team.deployservice.model.*;
 import team.deployservice.repo.DeploymentRepo;
+import team.deployservice.repo.DeploymentRollupDelta;
+import team.deployservice.repo.DeploymentRollupRepo;
 import team.deployservice.hierarchy.repo.HierarchyClient;
 
+import javax.validation.Validation;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.*;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(SpringExtension.class)
@@ -27,7 +43,21 @@ class DeploymentServiceImplTest
     @Autowired
     private DeploymentRepo mockdeploymentRepo;
     @Autowired
+    private DeploymentRollupRepo mockDeploymentRollupRepo;
+    @Autowired
     private HierarchyClient mockHierarchyClient;
+    @Autowired
+    private DeploymentWindowIndex mockDeploymentWindowIndex;
+    @Autowired
+    private MetricResultCache mockMetricResultCache;
+    @Autowired
+    private DeploymentIdFilter mockDeploymentIdFilter;
+    @Autowired
+    private AncestorTagger mockAncestorTagger;
+    @Autowired
+    private HierarchyRollupCache mockHierarchyRollupCache;
+    @Autowired
+    private DataVersions mockDataVersions;
 
     @TestConfiguration
     static class DeploymentServiceImplTestContextConfiguration
@@ -35,14 +65,34 @@ class DeploymentServiceImplTest
         @MockBean
         private DeploymentRepo mockdeploymentRepo;
         @MockBean
+        private DeploymentRollupRepo mockDeploymentRollupRepo;
+        @MockBean
         private HierarchyClient mockHierarchyClient;
+        @MockBean
+        private DeploymentWindowIndex mockDeploymentWindowIndex;
+        @MockBean
+        private MetricResultCache mockMetricResultCache;
+        @MockBean
+        private DeploymentIdFilter mockDeploymentIdFilter;
+        @MockBean
+        private AncestorTagger mockAncestorTagger;
+        @MockBean
+        private HierarchyRollupCache mockHierarchyRollupCache;
+        @MockBean
+        private DataVersions mockDataVersions;
         @Bean
         public DeploymentService deploymentService()
             {
-            return new DeploymentServiceImpl(mockdeploymentRepo, mockHierarchyClient);
+            return new DeploymentServiceImpl(mockdeploymentRepo, mockDeploymentRollupRepo, mockHierarchyClient, mockDeploymentWindowIndex, mockMetricResultCache, mockDeploymentIdFilter, new ChunkedInQuery(500, 2, 10), mockAncestorTagger, mockHierarchyRollupCache, mockDataVersions, Validation.buildDefaultValidatorFactory().getValidator(), 2);
             }
         }
     
+    @BeforeEach
+    void calculateThroughCache()
+        {
+        when(mockMetricResultCache.get(any(), any(), any(), anyInt(), any(), any())).thenAnswer(invocation -> invocation.<Supplier<?>>getArgument(5).get());
+        }
+
     private Change c1;
     private Change c2;
     private Change c3;
@@ -98,7 +148,9 @@ class DeploymentServiceImplTest
     void checkCommitLeadTimeCalc()
         {
         Deployment d1 = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
-        when(mockdeploymentRepo.save(d1)).thenReturn(d1);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
+        DeploymentRollup written = rollup("a1", 2020, 3, 10, 1, 3, 604800L + 518400L + 432000L);
+        when(mockDeploymentRollupRepo.increment(eq("a1"), any(Date.class), anyLong(), anyLong(), anyLong(), anyMap())).thenReturn(written);
         Deployment storedDep = deploymentService.store(d1);
         assertThat(storedDep.getChanges(), hasItems(c1, c2, c3));
         storedDep.getChanges().forEach(
@@ -117,13 +169,157 @@ class DeploymentServiceImplTest
             }
         );
         assertThat(storedDep.getLeadTimeSeconds(), equalTo(518400L));
+        Map<Integer, Long> buckets = new HashMap<>();
+        buckets.put(LeadTimeHistogram.bucketOf(604800L), 1L);
+        buckets.put(LeadTimeHistogram.bucketOf(518400L), 1L);
+        buckets.put(LeadTimeHistogram.bucketOf(432000L), 1L);
+        verify(mockDeploymentRollupRepo, times(1)).increment("a1", dateOf(2020, 3, 10, 0, 0, 0), 1, 3, 604800L + 518400L + 432000L, buckets);
+        verify(mockDataVersions, times(1)).recordWrites(Collections.singletonList(written));
+        }
+
+    @Test
+    void checkStoreWritesUnseenDeploymentWithoutReading()
+        {
+        Deployment d1 = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
+
+        assertThat(deploymentService.store(d1), is(sameInstance(d1)));
+        verify(mockdeploymentRepo, never()).findByDeploymentId(anyString());
+        verify(mockDeploymentIdFilter, times(1)).put(d1.getDeploymentId());
+        }
+
+    @Test
+    void checkStoreTagsAncestors()
+        {
+        Deployment d1 = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
+        when(mockAncestorTagger.ancestorsOf("a1")).thenReturn(Arrays.asList("t1", "a1"));
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
+
+        deploymentService.store(d1);
+
+        ArgumentCaptor<Deployment> stored = ArgumentCaptor.forClass(Deployment.class);
+        verify(mockdeploymentRepo, times(1)).insertIfAbsent(stored.capture());
+        assertThat(stored.getValue().getAncestors(), contains("t1", "a1"));
+        }
+
+    @Test
+    void checkStoreReturnsOriginalOfSeenDeploymentWithoutReading()
+        {
+        Deployment original = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
+        Deployment retry = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
+        when(mockDeploymentIdFilter.mightContain(retry.getDeploymentId())).thenReturn(true);
+        when(mockdeploymentRepo.insertIfAbsent(retry)).thenReturn(Optional.of(original));
+
+        assertThat(deploymentService.store(retry), is(sameInstance(original)));
+        verify(mockdeploymentRepo, never()).findByDeploymentId(anyString());
+        verify(mockDeploymentRollupRepo, never()).increment(anyString(), any(Date.class), anyLong(), anyLong(), anyLong(), anyMap());
+        verify(mockDataVersions, never()).recordWrites(anyCollection());
+        }
+
+    @Test
+    void checkStoreReturnsOriginalStoredElsewhere()
+        {
+        Deployment original = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
+        Deployment retry = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
+        //not seen by this instance, so the upsert finds the original
+        when(mockdeploymentRepo.insertIfAbsent(retry)).thenReturn(Optional.of(original));
+
+        assertThat(deploymentService.store(retry), is(sameInstance(original)));
+        verify(mockDeploymentWindowIndex, never()).record(any(DeploymentRollup.class));
+        verify(mockDataVersions, never()).recordWrites(anyCollection());
+        }
+
+    private static Deployment bulkDeployment(String deploymentId, String appId)
+        {
+        Change change = new Change("c1", dateOf(2020, 3, 9, 10, 0, 0), "source", "event");
+        return new Deployment(deploymentId, "bulk", appId, "rfc1", dateOf(2020, 3, 10, 10, 0, 0), "source", new HashSet<>(Collections.singleton(change)));
+        }
+
+    @Test
+    void checkStoreAllReportsEachDeployment()
+        {
+        List<Deployment> deployments = Arrays.asList(
+            bulkDeployment("d1", "a1"),
+            bulkDeployment("d2", null),
+            bulkDeployment("d3", "a1"),
+            bulkDeployment("d3", "a1"),
+            bulkDeployment("d5", "a2"),
+            bulkDeployment("d6", "a2"));
+        when(mockDeploymentIdFilter.mightContain("d5")).thenReturn(true);
+        when(mockdeploymentRepo.findExistingDeploymentIds(anyCollection()))
+            .thenAnswer(invocation -> invocation.<Collection<String>>getArgument(0).contains("d5") ? Collections.singleton("d5") : Collections.emptySet());
+        when(mockdeploymentRepo.insertAll(anyList())).thenAnswer(invocation -> {
+            String deploymentId = invocation.<List<Deployment>>getArgument(0).get(0).getDeploymentId();
+            //d6 loses a race with a concurrent insert
+            return Collections.singletonList(deploymentId.equals("d6") ? IngestResult.duplicate(0, deploymentId) : IngestResult.created(0, deploymentId, "id-" + deploymentId));
+        });
+
+        List<IngestResult> results = deploymentService.storeAll(deployments);
+
+        assertThat(results.stream().map(IngestResult::getStatus).collect(Collectors.toList()), contains(
+            IngestResult.Status.CREATED, IngestResult.Status.INVALID, IngestResult.Status.CREATED,
+            IngestResult.Status.DUPLICATE, IngestResult.Status.DUPLICATE, IngestResult.Status.DUPLICATE));
+        assertThat(results.stream().map(IngestResult::getIndex).collect(Collectors.toList()), contains(0, 1, 2, 3, 4, 5));
+        assertThat(results.get(0).getId(), is(equalTo("id-d1")));
+        assertThat(results.get(1).getErrors(), contains("Deployment: applicationId is mandatory"));
+        assertThat(deployments.get(0).getChanges().iterator().next().getLeadTimeSeconds(), is(equalTo(86400L)));
+        //one unordered write per batch of two, the invalid and known duplicates never sent
+        verify(mockdeploymentRepo, times(3)).insertAll(anyList());
+        //only the batch holding an id the filter has seen reads for existing ids
+        verify(mockdeploymentRepo, times(1)).findExistingDeploymentIds(Collections.singleton("d5"));
+        verify(mockdeploymentRepo, never()).save(any(Deployment.class));
+        verify(mockDeploymentIdFilter, times(1)).put("d1");
+        verify(mockDeploymentIdFilter, never()).put("d6");
+        }
+
+    @Test
+    void checkStoreAllMergesRollupChangesPerBatch()
+        {
+        when(mockdeploymentRepo.findExistingDeploymentIds(anyCollection())).thenReturn(Collections.emptySet());
+        when(mockdeploymentRepo.insertAll(anyList())).thenReturn(Arrays.asList(IngestResult.created(0, "d1", "id1"), IngestResult.created(1, "d2", "id2")));
+        DeploymentRollup written = rollup("a1", 2020, 3, 10, 2, 2, 2 * 86400L);
+        when(mockDeploymentRollupRepo.incrementAll(anyCollection())).thenReturn(Collections.singletonList(written));
+
+        deploymentService.storeAll(Arrays.asList(bulkDeployment("d1", "a1"), bulkDeployment("d2", "a1")));
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<DeploymentRollupDelta>> deltas = ArgumentCaptor.forClass(Collection.class);
+        verify(mockDeploymentRollupRepo, times(1)).incrementAll(deltas.capture());
+        DeploymentRollupDelta delta = deltas.getValue().iterator().next();
+        assertThat(deltas.getValue(), hasSize(1));
+        assertThat(delta.getDeploymentCount(), is(equalTo(2L)));
+        assertThat(delta.getLeadTimeSeconds(), is(equalTo(2 * 86400L)));
+        assertThat(delta.getLeadTimeBuckets(), is(equalTo(Collections.singletonMap(LeadTimeHistogram.bucketOf(86400), 2L))));
+        verify(mockDataVersions, times(1)).recordWrites(Collections.singletonList(written));
+        verify(mockDeploymentRollupRepo, never()).increment(anyString(), any(Date.class), anyLong(), anyLong(), anyLong(), anyMap());
+        }
+
+    @Test
+    void checkStoreAllRecordsTheDeploymentsInsertedAlongsideAFailedOne()
+        {
+        when(mockdeploymentRepo.findExistingDeploymentIds(anyCollection())).thenReturn(Collections.emptySet());
+        when(mockdeploymentRepo.insertAll(anyList())).thenReturn(Arrays.asList(IngestResult.failed(0, "d1", "document too large"), IngestResult.created(1, "d2", "id2")));
+        DeploymentRollup written = rollup("a1", 2020, 3, 10, 1, 1, 86400L);
+        when(mockDeploymentRollupRepo.incrementAll(anyCollection())).thenReturn(Collections.singletonList(written));
+
+        List<IngestResult> results = deploymentService.storeAll(Arrays.asList(bulkDeployment("d1", "a1"), bulkDeployment("d2", "a1")));
+
+        assertThat(results.stream().map(IngestResult::getStatus).collect(Collectors.toList()), contains(IngestResult.Status.FAILED, IngestResult.Status.CREATED));
+        assertThat(results.get(0).getErrors(), contains("document too large"));
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<DeploymentRollupDelta>> deltas = ArgumentCaptor.forClass(Collection.class);
+        verify(mockDeploymentRollupRepo, times(1)).incrementAll(deltas.capture());
+        assertThat(deltas.getValue().iterator().next().getDeploymentCount(), is(equalTo(1L)));
+        verify(mockDataVersions, times(1)).recordWrites(Collections.singletonList(written));
+        verify(mockDeploymentIdFilter, never()).put("d1");
+        verify(mockDeploymentIdFilter, times(1)).put("d2");
         }
 
     @Test
     void checkEliteLeadTimePerfLevel()
         {
         Deployment d1 = setupDeployment("a1", 3, 10, 10, 3, 10, 11, 3, 10, 12, 3, 10);
-        when(mockdeploymentRepo.save(d1)).thenReturn(d1);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
         Deployment storedDep = deploymentService.store(d1);
         assertThat(storedDep.getLeadTimePerfLevel(), equalTo(DORALevel.ELITE));
         }
@@ -132,7 +328,9 @@ class DeploymentServiceImplTest
     void checkHighLeadTimePerfLevel()
         {
         Deployment d1 = setupDeployment("a1", 3, 3, 10, 3, 4, 10, 3, 5, 10, 3, 10);
-        when(mockdeploymentRepo.save(d1)).thenReturn(d1);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
+        DeploymentRollup written = rollup("a1", 2020, 3, 10, 1, 3, 604800L + 518400L + 432000L);
+        when(mockDeploymentRollupRepo.increment(eq("a1"), any(Date.class), anyLong(), anyLong(), anyLong(), anyMap())).thenReturn(written);
         Deployment storedDep = deploymentService.store(d1);
         assertThat(storedDep.getLeadTimePerfLevel(), equalTo(DORALevel.HIGH));
         }
@@ -141,7 +339,7 @@ class DeploymentServiceImplTest
     void checkMedLeadTimePerfLevel()
         {
         Deployment d1 = setupDeployment("a1", 2, 20, 10, 2, 29, 10, 3, 5, 10, 3, 10);
-        when(mockdeploymentRepo.save(d1)).thenReturn(d1);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
         Deployment storedDep = deploymentService.store(d1);
         assertThat(storedDep.getLeadTimePerfLevel(), equalTo(DORALevel.MEDIUM));
         }
@@ -150,25 +348,44 @@ class DeploymentServiceImplTest
     void checkLowLeadTimePerfLevel()
         {
         Deployment d1 = setupDeployment("a1", 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 10);
-        when(mockdeploymentRepo.save(d1)).thenReturn(d1);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
         Deployment storedDep = deploymentService.store(d1);
         assertThat(storedDep.getLeadTimePerfLevel(), equalTo(DORALevel.LOW));
         }
     
+    private static DeploymentRollup rollup(String appId, int year, int month, int day, long deployments, long changes, long leadTimeSeconds)
+        {
+        return new DeploymentRollup(null, appId, dateOf(year, month, day, 0, 0, 0), deployments, changes, leadTimeSeconds);
+        }
+
+    private static DeploymentRollup rollup(String appId, int year, int month, int day, long... leadTimes)
+        {
+        Map<String, Long> buckets = new HashMap<>();
+        Arrays.stream(leadTimes).forEach(leadTime -> buckets.merge(String.valueOf(LeadTimeHistogram.bucketOf(leadTime)), 1L, Long::sum));
+        return new DeploymentRollup(null, appId, dateOf(year, month, day, 0, 0, 0), 1, leadTimes.length, Arrays.stream(leadTimes).sum(), buckets);
+        }
+
+    private void mockFrequencyRollups(String appId, DeploymentRollup... rollups)
+        {
+        when(mockDeploymentRollupRepo.findByApplicationIdInAndDayBetween
+            (Collections.singletonList(appId),
+                Range.closed(dateOf(2019, 3, 12, 0, 0, 0), dateOf(2020, 3, 10, 0, 0, 0))))
+            .thenReturn(Arrays.asList(rollups));
+        }
+
+    private void mockLeadTimeRollups(String appId, DeploymentRollup... rollups)
+        {
+        when(mockDeploymentRollupRepo.findByApplicationIdInAndDayBetween
+            (Collections.singletonList(appId),
+                Range.closed(dateOf(2019, 12, 12, 0, 0, 0), dateOf(2020, 3, 10, 0, 0, 0))))
+            .thenReturn(Arrays.asList(rollups));
+        }
+
     @Test
     void checkEliteDeployFreqLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 10);
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId), 
-                dateOf(2020, 3, 10, 0, 0, 0), 
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockFrequencyRollups(appId, rollup(appId, 2020, 3, 10, 2, 6, 0));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.ELITE));
@@ -180,16 +397,7 @@ class DeploymentServiceImplTest
     void checkHighDeployFreqLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 7);
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2020, 3, 4, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockFrequencyRollups(appId, rollup(appId, 2020, 3, 10, 1, 3, 0), rollup(appId, 2020, 3, 7, 1, 3, 0));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.HIGH));
@@ -201,16 +409,7 @@ class DeploymentServiceImplTest
     void checkMedDeployFreqLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 2, 15);
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2020, 2, 10, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockFrequencyRollups(appId, rollup(appId, 2020, 2, 15, 1, 3, 0), rollup(appId, 2020, 2, 20, 1, 3, 0));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.MEDIUM));
@@ -222,16 +421,7 @@ class DeploymentServiceImplTest
     void checkLowDeployFreqLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId, 1, 10, 10, 2, 29, 10, 2, 5, 10, 1, 15);
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 3, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockFrequencyRollups(appId, rollup(appId, 2019, 6, 1, 1, 3, 0), rollup(appId, 2020, 1, 15, 1, 3, 0));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.LOW));
@@ -243,11 +433,7 @@ class DeploymentServiceImplTest
     void checkUnknownDeployFreqLevel()
         {
         String appId = "a1";
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 12, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(Collections.emptyList());
+        mockFrequencyRollups(appId);
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.UNKNOWN));
@@ -255,22 +441,165 @@ class DeploymentServiceImplTest
         assertThat(freq.getTimePeriod(), equalTo(TimePeriod.YEAR));
         }
 
+    @Test
+    void checkScorecardSharesOneRollupQuery()
+        {
+        String appId = "a1";
+        //the 2019 deployment counts for frequency but is outside the 90 day lead time window
+        mockFrequencyRollups(appId, rollup(appId, 2020, 3, 10, 2, 2, 200), rollup(appId, 2019, 6, 1, 1, 1, 1000000));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+        Scorecard scorecard = deploymentService.calculateScorecard(appId, dateOf(2020, 3, 10, 0, 0, 0));
+        assertThat(scorecard.getApplicationId(), equalTo(appId));
+        assertThat(scorecard.getDeploymentFrequency().getDeployFreqLevel(), equalTo(DORALevel.ELITE));
+        assertThat(scorecard.getDeploymentFrequency().getDeploymentCount(), equalTo(2));
+        assertThat(scorecard.getLeadTime().getLeadTimeSeconds(), equalTo(100L));
+        assertThat(scorecard.getError(), is(nullValue()));
+        verify(mockHierarchyClient, times(1)).findApplicationChildIds(appId);
+        verify(mockDeploymentRollupRepo, times(1)).findByApplicationIdInAndDayBetween(any(), any());
+        }
+
+    @Test
+    void checkIndexedNodeMetricsComeFromMergedRollups()
+        {
+        String node = "t1";
+        when(mockHierarchyClient.findApplicationChildIds(node)).thenReturn(Arrays.asList("a1", "a2"));
+        when(mockHierarchyRollupCache.get(eq(node), eq(LocalDate.of(2020, 3, 10)), any()))
+            .thenReturn(Optional.of(Arrays.asList(rollup(node, 2020, 3, 10, 2, 2, 200), rollup(node, 2019, 6, 1, 1, 1, 1000000))));
+
+        Scorecard scorecard = deploymentService.calculateScorecard(node, dateOf(2020, 3, 10, 0, 0, 0));
+        DeploymentFrequency freq = deploymentService.calculateDeployFreq(node, dateOf(2020, 3, 10, 0, 0, 0));
+        LeadTime leadTime = deploymentService.calculateLeadTime(node, dateOf(2020, 3, 10, 0, 0, 0));
+
+        assertThat(scorecard.getDeploymentFrequency().getDeploymentCount(), equalTo(2));
+        assertThat(scorecard.getLeadTime().getLeadTimeSeconds(), equalTo(100L));
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.ELITE));
+        assertThat(leadTime.getLeadTimeSeconds(), equalTo(100L));
+        verifyNoInteractions(mockDeploymentRollupRepo);
+        }
+
+    @Test
+    void checkStoreDropsMergedRollups()
+        {
+        Deployment d1 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
+        when(mockdeploymentRepo.insertIfAbsent(d1)).thenReturn(Optional.empty());
+
+        deploymentService.store(d1);
+
+        //after the rollup is written, so a merge that read it before the write is not kept
+        InOrder order = inOrder(mockDeploymentRollupRepo, mockDataVersions);
+        order.verify(mockDeploymentRollupRepo).increment(eq("a1"), any(), eq(1L), anyLong(), anyLong(), any());
+        order.verify(mockDataVersions).recordWrites(anyCollection());
+        }
+
+    private void mockRollups(List<String> appIds, DeploymentRollup... rollups)
+        {
+        when(mockDeploymentRollupRepo.findByApplicationIdInAndDayBetween(eq(appIds), any())).thenAnswer(invocation -> {
+            Range<Date> days = invocation.getArgument(1);
+            return Arrays.stream(rollups).filter(rollup -> days.contains(rollup.getDay())).collect(Collectors.toList());
+        });
+        }
+
+    @Test
+    void checkDeployFreqSeriesMatchesDailyCalculation()
+        {
+        String appId = "a1";
+        mockRollups(Collections.singletonList(appId),
+            rollup(appId, 2019, 3, 1, 1, 1, 10),
+            rollup(appId, 2020, 1, 20, 1, 1, 10),
+            rollup(appId, 2020, 2, 25, 1, 1, 10),
+            rollup(appId, 2020, 3, 4, 2, 2, 20),
+            rollup(appId, 2020, 3, 6, 1, 1, 10));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+
+        List<DeploymentFrequency> series = deploymentService.calculateDeployFreqSeries(appId, dateOf(2020, 1, 1, 0, 0, 0), dateOf(2020, 3, 10, 0, 0, 0));
+
+        assertThat(series, hasSize(70));
+        verify(mockDeploymentRollupRepo, times(1)).findByApplicationIdInAndDayBetween(any(), any());
+        for(int i = 0; i < series.size(); i++){
+            Date day = Date.from(dateOf(2020, 1, 1, 0, 0, 0).toInstant().plusSeconds(i * 86400L));
+            DeploymentFrequency expected = deploymentService.calculateDeployFreq(appId, day);
+            assertThat(series.get(i).toString(), equalTo(expected.toString()));
+        }
+        }
+
+    @Test
+    void checkLeadTimeSeriesMatchesDailyCalculation()
+        {
+        String appId = "a1";
+        mockRollups(Collections.singletonList(appId),
+            rollup(appId, 2019, 10, 1, 100),
+            rollup(appId, 2020, 1, 20, 4, 6),
+            rollup(appId, 2020, 3, 4, 1000000, 3000000),
+            rollup(appId, 2020, 3, 6));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+
+        List<LeadTime> series = deploymentService.calculateLeadTimeSeries(appId, dateOf(2019, 12, 25, 0, 0, 0), dateOf(2020, 3, 10, 0, 0, 0));
+
+        assertThat(series, hasSize(77));
+        verify(mockDeploymentRollupRepo, times(1)).findByApplicationIdInAndDayBetween(any(), any());
+        for(int i = 0; i < series.size(); i++){
+            Date day = Date.from(dateOf(2019, 12, 25, 0, 0, 0).toInstant().plusSeconds(i * 86400L));
+            LeadTime expected = deploymentService.calculateLeadTime(appId, day);
+            assertThat(series.get(i).toString(), equalTo(expected.toString()));
+        }
+        }
+
+    @Test
+    void checkLeadTimePercentilesMergeDailyHistograms()
+        {
+        String appId = "a1";
+        Map<String, Long> day1 = new HashMap<>();
+        Map<String, Long> day2 = new HashMap<>();
+        for(long leadTime = 1; leadTime <= 100; leadTime++){
+            Map<String, Long> buckets = leadTime % 2 == 0 ? day1 : day2;
+            buckets.merge(String.valueOf(LeadTimeHistogram.bucketOf(leadTime * 60)), 1L, Long::sum);
+        }
+        //outside the 90 day window, so it must not count
+        Map<String, Long> old = Collections.singletonMap(String.valueOf(LeadTimeHistogram.bucketOf(1000000L)), 100L);
+        mockLeadTimeRollups(appId,
+            new DeploymentRollup(null, appId, dateOf(2020, 3, 10, 0, 0, 0), 1, 50, 0, day1),
+            new DeploymentRollup(null, appId, dateOf(2020, 1, 10, 0, 0, 0), 1, 50, 0, day2),
+            new DeploymentRollup(null, appId, dateOf(2019, 12, 11, 0, 0, 0), 1, 100, 0, old));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+
+        LeadTimePercentiles percentiles = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0)).getPercentiles();
+
+        assertThat((double) percentiles.getP50(), closeTo(50 * 60, 50 * 60 * LeadTimeHistogram.RELATIVE_ACCURACY + 0.5));
+        assertThat((double) percentiles.getP90(), closeTo(90 * 60, 90 * 60 * LeadTimeHistogram.RELATIVE_ACCURACY + 0.5));
+        assertThat((double) percentiles.getP99(), closeTo(99 * 60, 99 * 60 * LeadTimeHistogram.RELATIVE_ACCURACY + 0.5));
+        }
+
+    @Test
+    void checkLeadTimeWithoutHistogramsHasNoPercentiles()
+        {
+        String appId = "a1";
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 1, 1, 60));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+        LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
+        assertThat(leadTime.getLeadTimeSeconds(), equalTo(60L));
+        assertThat(leadTime.getPercentiles(), is(nullValue()));
+        }
+
+    @Test
+    void checkDeployFreqSumsHierarchyRollups()
+        {
+        String appId = "a1";
+        List<String> appIds = Arrays.asList("a1", "a2");
+        when(mockDeploymentRollupRepo.findByApplicationIdInAndDayBetween
+            (appIds,
+                Range.closed(dateOf(2019, 3, 12, 0, 0, 0), dateOf(2020, 3, 10, 0, 0, 0))))
+            .thenReturn(Arrays.asList(rollup("a1", 2020, 3, 10, 1, 3, 0), rollup("a2", 2020, 3, 10, 2, 3, 0), rollup("a2", 2020, 3, 9, 5, 3, 0)));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(appIds);
+        DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0));
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.ELITE));
+        assertThat(freq.getDeploymentCount(), equalTo(3));
+        }
+
     @Test
     void checkEliteLeadTimeLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId, 1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        d1.getChanges().forEach(change -> {change.setLeadTimeSeconds(100);});
-        d2.getChanges().forEach(change -> {change.setLeadTimeSeconds(100);});
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 12, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 2, 6, 6 * 100L));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.ELITE));
@@ -281,18 +610,7 @@ class DeploymentServiceImplTest
     void checkHighLeadTimeLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId, 1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId, 1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        d1.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.DAY);});
-        d2.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.DAY);});
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 12, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 2, 6, 6 * DORALevel.DAY));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.HIGH));
@@ -303,18 +621,7 @@ class DeploymentServiceImplTest
     void checkMedLeadTimeLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        d1.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.WEEK);});
-        d2.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.WEEK);});
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 12, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 2, 6, 6 * DORALevel.WEEK));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.MEDIUM));
@@ -325,75 +632,191 @@ class DeploymentServiceImplTest
     void checkLowLeadTimeLevel()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        d1.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.MONTH);});
-        d2.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.MONTH);});
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 12, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(deploys);
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 2, 6, 6 * DORALevel.MONTH));
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.LOW));
         assertThat(leadTime.getLeadTimeSeconds(), equalTo(DORALevel.MONTH));
         }
 
+    @Test
+    void checkLeadTimeRoundsAverage()
+        {
+        String appId = "a1";
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 1, 2, 40), rollup(appId, 2019, 12, 12, 1, 1, 60));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+        LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
+        assertThat(leadTime.getLeadTimeSeconds(), equalTo(33L));
+        }
+
+    @Test
+    void checkLeadTimeWithoutChanges()
+        {
+        String appId = "a1";
+        mockLeadTimeRollups(appId, rollup(appId, 2020, 3, 10, 1, 0, 0));
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+        LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
+        assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.LOW));
+        assertThat(leadTime.getLeadTimeSeconds(), equalTo(0L));
+        }
+
     @Test
     void checkUnknownLeadTimeLevel()
         {
         String appId = "a1";
-        when(mockdeploymentRepo.findByApplicationIdInAndCreatedBetweenOrderByCreated
-            (Collections.singletonList(appId),
-                dateOf(2019, 12, 12, 0, 0, 0),
-                dateOf(2020, 3, 11, 0, 0, 0)))
-            .thenReturn(Collections.emptyList());
+        mockLeadTimeRollups(appId);
         when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
         LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0));
         assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.UNKNOWN));
         assertThat(leadTime.getLeadTimeSeconds(), equalTo(0L));
         }
 
+    private void mockWindow(String appId, LocalDate firstDay, LeadTimeSummary totals)
+        {
+        when(mockHierarchyClient.findApplicationChildIds(appId)).thenReturn(Collections.singletonList(appId));
+        when(mockDeploymentWindowIndex.sum(Collections.singletonList(appId), firstDay, LocalDate.of(2020, 3, 10)))
+            .thenReturn(totals);
+        }
+
     @Test
-    void checkListAll()
+    void checkWindowedDeployFreqLevels()
         {
         String appId = "a1";
-        Deployment d1 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        Deployment d2 =  setupDeployment(appId,1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        d1.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.MONTH);});
-        d2.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.MONTH);});
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
-        when(mockdeploymentRepo.findByApplicationId(appId))
-            .thenReturn(deploys);
-        
-        List<Deployment> deployList = deploymentService.listAllForApplication(appId);
-        
-        assertThat(deployList.size(), equalTo(2));
+        mockWindow(appId, LocalDate.of(2020, 2, 26), new LeadTimeSummary(15, 0, 0));
+        DeploymentFrequency freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0), 14);
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.ELITE));
+        assertThat(freq.getDeploymentCount(), equalTo(15));
+        assertThat(freq.getWindowDays(), equalTo(14));
+        //the count is for the whole window, not a day
+        assertThat(freq.getTimePeriod(), is(nullValue()));
+
+        mockWindow(appId, LocalDate.of(2020, 2, 26), new LeadTimeSummary(2, 0, 0));
+        freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0), 14);
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.HIGH));
+        assertThat(freq.getDeploymentCount(), equalTo(2));
+        assertThat(freq.getTimePeriod(), is(nullValue()));
+
+        mockWindow(appId, LocalDate.of(2020, 2, 12), new LeadTimeSummary(1, 0, 0));
+        freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0), 28);
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.MEDIUM));
+
+        mockWindow(appId, LocalDate.of(2019, 3, 12), new LeadTimeSummary(5, 0, 0));
+        freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0), 365);
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.LOW));
+
+        mockWindow(appId, LocalDate.of(2020, 2, 12), new LeadTimeSummary(0, 0, 0));
+        freq = deploymentService.calculateDeployFreq(appId, dateOf(2020, 3, 10, 0, 0, 0), 28);
+        assertThat(freq.getDeployFreqLevel(), equalTo(DORALevel.UNKNOWN));
+        assertThat(freq.getDeploymentCount(), equalTo(0));
         }
 
     @Test
-    void checkListHierarchy()
+    void checkWindowedLeadTime()
+        {
+        String appId = "a1";
+        mockWindow(appId, LocalDate.of(2020, 2, 12), new LeadTimeSummary(3, 4, 4 * DORALevel.DAY));
+        LeadTime leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0), 28);
+        assertThat(leadTime.getLeadTimeSeconds(), equalTo(DORALevel.DAY));
+        assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.HIGH));
+        assertThat(leadTime.getWindowDays(), equalTo(28));
+
+        mockWindow(appId, LocalDate.of(2020, 2, 12), new LeadTimeSummary(0, 0, 0));
+        leadTime = deploymentService.calculateLeadTime(appId, dateOf(2020, 3, 10, 0, 0, 0), 28);
+        assertThat(leadTime.getLeadTimePerfLevel(), equalTo(DORALevel.UNKNOWN));
+        }
+
+    @Test
+    void checkPageReadsOneAheadForNextCursor()
+        {
+        Deployment d1 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 12);
+        Deployment d2 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 11);
+        Deployment d3 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
+        DeploymentCursor after = new DeploymentCursor(dateOf(2020, 3, 13, 0, 0, 0), "id0");
+        when(mockHierarchyClient.findChildIds("a1")).thenReturn(Arrays.asList("a1", "a2"));
+        when(mockdeploymentRepo.findPageByApplicationIdIn(Arrays.asList("a1", "a2"), after, 3))
+            .thenReturn(Arrays.asList(d1, d2, d3));
+
+        DeploymentPage page = deploymentService.listForHierarchy("a1", after, 2);
+
+        assertThat(page.getDeployments(), contains(d1, d2));
+        assertThat(page.getNext(), is(equalTo(DeploymentCursor.after(d2))));
+        }
+
+    @Test
+    void checkHierarchyPageMergesChunks()
+        {
+        //one application per chunk, each chunk read newest first
+        DeploymentService chunkedService = new DeploymentServiceImpl(mockdeploymentRepo, mockDeploymentRollupRepo, mockHierarchyClient,
+            mockDeploymentWindowIndex, mockMetricResultCache, mockDeploymentIdFilter, new ChunkedInQuery(1, 2, 10), mockAncestorTagger, mockHierarchyRollupCache,
+            mockDataVersions, Validation.buildDefaultValidatorFactory().getValidator(), 2);
+        Deployment a1New =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 12);
+        Deployment a1Old =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 9);
+        Deployment a2New =  setupDeployment("a2",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 11);
+        Deployment a2Old =  setupDeployment("a2",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
+        a1New.setId("id4");
+        a1Old.setId("id1");
+        a2New.setId("id3");
+        a2Old.setId("id2");
+        when(mockHierarchyClient.findChildIds("root")).thenReturn(Arrays.asList("a1", "a2"));
+        when(mockdeploymentRepo.findPageByApplicationIdIn(Collections.singletonList("a1"), null, 3)).thenReturn(Arrays.asList(a1New, a1Old));
+        when(mockdeploymentRepo.findPageByApplicationIdIn(Collections.singletonList("a2"), null, 3)).thenReturn(Arrays.asList(a2New, a2Old));
+
+        DeploymentPage page = chunkedService.listForHierarchy("root", null, 2);
+
+        assertThat(page.getDeployments(), contains(a1New, a2New));
+        assertThat(page.getNext(), is(equalTo(DeploymentCursor.after(a2New))));
+        }
+
+    @Test
+    void checkTaggedHierarchyIsQueriedByAncestor()
+        {
+        Deployment d1 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 12);
+        Deployment d2 =  setupDeployment("a2",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 11);
+        when(mockAncestorTagger.covers("t1")).thenReturn(true);
+        when(mockdeploymentRepo.findPageByAncestor("t1", null, 3)).thenReturn(Arrays.asList(d1, d2));
+        when(mockdeploymentRepo.streamByAncestors("t1")).thenReturn(Stream.of(d1, d2));
+        List<Deployment> exported = new ArrayList<>();
+
+        assertThat(deploymentService.listForHierarchy("t1", null, 2).getDeployments(), contains(d1, d2));
+        deploymentService.exportForHierarchy("t1", exported::add);
+
+        assertThat(exported, contains(d1, d2));
+        verifyNoInteractions(mockHierarchyClient);
+        verify(mockdeploymentRepo, never()).findPageByApplicationIdIn(any(), any(), anyInt());
+        }
+
+    @Test
+    void checkLastPageHasNoNextCursor()
+        {
+        Deployment d1 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
+        when(mockdeploymentRepo.findPageByApplicationIdIn(Collections.singleton("a1"), null, 3))
+            .thenReturn(Collections.singletonList(d1));
+        when(mockdeploymentRepo.findPage(null, 3))
+            .thenReturn(Arrays.asList(d1, d1));
+
+        assertThat(deploymentService.listForApplication("a1", null, 2).getNext(), is(nullValue()));
+        assertThat(deploymentService.list(null, 2).getNext(), is(nullValue()));
+        assertThat(deploymentService.list(null, 2).getDeployments(), hasSize(2));
+        }
+
+    @Test
+    void checkExportClosesCursorWhenConsumerFails()
         {
         Deployment d1 =  setupDeployment("a1",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
         Deployment d2 =  setupDeployment("a2",1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
-        d1.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.MONTH);});
-        d2.getChanges().forEach(change -> {change.setLeadTimeSeconds(DORALevel.MONTH);});
-        List<Deployment> deploys = new ArrayList<>();
-        deploys.add(d1);
-        deploys.add(d2);
+        AtomicBoolean closed = new AtomicBoolean();
         when(mockHierarchyClient.findChildIds("a1")).thenReturn(Arrays.asList("a1", "a2"));
-        when(mockdeploymentRepo.findByApplicationIdInOrderByCreatedDesc(anyCollection()))
-            .thenReturn(deploys);
+        when(mockdeploymentRepo.streamByApplicationIdIn(Arrays.asList("a1", "a2")))
+            .thenReturn(Stream.of(d1, d2).onClose(() -> closed.set(true)));
+        List<Deployment> exported = new ArrayList<>();
 
-        List<Deployment> deployList = deploymentService.listAllForHierarchy("a1");
+        assertThrows(IllegalStateException.class, () -> deploymentService.exportForHierarchy("a1", deployment -> {
+            exported.add(deployment);
+            throw new IllegalStateException("client went away");
+        }));
 
-        assertThat(deployList.size(), equalTo(2));
+        assertThat(exported, contains(d1));
+        assertThat(closed.get(), is(true));
         }
 
     @Test
@@ -424,9 +847,38 @@ class DeploymentServiceImplTest
         Deployment d1 =  setupDeployment(appId, 1, 10, 10, 3, 10, 10, 3, 10, 10, 3, 10);
         when(mockdeploymentRepo.findById("id123"))
             .thenReturn(Optional.of(d1));
+        DeploymentRollup written = rollup(appId, 2020, 3, 10, 0, 0, 0);
+        when(mockDeploymentRollupRepo.increment(eq(appId), any(Date.class), anyLong(), anyLong(), anyLong(), anyMap())).thenReturn(written);
         String id = deploymentService.delete("id123");
         assertThat(id, is(equalTo("id123")));
         verify(mockdeploymentRepo, times(1)).findById("id123");
         verify(mockdeploymentRepo, times(1)).delete(d1);
+        verify(mockDeploymentRollupRepo, times(1)).increment("a1", dateOf(2020, 3, 10, 0, 0, 0), -1, -3, 0, Collections.singletonMap(0, -3L));
+        verify(mockDataVersions, times(1)).recordWrites(Collections.singletonList(written));
+        }
+
+    @Test
+    void checkDeleteMissing()
+        {
+        when(mockdeploymentRepo.findById("id123"))
+            .thenReturn(Optional.empty());
+        String id = deploymentService.delete("id123");
+        assertThat(id, is(equalTo("id123")));
+        verify(mockdeploymentRepo, never()).delete(any(Deployment.class));
+        verify(mockDeploymentRollupRepo, never()).increment(anyString(), any(Date.class), anyLong(), anyLong(), anyLong(), anyMap());
+        verify(mockDataVersions, never()).recordWrites(anyCollection());
         }
-    }
\ No newline at end of file
+
+    @Test
+    void checkVersionsAreReadForTheHierarchy()
+        {
+        DataVersion application = new DataVersion("application", null);
+        DataVersion hierarchy = new DataVersion("hierarchy", null);
+        when(mockHierarchyClient.findApplicationChildIds("a1")).thenReturn(Arrays.asList("a1", "a2"));
+        when(mockDataVersions.version(Collections.singleton("a1"))).thenReturn(application);
+        when(mockDataVersions.version(Arrays.asList("a1", "a2"))).thenReturn(hierarchy);
+
+        assertThat(deploymentService.getApplicationVersion("a1"), is(sameInstance(application)));
+        assertThat(deploymentService.getHierarchyVersion("a1"), is(sameInstance(hierarchy)));
+        }
+    }
@@ -0,0 +1,75 @@
+package team.deployservice.service;
+
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.Test;
+import team.deployservice.model.DeploymentRollup;
+import team.deployservice.model.LeadTimeSummary;
+import team.deployservice.repo.DeploymentRollupRepo;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Collections;
+import java.util.Date;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.*;
+
+class DeploymentWindowIndexTest
+    {
+    private static final LocalDate DAY = LocalDate.of(2020, 3, 10);
+    private final DeploymentRollupRepo rollupRepo = mock(DeploymentRollupRepo.class);
+    private final DeploymentWindowIndex index = new DeploymentWindowIndex(rollupRepo);
+
+    private static DeploymentRollup rollup(String appId, LocalDate day, long deployments, int modified)
+        {
+        return new DeploymentRollup(null, appId, Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant()), deployments, deployments, 60 * deployments,
+            Collections.emptyMap(), new BsonTimestamp(modified, 1));
+        }
+
+    private long deployments(String appId)
+        {
+        return index.sum(Collections.singletonList(appId), DAY.minusDays(6), DAY).getDeploymentCount();
+        }
+
+    @Test
+    void keepsTheNewestCopyOfADay()
+        {
+        when(rollupRepo.streamAllBy()).thenReturn(Stream.of(rollup("a1", DAY, 2, 100), rollup("a1", DAY.minusDays(1), 1, 100)));
+        index.reload();
+
+        index.record(rollup("a1", DAY, 4, 300));
+        index.record(rollup("a1", DAY, 3, 200));
+
+        LeadTimeSummary week = index.sum(Collections.singletonList("a1"), DAY.minusDays(6), DAY);
+        assertThat(week.getDeploymentCount(), is(equalTo(5L)));
+        assertThat(week.getLeadTimeSeconds(), is(equalTo(300L)));
+        }
+
+    @Test
+    void replaysRollupsRecordedWhileReloading()
+        {
+        index.reload();
+        DeploymentRollup recorded = rollup("a1", DAY, 3, 200);
+        //one rollup is written while the cursor is past it, the other one before the cursor reads it
+        when(rollupRepo.streamAllBy()).thenReturn(Stream.of(rollup("a1", DAY, 2, 100), rollup("a2", DAY, 1, 100), rollup("a3", DAY, 6, 250))
+            .peek(rollup -> {
+                if(rollup.getApplicationId().equals("a2")){
+                    index.record(recorded);
+                    index.record(rollup("a3", DAY, 6, 250));
+                }
+            }));
+
+        index.reload();
+
+        assertThat(deployments("a1"), is(equalTo(3L)));
+        assertThat(deployments("a2"), is(equalTo(1L)));
+        assertThat(deployments("a3"), is(equalTo(6L)));
+
+        //once the reload is done rollups go straight to the index
+        index.record(rollup("a1", DAY, 4, 300));
+        assertThat(deployments("a1"), is(equalTo(4L)));
+        }
+    }
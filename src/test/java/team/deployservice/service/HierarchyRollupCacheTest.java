@@ -0,0 +1,169 @@
+package team.deployservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+import team.deployservice.hierarchy.HierarchyIndex;
+import team.deployservice.hierarchy.StubHierarchyClient;
+import team.deployservice.model.DeploymentRollup;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.mock;
+
+class HierarchyRollupCacheTest
+    {
+    private static final LocalDate REPORTING_DAY = LocalDate.of(2020, 3, 10);
+    private final StubHierarchyClient teamService = new StubHierarchyClient()
+        .node("org", null)
+        .node("t1", "org")
+        .node("t2", "org")
+        .application("a1", "t1")
+        .application("a2", "t1")
+        .application("a3", "t2");
+    private final HierarchyIndex hierarchyIndex = new HierarchyIndex(teamService, Set.of("org"), 1000, Duration.ofHours(24));
+    //maintenance runs on the calling thread so evictions are visible straight away
+    private final HierarchyRollupCache cache = new HierarchyRollupCache(hierarchyIndex, DataSize.ofMegabytes(1), new SimpleMeterRegistry(), Runnable::run);
+    private final Map<String, List<DeploymentRollup>> stored = new HashMap<>();
+    private final List<Collection<String>> loads = new ArrayList<>();
+
+    @BeforeEach
+    void loadHierarchy()
+        {
+        hierarchyIndex.reload();
+        stored.put("a1", Collections.singletonList(rollup("a1", REPORTING_DAY, 2, 3, 30, Map.of("1", 3L))));
+        stored.put("a2", Collections.singletonList(rollup("a2", REPORTING_DAY.minusDays(1), 1, 1, 10, Map.of("1", 1L))));
+        stored.put("a3", Collections.singletonList(rollup("a3", REPORTING_DAY, 1, 2, 40, Map.of("2", 2L))));
+        }
+
+    private static DeploymentRollup rollup(String appId, LocalDate day, long deployments, long changes, long leadTimeSeconds, Map<String, Long> buckets)
+        {
+        return new DeploymentRollup(null, appId, toDate(day), deployments, changes, leadTimeSeconds, buckets);
+        }
+
+    private static Date toDate(LocalDate day)
+        {
+        return Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant());
+        }
+
+    private List<DeploymentRollup> get(String node)
+        {
+        return cache.get(node, REPORTING_DAY, appIds -> {
+            loads.add(new TreeSet<>(appIds));
+            return appIds.stream().flatMap(appId -> stored.getOrDefault(appId, Collections.emptyList()).stream()).collect(Collectors.toList());
+        }).orElse(null);
+        }
+
+    private static Map<LocalDate, Long> deploymentsByDay(List<DeploymentRollup> rollups)
+        {
+        return rollups.stream().collect(Collectors.toMap(rollup -> rollup.getDay().toInstant().atZone(ZoneOffset.UTC).toLocalDate(),
+            DeploymentRollup::getDeploymentCount));
+        }
+
+    @Test
+    void mergesChildrenPerDay()
+        {
+        List<DeploymentRollup> org = get("org");
+
+        assertThat(deploymentsByDay(org), equalTo(Map.of(REPORTING_DAY, 3L, REPORTING_DAY.minusDays(1), 1L)));
+        DeploymentRollup today = org.stream().filter(rollup -> rollup.getDeploymentCount() == 3).findFirst().orElseThrow();
+        assertThat(today.getApplicationId(), equalTo("org"));
+        assertThat(today.getChangeCount(), equalTo(5L));
+        assertThat(today.getLeadTimeSeconds(), equalTo(70L));
+        assertThat(today.getLeadTimeBuckets(), equalTo(Map.of("1", 3L, "2", 2L)));
+        }
+
+    @Test
+    void readsOnlyApplicationsUnderUncachedChildren()
+        {
+        get("t1");
+        get("org");
+        get("org");
+
+        assertThat(loads, contains(Set.of("a1", "a2"), Set.of("a3")));
+        assertThat(deploymentsByDay(get("t2")), equalTo(Map.of(REPORTING_DAY, 1L)));
+        assertThat(loads, hasSize(2));
+        }
+
+    @Test
+    void dropsEveryAncestorOfAWrittenApplication()
+        {
+        get("org");
+        stored.put("a3", Collections.singletonList(rollup("a3", REPORTING_DAY, 2, 3, 45, Map.of("2", 3L))));
+
+        cache.invalidate("a3", REPORTING_DAY);
+
+        assertThat(deploymentsByDay(get("org")).get(REPORTING_DAY), is(4L));
+        assertThat(deploymentsByDay(get("t2")).get(REPORTING_DAY), is(2L));
+        //the sibling subtree stays cached and is merged back in as it is
+        assertThat(deploymentsByDay(get("t1")).get(REPORTING_DAY), is(2L));
+        assertThat(loads, contains(Set.of("a1", "a2", "a3"), Set.of("a3")));
+        }
+
+    @Test
+    void doesNotKeepAMergeThatReadAcrossAWrite()
+        {
+        //the write lands after the rollups were read, so the merged entry is already stale
+        cache.get("t2", REPORTING_DAY, appIds -> {
+            List<DeploymentRollup> read = stored.get("a3");
+            stored.put("a3", Collections.singletonList(rollup("a3", REPORTING_DAY, 2, 3, 45, Map.of("2", 3L))));
+            cache.invalidate("a3", REPORTING_DAY);
+            cache.moved("a3");
+            return read;
+        });
+
+        assertThat(deploymentsByDay(get("t2")).get(REPORTING_DAY), is(2L));
+        }
+
+    @Test
+    void doesNotServeAnEntryUnderANewerVersion()
+        {
+        //the version moves on after the rollups were read, so the entry is older than the version it would be served with
+        cache.get("org", REPORTING_DAY, appIds -> {
+            List<DeploymentRollup> read = appIds.stream().flatMap(appId -> stored.get(appId).stream()).collect(Collectors.toList());
+            stored.put("a3", Collections.singletonList(rollup("a3", REPORTING_DAY, 2, 3, 45, Map.of("2", 3L))));
+            cache.moved("a3");
+            return read;
+        });
+
+        assertThat(deploymentsByDay(get("org")).get(REPORTING_DAY), is(4L));
+        assertThat(deploymentsByDay(get("t2")).get(REPORTING_DAY), is(2L));
+        //only the subtree whose version moved is read again
+        assertThat(loads, contains(Set.of("a3")));
+        assertThat(deploymentsByDay(get("t1")).get(REPORTING_DAY), is(2L));
+        assertThat(loads, hasSize(1));
+        }
+
+    @Test
+    void ignoresDaysOutsideTheWindow()
+        {
+        stored.put("a3", Collections.singletonList(rollup("a3", REPORTING_DAY.minusDays(HierarchyRollupCache.DAYS), 1, 1, 1, Map.of())));
+
+        assertThat(deploymentsByDay(get("t2")).entrySet(), is(empty()));
+        }
+
+    @Test
+    void rebuildsWhenTheHierarchyChanges()
+        {
+        get("org");
+        teamService.remove("a3");
+        hierarchyIndex.reload();
+
+        assertThat(deploymentsByDay(get("org")), equalTo(Map.of(REPORTING_DAY, 2L, REPORTING_DAY.minusDays(1), 1L)));
+        assertThat(loads, hasSize(2));
+        }
+
+    @Test
+    void unknownNodeIsNotMerged()
+        {
+        assertThat(get("elsewhere"), is(nullValue()));
+        assertThat(loads, is(empty()));
+        }
+    }
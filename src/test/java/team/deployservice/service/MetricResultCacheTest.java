@@ -0,0 +1,116 @@
+package team.deployservice.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static team.deployservice.service.MetricResultCache.Metric.DEPLOYMENT_FREQUENCY;
+import static team.deployservice.service.MetricResultCache.Metric.LEAD_TIME;
+
+class MetricResultCacheTest
+    {
+    private static final LocalDate REPORTING_DAY = LocalDate.of(2020, 3, 10);
+    private static final List<String> HIERARCHY = Arrays.asList("parent", "child");
+    //maintenance runs on the calling thread so evictions are visible straight away
+    private final MetricResultCache cache = new MetricResultCache(DataSize.ofMegabytes(1), new SimpleMeterRegistry(), Runnable::run);
+    private final AtomicInteger calculations = new AtomicInteger();
+
+    private Integer frequency(String appId, LocalDate reportingDay, List<String> appIds)
+        {
+        return cache.get(DEPLOYMENT_FREQUENCY, appId, reportingDay, 365, appIds, calculations::incrementAndGet);
+        }
+
+    private Integer leadTime(String appId, LocalDate reportingDay, List<String> appIds)
+        {
+        return cache.get(LEAD_TIME, appId, reportingDay, 90, appIds, calculations::incrementAndGet);
+        }
+
+    @Test
+    void cachesByMetricApplicationAndDay()
+        {
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(1));
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(1));
+        assertThat(leadTime("parent", REPORTING_DAY, HIERARCHY), is(2));
+        assertThat(frequency("parent", REPORTING_DAY.minusDays(1), HIERARCHY), is(3));
+        assertThat(frequency("child", REPORTING_DAY, Collections.singletonList("child")), is(4));
+        assertThat(calculations.get(), is(4));
+        }
+
+    @Test
+    void invalidatesOnlyWindowsContainingTheDay()
+        {
+        frequency("parent", REPORTING_DAY, HIERARCHY);
+        leadTime("parent", REPORTING_DAY, HIERARCHY);
+
+        //inside the frequency window but older than the lead time window
+        cache.invalidate("parent", REPORTING_DAY.minusDays(100));
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(3));
+        assertThat(leadTime("parent", REPORTING_DAY, HIERARCHY), is(2));
+
+        //after the reporting day and before both windows
+        cache.invalidate("parent", REPORTING_DAY.plusDays(1));
+        cache.invalidate("parent", REPORTING_DAY.minusDays(365));
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(3));
+        assertThat(leadTime("parent", REPORTING_DAY, HIERARCHY), is(2));
+        }
+
+    @Test
+    void invalidatesAncestorsOfTheApplication()
+        {
+        frequency("parent", REPORTING_DAY, HIERARCHY);
+        frequency("child", REPORTING_DAY, Collections.singletonList("child"));
+        frequency("other", REPORTING_DAY, Collections.singletonList("other"));
+
+        cache.invalidate("child", REPORTING_DAY);
+
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(4));
+        assertThat(frequency("child", REPORTING_DAY, Collections.singletonList("child")), is(5));
+        assertThat(frequency("other", REPORTING_DAY, Collections.singletonList("other")), is(3));
+        }
+
+    @Test
+    void recalculatesWhenTheHierarchyChanges()
+        {
+        frequency("parent", REPORTING_DAY, HIERARCHY);
+        assertThat(frequency("parent", REPORTING_DAY, Arrays.asList("parent", "child", "new")), is(2));
+        //the new child now invalidates the parent
+        cache.invalidate("new", REPORTING_DAY);
+        assertThat(frequency("parent", REPORTING_DAY, Arrays.asList("parent", "child", "new")), is(3));
+        }
+
+    @Test
+    void doesNotCacheResultsCalculatedAcrossAWrite()
+        {
+        Integer first = cache.get(DEPLOYMENT_FREQUENCY, "parent", REPORTING_DAY, 365, HIERARCHY, () -> {
+            cache.invalidate("child", REPORTING_DAY);
+            return calculations.incrementAndGet();
+        });
+        assertThat(first, is(1));
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(2));
+        assertThat(frequency("parent", REPORTING_DAY, HIERARCHY), is(2));
+        }
+
+    @Test
+    void staysWithinTheHeapBudget()
+        {
+        for(int day = 0; day < 10_000; day++){
+            frequency("parent", REPORTING_DAY.minusDays(day), HIERARCHY);
+        }
+        //each result weighs at least 700 bytes, so a megabyte holds fewer than 1500 of them
+        int cached = 0;
+        for(int day = 0; day < 10_000; day++){
+            int before = calculations.get();
+            frequency("parent", REPORTING_DAY.minusDays(day), HIERARCHY);
+            cached += calculations.get() == before ? 1 : 0;
+        }
+        assertThat(cached, is(both(greaterThan(0)).and(lessThan(1_500))));
+        }
+    }
@@ -0,0 +1,79 @@
+package team.deployservice.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import team.deployservice.model.*;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static org.mockito.Mockito.*;
+
+class ScorecardServiceImplTest
+    {
+    private final Date reportingDate = new Date(0);
+    private final DeploymentService mockDeploymentService = mock(DeploymentService.class);
+    private final ScorecardServiceImpl scorecardService = new ScorecardServiceImpl(mockDeploymentService, 2, 1);
+
+    @AfterEach
+    void shutdown()
+        {
+        scorecardService.shutdown();
+        }
+
+    private Scorecard scorecard(String appId)
+        {
+        return new Scorecard(appId, reportingDate,
+            new DeploymentFrequency(appId, reportingDate, 1, TimePeriod.DAY, DORALevel.HIGH),
+            new LeadTime(appId, reportingDate, 1, DORALevel.ELITE));
+        }
+
+    @Test
+    void calculatesEveryApplicationOnce()
+        {
+        List<String> appIds = Arrays.asList("a1", "a2", "a3", "a4", "a5", "a1");
+        appIds.forEach(appId -> when(mockDeploymentService.calculateScorecard(appId, reportingDate)).thenReturn(scorecard(appId)));
+
+        List<String> seen = new ArrayList<>();
+        scorecardService.calculateScorecards(appIds, reportingDate, scorecard -> seen.add(scorecard.getApplicationId()));
+
+        assertThat(seen, containsInAnyOrder("a1", "a2", "a3", "a4", "a5"));
+        verify(mockDeploymentService, times(1)).calculateScorecard("a1", reportingDate);
+        }
+
+    @Test
+    void slowApplicationDoesNotHoldBackOthers() throws InterruptedException
+        {
+        CountDownLatch release = new CountDownLatch(1);
+        when(mockDeploymentService.calculateScorecard("slow", reportingDate)).thenAnswer(invocation -> {
+            release.await(10, TimeUnit.SECONDS);
+            return scorecard("slow");
+        });
+        when(mockDeploymentService.calculateScorecard("fast", reportingDate)).thenReturn(scorecard("fast"));
+
+        List<String> seen = new ArrayList<>();
+        scorecardService.calculateScorecards(Arrays.asList("slow", "fast"), reportingDate, scorecard -> {
+            seen.add(scorecard.getApplicationId());
+            release.countDown();
+        });
+
+        assertThat(seen, contains("fast", "slow"));
+        }
+
+    @Test
+    void failureIsReportedInScorecard()
+        {
+        when(mockDeploymentService.calculateScorecard("a1", reportingDate)).thenThrow(new IllegalStateException("hierarchy unavailable"));
+        when(mockDeploymentService.calculateScorecard("a2", reportingDate)).thenReturn(scorecard("a2"));
+
+        Map<String, Scorecard> seen = new HashMap<>();
+        scorecardService.calculateScorecards(Arrays.asList("a1", "a2"), reportingDate, scorecard -> seen.put(scorecard.getApplicationId(), scorecard));
+
+        assertThat(seen.get("a1").getError(), equalTo("hierarchy unavailable"));
+        assertThat(seen.get("a1").getDeploymentFrequency(), is(nullValue()));
+        assertThat(seen.get("a2").getError(), is(nullValue()));
+        }
+    }